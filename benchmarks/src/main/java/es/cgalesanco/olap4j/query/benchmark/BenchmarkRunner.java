@@ -0,0 +1,25 @@
+package es.cgalesanco.olap4j.query.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of {@code benchmarks.jar}. Runs the benchmarks selected by the
+ * JMH command line arguments (every benchmark by default) with the GC
+ * profiler enabled, so allocation rates are reported along with timings.
+ *
+ * @author César García
+ *
+ */
+public class BenchmarkRunner {
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,133 @@
+package es.cgalesanco.olap4j.query.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.olap4j.Axis;
+import org.olap4j.mdx.SelectNode;
+import org.olap4j.metadata.Member;
+
+import es.cgalesanco.olap4j.query.Query;
+import es.cgalesanco.olap4j.query.QueryAxis;
+import es.cgalesanco.olap4j.query.QueryHierarchy;
+import es.cgalesanco.olap4j.query.Selection.Operator;
+
+/**
+ * Benchmarks drilling and end to end MDX generation ({@link Query#getSelect()})
+ * of a query with the synthetic hierarchy on rows and measures on columns.
+ *
+ * @author César García
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class GenerationBenchmark {
+
+	@Param({ "3", "4" })
+	public int depth;
+
+	@Param({ "10", "30" })
+	public int fanOut;
+
+	@Param({ "10", "100" })
+	public int drills;
+
+	@Param({ "false", "true" })
+	public boolean expanded;
+
+	private Query query;
+	private QueryAxis rows;
+	private List<Member> drillProbes;
+	private ExecutorService executor;
+
+	@Setup
+	public void setUp() throws Exception {
+		SyntheticMetadata metadata = new SyntheticMetadata(depth, fanOut);
+		query = new Query("Generation benchmark", metadata.getCube());
+
+		QueryHierarchy measures = query.getHierarchy("Measures");
+		for (Member m : measures.getHierarchy().getRootMembers())
+			measures.include(Operator.MEMBER, m);
+		query.getAxis(Axis.COLUMNS).addHierarchy(measures);
+
+		QueryHierarchy synthetic = query.getHierarchy("Synthetic");
+		for (Member m : metadata.sample(0, fanOut))
+			synthetic.include(Operator.DESCENDANTS, m);
+		for (Member m : metadata.sample(1, drills))
+			synthetic.exclude(Operator.MEMBER, m);
+		rows = query.getAxis(Axis.ROWS);
+		rows.addHierarchy(synthetic);
+		if (expanded)
+			rows.expandHierarchy(synthetic);
+
+		// Drills members at every non leaf depth. Expanded hierarchies undrill
+		// them, but the roots.
+		List<Member> drilled = new ArrayList<Member>();
+		for (int level = expanded ? 1 : 0; level < depth - 1; ++level)
+			drilled.addAll(metadata.sample(level, drills));
+		for (Member m : drilled) {
+			if (expanded)
+				rows.undrill(m);
+			else
+				rows.drill(m);
+		}
+		drillProbes = metadata.sample(depth - 1, drills);
+
+		executor = Executors.newFixedThreadPool(Runtime.getRuntime()
+				.availableProcessors());
+	}
+
+	@TearDown
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	/**
+	 * Drills and undrills {@code drills} members, leaving the axis unchanged.
+	 */
+	@Benchmark
+	public QueryAxis drill() {
+		for (Member m : drillProbes)
+			rows.drill(m);
+		for (Member m : drillProbes)
+			rows.undrill(m);
+		return rows;
+	}
+
+	@Benchmark
+	public SelectNode getSelect() throws Exception {
+		return query.getSelect();
+	}
+
+	@Benchmark
+	public SelectNode getSelectParallel() throws Exception {
+		return query.getSelect(executor);
+	}
+
+	/**
+	 * Generation plus unparsing, as done before sending the query.
+	 */
+	@Benchmark
+	public String getSelectMdx() throws Exception {
+		return query.getSelect().toString();
+	}
+}
@@ -0,0 +1,100 @@
+package es.cgalesanco.olap4j.query.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.olap4j.metadata.Member;
+
+import es.cgalesanco.olap4j.query.Query;
+import es.cgalesanco.olap4j.query.QueryHierarchy;
+import es.cgalesanco.olap4j.query.Selection.Operator;
+
+/**
+ * Benchmarks selection mutations and queries on a synthetic hierarchy:
+ * {@link QueryHierarchy#include}, {@link QueryHierarchy#exclude},
+ * {@link QueryHierarchy#isIncluded(Member)} and
+ * {@link QueryHierarchy#isLeaf(Member)}.
+ *
+ * @author César García
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SelectionBenchmark {
+
+	@Param({ "3", "4" })
+	public int depth;
+
+	@Param({ "10", "30" })
+	public int fanOut;
+
+	@Param({ "100" })
+	public int selections;
+
+	private QueryHierarchy hierarchy;
+	private QueryHierarchy mutated;
+	private List<Member> roots;
+	private List<Member> excluded;
+	private List<Member> probes;
+
+	@Setup
+	public void setUp() throws Exception {
+		SyntheticMetadata metadata = new SyntheticMetadata(depth, fanOut);
+		roots = metadata.sample(0, fanOut);
+		excluded = metadata.sample(1, selections);
+		probes = metadata.sample(depth - 1, selections);
+
+		hierarchy = new Query("Selection benchmark", metadata.getCube())
+				.getHierarchy("Synthetic");
+		select(hierarchy);
+
+		mutated = new Query("Mutation benchmark", metadata.getCube())
+				.getHierarchy("Synthetic");
+	}
+
+	private void select(QueryHierarchy h) throws Exception {
+		for (Member m : roots)
+			h.include(Operator.DESCENDANTS, m);
+		for (Member m : excluded)
+			h.exclude(Operator.CHILDREN, m);
+	}
+
+	/**
+	 * Includes every root member descendants, then excludes the children of
+	 * {@code selections} members.
+	 */
+	@Benchmark
+	public QueryHierarchy includeExclude() throws Exception {
+		mutated.clear();
+		select(mutated);
+		return mutated;
+	}
+
+	@Benchmark
+	public void isIncluded(Blackhole bh) {
+		for (Member m : probes)
+			bh.consume(hierarchy.isIncluded(m));
+	}
+
+	@Benchmark
+	public void isLeaf(Blackhole bh) throws Exception {
+		for (Member m : excluded)
+			bh.consume(hierarchy.isLeaf(m));
+	}
+}
@@ -0,0 +1,135 @@
+package es.cgalesanco.olap4j.query.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.olap4j.OlapException;
+import org.olap4j.metadata.Dimension.Type;
+import org.olap4j.metadata.Hierarchy;
+import org.olap4j.metadata.Member;
+
+import es.cgalesanco.olap4j.query.CubeMock;
+import es.cgalesanco.olap4j.query.DimensionMock;
+import es.cgalesanco.olap4j.query.HierarchyMock;
+import es.cgalesanco.olap4j.query.MemberMock;
+
+/**
+ * <p>
+ * Generates mock cubes with large synthetic hierarchies.
+ * </p>
+ *
+ * <p>
+ * The generated cube has a {@code [Measures]} dimension with three measures
+ * and a {@code [Synthetic]} dimension whose hierarchy has {@code depth} levels
+ * ({@code [L0]}, {@code [L1]}...). Every non leaf member has {@code fanOut}
+ * children and there are {@code fanOut} root members, so the hierarchy has
+ * {@code fanOut + fanOut^2 + ... + fanOut^depth} members. As an example, a
+ * depth of 4 and a fan out of 30 generates about 840,000 members.
+ * </p>
+ *
+ * @author César García
+ *
+ */
+public class SyntheticMetadata {
+	private final CubeMock cube;
+	private final HierarchyMock hierarchy;
+	private final int depth;
+	private final int fanOut;
+
+	/**
+	 * Generates a synthetic cube.
+	 *
+	 * @param depth
+	 *            number of levels of the synthetic hierarchy.
+	 * @param fanOut
+	 *            number of children of every non leaf member (and number of
+	 *            root members).
+	 * @throws IllegalArgumentException
+	 *             if depth or fan out are not positive.
+	 */
+	public SyntheticMetadata(int depth, int fanOut)
+			throws IllegalArgumentException {
+		if (depth <= 0 || fanOut <= 0)
+			throw new IllegalArgumentException(
+					"Depth and fan out must be positive");
+		this.depth = depth;
+		this.fanOut = fanOut;
+
+		DimensionMock measures = new DimensionMock("Measures");
+		measures.setDimensionType(Type.MEASURE);
+		HierarchyMock measuresHierarchy = measures.createHierarchy(null);
+		measuresHierarchy.createLevel("Measures");
+		measuresHierarchy.createRoot("Unit Sales");
+		measuresHierarchy.createRoot("Store Cost");
+		measuresHierarchy.createRoot("Store Sales");
+
+		DimensionMock synthetic = new DimensionMock("Synthetic");
+		hierarchy = synthetic.createHierarchy(null);
+		for (int i = 0; i < depth; ++i)
+			hierarchy.createLevel("L" + i);
+		for (int i = 0; i < fanOut; ++i)
+			createChildren(hierarchy.createRoot("M" + i), 1);
+
+		cube = new CubeMock(synthetic, measures);
+	}
+
+	private void createChildren(Member parent, int level) {
+		if (level >= depth)
+			return;
+		for (int i = 0; i < fanOut; ++i) {
+			MemberMock child = hierarchy.createMember(level, parent, "M" + i);
+			createChildren(child, level + 1);
+		}
+	}
+
+	public CubeMock getCube() {
+		return cube;
+	}
+
+	public Hierarchy getHierarchy() {
+		return hierarchy;
+	}
+
+	/**
+	 * Returns the number of members of the synthetic hierarchy.
+	 *
+	 * @return the number of members of the synthetic hierarchy.
+	 */
+	public long getMemberCount() {
+		long result = 0;
+		long levelCount = 1;
+		for (int i = 0; i < depth; ++i) {
+			levelCount *= fanOut;
+			result += levelCount;
+		}
+		return result;
+	}
+
+	/**
+	 * Picks evenly spaced members at a given depth of the synthetic
+	 * hierarchy. Every call with the same arguments returns the same members.
+	 *
+	 * @param level
+	 *            depth of the members.
+	 * @param count
+	 *            maximum number of members to return.
+	 * @return the sampled members.
+	 * @throws OlapException
+	 *             never, mock metadata doesn't throw.
+	 */
+	public List<Member> sample(int level, int count) throws OlapException {
+		List<Member> result = new ArrayList<Member>();
+		for (int i = 0; i < count; ++i) {
+			// Follows a different child index at each level so members spread
+			// along the hierarchy.
+			Member m = hierarchy.getRootMembers().get(i % fanOut);
+			for (int l = 1; l <= level; ++l) {
+				int index = (i * (2 * l + 1) + l) % fanOut;
+				m = m.getChildMembers().get(index);
+			}
+			if (!result.contains(m))
+				result.add(m);
+		}
+		return result;
+	}
+}
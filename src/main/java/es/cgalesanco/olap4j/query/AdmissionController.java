@@ -0,0 +1,326 @@
+package es.cgalesanco.olap4j.query;
+
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapException;
+
+/**
+ * <p>
+ * Limits the number of queries executed concurrently: globally, per
+ * connection and per {@link Priority priority class}.
+ * </p>
+ * 
+ * <p>
+ * Executions exceeding the limits wait in a queue, ordered by priority and
+ * arrival, up to a timeout. A waiting execution is admitted once it fits the
+ * limits and no execution ahead of it in the queue does: an
+ * {@link Priority#INTERACTIVE} query never waits behind queued
+ * {@link Priority#EXPORT} queries, and limiting the concurrent exports below
+ * the global limit keeps slots available for interactive queries.
+ * </p>
+ * 
+ * <p>
+ * Queries use a controller once registered with
+ * {@link Query#setAdmissionController(AdmissionController)}; a single
+ * controller is typically shared by every query of an application.
+ * </p>
+ * 
+ * @author César García
+ * 
+ */
+public class AdmissionController {
+	/**
+	 * Priority classes of executions, from highest to lowest priority.
+	 */
+	public enum Priority {
+		/**
+		 * Queries a user is waiting for, usually cheap.
+		 */
+		INTERACTIVE,
+		/**
+		 * Large background queries, e.g. exports.
+		 */
+		EXPORT
+	}
+
+	/**
+	 * Admission of an execution, to be released once the execution finishes.
+	 */
+	public class Permit {
+		private final Object connection;
+		private final Priority priority;
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		private Permit(Object connection, Priority priority) {
+			this.connection = connection;
+			this.priority = priority;
+		}
+
+		/**
+		 * Releases this permit, admitting queued executions. Releasing a
+		 * permit more than once has no effect.
+		 */
+		public void release() {
+			if (released.compareAndSet(false, true))
+				AdmissionController.this.release(connection, priority);
+		}
+	}
+
+	/**
+	 * A queued execution.
+	 */
+	private static class Waiter {
+		final Object connection;
+		final Priority priority;
+
+		Waiter(Object connection, Priority priority) {
+			this.connection = connection;
+			this.priority = priority;
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final LinkedList<Waiter> queue = new LinkedList<Waiter>();
+	private final Map<Object, Integer> activeByConnection = new IdentityHashMap<Object, Integer>();
+	private final Map<Priority, Integer> activeByPriority = new EnumMap<Priority, Integer>(
+			Priority.class);
+	private final Map<Priority, Integer> maxByPriority = new EnumMap<Priority, Integer>(
+			Priority.class);
+	private final int maxConcurrent;
+	private final int maxPerConnection;
+	private final long timeoutMillis;
+	private int active;
+
+	/**
+	 * Creates a controller.
+	 * 
+	 * @param maxConcurrent
+	 *            maximum number of concurrent executions.
+	 * @param maxPerConnection
+	 *            maximum number of concurrent executions per connection.
+	 * @param timeoutMillis
+	 *            maximum time, in milliseconds, an execution waits to be
+	 *            admitted.
+	 */
+	public AdmissionController(int maxConcurrent, int maxPerConnection,
+			long timeoutMillis) {
+		if (maxConcurrent <= 0 || maxPerConnection <= 0)
+			throw new IllegalArgumentException("Limits must be positive");
+		if (timeoutMillis < 0)
+			throw new IllegalArgumentException("Negative timeout");
+		this.maxConcurrent = maxConcurrent;
+		this.maxPerConnection = maxPerConnection;
+		this.timeoutMillis = timeoutMillis;
+		for (Priority p : Priority.values()) {
+			activeByPriority.put(p, 0);
+			maxByPriority.put(p, maxConcurrent);
+		}
+	}
+
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	public int getMaxPerConnection() {
+		return maxPerConnection;
+	}
+
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * Limits the concurrent executions of a priority class.
+	 * 
+	 * @param priority
+	 *            the priority class.
+	 * @param max
+	 *            maximum number of concurrent executions of the class.
+	 */
+	public void setMaxConcurrent(Priority priority, int max) {
+		if (max <= 0)
+			throw new IllegalArgumentException("Limits must be positive");
+		lock.lock();
+		try {
+			maxByPriority.put(priority, max);
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getMaxConcurrent(Priority priority) {
+		lock.lock();
+		try {
+			return maxByPriority.get(priority);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of admitted executions not released yet.
+	 * 
+	 * @return the number of running executions.
+	 */
+	public int getActive() {
+		lock.lock();
+		try {
+			return active;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of executions waiting to be admitted.
+	 * 
+	 * @return the queue length.
+	 */
+	public int getQueued() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Admits an execution, waiting if the limits are exceeded.
+	 * 
+	 * @param connection
+	 *            the connection executing the query.
+	 * @param priority
+	 *            the priority class of the execution.
+	 * @return the permit to release once the execution finishes.
+	 * @throws OlapException
+	 *             if the execution is not admitted before the timeout, or the
+	 *             calling thread is interrupted while waiting.
+	 */
+	public Permit acquire(OlapConnection connection, Priority priority)
+			throws OlapException {
+		return acquire((Object) connection, priority);
+	}
+
+	/**
+	 * Admits an execution before its connection is checked out, waiting if
+	 * the limits are exceeded. Queued executions hold no connection.
+	 * 
+	 * @param connection
+	 *            identifies (by identity) the connection, or the source of
+	 *            connections, e.g. a pool, the per connection limit applies
+	 *            to.
+	 * @param priority
+	 *            the priority class of the execution.
+	 * @return the permit to release once the execution finishes.
+	 * @throws OlapException
+	 *             if the execution is not admitted before the timeout, or the
+	 *             calling thread is interrupted while waiting.
+	 */
+	public Permit acquire(Object connection, Priority priority)
+			throws OlapException {
+		Waiter w = new Waiter(connection, priority);
+		long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		lock.lock();
+		try {
+			enqueue(w);
+			while (!isAdmissible(w)) {
+				if (remaining <= 0) {
+					dequeue(w);
+					throw new OlapException("Timed out waiting for admission");
+				}
+				try {
+					remaining = changed.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					dequeue(w);
+					Thread.currentThread().interrupt();
+					throw new OlapException("Interrupted waiting for admission",
+							e);
+				}
+			}
+
+			dequeue(w);
+			++active;
+			activeByPriority.put(priority, activeByPriority.get(priority) + 1);
+			Integer n = activeByConnection.get(connection);
+			activeByConnection.put(connection, n == null ? 1 : n + 1);
+			return new Permit(connection, priority);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void release(Object connection, Priority priority) {
+		lock.lock();
+		try {
+			--active;
+			activeByPriority.put(priority, activeByPriority.get(priority) - 1);
+			int n = activeByConnection.get(connection) - 1;
+			if (n == 0)
+				activeByConnection.remove(connection);
+			else
+				activeByConnection.put(connection, n);
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Helper function queueing an execution after those of the same or
+	 * higher priority.
+	 */
+	private void enqueue(Waiter w) {
+		ListIterator<Waiter> it = queue.listIterator(queue.size());
+		while (it.hasPrevious()) {
+			if (it.previous().priority.compareTo(w.priority) <= 0) {
+				it.next();
+				break;
+			}
+		}
+		it.add(w);
+	}
+
+	/**
+	 * Helper function removing an execution from the queue. Executions behind
+	 * it may become admissible.
+	 */
+	private void dequeue(Waiter w) {
+		queue.remove(w);
+		changed.signalAll();
+	}
+
+	/**
+	 * Helper function testing if a queued execution can be admitted: it fits
+	 * the limits and no execution ahead of it does.
+	 */
+	private boolean isAdmissible(Waiter w) {
+		for (Waiter ahead : queue) {
+			if (ahead == w)
+				return fits(w);
+			if (fits(ahead))
+				return false;
+		}
+		return false;
+	}
+
+	private boolean fits(Waiter w) {
+		if (active >= maxConcurrent)
+			return false;
+		if (activeByPriority.get(w.priority) >= maxByPriority.get(w.priority))
+			return false;
+		Integer n = activeByConnection.get(w.connection);
+		return n == null || n < maxPerConnection;
+	}
+}
@@ -1,5 +1,11 @@
 package es.cgalesanco.olap4j.query;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
 import org.olap4j.mdx.CallNode;
 import org.olap4j.mdx.ParseTreeNode;
 import org.olap4j.mdx.Syntax;
@@ -13,32 +19,102 @@ class AxisExpression {
 	final private UnionBuilder drills;
 	final private UnionBuilder undrills;
 	final private UnionBuilder exclude;
+	final private Set<Member> axisDrills;
+	final private ChildrenLimit childrenLimit;
+	final private ExpansionTrace trace;
+	final private List<ParseTreeNode> calculatedMembers;
+	private boolean hierarchized;
 	
 	public AxisExpression() {
+		this(null);
+	}
+	
+	public AxisExpression(ChildrenLimit childrenLimit) {
+		this(childrenLimit, null);
+	}
+	
+	public AxisExpression(ChildrenLimit childrenLimit, ExpansionTrace trace) {
+		this.childrenLimit = childrenLimit;
+		this.trace = trace;
 		roots = new UnionBuilder();
 		drills = new UnionBuilder();
 		undrills = new UnionBuilder();
 		exclude = new UnionBuilder();
+		axisDrills = new LinkedHashSet<Member>();
+		calculatedMembers = new ArrayList<ParseTreeNode>();
+	}
+	
+	/**
+	 * Sets the selection (a selection node or a level) producing the
+	 * following fragments, when tracing.
+	 */
+	public void setSource(Object source) {
+		if (trace != null)
+			trace.setSource(source);
 	}
 	
 	public void include(ParseTreeNode e) {
-		roots.add(e);
+		include(e, false);
+	}
+	
+	/**
+	 * Includes a fragment whose members are in hierarchical order, like a
+	 * single member, the children of a member or a <code>Descendants</code>
+	 * call on a single member.
+	 */
+	public void includeHierarchized(ParseTreeNode e) {
+		include(e, true);
 	}
 	
 	public void include(Member m) {
-		roots.add(Mdx.member(m));
+		includeHierarchized(Mdx.member(m));
+	}
+	
+	private void include(ParseTreeNode e, boolean inOrder) {
+		if (e == null)
+			return;
+		hierarchized = roots.isEmpty() && inOrder;
+		roots.add(e);
+		record("include", e);
+	}
+	
+	/**
+	 * Checks whether the expression generated by {@link #getExpression()} is
+	 * already in hierarchical order: it includes a single hierarchized
+	 * fragment and drills no member. Exclusions keep the order of the
+	 * included members.
+	 */
+	public boolean isHierarchized() {
+		return drills.isEmpty() && (roots.isEmpty() || hierarchized);
 	}
 	
 	public void exclude(ParseTreeNode e) {
 		exclude.add(e);
+		record("exclude", e);
 	}
 	
 	public void exclude(Member m) {
-		exclude.add(Mdx.member(m));
+		exclude(Mdx.member(m));
 	}
 	
+	/**
+	 * Adds the children of a set, included through selections. They are not
+	 * limited by the children limit.
+	 */
 	public void drill(ParseTreeNode e) {
 		drills.add(e);
+		record("drill", e);
+	}
+
+	/**
+	 * Adds the children of members drilled in the axis, limited by the
+	 * children limit.
+	 */
+	public void drill(Collection<Member> members) {
+		ParseTreeNode e = UnionBuilder.fromMembers(members);
+		drills.add(e);
+		axisDrills.addAll(members);
+		record("drill", e);
 	}
 
 	public ParseTreeNode getExpression() {
@@ -57,7 +133,21 @@ class AxisExpression {
 			if ( !exclude.isEmpty() )
 				ex = exclude.getUnionNode();
 		}
-		return Mdx.except(Mdx.drillDown(roots, drills), ex);
+		ParseTreeNode drilled = Mdx.drillDown(roots, drills);
+		calculatedMembers.clear();
+		if ( childrenLimit != null )
+			drilled = childrenLimit.apply(drilled, axisDrills, calculatedMembers);
+		return Mdx.except(drilled, ex);
+	}
+	
+	/**
+	 * Returns the definitions of the calculated members and named sets
+	 * referenced by the expression returned by the last call to
+	 * {@link #getExpression()}, like the {@link ChildrenLimit#OTHERS_MEMBER}
+	 * of the drilled members.
+	 */
+	List<ParseTreeNode> getCalculatedMembers() {
+		return calculatedMembers;
 	}
 	
 	ParseTreeNode getDrillExpression() {
@@ -66,6 +156,11 @@ class AxisExpression {
 
 	public void undrill(ParseTreeNode fromMembers) {
 		undrills.add(fromMembers);
-		
+		record("undrill", fromMembers);
+	}
+
+	private void record(String operation, ParseTreeNode e) {
+		if (trace != null)
+			trace.record(operation, e);
 	}
 }
@@ -0,0 +1,62 @@
+package es.cgalesanco.olap4j.query;
+
+import java.util.Collections;
+import java.util.Map;
+
+import org.olap4j.Axis;
+
+/**
+ * Estimated size of the result of a {@link Query}, computed from metadata
+ * without querying the server.
+ * 
+ * @see Query#estimateCardinality()
+ * @author César García
+ * 
+ */
+public class CardinalityEstimate {
+	private final Map<Axis, Long> positions;
+	private final long cellCount;
+
+	CardinalityEstimate(Map<Axis, Long> positions, long cellCount) {
+		this.positions = positions;
+		this.cellCount = cellCount;
+	}
+
+	/**
+	 * Returns the estimated number of positions of an axis.
+	 * 
+	 * @param axis
+	 *            the axis location.
+	 * @return the estimated number of positions of the axis; 0 for axes not
+	 *         used by the query.
+	 */
+	public long getPositionCount(Axis axis) {
+		Long count = positions.get(axis);
+		return count == null ? 0 : count;
+	}
+
+	/**
+	 * Returns the estimated number of positions of every axis used by the
+	 * query.
+	 * 
+	 * @return an unmodifiable map from axis location to estimated position
+	 *         count.
+	 */
+	public Map<Axis, Long> getPositionCounts() {
+		return Collections.unmodifiableMap(positions);
+	}
+
+	/**
+	 * Returns the estimated number of cells of the query result.
+	 * 
+	 * @return the estimated number of cells.
+	 */
+	public long getCellCount() {
+		return cellCount;
+	}
+
+	@Override
+	public String toString() {
+		return "positions " + positions + ", cells " + cellCount;
+	}
+}
@@ -0,0 +1,244 @@
+package es.cgalesanco.olap4j.query;
+
+import java.util.List;
+
+import org.olap4j.OlapException;
+import org.olap4j.metadata.Level;
+import org.olap4j.metadata.Member;
+
+import es.cgalesanco.olap4j.query.Selection.Sign;
+import es.cgalesanco.olap4j.query.SelectionTree.SelectionNode;
+
+/**
+ * <p>
+ * Estimates the number of positions of an axis without querying the server.
+ * </p>
+ *
+ * <p>
+ * Walks the {@link SelectionTree} of every hierarchy assuming members are
+ * evenly distributed among their parents, using
+ * {@link Level#getCardinality()} to compute the average number of descendants
+ * of a member. Drilled (or undrilled) positions use the child member count of
+ * the drilled member.
+ * </p>
+ *
+ * @author César García
+ *
+ */
+class CardinalityEstimator {
+
+	/**
+	 * Estimates the number of positions of an axis.
+	 *
+	 * @param hierarchies
+	 *            the hierarchies of the axis.
+	 * @param expanders
+	 *            the expanders of the axis hierarchies.
+	 * @param drills
+	 *            the drilled positions of the axis.
+	 * @return the estimated number of positions.
+	 * @throws OlapException
+	 *             if an error occurs while retrieving child member counts.
+	 */
+	public static long estimateAxis(List<QueryHierarchy> hierarchies,
+			List<HierarchyExpander> expanders, List<Member[]> drills)
+			throws OlapException {
+		if (hierarchies.isEmpty())
+			return 0;
+
+		int size = hierarchies.size();
+		long[] base = new long[size];
+		for (int i = 0; i < size; ++i) {
+			base[i] = estimateHierarchy(hierarchies.get(i), expanders.get(i));
+		}
+
+		// tails[i] is the number of positions generated by the hierarchies
+		// following position i.
+		long[] tails = new long[size];
+		tails[size - 1] = 1;
+		for (int i = size - 2; i >= 0; --i)
+			tails[i] = multiply(tails[i + 1], base[i + 1]);
+
+		long total = multiply(tails[0], base[0]);
+		for (Member[] drill : drills) {
+			int pos = drill.length - 1;
+			Member m = drill[pos];
+			HierarchyExpander expander = expanders.get(pos);
+			long delta;
+			if (expander.isDrilledByDefault(m))
+				delta = -estimateDescendants(hierarchies.get(pos), m,
+						maxDepth(hierarchies.get(pos), expander));
+			else
+				delta = m.getChildMemberCount();
+			total += multiply(delta, tails[pos]);
+		}
+		return Math.max(0, total);
+	}
+
+	/**
+	 * Estimates the number of visible members of a hierarchy, ignoring drills.
+	 *
+	 * @param h
+	 *            the query hierarchy.
+	 * @param expanded
+	 *            {@code true} to count every included member; {@code false}
+	 *            to count just the members with no included ancestor.
+	 * @return the estimated number of members.
+	 */
+	public static long estimateHierarchy(QueryHierarchy h, boolean expanded) {
+		SelectionTree tree = h.getSelectionTree();
+		Estimator e = new Estimator(tree.getLevels());
+		if (expanded)
+			return Math.round(e.countIncluded(tree.getRoot(), tree.getLevels()
+					.size() - 1));
+		return Math.round(e.countRoots(tree.getRoot()));
+	}
+
+	/**
+	 * Estimates the number of visible members of a hierarchy shown by an
+	 * expander, ignoring drills.
+	 *
+	 * @param h
+	 *            the query hierarchy.
+	 * @param expander
+	 *            the expander collapsing or expanding (fully or down to a
+	 *            level) the hierarchy.
+	 * @return the estimated number of members.
+	 */
+	public static long estimateHierarchy(QueryHierarchy h,
+			HierarchyExpander expander) {
+		if (expander.getExpansionLevel() == null)
+			return estimateHierarchy(h, expander.isHierarchyExpanded());
+
+		SelectionTree tree = h.getSelectionTree();
+		Estimator e = new Estimator(tree.getLevels());
+		return Math.round(e.countIncluded(tree.getRoot(), maxDepth(h,
+				expander)));
+	}
+
+	/**
+	 * Helper function computing the depth of the deepest level shown by an
+	 * expander with no drills.
+	 */
+	private static int maxDepth(QueryHierarchy h, HierarchyExpander expander) {
+		Level level = expander.getExpansionLevel();
+		if (level != null)
+			return level.getDepth();
+		return h.getSelectionTree().getLevels().size() - 1;
+	}
+
+	private static long estimateDescendants(QueryHierarchy h, Member m,
+			int maxDepth) {
+		List<Level> levels = h.getSelectionTree().getLevels();
+		Estimator e = new Estimator(levels);
+		int depth = m.getLevel().getDepth();
+		double result = 0;
+		for (int k = depth + 1; k <= maxDepth; ++k)
+			result += e.ratio(k, depth);
+		return Math.round(result);
+	}
+
+	private static long multiply(long a, long b) {
+		if (a != 0 && Math.abs(b) > Long.MAX_VALUE / Math.abs(a))
+			return (a < 0) == (b < 0) ? Long.MAX_VALUE : -Long.MAX_VALUE;
+		return a * b;
+	}
+
+	/**
+	 * Helper class walking a selection tree to compute estimates.
+	 */
+	private static class Estimator {
+		private final List<Level> levels;
+		private final double[] cardinalities;
+
+		public Estimator(List<Level> levels) {
+			this.levels = levels;
+			cardinalities = new double[levels.size()];
+			for (int i = 0; i < cardinalities.length; ++i)
+				cardinalities[i] = Math.max(1, levels.get(i).getCardinality());
+		}
+
+		/**
+		 * Average number of members at depth {@code k} descending from a
+		 * member at depth {@code d}. Depth -1 stands for the hierarchy root.
+		 */
+		public double ratio(int k, int d) {
+			if (d < 0)
+				return cardinalities[k];
+			return cardinalities[k] / cardinalities[d];
+		}
+
+		private int depthOf(SelectionNode node) {
+			Member m = node.getMember();
+			return m == null ? -1 : m.getLevel().getDepth();
+		}
+
+		private Sign levelSign(SelectionNode node, int k, Sign defaultSign,
+				List<Level> overridingLevels) {
+			if (k == depthOf(node) + 1)
+				return node.getChildrenSign();
+			if (overridingLevels.contains(levels.get(k)))
+				return defaultSign.opposite();
+			return defaultSign;
+		}
+
+		/**
+		 * Number of non overrided descendants of {@code node} at depth
+		 * {@code k}.
+		 */
+		private double nonOverrided(SelectionNode node, int k) {
+			int d = depthOf(node);
+			double result = ratio(k, d);
+			int overriding = node.getOverridingChildren().size();
+			if (overriding > 0)
+				result -= overriding * ratio(k, d + 1);
+			return Math.max(0, result);
+		}
+
+		/**
+		 * Number of included members in the subtree of {@code node}, down to
+		 * depth {@code maxDepth}.
+		 */
+		public double countIncluded(SelectionNode node, int maxDepth) {
+			if (depthOf(node) > maxDepth)
+				return 0;
+
+			double result = 0;
+			if (node.getMember() != null
+					&& node.getMemberSign() == Sign.INCLUDE)
+				result = 1;
+
+			Sign defaultSign = node.getDefaultSign();
+			List<Level> overridingLevels = node.getOverridingLevels(defaultSign);
+			for (int k = depthOf(node) + 1; k <= maxDepth; ++k) {
+				if (levelSign(node, k, defaultSign, overridingLevels) == Sign.INCLUDE)
+					result += nonOverrided(node, k);
+			}
+
+			for (SelectionNode child : node.getOverridingChildren())
+				result += countIncluded(child, maxDepth);
+			return result;
+		}
+
+		public double countRoots(SelectionNode node) {
+			// Descendants of an included member are hidden until drilled
+			if (node.getMember() != null
+					&& node.getMemberSign() == Sign.INCLUDE)
+				return 1;
+
+			double result = 0;
+			Sign defaultSign = node.getDefaultSign();
+			List<Level> overridingLevels = node.getOverridingLevels(defaultSign);
+			for (int k = depthOf(node) + 1; k < levels.size(); ++k) {
+				if (levelSign(node, k, defaultSign, overridingLevels) == Sign.INCLUDE) {
+					result += nonOverrided(node, k);
+					break;
+				}
+			}
+
+			for (SelectionNode child : node.getOverridingChildren())
+				result += countRoots(child);
+			return result;
+		}
+	}
+}
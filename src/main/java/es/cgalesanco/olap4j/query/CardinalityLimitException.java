@@ -0,0 +1,41 @@
+package es.cgalesanco.olap4j.query;
+
+import org.olap4j.OlapException;
+
+/**
+ * Thrown when a query exceeds its {@link CardinalityLimits}.
+ * 
+ * @author César García
+ * 
+ */
+public class CardinalityLimitException extends OlapException {
+	private static final long serialVersionUID = -1946338523325081465L;
+
+	private final CardinalityEstimate estimate;
+	private final CardinalityLimits limits;
+
+	public CardinalityLimitException(CardinalityEstimate estimate,
+			CardinalityLimits limits) {
+		super("Query exceeds cardinality limits: " + estimate);
+		this.estimate = estimate;
+		this.limits = limits;
+	}
+
+	/**
+	 * Returns the estimate exceeding the limits.
+	 * 
+	 * @return the estimate exceeding the limits.
+	 */
+	public CardinalityEstimate getEstimate() {
+		return estimate;
+	}
+
+	/**
+	 * Returns the exceeded limits.
+	 * 
+	 * @return the exceeded limits.
+	 */
+	public CardinalityLimits getLimits() {
+		return limits;
+	}
+}
@@ -0,0 +1,89 @@
+package es.cgalesanco.olap4j.query;
+
+/**
+ * Size limits checked before generating a query.
+ * 
+ * @see Query#setCardinalityLimits(CardinalityLimits)
+ * @author César García
+ * 
+ */
+public class CardinalityLimits {
+	/**
+	 * Defines what to do with queries exceeding the limits.
+	 * 
+	 * @author César García
+	 * 
+	 */
+	public static enum Policy {
+		/**
+		 * The query is rejected throwing a {@link CardinalityLimitException}.
+		 */
+		REJECT,
+		/**
+		 * Every hierarchy of the offending axes is generated collapsed,
+		 * ignoring expansions and drills. If the collapsed query still
+		 * exceeds the limits it's rejected.
+		 */
+		COLLAPSE,
+		/**
+		 * The offending axes are truncated to their first positions. Columns
+		 * are truncated to the cell limit too, then rows are truncated so
+		 * the cells fit the limit.
+		 */
+		TRUNCATE
+	}
+
+	private final long maxAxisPositions;
+	private final long maxCells;
+	private final Policy policy;
+
+	/**
+	 * Creates a set of limits.
+	 * 
+	 * @param maxAxisPositions
+	 *            maximum number of positions for each axis. Use
+	 *            {@link Long#MAX_VALUE} for no limit.
+	 * @param maxCells
+	 *            maximum number of cells of the query. Use
+	 *            {@link Long#MAX_VALUE} for no limit.
+	 * @param policy
+	 *            what to do with queries exceeding the limits.
+	 */
+	public CardinalityLimits(long maxAxisPositions, long maxCells, Policy policy) {
+		if (maxAxisPositions < 1 || maxCells < 1 || policy == null)
+			throw new IllegalArgumentException();
+		this.maxAxisPositions = maxAxisPositions;
+		this.maxCells = maxCells;
+		this.policy = policy;
+	}
+
+	public long getMaxAxisPositions() {
+		return maxAxisPositions;
+	}
+
+	public long getMaxCells() {
+		return maxCells;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Tests if an estimate exceeds these limits.
+	 * 
+	 * @param estimate
+	 *            the estimate to test.
+	 * @return {@code true} if any axis or the number of cells exceeds these
+	 *         limits.
+	 */
+	public boolean isExceeded(CardinalityEstimate estimate) {
+		if (estimate.getCellCount() > maxCells)
+			return true;
+		for (Long positions : estimate.getPositionCounts().values()) {
+			if (positions > maxAxisPositions)
+				return true;
+		}
+		return false;
+	}
+}
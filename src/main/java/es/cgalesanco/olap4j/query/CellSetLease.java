@@ -0,0 +1,154 @@
+package es.cgalesanco.olap4j.query;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.olap4j.CellSet;
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapException;
+
+/**
+ * <p>
+ * Ties the resources used to execute a statement to the lifetime of its
+ * result. Closing a leased {@link CellSet} closes the statement that
+ * returned it and gives its connection back to the
+ * {@link ConnectionProvider}.
+ * </p>
+ *
+ * <p>
+ * Leased cell sets forward every other call to the cell set returned by the
+ * server.
+ * </p>
+ *
+ * @author César García
+ *
+ */
+final class CellSetLease implements InvocationHandler {
+	private final CellSet cellSet;
+	private final Statement statement;
+	private final ConnectionProvider provider;
+	private final OlapConnection connection;
+	private final AtomicBoolean closed = new AtomicBoolean();
+
+	private CellSetLease(CellSet cellSet, Statement statement,
+			ConnectionProvider provider, OlapConnection connection) {
+		this.cellSet = cellSet;
+		this.statement = statement;
+		this.provider = provider;
+		this.connection = connection;
+	}
+
+	/**
+	 * Leases the result of a statement.
+	 *
+	 * @param cellSet
+	 *            the statement result.
+	 * @param statement
+	 *            the statement, closed with the result.
+	 * @param provider
+	 *            the provider of the connection.
+	 * @param connection
+	 *            the connection, released with the result.
+	 * @return a cell set releasing the statement and connection when closed.
+	 */
+	static CellSet lease(CellSet cellSet, Statement statement,
+			ConnectionProvider provider, OlapConnection connection) {
+		return (CellSet) Proxy.newProxyInstance(
+				CellSetLease.class.getClassLoader(),
+				new Class<?>[] { CellSet.class }, new CellSetLease(cellSet,
+						statement, provider, connection));
+	}
+
+	/**
+	 * Closes a statement and releases its connection.
+	 *
+	 * @param statement
+	 *            the statement. {@code null} if it wasn't created.
+	 * @param provider
+	 *            the provider of the connection.
+	 * @param connection
+	 *            the connection.
+	 * @throws OlapException
+	 *             if the statement cannot be closed or the connection
+	 *             released. The connection is released anyway.
+	 */
+	static void release(Statement statement, ConnectionProvider provider,
+			OlapConnection connection) throws OlapException {
+		try {
+			if (statement != null)
+				statement.close();
+		} catch (SQLException e) {
+			throw new OlapException("Cannot close statement", e);
+		} finally {
+			provider.releaseConnection(connection);
+		}
+	}
+
+	/**
+	 * Closes a statement and releases its connection after a failed
+	 * execution. Release errors are ignored, as the execution error is more
+	 * relevant.
+	 */
+	static void releaseQuietly(Statement statement,
+			ConnectionProvider provider, OlapConnection connection) {
+		try {
+			release(statement, provider, connection);
+		} catch (OlapException e) {
+			// Already failing
+		} catch (RuntimeException e) {
+			// Already failing
+		}
+	}
+
+	/**
+	 * Closes the results of a failed execution, ignoring any error.
+	 */
+	static void closeQuietly(Iterable<CellSet> cellSets) {
+		for (CellSet cs : cellSets) {
+			try {
+				cs.close();
+			} catch (SQLException e) {
+				// Already failing
+			} catch (RuntimeException e) {
+				// Already failing
+			}
+		}
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+		String name = method.getName();
+		if (name.equals("equals") && args.length == 1)
+			return proxy == args[0];
+		if (name.equals("hashCode") && args == null)
+			return System.identityHashCode(proxy);
+		if (name.equals("close") && args == null) {
+			close();
+			return null;
+		}
+		try {
+			return method.invoke(cellSet, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Helper function closing the result and releasing its resources, once.
+	 */
+	private void close() throws SQLException {
+		if (!closed.compareAndSet(false, true))
+			return;
+		try {
+			cellSet.close();
+		} finally {
+			release(statement, provider, connection);
+		}
+	}
+}
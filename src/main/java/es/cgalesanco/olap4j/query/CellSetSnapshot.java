@@ -0,0 +1,181 @@
+package es.cgalesanco.olap4j.query;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.olap4j.Cell;
+import org.olap4j.CellSet;
+import org.olap4j.CellSetAxis;
+import org.olap4j.OlapException;
+import org.olap4j.Position;
+import org.olap4j.metadata.Member;
+
+/**
+ * <p>
+ * An immutable copy of a query result: the members of every position and
+ * the value of every cell, read once from a {@link CellSet}.
+ * </p>
+ *
+ * <p>
+ * Unlike cell sets, which are cursors over the statement that returned them,
+ * snapshots can be shared by any number of threads and outlive the
+ * statement and connection of the execution. Returned by
+ * {@link Query#executeSnapshot()}, whose identical concurrent executions
+ * are deduplicated by an {@link ExecutionCoordinator}.
+ * </p>
+ *
+ * <p>
+ * Cells are addressed by their coordinates, one position index per axis, in
+ * axis order.
+ * </p>
+ *
+ * @author César García
+ *
+ */
+public final class CellSetSnapshot {
+	private final List<List<List<Member>>> axes;
+	private final Object[] values;
+	private final String[] formattedValues;
+	private final boolean[] empty;
+
+	/**
+	 * Copies a query result.
+	 *
+	 * @param cellSet
+	 *            the result, which may be closed once copied.
+	 * @throws OlapException
+	 *             if the result has more cells than an array can hold.
+	 */
+	CellSetSnapshot(CellSet cellSet) throws OlapException {
+		List<List<List<Member>>> axisList = new ArrayList<List<List<Member>>>();
+		long count = 1;
+		for (CellSetAxis axis : cellSet.getAxes()) {
+			count *= axis.getPositionCount();
+			if (count > Integer.MAX_VALUE)
+				throw new OlapException("Result too large to copy: more than "
+						+ Integer.MAX_VALUE + " cells");
+		}
+		int cellCount = (int) count;
+		for (CellSetAxis axis : cellSet.getAxes()) {
+			List<List<Member>> positions = new ArrayList<List<Member>>(
+					axis.getPositionCount());
+			for (Position p : axis.getPositions())
+				positions.add(Collections
+						.unmodifiableList(new ArrayList<Member>(p.getMembers())));
+			axisList.add(Collections.unmodifiableList(positions));
+		}
+		axes = Collections.unmodifiableList(axisList);
+
+		values = new Object[cellCount];
+		formattedValues = new String[cellCount];
+		empty = new boolean[cellCount];
+		for (int i = 0; i < cellCount; ++i) {
+			Cell cell = cellSet.getCell(i);
+			values[i] = cell.getValue();
+			formattedValues[i] = cell.getFormattedValue();
+			empty[i] = cell.isEmpty();
+		}
+	}
+
+	/**
+	 * Copies a query result and closes it.
+	 *
+	 * @param cellSet
+	 *            the result.
+	 * @return the copy.
+	 * @throws OlapException
+	 *             if the result cannot be closed.
+	 */
+	static CellSetSnapshot materialize(CellSet cellSet) throws OlapException {
+		CellSetSnapshot snapshot = null;
+		try {
+			snapshot = new CellSetSnapshot(cellSet);
+		} finally {
+			try {
+				cellSet.close();
+			} catch (SQLException e) {
+				// A copy error is more relevant
+				if (snapshot != null)
+					throw new OlapException("Cannot close result", e);
+			}
+		}
+		return snapshot;
+	}
+
+	public int getAxisCount() {
+		return axes.size();
+	}
+
+	/**
+	 * Returns the positions of an axis.
+	 *
+	 * @param axis
+	 *            the axis ordinal, from 0 (columns).
+	 * @return an unmodifiable list with the members of every position.
+	 */
+	public List<List<Member>> getPositions(int axis) {
+		return axes.get(axis);
+	}
+
+	/**
+	 * Returns the value of a cell.
+	 *
+	 * @param coordinates
+	 *            a position index per axis.
+	 * @return the cell value; {@code null} if the cell is empty.
+	 * @throws IndexOutOfBoundsException
+	 *             if the coordinates don't address a cell.
+	 */
+	public Object getValue(int... coordinates) {
+		return values[ordinal(coordinates)];
+	}
+
+	/**
+	 * Returns the formatted value of a cell.
+	 *
+	 * @param coordinates
+	 *            a position index per axis.
+	 * @return the formatted value.
+	 * @throws IndexOutOfBoundsException
+	 *             if the coordinates don't address a cell.
+	 */
+	public String getFormattedValue(int... coordinates) {
+		return formattedValues[ordinal(coordinates)];
+	}
+
+	/**
+	 * Tests if a cell is empty.
+	 *
+	 * @param coordinates
+	 *            a position index per axis.
+	 * @return {@code true} if the cell is empty.
+	 * @throws IndexOutOfBoundsException
+	 *             if the coordinates don't address a cell.
+	 */
+	public boolean isEmpty(int... coordinates) {
+		return empty[ordinal(coordinates)];
+	}
+
+	/**
+	 * Helper function converting cell coordinates to the cell ordinal, the
+	 * first axis varying fastest (as {@link CellSet#getCell(int)}).
+	 */
+	private int ordinal(int[] coordinates) {
+		if (coordinates.length != axes.size())
+			throw new IndexOutOfBoundsException("Expected " + axes.size()
+					+ " coordinates");
+		int ordinal = 0;
+		int stride = 1;
+		for (int i = 0; i < coordinates.length; ++i) {
+			int size = axes.get(i).size();
+			if (coordinates[i] < 0 || coordinates[i] >= size)
+				throw new IndexOutOfBoundsException("Position "
+						+ coordinates[i] + " of axis " + i);
+			ordinal += coordinates[i] * stride;
+			stride *= size;
+		}
+		return ordinal;
+	}
+}
@@ -0,0 +1,153 @@
+package es.cgalesanco.olap4j.query;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.olap4j.OlapException;
+import org.olap4j.mdx.CallNode;
+import org.olap4j.mdx.IdentifierNode;
+import org.olap4j.mdx.ParseTreeNode;
+import org.olap4j.mdx.Syntax;
+import org.olap4j.metadata.Member;
+
+import es.cgalesanco.olap4j.query.mdx.Mdx;
+import es.cgalesanco.olap4j.query.mdx.UnionBuilder;
+
+/**
+ * Limit applied to the children shown when drilling a member of a hierarchy.
+ * Used by {@link AxisExpression} to keep only the top (or bottom) children of
+ * every drilled member, plus an {@link #OTHERS_MEMBER} calculated member
+ * aggregating the children falling out of the limit.
+ *
+ * @author César García
+ *
+ */
+class ChildrenLimit {
+	/**
+	 * Name of the calculated member, child of every drilled member,
+	 * aggregating the children not kept by the limit.
+	 */
+	static final String OTHERS_MEMBER = "Others";
+
+	/**
+	 * Prefix of the names of the sets of children kept by the limit.
+	 */
+	static final String KEPT_SET = "Kept";
+
+	private final LimitFunction function;
+	private final BigDecimal value;
+	private final List<MemberHandle> coordinates;
+	private final MemberResolver resolver;
+
+	/**
+	 * Creates a limit of the drills of a hierarchy. Cell coordinates are
+	 * stored as {@link MemberHandle}s and resolved through {@code resolver}
+	 * when the limit is applied.
+	 */
+	public ChildrenLimit(LimitFunction function, BigDecimal value,
+			MemberResolver resolver, Member... coordinates) {
+		this.function = function;
+		this.value = value;
+		this.resolver = resolver;
+		this.coordinates = MemberHandle.of(coordinates, resolver);
+	}
+
+	public LimitFunction getFunction() {
+		return function;
+	}
+
+	public BigDecimal getValue() {
+		return value;
+	}
+
+	public Member[] getCoordinates() {
+		List<Member> members = resolveCoordinates();
+		return members.toArray(new Member[members.size()]);
+	}
+
+	/**
+	 * Helper function resolving the member handles of the cell coordinates.
+	 */
+	private List<Member> resolveCoordinates() {
+		try {
+			return MemberHandle.resolveAll(coordinates, resolver);
+		} catch (OlapException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Limits the children added by drilling members. The children kept for
+	 * every drilled member are a named set, <code>[Kept m]</code>, so the
+	 * limit is evaluated once per query and the kept children plus the
+	 * {@link #OTHERS_MEMBER} child, <code>Aggregate(Except(m.Children,
+	 * [Kept m]))</code>, add up to the drilled member. The
+	 * {@link #OTHERS_MEMBER} is shown only if some child falls out of the
+	 * limit and the drilled member is not removed by the limit of an
+	 * ancestor.
+	 * 
+	 * @param drilled
+	 *            the expression resulting of drilling {@code drills}.
+	 * @param drills
+	 *            the drilled members.
+	 * @param withList
+	 *            the list receiving the definitions of the named sets and
+	 *            the {@link #OTHERS_MEMBER} calculated members.
+	 * @return the drill expression without the children (and their
+	 *         descendants) falling out of the limit, plus the
+	 *         {@link #OTHERS_MEMBER} calculated members.
+	 */
+	public ParseTreeNode apply(ParseTreeNode drilled,
+			Collection<Member> drills, List<ParseTreeNode> withList) {
+		if (drills.isEmpty())
+			return drilled;
+
+		List<Member> coordinates = resolveCoordinates();
+		Map<Member, IdentifierNode> keptSets = new HashMap<Member, IdentifierNode>();
+		for (Member drill : drills) {
+			IdentifierNode kept = Mdx.namedSet(drill, KEPT_SET);
+			withList.add(Mdx.withSet(kept, Mdx.limit(Mdx.children(drill),
+					function, value, coordinates)));
+			keptSets.put(drill, kept);
+		}
+
+		UnionBuilder pruned = new UnionBuilder();
+		UnionBuilder others = new UnionBuilder();
+		for (Member drill : drills) {
+			IdentifierNode name = Mdx.calculatedMember(drill, OTHERS_MEMBER);
+			withList.add(Mdx.withMember(name,
+					Mdx.aggregate(prunedChildren(drill, keptSets))));
+			pruned.add(prunedChildren(drill, keptSets));
+
+			ParseTreeNode shown = Mdx.isNotEmpty(prunedChildren(drill,
+					keptSets));
+			for (Member m = drill; m.getParentMember() != null; m = m
+					.getParentMember()) {
+				IdentifierNode parentKept = keptSets.get(m.getParentMember());
+				if (parentKept != null)
+					shown = Mdx.and(shown, Mdx.isNotEmpty(Mdx.intersect(
+							Mdx.member(m), parentKept)));
+			}
+			others.add(Mdx.filter(new CallNode(null, "{}", Syntax.Braces,
+					name), shown));
+		}
+
+		drilled = new CallNode(null, "Union", Syntax.Function, drilled,
+				others.getUnionNode());
+		return Mdx.except(drilled,
+				Mdx.descendants(pruned.getUnionNode(), 0, "SELF_AND_AFTER"));
+	}
+
+	/**
+	 * Helper function generating the children of a drilled member falling
+	 * out of the limit, <code>Except(m.Children, [Kept m])</code>.
+	 */
+	private static ParseTreeNode prunedChildren(Member drill,
+			Map<Member, IdentifierNode> keptSets) {
+		return Mdx.except(Mdx.children(drill), keptSets.get(drill)
+				.deepCopy());
+	}
+}
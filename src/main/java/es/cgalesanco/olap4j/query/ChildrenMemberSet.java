@@ -7,15 +7,19 @@ import org.olap4j.metadata.Level;
 import org.olap4j.metadata.Member;
 import org.olap4j.metadata.NamedList;
 
-import es.cgalesanco.olap4j.query.mdx.Mdx;
-import es.cgalesanco.olap4j.query.mdx.UnionBuilder;
-
 class ChildrenMemberSet implements MemberSet {
 	private Member parent;
 	private Collection<Member> excludedMembers;
 	private Level level;
+	private ExpressionCostModel costModel;
 
 	public ChildrenMemberSet(Member parent, Collection<Member> excludedChildren) {
+		this(parent, excludedChildren, ExpressionCostModel.LEGACY);
+	}
+
+	public ChildrenMemberSet(Member parent,
+			Collection<Member> excludedChildren, ExpressionCostModel costModel) {
+		this.costModel = costModel;
 		this.parent = parent;
 		this.excludedMembers = excludedChildren;
 		this.level = parent.getLevel();
@@ -42,7 +46,7 @@ class ChildrenMemberSet implements MemberSet {
 
 	@Override
 	public ParseTreeNode getMdx() {
-		return Mdx.except(Mdx.children(parent), UnionBuilder.fromMembers(excludedMembers));
+		return costModel.children(parent, excludedMembers);
 	}
 
 	@Override
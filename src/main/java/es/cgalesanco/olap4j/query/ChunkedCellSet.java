@@ -0,0 +1,205 @@
+package es.cgalesanco.olap4j.query;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.olap4j.Cell;
+import org.olap4j.CellSet;
+import org.olap4j.CellSetAxis;
+import org.olap4j.OlapException;
+import org.olap4j.Position;
+
+/**
+ * <p>
+ * The result of {@link Query#executeChunked(int, java.util.concurrent.ExecutorService)}:
+ * a grid stitched from the results of several queries, each returning a
+ * consecutive range of the rows of the original query.
+ * </p>
+ *
+ * <p>
+ * Rows are numbered across chunks, in the order of the original query. Every
+ * chunk returns the same columns; when the original query removes empty
+ * columns, chunks return every column and the columns empty in every chunk
+ * are removed here.
+ * </p>
+ *
+ * @author César García
+ *
+ */
+public class ChunkedCellSet {
+	private final List<CellSet> chunks;
+	private final int[] rowOffsets;
+	private final boolean nonEmptyColumns;
+	private List<Integer> columns;
+
+	/**
+	 * Creates the stitched result.
+	 *
+	 * @param chunks
+	 *            the result of every chunk, in row order.
+	 * @param nonEmptyColumns
+	 *            {@code true} to remove the columns empty in every chunk.
+	 */
+	ChunkedCellSet(List<CellSet> chunks, boolean nonEmptyColumns) {
+		this.chunks = Collections.unmodifiableList(new ArrayList<CellSet>(
+				chunks));
+		this.nonEmptyColumns = nonEmptyColumns;
+		rowOffsets = new int[chunks.size() + 1];
+		for (int i = 0; i < chunks.size(); ++i)
+			rowOffsets[i + 1] = rowOffsets[i] + countRows(chunks.get(i));
+	}
+
+	/**
+	 * Returns the results of the chunk queries.
+	 *
+	 * @return an unmodifiable list of results, in row order.
+	 */
+	public List<CellSet> getChunks() {
+		return chunks;
+	}
+
+	/**
+	 * Closes the result of every chunk query, releasing their statements and
+	 * connections.
+	 *
+	 * @throws OlapException
+	 *             if a result cannot be closed. Every result is closed anyway.
+	 */
+	public void close() throws OlapException {
+		SQLException error = null;
+		for (CellSet cs : chunks) {
+			try {
+				cs.close();
+			} catch (SQLException e) {
+				if (error == null)
+					error = e;
+			}
+		}
+		if (error != null)
+			throw new OlapException("Cannot close results", error);
+	}
+
+	/**
+	 * Returns the number of rows of the grid.
+	 *
+	 * @return the total number of rows of the chunks.
+	 */
+	public int getRowCount() {
+		return rowOffsets[chunks.size()];
+	}
+
+	/**
+	 * Returns the number of columns of the grid.
+	 *
+	 * @return the number of columns.
+	 */
+	public int getColumnCount() {
+		return listColumns().size();
+	}
+
+	/**
+	 * Returns the column positions of the grid.
+	 *
+	 * @return the positions of the columns axis.
+	 */
+	public List<Position> getColumnPositions() {
+		List<Position> positions = new ArrayList<Position>();
+		if (chunks.isEmpty())
+			return positions;
+		List<Position> all = chunks.get(0).getAxes().get(0).getPositions();
+		for (int c : listColumns())
+			positions.add(all.get(c));
+		return positions;
+	}
+
+	/**
+	 * Returns a row position of the grid.
+	 *
+	 * @param row
+	 *            the row, from 0.
+	 * @return the position of the row in the rows axis of its chunk.
+	 */
+	public Position getRowPosition(int row) {
+		int chunk = findChunk(row);
+		List<CellSetAxis> axes = chunks.get(chunk).getAxes();
+		if (axes.size() < 2)
+			return null;
+		return axes.get(1).getPositions().get(row - rowOffsets[chunk]);
+	}
+
+	/**
+	 * Returns a cell of the grid.
+	 *
+	 * @param column
+	 *            the column, from 0.
+	 * @param row
+	 *            the row, from 0.
+	 * @return the cell.
+	 */
+	public Cell getCell(int column, int row) {
+		int chunk = findChunk(row);
+		CellSet cs = chunks.get(chunk);
+		int c = listColumns().get(column);
+		if (cs.getAxes().size() < 2)
+			return cs.getCell(c);
+		return cs.getCell(Arrays.asList(c, row - rowOffsets[chunk]));
+	}
+
+	/**
+	 * Helper function finding the chunk returning a row.
+	 */
+	private int findChunk(int row) {
+		if (row < 0 || row >= getRowCount())
+			throw new IndexOutOfBoundsException("Row " + row);
+		int chunk = 0;
+		while (rowOffsets[chunk + 1] <= row)
+			++chunk;
+		return chunk;
+	}
+
+	/**
+	 * Helper function listing the column indexes of the chunks kept in the
+	 * grid.
+	 */
+	private synchronized List<Integer> listColumns() {
+		if (columns != null)
+			return columns;
+
+		columns = new ArrayList<Integer>();
+		if (chunks.isEmpty())
+			return columns;
+		int count = chunks.get(0).getAxes().get(0).getPositionCount();
+		for (int c = 0; c < count; ++c) {
+			if (!nonEmptyColumns || hasValues(c))
+				columns.add(c);
+		}
+		return columns;
+	}
+
+	/**
+	 * Helper function testing if a column has a non empty cell in any chunk.
+	 */
+	private boolean hasValues(int column) {
+		for (CellSet cs : chunks) {
+			if (cs.getAxes().size() < 2) {
+				if (!cs.getCell(column).isEmpty())
+					return true;
+				continue;
+			}
+			int rows = cs.getAxes().get(1).getPositionCount();
+			for (int r = 0; r < rows; ++r) {
+				if (!cs.getCell(Arrays.asList(column, r)).isEmpty())
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private static int countRows(CellSet cs) {
+		List<CellSetAxis> axes = cs.getAxes();
+		return axes.size() > 1 ? axes.get(1).getPositionCount() : 1;
+	}
+}
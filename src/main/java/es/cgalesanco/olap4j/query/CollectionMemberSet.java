@@ -47,6 +47,10 @@ class CollectionMemberSet implements MemberSet {
 		return members.contains(m);
 	}
 	
+	public List<Member> getMembers() {
+		return Collections.unmodifiableList(members);
+	}
+
 	public void add(Member m) {
 		members.add(m);
 	}
@@ -0,0 +1,42 @@
+package es.cgalesanco.olap4j.query;
+
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapException;
+import org.olap4j.metadata.Cube;
+
+/**
+ * Provides the connections used to execute queries, e.g. from a connection
+ * pool. See {@link Query#setConnectionProvider(ConnectionProvider)}.
+ * 
+ * <p>
+ * Every connection returned by {@link #getConnection(Cube)} is given back
+ * through {@link #releaseConnection(OlapConnection)}: once the execution
+ * fails, or once the result of the execution is closed.
+ * </p>
+ * 
+ * @author César García
+ * 
+ */
+public interface ConnectionProvider {
+	/**
+	 * Returns the connection to execute a query over a cube.
+	 * 
+	 * @param cube
+	 *            the cube queried.
+	 * @return an open connection to the server of {@code cube}.
+	 * @throws OlapException
+	 *             if no connection is available.
+	 */
+	OlapConnection getConnection(Cube cube) throws OlapException;
+
+	/**
+	 * Gives back a connection no longer used by an execution, e.g. returning
+	 * it to its pool.
+	 * 
+	 * @param connection
+	 *            a connection returned by {@link #getConnection(Cube)}.
+	 * @throws OlapException
+	 *             if the connection cannot be released.
+	 */
+	void releaseConnection(OlapConnection connection) throws OlapException;
+}
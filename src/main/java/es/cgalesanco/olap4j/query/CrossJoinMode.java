@@ -0,0 +1,26 @@
+package es.cgalesanco.olap4j.query;
+
+/**
+ * Defines how the hierarchies of an axis are cross joined.
+ * 
+ * @author César García
+ * 
+ */
+public enum CrossJoinMode {
+	/**
+	 * Plain <code>CrossJoin(a, b)</code>. Empty tuples are only removed at axis
+	 * level, if the axis is {@link QueryAxis#isNonEmpty() non empty}.
+	 */
+	CROSSJOIN,
+	/**
+	 * <code>NonEmptyCrossJoin(a, b)</code>. Empty tuples are removed while
+	 * joining, evaluating them in the slicer context.
+	 */
+	NON_EMPTY_CROSSJOIN,
+	/**
+	 * <code>NonEmpty(CrossJoin(a, b), measures)</code>. Empty tuples are
+	 * removed while joining, evaluating them against the measures placed on
+	 * the opposite axis (or in the slicer context, if there is none).
+	 */
+	NON_EMPTY
+}
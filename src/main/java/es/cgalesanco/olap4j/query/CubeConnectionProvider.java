@@ -0,0 +1,42 @@
+package es.cgalesanco.olap4j.query;
+
+import java.sql.SQLException;
+
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapException;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Schema;
+
+/**
+ * {@link ConnectionProvider} returning the connection the cube metadata was
+ * retrieved from. Used by default.
+ * 
+ * @author César García
+ * 
+ */
+public final class CubeConnectionProvider implements ConnectionProvider {
+	public static final CubeConnectionProvider INSTANCE = new CubeConnectionProvider();
+
+	private CubeConnectionProvider() {
+	}
+
+	@Override
+	public OlapConnection getConnection(Cube cube) throws OlapException {
+		Schema schema = cube.getSchema();
+		if (schema == null || schema.getCatalog() == null)
+			throw new OlapException("No connection for cube "
+					+ cube.getUniqueName());
+		try {
+			return schema.getCatalog().getMetaData().getConnection();
+		} catch (SQLException e) {
+			throw new OlapException("Cannot execute query", e);
+		}
+	}
+
+	/**
+	 * Does nothing: the connection of the cube metadata stays open.
+	 */
+	@Override
+	public void releaseConnection(OlapConnection connection) {
+	}
+}
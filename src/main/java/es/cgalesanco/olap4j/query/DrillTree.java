@@ -1,12 +1,15 @@
 package es.cgalesanco.olap4j.query;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 import org.olap4j.OlapException;
 import org.olap4j.mdx.ParseTreeNode;
 import org.olap4j.metadata.Member;
 
+import es.cgalesanco.olap4j.query.ExpansionPlan.Deferred;
+import es.cgalesanco.olap4j.query.ExpansionPlan.DeferredSet;
 import es.cgalesanco.olap4j.query.mdx.CrossJoinBuilder;
 import es.cgalesanco.olap4j.query.mdx.Mdx;
 import es.cgalesanco.olap4j.query.mdx.UnionBuilder;
@@ -16,6 +19,9 @@ import es.cgalesanco.olap4j.query.mdx.UnionBuilder;
  * {@link org.olap4j.metadata.Member}). Its used by {@link QueryAxis} to store
  * the set of drilled positions within the axis.
  * 
+ * Members are stored as {@link MemberHandle}s, resolved when the positions
+ * are visited or expanded.
+ * 
  * @author César García
  * 
  */
@@ -29,21 +35,21 @@ class DrillTree {
 	}
 
 	private static class Node {
-		private final Member member;
+		private final MemberHandle member;
 		private List<Node> children;
-		private List<Member> drills;
+		private List<MemberHandle> drills;
 
-		public Node(Member m) {
+		public Node(MemberHandle m) {
 			member = m;
 		}
 
-		public Member getMember() {
+		public MemberHandle getMember() {
 			return member;
 		}
 
-		public void addDrill(Member m) {
+		public void addDrill(MemberHandle m) {
 			if (drills == null)
-				drills = new ArrayList<Member>();
+				drills = new ArrayList<MemberHandle>();
 			if (!drills.contains(m))
 				drills.add(m);
 		}
@@ -53,13 +59,13 @@ class DrillTree {
 				return null;
 
 			for (Node n : children) {
-				if (n.getMember().equals(m))
+				if (n.getMember().references(m))
 					return n;
 			}
 			return null;
 		}
 
-		public Node addChild(Member m) {
+		public Node addChild(MemberHandle m) {
 			if (children == null)
 				children = new ArrayList<Node>();
 			Node n = new Node(m);
@@ -75,17 +81,27 @@ class DrillTree {
 			return children;
 		}
 
-		public List<Member> getDrills() {
+		public List<MemberHandle> getDrills() {
 			return drills;
 		}
 
 		public void removeDrill(Member m) {
-			if (drills != null)
-				drills.remove(m);
+			if (drills == null)
+				return;
+			for (Iterator<MemberHandle> it = drills.iterator(); it.hasNext();) {
+				if (it.next().references(m))
+					it.remove();
+			}
 		}
 
 		public boolean isDrilled(Member member) {
-			return drills == null ? false : drills.contains(member);
+			if (drills == null)
+				return false;
+			for (MemberHandle h : drills) {
+				if (h.references(member))
+					return true;
+			}
+			return false;
 		}
 
 		public void removeChildren() {
@@ -95,12 +111,46 @@ class DrillTree {
 		public void removeDrills() {
 			drills = null;
 		}
+
+		public Node copy() {
+			Node result = new Node(member);
+			if (drills != null)
+				result.drills = new ArrayList<MemberHandle>(drills);
+			if (children != null) {
+				result.children = new ArrayList<Node>(children.size());
+				for (Node child : children)
+					result.children.add(child.copy());
+			}
+			return result;
+		}
 	}
 
 	private final Node root;
+	private final MemberResolver resolver;
 
-	public DrillTree() {
+	/**
+	 * Creates an empty set.
+	 * 
+	 * @param resolver
+	 *            resolver of the stored member handles.
+	 */
+	public DrillTree(MemberResolver resolver) {
 		root = new Node(null);
+		this.resolver = resolver;
+	}
+
+	private DrillTree(Node root, MemberResolver resolver) {
+		this.root = root;
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Copies this set. Member handles are shared, nodes are not.
+	 * 
+	 * @return a copy of this set.
+	 */
+	public DrillTree copy() {
+		return new DrillTree(root.copy(), resolver);
 	}
 
 	/**
@@ -116,12 +166,12 @@ class DrillTree {
 			Member m = position[i];
 			Node next = current.getChild(m);
 			if (next == null)
-				next = current.addChild(m);
+				next = current.addChild(MemberHandle.of(m, resolver));
 
 			current = next;
 		}
 
-		current.addDrill(position[drillDepth]);
+		current.addDrill(MemberHandle.of(position[drillDepth], resolver));
 	}
 
 	/**
@@ -196,6 +246,24 @@ class DrillTree {
 		}
 	}
 
+	/**
+	 * Returns the drilled members of the hierarchy following a position
+	 * prefix.
+	 * 
+	 * @param prefix
+	 *            members of the preceding hierarchies.
+	 * @return the drilled members following {@code prefix}.
+	 */
+	public List<Member> getDrills(Member... prefix) {
+		Node current = root;
+		for (Member m : prefix) {
+			current = current.getChild(m);
+			if (current == null)
+				return new ArrayList<Member>();
+		}
+		return resolve(current.getDrills());
+	}
+
 	public void visit(Visitor visitor) throws OlapException {
 		List<Member> parents = new ArrayList<Member>();
 		visit(parents, root, visitor);
@@ -203,57 +271,280 @@ class DrillTree {
 
 	public ParseTreeNode toOlap4j(List<QueryHierarchy> dimensions,
 			List<HierarchyExpander> expanders) {
-		UnionBuilder expression = new UnionBuilder();
-		toOlap4j(expression, root, null, 0, dimensions, expanders);
-		return expression.getUnionNode();
+		return toOlap4j(dimensions, expanders, CrossJoinMode.CROSSJOIN, null);
+	}
+
+	/**
+	 * Generates the set expression for the positions of an axis.
+	 * 
+	 * @param dimensions
+	 *            the hierarchies of the axis.
+	 * @param expanders
+	 *            the expanders of the axis hierarchies.
+	 * @param joinMode
+	 *            how to cross join the hierarchies.
+	 * @param nonEmptyContext
+	 *            measures used to test empty tuples for
+	 *            {@link CrossJoinMode#NON_EMPTY} joins.
+	 * @return the axis set expression.
+	 */
+	public ParseTreeNode toOlap4j(List<QueryHierarchy> dimensions,
+			List<HierarchyExpander> expanders, CrossJoinMode joinMode,
+			ParseTreeNode nonEmptyContext) {
+		ExpansionPlan plan = new ExpansionPlan();
+		Deferred<ParseTreeNode> expression = plan(plan, dimensions, expanders,
+				joinMode, nonEmptyContext);
+		try {
+			plan.execute(null);
+		} catch (OlapException e) {
+			// Expansions run in this thread never throw checked exceptions
+			throw new RuntimeException(e);
+		}
+		return expression.get();
+	}
+
+	/**
+	 * Registers in an {@link ExpansionPlan} the hierarchy expansions needed to
+	 * generate the set expression for the positions of an axis.
+	 * 
+	 * @param plan
+	 *            the plan collecting the expansions.
+	 * @param dimensions
+	 *            the hierarchies of the axis.
+	 * @param expanders
+	 *            the expanders of the axis hierarchies. They are not modified.
+	 * @param joinMode
+	 *            how to cross join the hierarchies.
+	 * @param nonEmptyContext
+	 *            measures used to test empty tuples for
+	 *            {@link CrossJoinMode#NON_EMPTY} joins.
+	 * @return the axis set expression, available once {@code plan} is
+	 *         executed.
+	 */
+	public DeferredSet plan(ExpansionPlan plan,
+			List<QueryHierarchy> dimensions, List<HierarchyExpander> expanders,
+			final CrossJoinMode joinMode, final ParseTreeNode nonEmptyContext) {
+		final List<Branch> branches = new ArrayList<Branch>();
+		plan(plan, branches, root, null, new ArrayList<Member>(), 0,
+				dimensions, expanders, joinMode, nonEmptyContext);
+		return new DeferredSet() {
+			@Override
+			public ParseTreeNode get() {
+				UnionBuilder expression = new UnionBuilder();
+				for (Branch b : branches)
+					expression.add(b.toOlap4j(joinMode, nonEmptyContext));
+				return expression.getUnionNode();
+			}
+
+			@Override
+			public boolean isHierarchized() {
+				// Drilled positions are generated by further branches, appended
+				// after the positions of the root branch
+				return branches.size() == 1 && branches.get(0).isHierarchized();
+			}
+		};
 	}
 
-	private void toOlap4j(UnionBuilder expression, Node current,
-			ParseTreeNode partialExpression, int level,
-			List<QueryHierarchy> dimensions, List<HierarchyExpander> expanders) {
+	/**
+	 * Explains the set expression generated for the positions of an axis: a
+	 * {@link ExplainNode.Kind#DRILL_BRANCH} node per node of this tree
+	 * generating positions.
+	 * 
+	 * @param dimensions
+	 *            the hierarchies of the axis.
+	 * @param expanders
+	 *            the expanders of the axis hierarchies. They are not modified.
+	 * @param joinMode
+	 *            how to cross join the hierarchies.
+	 * @param nonEmptyContext
+	 *            measures used to test empty tuples for
+	 *            {@link CrossJoinMode#NON_EMPTY} joins.
+	 * @return the plan nodes of the branches, in generation order.
+	 * @throws OlapException
+	 *             if an error occurs while retrieving member metadata.
+	 */
+	public List<ExplainNode> explain(List<QueryHierarchy> dimensions,
+			List<HierarchyExpander> expanders, CrossJoinMode joinMode,
+			ParseTreeNode nonEmptyContext) throws OlapException {
+		ExpansionPlan plan = new ExpansionPlan();
+		List<Branch> branches = new ArrayList<Branch>();
+		plan(plan, branches, root, null, new ArrayList<Member>(), 0,
+				dimensions, expanders, joinMode, nonEmptyContext);
+		plan.execute(null);
+
+		List<ExplainNode> result = new ArrayList<ExplainNode>();
+		for (Branch b : branches) {
+			int size = dimensions.size();
+			List<HierarchyExpander> branchExpanders = new ArrayList<HierarchyExpander>(
+					expanders.subList(b.level, size));
+			branchExpanders.set(0, b.expander);
+			List<Member[]> drills = new ArrayList<Member[]>();
+			if (b.drills != null) {
+				for (Member m : b.drills)
+					drills.add(new Member[] { m });
+			}
+			long estimate = CardinalityEstimator.estimateAxis(
+					dimensions.subList(b.level, size), branchExpanders, drills);
+			if (!b.excludedMembers.isEmpty()) {
+				// Excluded members are generated by the following branches
+				long tail = b.level + 1 < size ? CardinalityEstimator
+						.estimateAxis(dimensions.subList(b.level + 1, size),
+								expanders.subList(b.level + 1, size),
+								new ArrayList<Member[]>()) : 1;
+				estimate = Math.max(0, estimate - b.excludedMembers.size()
+						* tail);
+			}
+
+			StringBuilder description = new StringBuilder();
+			for (Member m : b.prefix) {
+				if (description.length() > 0)
+					description.append(", ");
+				description.append(m.getUniqueName());
+			}
+			if (description.length() == 0)
+				description.append("(root)");
+
+			ExplainNode node = new ExplainNode(ExplainNode.Kind.DRILL_BRANCH,
+					description.toString(), b.toOlap4j(joinMode,
+							nonEmptyContext), b.prefix, null, estimate);
+			node.addChild(dimensions.get(b.level).explain(b.expander));
+			for (int n = b.level + 1; n < size; ++n) {
+				node.addChild(dimensions.get(n).explain(
+						expanders.get(n).copy(null)));
+			}
+			result.add(node);
+		}
+		return result;
+	}
+
+	private void plan(ExpansionPlan plan, List<Branch> branches,
+			Node current, ParseTreeNode partialExpression,
+			List<Member> prefix, int level,
+			List<QueryHierarchy> dimensions, List<HierarchyExpander> expanders,
+			CrossJoinMode joinMode, ParseTreeNode nonEmptyContext) {
 		
-		HierarchyExpander expander = expanders.get(level);
-		expander.setDrills(current.drills);
+		List<Member> drills = resolve(current.drills);
+		HierarchyExpander expander = expanders.get(level).copy(drills);
 		QueryHierarchy h = dimensions.get(level);
 
 		// Creates a list of children to be processed
 		List<Member> childrenMembers = new ArrayList<Member>();
 		if (current.hasChildren()) {
 			for (Node child : current.children) {
-				if (!h.isIncluded(child.getMember()) )  
+				Member childMember = resolve(child.getMember());
+				if (!h.isIncluded(childMember) )  
 					continue;
 
-				Member p = h.getParentMember(child.getMember());
+				Member p = h.getParentMember(childMember);
 				while( p != null && expander.isDrilled(p)) {
 					p = h.getParentMember(p);
 				}
 
 				if ( p == null )
-					childrenMembers.add(child.getMember());
+					childrenMembers.add(childMember);
 			}
 		}
 
 		// Generates the join of this query hierarchy, appling the drills and removing
 		// any member involved in a larger drill position.
-		CrossJoinBuilder xJoin = new CrossJoinBuilder();
-		xJoin.join(partialExpression);
-		xJoin.join(Mdx.except(h.toOlap4j(expander),
-				UnionBuilder.fromMembers(childrenMembers)));
+		Branch branch = new Branch();
+		branch.partialExpression = partialExpression;
+		branch.prefix = new ArrayList<Member>(prefix);
+		branch.level = level;
+		branch.expander = expander;
+		branch.drills = drills;
+		branch.expansion = plan.expand(h, expander, drills);
+		branch.excludedMembers = childrenMembers;
 		for (int n = level + 1; n < dimensions.size(); ++n) {
-			HierarchyExpander nextExp = expanders.get(n);
-			nextExp.setDrills(null);
-			QueryHierarchy nh = dimensions.get(n);
-			xJoin.join(nh.toOlap4j(nextExp));
+			branch.tailExpansions.add(plan.expand(dimensions.get(n),
+					expanders.get(n), null));
 		}
-		expression.add(xJoin.getJoinNode());
+		branches.add(branch);
 
 		// Recursively generates expression for larger drill positions.
 		for (Member child : childrenMembers) {
-			CrossJoinBuilder x = new CrossJoinBuilder();
+			CrossJoinBuilder x = new CrossJoinBuilder(joinMode, nonEmptyContext);
 			x.join(partialExpression);
 			x.join(Mdx.member(child));
-			toOlap4j(expression, current.getChild(child), x.getJoinNode(),
-					level + 1, dimensions, expanders);
+			prefix.add(child);
+			plan(plan, branches, current.getChild(child), x.getJoinNode(),
+					prefix, level + 1, dimensions, expanders, joinMode,
+					nonEmptyContext);
+			prefix.remove(prefix.size() - 1);
+		}
+	}
+
+	/**
+	 * Join of the members drilled from a drill tree node.
+	 */
+	private static class Branch {
+		ParseTreeNode partialExpression;
+		List<Member> prefix;
+		int level;
+		HierarchyExpander expander;
+		List<Member> drills;
+		DeferredSet expansion;
+		List<Member> excludedMembers;
+		List<DeferredSet> tailExpansions = new ArrayList<DeferredSet>();
+
+		/**
+		 * Generates the join of this branch. Available once the plan
+		 * registering the branch expansions is executed.
+		 */
+		ParseTreeNode toOlap4j(CrossJoinMode joinMode,
+				ParseTreeNode nonEmptyContext) {
+			CrossJoinBuilder xJoin = new CrossJoinBuilder(joinMode,
+					nonEmptyContext);
+			xJoin.join(partialExpression);
+			xJoin.join(Mdx.except(expansion.get(),
+					UnionBuilder.fromMembers(excludedMembers)));
+			for (Deferred<ParseTreeNode> tail : tailExpansions)
+				xJoin.join(tail.get());
+			return xJoin.getJoinNode();
+		}
+
+		/**
+		 * Checks whether the join of this branch is in hierarchical order: the
+		 * cross join of hierarchized sets is ordered by its first hierarchy,
+		 * then by the following ones, as <code>Hierarchize</code> orders
+		 * tuples.
+		 */
+		boolean isHierarchized() {
+			if (partialExpression != null || !expansion.isHierarchized())
+				return false;
+			for (DeferredSet tail : tailExpansions) {
+				if (!tail.isHierarchized())
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Helper function resolving a member handle from a context not allowed
+	 * to throw {@link OlapException}.
+	 */
+	private Member resolve(MemberHandle handle) {
+		try {
+			return handle.resolve(resolver);
+		} catch (OlapException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Helper function resolving a list of drilled member handles.
+	 * 
+	 * @return the resolved members; an empty list if {@code handles} is
+	 *         {@code null}.
+	 */
+	private List<Member> resolve(List<MemberHandle> handles) {
+		if (handles == null)
+			return new ArrayList<Member>();
+		try {
+			return MemberHandle.resolveAll(handles, resolver);
+		} catch (OlapException e) {
+			throw new RuntimeException(e);
 		}
 	}
 
@@ -273,14 +564,16 @@ class DrillTree {
 
 	private void visit(List<Member> parents, Node node, Visitor visitor)
 			throws OlapException {
-		List<Member> drilledMembers = node.getDrills();
+		List<Member> drilledMembers = node.getDrills() == null ? null
+				: MemberHandle.resolveAll(node.getDrills(), resolver);
 		visitor.visit(parents, drilledMembers);
 		if (!node.hasChildren())
 			return;
 
 		for (Node child : node.getChildren()) {
-			if (visitor.shouldVisitChild(parents.size(), child.getMember())) {
-				parents.add(child.getMember());
+			Member childMember = child.getMember().resolve(resolver);
+			if (visitor.shouldVisitChild(parents.size(), childMember)) {
+				parents.add(childMember);
 				visit(parents, child, visitor);
 				parents.remove(parents.size() - 1);
 			}
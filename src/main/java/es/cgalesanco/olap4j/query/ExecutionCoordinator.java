@@ -0,0 +1,198 @@
+package es.cgalesanco.olap4j.query;
+
+import java.io.StringWriter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.olap4j.CellSet;
+import org.olap4j.OlapException;
+import org.olap4j.mdx.ParseTreeWriter;
+import org.olap4j.mdx.SelectNode;
+import org.olap4j.metadata.Cube;
+
+/**
+ * <p>
+ * Deduplicates identical concurrent query executions (<em>single
+ * flight</em>).
+ * </p>
+ *
+ * <p>
+ * Executions are keyed by connection provider, cube and MDX statement. When a
+ * query is executed while an identical one is in flight, the caller waits for
+ * the running execution and shares its result, instead of sending the
+ * statement to the server again. Waits are bounded: callers give up with an
+ * {@link OlapException} once the timeout expires. Failures of the running
+ * execution are propagated to every waiting caller.
+ * </p>
+ *
+ * <p>
+ * Callers never share a {@link CellSet}: the running execution copies its
+ * cell set into an immutable {@link CellSetSnapshot} and closes it, releasing
+ * the statement and connection before the callers read the result. Queries
+ * use a coordinator for {@link Query#executeSnapshot()} once registered with
+ * {@link Query#setExecutionCoordinator(ExecutionCoordinator)}; a single
+ * coordinator is typically shared by every query of an application.
+ * </p>
+ *
+ * @author César García
+ *
+ */
+public class ExecutionCoordinator {
+	/**
+	 * An execution of an MDX statement. Its cell set is owned, and closed, by
+	 * the coordinator.
+	 */
+	public interface Execution {
+		CellSet execute() throws OlapException;
+	}
+
+	/**
+	 * An execution in progress, whose outcome is shared by every caller.
+	 */
+	private static class Flight {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private CellSetSnapshot result;
+		private Throwable error;
+	}
+
+	/**
+	 * Identifies identical executions: same connection provider and cube
+	 * instances, and same statement.
+	 */
+	private static class Key {
+		private final ConnectionProvider provider;
+		private final Cube cube;
+		private final String mdx;
+
+		public Key(ConnectionProvider provider, Cube cube, String mdx) {
+			this.provider = provider;
+			this.cube = cube;
+			this.mdx = mdx;
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = System.identityHashCode(provider);
+			hash = 31 * hash + System.identityHashCode(cube);
+			return 31 * hash + mdx.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return provider == other.provider && cube == other.cube
+					&& mdx.equals(other.mdx);
+		}
+	}
+
+	private final ConcurrentMap<Key, Flight> flights = new ConcurrentHashMap<Key, Flight>();
+	private final long timeoutMillis;
+	private final AtomicLong sharedExecutions = new AtomicLong();
+
+	/**
+	 * Creates a coordinator.
+	 *
+	 * @param timeoutMillis
+	 *            maximum time, in milliseconds, a caller waits for an
+	 *            identical execution in flight.
+	 */
+	public ExecutionCoordinator(long timeoutMillis) {
+		if (timeoutMillis < 0)
+			throw new IllegalArgumentException("Negative timeout");
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	/**
+	 * Returns the number of executions served by sharing the result of an
+	 * identical execution in flight.
+	 *
+	 * @return the number of deduplicated executions.
+	 */
+	public long getSharedExecutions() {
+		return sharedExecutions.get();
+	}
+
+	/**
+	 * Returns the number of executions in flight.
+	 *
+	 * @return the number of distinct statements being executed.
+	 */
+	public int getInFlight() {
+		return flights.size();
+	}
+
+	/**
+	 * Executes a statement, unless an identical one is in flight.
+	 *
+	 * @param provider
+	 *            the provider of the connection executing the statement.
+	 * @param cube
+	 *            the cube queried by the statement.
+	 * @param select
+	 *            the statement.
+	 * @param execution
+	 *            runs the statement if no identical one is in flight.
+	 * @return the result of the statement, possibly shared with other
+	 *         callers.
+	 * @throws OlapException
+	 *             if the execution fails, the wait times out or the calling
+	 *             thread is interrupted while waiting.
+	 */
+	public CellSetSnapshot execute(ConnectionProvider provider, Cube cube,
+			SelectNode select, Execution execution) throws OlapException {
+		StringWriter swr = new StringWriter();
+		select.unparse(new ParseTreeWriter(swr));
+		Key key = new Key(provider, cube, swr.toString());
+
+		Flight flight = new Flight();
+		Flight running = flights.putIfAbsent(key, flight);
+		if (running != null)
+			return await(running);
+
+		try {
+			flight.result = CellSetSnapshot.materialize(execution.execute());
+			return flight.result;
+		} catch (OlapException e) {
+			flight.error = e;
+			throw e;
+		} catch (RuntimeException e) {
+			flight.error = e;
+			throw e;
+		} catch (Error e) {
+			flight.error = e;
+			throw e;
+		} finally {
+			flights.remove(key, flight);
+			flight.done.countDown();
+		}
+	}
+
+	/**
+	 * Helper function waiting for the outcome of an execution in flight.
+	 */
+	private CellSetSnapshot await(Flight flight) throws OlapException {
+		try {
+			if (!flight.done.await(timeoutMillis, TimeUnit.MILLISECONDS))
+				throw new OlapException("Timed out waiting for an identical query");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new OlapException(
+					"Interrupted waiting for an identical query", e);
+		}
+
+		if (flight.error != null)
+			throw new OlapException("Identical query failed: "
+					+ flight.error.getMessage(), flight.error);
+		sharedExecutions.incrementAndGet();
+		return flight.result;
+	}
+}
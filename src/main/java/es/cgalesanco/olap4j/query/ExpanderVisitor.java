@@ -9,9 +9,28 @@ import org.olap4j.metadata.Member;
 import es.cgalesanco.olap4j.query.SelectionTree.SelectionNode;
 
 interface ExpanderVisitor extends SelectionNodeVisitor {
-	ParseTreeNode execute(SelectionNode root, List<Level> levels);
+	ParseTreeNode execute(SelectionNode root, List<Level> levels,
+			ExpressionCostModel costModel, ExpansionTrace trace);
+
+	/**
+	 * Checks whether the expression returned by the last call to
+	 * {@link #execute} is already in hierarchical order.
+	 * 
+	 * @return {@code false} if no expression was generated yet.
+	 */
+	boolean isHierarchized();
+
+	/**
+	 * Returns the definitions of the calculated members referenced by the
+	 * expression returned by the last call to {@link #execute}.
+	 * 
+	 * @return an empty list if no expression was generated yet.
+	 */
+	List<ParseTreeNode> getCalculatedMembers();
 
 	boolean isDrilled(Member member);
 
 	void setDrills(List<Member> drills);
+
+	void setChildrenLimit(ChildrenLimit limit);
 }
@@ -0,0 +1,246 @@
+package es.cgalesanco.olap4j.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.olap4j.OlapException;
+import org.olap4j.mdx.ParseTreeNode;
+import org.olap4j.mdx.WithMemberNode;
+import org.olap4j.mdx.WithSetNode;
+import org.olap4j.metadata.Member;
+
+/**
+ * <p>
+ * Collects the hierarchy expansions needed to generate a query, so they can be
+ * executed (possibly in parallel) before assembling the query expression.
+ * </p>
+ *
+ * <p>
+ * Generation is split in three steps: axes register the expansions they need
+ * getting a {@link Deferred} placeholder for each one, {@link #execute}
+ * computes every registered expansion, and finally the placeholders are
+ * assembled into the query expression. As the assembly order is fixed during
+ * registration, the generated expression doesn't depend on the order the
+ * expansions are completed.
+ * </p>
+ *
+ * <p>
+ * Identical expansions (same hierarchy, expander state and drills) are
+ * computed just once.
+ * </p>
+ *
+ * @author César García
+ *
+ */
+class ExpansionPlan {
+
+	/**
+	 * Placeholder for a value available once the plan is executed.
+	 *
+	 * @param <T>
+	 *            the type of the value.
+	 */
+	interface Deferred<T> {
+		T get();
+	}
+
+	/**
+	 * Placeholder for a set expression that also tells whether the set is
+	 * generated in hierarchical order.
+	 */
+	interface DeferredSet extends Deferred<ParseTreeNode> {
+		/**
+		 * Checks whether the expression is already in hierarchical order, so
+		 * it needs no <code>Hierarchize</code> call. Available once the plan
+		 * is executed.
+		 */
+		boolean isHierarchized();
+	}
+
+	private final List<Expansion> expansions;
+	private final Map<List<Object>, Expansion> expansionsByKey;
+
+	public ExpansionPlan() {
+		expansions = new ArrayList<Expansion>();
+		expansionsByKey = new HashMap<List<Object>, Expansion>();
+	}
+
+	/**
+	 * Registers the expansion of a hierarchy.
+	 *
+	 * @param h
+	 *            the hierarchy to expand.
+	 * @param model
+	 *            expander whose state (expanded/collapsed and children limit)
+	 *            is used for the expansion. It's not modified nor referenced
+	 *            afterwards.
+	 * @param drills
+	 *            the drilled (or undrilled) members.
+	 * @return the placeholder for the expansion expression.
+	 */
+	public DeferredSet expand(QueryHierarchy h,
+			HierarchyExpander model, List<Member> drills) {
+		List<Member> drillList = drills == null ? new ArrayList<Member>()
+				: new ArrayList<Member>(drills);
+		List<Object> key = Arrays.<Object> asList(h,
+				model.isHierarchyExpanded(), model.getExpansionLevel(),
+				model.getChildrenLimit(),
+				drillList);
+		Expansion result = expansionsByKey.get(key);
+		if (result == null) {
+			result = new Expansion(h, model.copy(drillList));
+			expansionsByKey.put(key, result);
+			expansions.add(result);
+		}
+		return result;
+	}
+
+	/**
+	 * Computes every registered expansion.
+	 *
+	 * @param executor
+	 *            executor used to run the expansions concurrently.
+	 *            {@code null} to run them in the calling thread.
+	 * @throws OlapException
+	 *             if the calling thread is interrupted while waiting for the
+	 *             expansions, or an expansion fails with a checked exception.
+	 */
+	public void execute(ExecutorService executor) throws OlapException {
+		List<FutureTask<ParseTreeNode>> tasks = new ArrayList<FutureTask<ParseTreeNode>>(
+				expansions.size());
+		for (Expansion e : expansions) {
+			FutureTask<ParseTreeNode> task = new FutureTask<ParseTreeNode>(e);
+			tasks.add(task);
+			if (executor != null && expansions.size() > 1) {
+				try {
+					executor.execute(task);
+				} catch (RejectedExecutionException ex) {
+					// Run below by the calling thread
+				}
+			}
+		}
+
+		try {
+			// The calling thread runs the tasks not started yet instead of
+			// just waiting for them. Worker threads never block.
+			for (int i = 0; i < tasks.size(); ++i) {
+				FutureTask<ParseTreeNode> task = tasks.get(i);
+				task.run();
+				expansions.get(i).setResult(getResult(task));
+			}
+		} finally {
+			for (FutureTask<ParseTreeNode> task : tasks)
+				task.cancel(false);
+		}
+	}
+
+	/**
+	 * Returns the definitions of the calculated members and named sets
+	 * referenced by the computed expansions, like the
+	 * {@link ChildrenLimit#OTHERS_MEMBER} of their drilled members. Members
+	 * and sets defined by several expansions are returned once.
+	 * 
+	 * @return the calculated members and sets to add to the <code>WITH</code>
+	 *         list of the query.
+	 * @throws IllegalStateException
+	 *             if the plan is not executed yet.
+	 */
+	public List<ParseTreeNode> getCalculatedMembers() {
+		Map<String, ParseTreeNode> result = new LinkedHashMap<String, ParseTreeNode>();
+		for (Expansion e : expansions) {
+			for (ParseTreeNode m : e.getCalculatedMembers()) {
+				String name = m instanceof WithSetNode ? ((WithSetNode) m)
+						.getIdentifier().toString() : ((WithMemberNode) m)
+						.getIdentifier().toString();
+				if (!result.containsKey(name))
+					result.put(name, m.deepCopy());
+			}
+		}
+		return new ArrayList<ParseTreeNode>(result.values());
+	}
+
+	private static ParseTreeNode getResult(FutureTask<ParseTreeNode> task)
+			throws OlapException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new OlapException("Interrupted while generating the query",
+					e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new OlapException(cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * Expansion of a hierarchy using a private expander.
+	 */
+	private static class Expansion implements Callable<ParseTreeNode>,
+			DeferredSet {
+		private final QueryHierarchy hierarchy;
+		private final HierarchyExpander expander;
+		private ParseTreeNode result;
+		private List<ParseTreeNode> calculatedMembers;
+		private boolean hierarchized;
+		private boolean executed;
+		private boolean used;
+
+		public Expansion(QueryHierarchy hierarchy, HierarchyExpander expander) {
+			this.hierarchy = hierarchy;
+			this.expander = expander;
+		}
+
+		@Override
+		public ParseTreeNode call() {
+			return hierarchy.toOlap4j(expander);
+		}
+
+		public void setResult(ParseTreeNode result) {
+			this.result = result;
+			hierarchized = expander.isHierarchized();
+			calculatedMembers = new ArrayList<ParseTreeNode>(
+					expander.getCalculatedMembers());
+			executed = true;
+		}
+
+		public List<ParseTreeNode> getCalculatedMembers() {
+			if (!executed)
+				throw new IllegalStateException("Expansion plan not executed");
+			return calculatedMembers;
+		}
+
+		@Override
+		public boolean isHierarchized() {
+			if (!executed)
+				throw new IllegalStateException("Expansion plan not executed");
+			return hierarchized;
+		}
+
+		@Override
+		public ParseTreeNode get() {
+			if (!executed)
+				throw new IllegalStateException("Expansion plan not executed");
+
+			// Shared expansions are copied, so the generated parse tree has
+			// no shared nodes.
+			if (used && result != null)
+				return result.deepCopy();
+			used = true;
+			return result;
+		}
+	}
+}
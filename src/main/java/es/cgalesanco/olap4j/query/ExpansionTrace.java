@@ -0,0 +1,67 @@
+package es.cgalesanco.olap4j.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.olap4j.mdx.ParseTreeNode;
+
+/**
+ * Records the fragments contributed to a hierarchy expression, along with the
+ * selection (a {@link SelectionTree.SelectionNode} or an included
+ * {@link org.olap4j.metadata.Level}) that produced each one. Used by
+ * {@link Query#explain()}.
+ *
+ * @author César García
+ *
+ */
+class ExpansionTrace {
+	/**
+	 * A fragment of a hierarchy expression.
+	 */
+	static class Fragment {
+		final Object source;
+		final String operation;
+		final ParseTreeNode expression;
+
+		Fragment(Object source, String operation, ParseTreeNode expression) {
+			this.source = source;
+			this.operation = operation;
+			this.expression = expression;
+		}
+	}
+
+	private Object source;
+	private final List<Fragment> fragments;
+
+	public ExpansionTrace() {
+		fragments = new ArrayList<Fragment>();
+	}
+
+	/**
+	 * Sets the selection producing the following fragments.
+	 *
+	 * @param source
+	 *            the selection node or level being processed.
+	 */
+	public void setSource(Object source) {
+		this.source = source;
+	}
+
+	/**
+	 * Records a fragment produced by the current source.
+	 *
+	 * @param operation
+	 *            how the fragment is combined into the hierarchy expression
+	 *            (e.g. {@code include}, {@code exclude}).
+	 * @param expression
+	 *            the fragment. {@code null} fragments are ignored.
+	 */
+	public void record(String operation, ParseTreeNode expression) {
+		if (expression != null)
+			fragments.add(new Fragment(source, operation, expression));
+	}
+
+	public List<Fragment> getFragments() {
+		return fragments;
+	}
+}
@@ -0,0 +1,220 @@
+package es.cgalesanco.olap4j.query;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.olap4j.mdx.ParseTreeNode;
+import org.olap4j.mdx.ParseTreeWriter;
+import org.olap4j.metadata.Level;
+import org.olap4j.metadata.Member;
+
+import es.cgalesanco.olap4j.query.mdx.Mdx;
+
+/**
+ * <p>
+ * A node of the plan returned by {@link Query#explain()}, linking a fragment
+ * of the generated MDX to the part of the query state that produced it.
+ * </p>
+ *
+ * <p>
+ * Plans are trees: the {@link Kind#QUERY} root has an {@link Kind#AXIS} child
+ * per generated axis. Non filter axes are the union of a
+ * {@link Kind#DRILL_BRANCH} per node of the axis drill tree, the cross join of
+ * the branch prefix and the expansion of the remaining hierarchies. Every
+ * {@link Kind#HIERARCHY} expansion has a child per {@link Kind#SELECTION} node
+ * or {@link Kind#LEVEL_SELECTION} contributing to it, whose
+ * {@link Kind#FRAGMENT} children are the expressions included, excluded,
+ * drilled or undrilled by the selection.
+ * </p>
+ *
+ * @author César García
+ *
+ */
+public class ExplainNode {
+	/**
+	 * The part of the query state explained by a node.
+	 */
+	public enum Kind {
+		/**
+		 * The whole query.
+		 */
+		QUERY,
+		/**
+		 * A query axis.
+		 */
+		AXIS,
+		/**
+		 * The positions generated from a node of the axis drill tree.
+		 * {@link ExplainNode#getMembers()} returns the position prefix.
+		 */
+		DRILL_BRANCH,
+		/**
+		 * The expansion of a query hierarchy.
+		 */
+		HIERARCHY,
+		/**
+		 * A node of the hierarchy selection tree.
+		 * {@link ExplainNode#getMembers()} returns the node member, or an empty
+		 * list for the hierarchy root.
+		 */
+		SELECTION,
+		/**
+		 * A level selection. {@link ExplainNode#getLevel()} returns the level.
+		 */
+		LEVEL_SELECTION,
+		/**
+		 * An expression combined into the hierarchy expansion. The description
+		 * tells how: {@code include}, {@code exclude}, {@code drill} or
+		 * {@code undrill}.
+		 */
+		FRAGMENT
+	}
+
+	private final Kind kind;
+	private final String description;
+	private final ParseTreeNode fragment;
+	private final List<Member> members;
+	private final Level level;
+	private final long estimatedCardinality;
+	private final List<ExplainNode> children;
+
+	ExplainNode(Kind kind, String description, ParseTreeNode fragment,
+			List<Member> members, Level level, long estimatedCardinality) {
+		this.kind = kind;
+		this.description = description;
+		this.fragment = fragment;
+		this.members = members == null ? Collections.<Member> emptyList()
+				: Collections.unmodifiableList(new ArrayList<Member>(members));
+		this.level = level;
+		this.estimatedCardinality = estimatedCardinality;
+		this.children = new ArrayList<ExplainNode>();
+	}
+
+	void addChild(ExplainNode child) {
+		children.add(child);
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	/**
+	 * Returns a human readable description of the explained element.
+	 *
+	 * @return the description of this node.
+	 */
+	public String getDescription() {
+		return description;
+	}
+
+	/**
+	 * Returns the MDX fragment produced by the explained element.
+	 *
+	 * @return the generated fragment. {@code null} if it generates nothing.
+	 */
+	public ParseTreeNode getFragment() {
+		return fragment;
+	}
+
+	/**
+	 * Returns the MDX fragment produced by the explained element, unparsed.
+	 *
+	 * @return the generated fragment MDX. An empty string if it generates
+	 *         nothing.
+	 */
+	public String getMdx() {
+		if (fragment == null)
+			return "";
+		StringWriter swr = new StringWriter();
+		fragment.unparse(new ParseTreeWriter(swr));
+		return swr.toString();
+	}
+
+	/**
+	 * Returns the members identifying the explained element, as documented
+	 * for every {@link Kind}.
+	 *
+	 * @return an unmodifiable list of members; empty if the element isn't
+	 *         identified by members.
+	 */
+	public List<Member> getMembers() {
+		return members;
+	}
+
+	/**
+	 * Returns the level of a {@link Kind#LEVEL_SELECTION} node.
+	 *
+	 * @return the selected level; {@code null} for other kinds of nodes.
+	 */
+	public Level getLevel() {
+		return level;
+	}
+
+	/**
+	 * Returns the number of parse tree nodes of the fragment.
+	 *
+	 * @return the size of the fragment.
+	 */
+	public int getNodeCount() {
+		return Mdx.countNodes(fragment);
+	}
+
+	/**
+	 * Returns the number of member literals of the fragment.
+	 *
+	 * @return the number of members explicitly listed by the fragment.
+	 */
+	public int getMemberCount() {
+		return Mdx.countMembers(fragment);
+	}
+
+	/**
+	 * Returns the estimated number of positions (or members, for hierarchy
+	 * nodes) generated by the fragment, computed from metadata as
+	 * {@link Query#estimateCardinality()} does.
+	 *
+	 * @return the estimated cardinality; -1 if not estimated.
+	 */
+	public long getEstimatedCardinality() {
+		return estimatedCardinality;
+	}
+
+	/**
+	 * Returns the elements contributing to this node fragment.
+	 *
+	 * @return an unmodifiable list of child nodes.
+	 */
+	public List<ExplainNode> getChildren() {
+		return Collections.unmodifiableList(children);
+	}
+
+	/**
+	 * Returns the plan rooted at this node as indented text, a line per node.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		append(sb, 0);
+		return sb.toString();
+	}
+
+	private void append(StringBuilder sb, int indent) {
+		for (int i = 0; i < indent; ++i)
+			sb.append("  ");
+		sb.append(kind).append(' ').append(description);
+		if (fragment != null) {
+			sb.append(" [nodes=").append(getNodeCount());
+			sb.append(", members=").append(getMemberCount());
+			if (estimatedCardinality >= 0)
+				sb.append(", estimated=").append(estimatedCardinality);
+			sb.append("]");
+		}
+		if (kind == Kind.FRAGMENT)
+			sb.append(' ').append(getMdx());
+		sb.append('\n');
+		for (ExplainNode child : children)
+			child.append(sb, indent + 1);
+	}
+}
@@ -0,0 +1,169 @@
+package es.cgalesanco.olap4j.query;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.olap4j.OlapException;
+import org.olap4j.mdx.CallNode;
+import org.olap4j.mdx.ParseTreeNode;
+import org.olap4j.mdx.Syntax;
+import org.olap4j.metadata.Level;
+import org.olap4j.metadata.Member;
+
+import es.cgalesanco.olap4j.query.mdx.Mdx;
+import es.cgalesanco.olap4j.query.mdx.UnionBuilder;
+
+/**
+ * <p>
+ * Chooses between equivalent MDX formulations of the member sets generated
+ * by the hierarchy expanders.
+ * </p>
+ *
+ * <p>
+ * Small sets are cheaper to enumerate explicitly than to compute on the
+ * server: a set of five members is better sent as a list than as a
+ * <code>Descendants</code> call, and the two children remaining out of two
+ * thousand are better listed than computed by an <code>Except</code> with
+ * 1998 exclusions. Sizes are first estimated from level cardinalities, which
+ * need no metadata round trip, and then checked against the member child
+ * counts. The {@link #LEGACY} model always generates the function forms.
+ * </p>
+ *
+ * @author César García
+ *
+ */
+final class ExpressionCostModel {
+	/**
+	 * Default maximum number of members enumerated explicitly.
+	 */
+	public static final int DEFAULT_MAX_EXPLICIT = 16;
+
+	/**
+	 * Model always generating the function forms.
+	 */
+	public static final ExpressionCostModel LEGACY = new ExpressionCostModel(0);
+
+	/**
+	 * Model enumerating sets of up to {@link #DEFAULT_MAX_EXPLICIT} members.
+	 */
+	public static final ExpressionCostModel DEFAULT = new ExpressionCostModel(
+			DEFAULT_MAX_EXPLICIT);
+
+	private final int maxExplicit;
+
+	public ExpressionCostModel(int maxExplicit) {
+		if (maxExplicit < 0)
+			throw new IllegalArgumentException("Negative explicit set size");
+		this.maxExplicit = maxExplicit;
+	}
+
+	public int getMaxExplicit() {
+		return maxExplicit;
+	}
+
+	/**
+	 * Generates the children of a member but some excluded ones: either
+	 * <code>Except(parent.Children, {excluded})</code> or the explicit list of
+	 * the remaining children, whichever is shorter.
+	 *
+	 * @param parent
+	 *            the parent member.
+	 * @param excluded
+	 *            the excluded children.
+	 * @return the set of the remaining children.
+	 */
+	public ParseTreeNode children(Member parent, Collection<Member> excluded) {
+		ParseTreeNode except = Mdx.except(Mdx.children(parent),
+				UnionBuilder.fromMembers(excluded));
+		if (maxExplicit == 0 || excluded.isEmpty())
+			return except;
+
+		try {
+			int remaining = parent.getChildMemberCount() - excluded.size();
+			if (remaining > maxExplicit || remaining >= excluded.size())
+				return except;
+
+			List<Member> members = new ArrayList<Member>(remaining);
+			for (Member child : parent.getChildMembers()) {
+				if (!excluded.contains(child))
+					members.add(child);
+			}
+			return explicit(members);
+		} catch (OlapException e) {
+			return except;
+		}
+	}
+
+	/**
+	 * Generates the descendants of a member from a given distance down,
+	 * either as <code>Descendants(m, distance, SELF_AND_AFTER)</code> or, for
+	 * small subtrees, as the explicit list of the descendants in hierarchical
+	 * order.
+	 *
+	 * @param m
+	 *            the ancestor member.
+	 * @param distance
+	 *            distance from {@code m} to the first generated level.
+	 * @return the set of descendants.
+	 */
+	public ParseTreeNode descendants(Member m, int distance) {
+		ParseTreeNode descendants = Mdx.descendants(Mdx.member(m), distance,
+				"SELF_AND_AFTER");
+		if (maxExplicit == 0 || estimateDescendants(m, distance) > maxExplicit)
+			return descendants;
+
+		try {
+			List<Member> members = new ArrayList<Member>();
+			if (!collectDescendants(m, m.getDepth() + distance, members))
+				return descendants;
+			return explicit(members);
+		} catch (OlapException e) {
+			return descendants;
+		}
+	}
+
+	/**
+	 * Helper function estimating the size of
+	 * <code>Descendants(m, distance, SELF_AND_AFTER)</code> from the level
+	 * cardinalities.
+	 */
+	private static double estimateDescendants(Member m, int distance) {
+		List<Level> levels = m.getHierarchy().getLevels();
+		int depth = m.getLevel().getDepth();
+		double base = Math.max(1, m.getLevel().getCardinality());
+		double result = distance == 0 ? 1 : 0;
+		for (int k = Math.max(depth + 1, depth + distance); k < levels.size(); ++k)
+			result += Math.max(1, levels.get(k).getCardinality()) / base;
+		return result;
+	}
+
+	/**
+	 * Helper function collecting, in hierarchical order, the members of the
+	 * subtree of {@code m} at depth {@code fromDepth} or below.
+	 *
+	 * @return {@code false} if the subtree has more than {@code maxExplicit}
+	 *         such members.
+	 */
+	private boolean collectDescendants(Member m, int fromDepth,
+			List<Member> members) throws OlapException {
+		if (m.getDepth() >= fromDepth) {
+			if (members.size() == maxExplicit)
+				return false;
+			members.add(m);
+		}
+		if (m.getChildMemberCount() == 0)
+			return true;
+		for (Member child : m.getChildMembers()) {
+			if (!collectDescendants(child, fromDepth, members))
+				return false;
+		}
+		return true;
+	}
+
+	private static ParseTreeNode explicit(List<Member> members) {
+		ParseTreeNode result = UnionBuilder.fromMembers(members);
+		return result == null ? new CallNode(null, "{}", Syntax.Braces)
+				: result;
+	}
+}
@@ -0,0 +1,33 @@
+package es.cgalesanco.olap4j.query;
+
+/**
+ * Defines how the selections of the filter axis hierarchies are rendered in
+ * the MDX statement of a {@link Query}.
+ *
+ * @author César García
+ *
+ */
+public enum FilterMode {
+	/**
+	 * The slicer is the <code>CrossJoin</code> of the filter sets of every
+	 * hierarchy. Its size is the product of the filter sizes, and some servers
+	 * evaluate it tuple by tuple.
+	 */
+	CROSSJOIN,
+	/**
+	 * Every hierarchy filtering on several members defines a calculated member
+	 * <code>[Hierarchy].[Filtered]</code> aggregating its filter set; the
+	 * slicer is the tuple of those calculated members (and the single members
+	 * of the remaining hierarchies). Slicer evaluation is linear in the number
+	 * of filtered members.
+	 */
+	AGGREGATE,
+	/**
+	 * The statement selects from a subcube, <code>FROM (SELECT filter1 ON
+	 * COLUMNS, filter2 ON ROWS, ... FROM cube)</code>, placing the filter set of
+	 * every hierarchy on its own axis. The server restricts the cube space
+	 * once, so filtered out members are also removed from the query axes, and
+	 * the statement has no slicer.
+	 */
+	SUBSELECT
+}
@@ -0,0 +1,53 @@
+package es.cgalesanco.olap4j.query;
+
+import org.olap4j.mdx.ParseTreeNode;
+
+import es.cgalesanco.olap4j.query.mdx.Mdx;
+
+/**
+ * A consecutive range of the members of a filter hierarchy, sliced on by a
+ * partition query of
+ * {@link Query#executePartitioned(QueryHierarchy, int, java.util.concurrent.ExecutorService)}.
+ * 
+ * @author César García
+ * 
+ */
+class FilterPartition {
+	private final QueryHierarchy hierarchy;
+	private final long start;
+	private final long count;
+
+	/**
+	 * Creates a partition.
+	 * 
+	 * @param hierarchy
+	 *            the partitioned filter hierarchy.
+	 * @param start
+	 *            index of the first member of the partition.
+	 * @param count
+	 *            number of members of the partition. -1 for every remaining
+	 *            member.
+	 */
+	public FilterPartition(QueryHierarchy hierarchy, long start, long count) {
+		this.hierarchy = hierarchy;
+		this.start = start;
+		this.count = count;
+	}
+
+	/**
+	 * Restricts the filter set of a hierarchy to this partition.
+	 * 
+	 * @param h
+	 *            the filter hierarchy.
+	 * @param filter
+	 *            the filter set of {@code h}.
+	 * @return the members of {@code filter} in this partition if {@code h} is
+	 *         the partitioned hierarchy; {@code filter} otherwise.
+	 */
+	public ParseTreeNode apply(QueryHierarchy h, ParseTreeNode filter) {
+		if (h != hierarchy || filter == null)
+			return filter;
+		return count < 0 ? Mdx.subset(Mdx.set(filter), start) : Mdx.subset(
+				Mdx.set(filter), start, count);
+	}
+}
@@ -1,5 +1,7 @@
 package es.cgalesanco.olap4j.query;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -18,6 +20,8 @@ import es.cgalesanco.olap4j.query.mdx.UnionBuilder;
 class HierarchyDrillerVisitor implements SelectionNodeVisitor, ExpanderVisitor {
 	private Set<Member> drillList;
 	private AxisExpression expression;
+	private ChildrenLimit childrenLimit;
+	private ExpressionCostModel costModel;
 	private List<Level> levels;
 	private Level firstIncludedLevel;
 	private boolean isHierarchyRoot;
@@ -51,7 +55,7 @@ class HierarchyDrillerVisitor implements SelectionNodeVisitor, ExpanderVisitor {
 				if ( overridedMembers.isEmpty() )
 					firstLevelExclusions.add(Mdx.member(node.getMember()));
 				else
-					firstLevelExclusions.add(new ChildrenMemberSet(node.getMember(), node.getOverridedMembers()).getMdx());
+					firstLevelExclusions.add(new ChildrenMemberSet(node.getMember(), node.getOverridedMembers(), costModel).getMdx());
 			}
 		}
 		
@@ -72,7 +76,7 @@ class HierarchyDrillerVisitor implements SelectionNodeVisitor, ExpanderVisitor {
 					
 			
 				if ( lastLevelIncluded )
-					expression.drill(drillRoots.getMdx());
+					drill(drillRoots);
 				else
 					expression.include(Mdx.descendants(drillRoots.getMdx(), l.getDepth() - lastLevelDepth));
 				lastLevelIncluded = true;
@@ -95,7 +99,7 @@ class HierarchyDrillerVisitor implements SelectionNodeVisitor, ExpanderVisitor {
 			int lastLevelDepth = node.getChildrenSign() == Sign.INCLUDE ? node.getMember().getLevel().getDepth()+1 : 0;
 			for(Level l : includedLevels) {
 				if ( l.getDepth() - lastLevelDepth == 1 ) {
-					expression.drill(drillRoots.getMdx());
+					drill(drillRoots);
 				} else {
 					expression.include(Mdx.descendants(drillRoots.getMdx(), includedLevels.get(0)));
 				}
@@ -118,6 +122,18 @@ class HierarchyDrillerVisitor implements SelectionNodeVisitor, ExpanderVisitor {
 		return true;
 	}
 
+	/**
+	 * Helper function adding the children of a set. Only the members of the
+	 * drill list are drilled, other sets are children included through
+	 * selections.
+	 */
+	private void drill(MemberSet roots) {
+		if ( roots instanceof CollectionMemberSet )
+			expression.drill(((CollectionMemberSet) roots).getMembers());
+		else
+			expression.drill(roots.getMdx());
+	}
+
 	private void expandRoot(SelectionNode node) {
 		List<Level> includedLevels = node.getIncludedLevels();
 		if ( includedLevels.size() < 2 )
@@ -140,7 +156,7 @@ class HierarchyDrillerVisitor implements SelectionNodeVisitor, ExpanderVisitor {
 			}
 			int levelDistance = nextLevel.getDepth() - currentLevel.getDepth();
 			if ( levelDistance == 1 )
-				expression.drill(drills.getMdx());
+				expression.drill(drills.getMembers());
 			else
 				expression.include(Mdx.descendants(drills.getMdx(), levelDistance));
 			
@@ -166,9 +182,9 @@ class HierarchyDrillerVisitor implements SelectionNodeVisitor, ExpanderVisitor {
 			Sign childrenAction) {
 		if ( childrenAction == Sign.INCLUDE ) {
 			if ( node.getMemberSign() == Sign.INCLUDE )
-				expression.drill(Mdx.member(node.getMember()));
+				expression.drill(Collections.singleton(node.getMember()));
 			else
-				expression.include(Mdx.children(node.getMember()));
+				expression.includeHierarchized(Mdx.children(node.getMember()));
 			
 		}
 		else {
@@ -179,7 +195,7 @@ class HierarchyDrillerVisitor implements SelectionNodeVisitor, ExpanderVisitor {
 		List<Member> overridedChildren = node.getOverridedMembers();
 		if ( node.getChildrenSign() == Sign.INCLUDE ) {
 			if ( isHierarchyRoot && firstIncludedLevel != null && firstIncludedLevel.getDepth() > node.getChildrenLevel().getDepth() ) {
-				firstLevelExclusions.add(new ChildrenMemberSet(node.getMember(), overridedChildren).getMdx());
+				firstLevelExclusions.add(new ChildrenMemberSet(node.getMember(), overridedChildren, costModel).getMdx());
 				isHierarchyRoot = false;
 			}
 			
@@ -201,7 +217,7 @@ class HierarchyDrillerVisitor implements SelectionNodeVisitor, ExpanderVisitor {
 			if ( overridedChildren.isEmpty() )
 				return new GrandchildrenSet(node.getMember(), overridedChildren);
 			else
-				return new ChildrenMemberSet(node.getMember(), overridedChildren);
+				return new ChildrenMemberSet(node.getMember(), overridedChildren, costModel);
 		}
 		
 			
@@ -230,6 +246,7 @@ class HierarchyDrillerVisitor implements SelectionNodeVisitor, ExpanderVisitor {
 
 	@Override
 	public boolean visitEnter(SelectionNode node) {
+		expression.setSource(node);
 		if ( node.getMember() == null ) {
 			isHierarchyRoot = true;
 			expandRoot(node);
@@ -245,8 +262,10 @@ class HierarchyDrillerVisitor implements SelectionNodeVisitor, ExpanderVisitor {
 	}
 
 	@Override
-	public ParseTreeNode execute(SelectionNode root, List<Level> levels) {
-		expression = new AxisExpression();
+	public ParseTreeNode execute(SelectionNode root, List<Level> levels,
+			ExpressionCostModel costModel, ExpansionTrace trace) {
+		expression = new AxisExpression(childrenLimit, trace);
+		this.costModel = costModel;
 		this.levels = levels;
 		hierarchyRootStack.clear();
 		firstLevelExclusions = new UnionBuilder();
@@ -260,11 +279,24 @@ class HierarchyDrillerVisitor implements SelectionNodeVisitor, ExpanderVisitor {
 		root.accept(this);
 		
 		if ( firstIncludedLevel != null ) {
-			expression.include(Mdx.except(Mdx.allMembers(firstIncludedLevel), Mdx.descendants(firstLevelExclusions.getUnionNode(), firstIncludedLevel)));
+			expression.setSource(firstIncludedLevel);
+			expression.includeHierarchized(Mdx.except(Mdx.allMembers(firstIncludedLevel), Mdx.descendants(firstLevelExclusions.getUnionNode(), firstIncludedLevel)));
 		}
 		return expression.getExpression();
 	}
 
+	@Override
+	public boolean isHierarchized() {
+		return expression != null && expression.isHierarchized();
+	}
+
+	@Override
+	public List<ParseTreeNode> getCalculatedMembers() {
+		if (expression == null)
+			return new ArrayList<ParseTreeNode>();
+		return expression.getCalculatedMembers();
+	}
+
 	@Override
 	public boolean isDrilled(Member member) {
 		if ( drillList == null )
@@ -272,6 +304,11 @@ class HierarchyDrillerVisitor implements SelectionNodeVisitor, ExpanderVisitor {
 		return drillList.contains(member);
 	}
 
+	@Override
+	public void setChildrenLimit(ChildrenLimit limit) {
+		this.childrenLimit = limit;
+	}
+
 	@Override
 	public void setDrills(List<Member> drills) {
 		this.drillList = new HashSet<Member>(drills);
@@ -1,17 +1,25 @@
 package es.cgalesanco.olap4j.query;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.olap4j.mdx.ParseTreeNode;
 import org.olap4j.metadata.Level;
 import org.olap4j.metadata.Member;
 
 import es.cgalesanco.olap4j.query.SelectionTree.SelectionNode;
+import es.cgalesanco.olap4j.query.mdx.Mdx;
+import es.cgalesanco.olap4j.query.mdx.UnionBuilder;
 
 class HierarchyExpander {
 	private boolean isFullyExpanded;
+	private Level expansionLevel;
+	private Set<Member> levelDrills;
 	private ExpanderVisitor expander;
+	private ChildrenLimit childrenLimit;
+	private List<ParseTreeNode> calculatedMembers;
 
 	public HierarchyExpander() {
 		collapseHierarchy();
@@ -19,35 +27,231 @@ class HierarchyExpander {
 
 	public void expandHierarchy() {
 		isFullyExpanded = true; 
+		expansionLevel = null;
+		levelDrills = null;
 		expander = new HierarchyExpanderVisitor();
 		expander.setDrills(new ArrayList<Member>());
+		expander.setChildrenLimit(childrenLimit);
 	}
 
 	public void collapseHierarchy() {
 		isFullyExpanded = false;
+		expansionLevel = null;
+		levelDrills = null;
 		expander = new HierarchyDrillerVisitor();
 		expander.setDrills(new ArrayList<Member>());
+		expander.setChildrenLimit(childrenLimit);
+	}
+
+	/**
+	 * Expands the hierarchy down to a level: members above {@code depth} are
+	 * drilled by default, members at {@code depth} or below are not. Drills
+	 * passed to {@link #setDrills(List)} toggle this default state.
+	 * 
+	 * <p>
+	 * The expression is the fully expanded hierarchy (less the undrilled
+	 * members above {@code depth}) intersected with
+	 * <code>Descendants(roots, depth, SELF_AND_BEFORE)</code> and the
+	 * children of the drilled members at {@code depth} or below, so its size
+	 * doesn't depend on the number of members above {@code depth}.
+	 * </p>
+	 * 
+	 * @param depth
+	 *            the deepest level shown by default.
+	 */
+	public void expandHierarchy(Level depth) {
+		isFullyExpanded = false;
+		expansionLevel = depth;
+		levelDrills = new LinkedHashSet<Member>();
+		expander = new HierarchyExpanderVisitor();
+		expander.setDrills(new ArrayList<Member>());
+		expander.setChildrenLimit(childrenLimit);
 	}
 
 	public boolean isHierarchyExpanded() {
 		return isFullyExpanded;
 	}
 
+	/**
+	 * Returns the level this hierarchy is expanded down to.
+	 * 
+	 * @return {@code null} if the hierarchy is collapsed or fully expanded.
+	 */
+	public Level getExpansionLevel() {
+		return expansionLevel;
+	}
+
+	/**
+	 * Checks whether a member is drilled when no drill toggles it: members of
+	 * fully expanded hierarchies, or above the expansion level.
+	 * 
+	 * @param member
+	 *            the member to check.
+	 * @return {@code true} if drills on {@code member} are recorded as
+	 *         undrills.
+	 */
+	public boolean isDrilledByDefault(Member member) {
+		if (isFullyExpanded)
+			return true;
+		return expansionLevel != null
+				&& member.getDepth() < expansionLevel.getDepth();
+	}
+
+	/**
+	 * Checks whether the expression returned by the last expansion is already
+	 * in hierarchical order, so it needs no <code>Hierarchize</code> call.
+	 * The calculated members added by limiting the drills below the
+	 * expansion level follow the intersected members, so they need it.
+	 * 
+	 * @return {@code false} if this expander expanded no hierarchy yet.
+	 */
+	public boolean isHierarchized() {
+		if (calculatedMembers != null && !calculatedMembers.isEmpty())
+			return false;
+		return expander.isHierarchized();
+	}
+
+	/**
+	 * Returns the definitions of the calculated members referenced by the
+	 * expression returned by the last expansion, like the
+	 * {@link ChildrenLimit#OTHERS_MEMBER} of the drilled members.
+	 * 
+	 * @return an empty list if this expander expanded no hierarchy yet.
+	 */
+	public List<ParseTreeNode> getCalculatedMembers() {
+		if (calculatedMembers == null)
+			return expander.getCalculatedMembers();
+		return calculatedMembers;
+	}
+
 	public boolean isDrilled(Member member) {
 		if (member == null)
 			return true;
+		if (expansionLevel != null && !isDrilledByDefault(member))
+			return levelDrills.contains(member);
 		
 		return expander.isDrilled(member);
 	}
 
-	public ParseTreeNode expand(SelectionNode root, List<Level> levels) {
-		return expander.execute(root, levels);
+	public ChildrenLimit getChildrenLimit() {
+		return childrenLimit;
+	}
+
+	public void setChildrenLimit(ChildrenLimit limit) {
+		childrenLimit = limit;
+		expander.setChildrenLimit(limit);
+	}
+
+	public ParseTreeNode expand(SelectionNode root, List<Level> levels,
+			ExpressionCostModel costModel) {
+		return expand(root, levels, costModel, null);
+	}
+
+	/**
+	 * Expands a selection tree, recording the fragments produced by every
+	 * selection.
+	 * 
+	 * @param root
+	 *            the root of the selection tree.
+	 * @param levels
+	 *            the levels of the hierarchy.
+	 * @param costModel
+	 *            chooses the formulation of the generated sets.
+	 * @param trace
+	 *            the trace recording the fragments.
+	 * @return the hierarchy expression.
+	 */
+	public ParseTreeNode expand(SelectionNode root, List<Level> levels,
+			ExpressionCostModel costModel, ExpansionTrace trace) {
+		calculatedMembers = null;
+		if (expansionLevel == null)
+			return expander.execute(root, levels, costModel, trace);
+
+		// Drills are checked before the expanded visitor consumes its undrills
+		UnionBuilder visible = new UnionBuilder();
+		visible.add(Mdx.descendants(Mdx.allMembers(levels.get(0)),
+				expansionLevel, "SELF_AND_BEFORE"));
+		List<Member> drills = new ArrayList<Member>();
+		for (Member m : levelDrills) {
+			if (isVisibleDrill(m)) {
+				visible.add(Mdx.children(m));
+				drills.add(m);
+			}
+		}
+		// Members shown by the expansion are not drilled, so the expanded
+		// visitor adds no calculated members
+		ParseTreeNode expanded = expander.execute(root, levels, costModel,
+				trace);
+		calculatedMembers = new ArrayList<ParseTreeNode>();
+		if (trace != null) {
+			trace.setSource(expansionLevel);
+			trace.record("intersect", visible.getUnionNode());
+		}
+		ParseTreeNode result = Mdx.intersect(expanded, visible.getUnionNode());
+		if (childrenLimit != null)
+			result = childrenLimit.apply(result, drills, calculatedMembers);
+		return result;
+	}
+
+	/**
+	 * Helper function checking whether a drill at the expansion level or
+	 * below shows its children: every ancestor must be drilled too.
+	 */
+	private boolean isVisibleDrill(Member drill) {
+		for (Member p = drill.getParentMember(); p != null; p = p
+				.getParentMember()) {
+			if (!isDrilled(p))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Creates a new expander with the same state as this one but a different
+	 * list of drills.
+	 * 
+	 * @param drills
+	 *            the drills of the new expander.
+	 * @return the new expander.
+	 */
+	public HierarchyExpander copy(List<Member> drills) {
+		HierarchyExpander result = new HierarchyExpander();
+		if (isFullyExpanded)
+			result.expandHierarchy();
+		else if (expansionLevel != null)
+			result.expandHierarchy(expansionLevel);
+		result.setChildrenLimit(childrenLimit);
+		result.setDrills(drills);
+		return result;
 	}
 
 	public void setDrills(List<Member> drills) {
+		if (expansionLevel != null) {
+			setToggles(drills);
+			return;
+		}
 		if ( drills == null )
 			expander.setDrills(new ArrayList<Member>());
 		else
 			expander.setDrills(new ArrayList<Member>(drills));
 	}
+
+	/**
+	 * Helper function splitting the toggles of a level expansion: members
+	 * above the expansion level are undrilled by the expanded visitor,
+	 * members at the expansion level or below are drilled.
+	 */
+	private void setToggles(List<Member> toggles) {
+		List<Member> undrills = new ArrayList<Member>();
+		levelDrills = new LinkedHashSet<Member>();
+		if (toggles != null) {
+			for (Member m : toggles) {
+				if (isDrilledByDefault(m))
+					undrills.add(m);
+				else
+					levelDrills.add(m);
+			}
+		}
+		expander.setDrills(undrills);
+	}
 }
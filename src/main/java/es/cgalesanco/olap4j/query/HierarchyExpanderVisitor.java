@@ -1,5 +1,6 @@
 package es.cgalesanco.olap4j.query;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -17,6 +18,8 @@ class HierarchyExpanderVisitor implements SelectionNodeVisitor, ExpanderVisitor
 	
 	private Set<Member> undrillList;
 	private AxisExpression expression;
+	private ChildrenLimit childrenLimit;
+	private ExpressionCostModel costModel;
 	private List<Level> levels;
 	
 	public boolean expand(SelectionNode node) {
@@ -47,7 +50,7 @@ class HierarchyExpanderVisitor implements SelectionNodeVisitor, ExpanderVisitor
 		if ( descendantsSelection.getSign() == Sign.INCLUDE ) {
 			undrilledChildren.addAll(node.getOverridedMembers()); 
 			GrandchildrenSet nonOverridedDescendants = new GrandchildrenSet(node.getMember(), undrilledChildren);
-			expression.include(nonOverridedDescendants.getMdxDescendants());
+			expression.includeHierarchized(nonOverridedDescendants.getMdxDescendants());
 			removeUndrills(node, descendantsSelection,
 					nonOverridedDescendants);
 		} else {
@@ -139,7 +142,7 @@ class HierarchyExpanderVisitor implements SelectionNodeVisitor, ExpanderVisitor
 			if ( node.getMemberSign() == Sign.INCLUDE )
 				expression.drill(Mdx.member(node.getMember()));
 			else
-				expression.include(Mdx.children(node.getMember()));
+				expression.includeHierarchized(Mdx.children(node.getMember()));
 			
 		}
 		else {
@@ -180,7 +183,7 @@ class HierarchyExpanderVisitor implements SelectionNodeVisitor, ExpanderVisitor
 		}
 		
 		if ( childrenAction == null && descendantsSelection.getSign() == Sign.INCLUDE ) {
-			expression.include(Mdx.descendants(Mdx.member(node.getMember()), 2, "SELF_AND_AFTER"));
+			expression.includeHierarchized(costModel.descendants(node.getMember(), 2));
 			
 			if ( memberAction == Sign.INCLUDE )
 				expression.include(node.getMember());
@@ -194,9 +197,9 @@ class HierarchyExpanderVisitor implements SelectionNodeVisitor, ExpanderVisitor
 		
 		if ( childrenAction == Sign.INCLUDE && descendantsSelection.getSign() == Sign.INCLUDE ) {
 			if ( memberAction == Sign.INCLUDE ) {
-				expression.include(Mdx.descendants(Mdx.member(node.getMember()), 0, "SELF_AND_AFTER"));
+				expression.includeHierarchized(costModel.descendants(node.getMember(), 0));
 			} else {
-				expression.include(Mdx.descendants(Mdx.member(node.getMember()), 1, "SELF_AND_AFTER"));
+				expression.includeHierarchized(costModel.descendants(node.getMember(), 1));
 			}
 			
 			if ( memberAction == Sign.EXCLUDE )
@@ -223,6 +226,7 @@ class HierarchyExpanderVisitor implements SelectionNodeVisitor, ExpanderVisitor
 
 	@Override
 	public boolean visitEnter(SelectionNode node) {
+		expression.setSource(node);
 		if ( node.getMember() == null ) {
 			expandRoot(node);
 			return true;
@@ -269,18 +273,33 @@ class HierarchyExpanderVisitor implements SelectionNodeVisitor, ExpanderVisitor
 	}
 
 	@Override
-	public ParseTreeNode execute(SelectionNode root, List<Level> levels) {
-		expression = new AxisExpression();
+	public ParseTreeNode execute(SelectionNode root, List<Level> levels,
+			ExpressionCostModel costModel, ExpansionTrace trace) {
+		expression = new AxisExpression(childrenLimit, trace);
+		this.costModel = costModel;
 		this.levels = levels;
 
 		for(Level l : root.getIncludedLevels()) {
-			expression.include(Mdx.allMembers(l));
+			expression.setSource(l);
+			expression.includeHierarchized(Mdx.allMembers(l));
 		}
 		
 		root.accept(this);
 		return expression.getExpression();
 	}
 
+	@Override
+	public boolean isHierarchized() {
+		return expression != null && expression.isHierarchized();
+	}
+
+	@Override
+	public List<ParseTreeNode> getCalculatedMembers() {
+		if (expression == null)
+			return new ArrayList<ParseTreeNode>();
+		return expression.getCalculatedMembers();
+	}
+
 	@Override
 	public boolean isDrilled(Member member) {
 		if (undrillList == null)
@@ -288,6 +307,11 @@ class HierarchyExpanderVisitor implements SelectionNodeVisitor, ExpanderVisitor
 		return !undrillList.contains(member);
 	}
 
+	@Override
+	public void setChildrenLimit(ChildrenLimit limit) {
+		this.childrenLimit = limit;
+	}
+
 	@Override
 	public void setDrills(List<Member> drills) {
 		this.undrillList = new HashSet<Member>(drills);
@@ -0,0 +1,120 @@
+package es.cgalesanco.olap4j.query;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Stack;
+
+import org.olap4j.OlapException;
+import org.olap4j.metadata.Member;
+
+/**
+ * <p>
+ * Iterates over the members of a {@link QueryHierarchy} shown under a given
+ * {@link HierarchyExpander} state, without querying the server.
+ * </p>
+ *
+ * <p>
+ * Members are returned in hierarchical order (parents before children,
+ * siblings in metadata order), as {@code Hierarchize} would return them. A
+ * member is returned if it is included in the hierarchy and every included
+ * ancestor is drilled. The iteration is lazy: child members are retrieved from
+ * metadata only when the iteration reaches them, and no descendant of a
+ * non-drilled included member or of a leaf member is ever retrieved.
+ * </p>
+ *
+ * <p>
+ * Children limits (TopCount and friends) depend on cell values and are not
+ * applied.
+ * </p>
+ *
+ * @author César García
+ *
+ */
+class HierarchyMemberIterator implements Iterator<Member> {
+	private final QueryHierarchy hierarchy;
+	private final HierarchyExpander expander;
+
+	// Stack of pending sibling lists, the deepest one on top.
+	private final Stack<Iterator<? extends Member>> pending;
+
+	// Member whose children must be pushed before advancing.
+	private Member expandNext;
+	private Member next;
+
+	/**
+	 * Creates an iterator over the visible members of a hierarchy.
+	 *
+	 * @param hierarchy
+	 *            the query hierarchy.
+	 * @param expander
+	 *            the expander defining the drill state of the hierarchy.
+	 * @throws OlapException
+	 *             if the root members of the hierarchy can't be retrieved.
+	 */
+	public HierarchyMemberIterator(QueryHierarchy hierarchy,
+			HierarchyExpander expander) throws OlapException {
+		this.hierarchy = hierarchy;
+		this.expander = expander;
+		pending = new Stack<Iterator<? extends Member>>();
+		pending.push(hierarchy.getHierarchy().getRootMembers().iterator());
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next == null) {
+			try {
+				next = advance();
+			} catch (OlapException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return next != null;
+	}
+
+	@Override
+	public Member next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		Member result = next;
+		next = null;
+		return result;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	private Member advance() throws OlapException {
+		if (expandNext != null) {
+			pending.push(expandNext.getChildMembers().iterator());
+			expandNext = null;
+		}
+
+		while (!pending.isEmpty()) {
+			Iterator<? extends Member> siblings = pending.peek();
+			if (!siblings.hasNext()) {
+				pending.pop();
+				continue;
+			}
+
+			Member m = siblings.next();
+			boolean included = hierarchy.isIncluded(m);
+
+			// Descendants of an included member are hidden unless it's
+			// drilled; members with no included descendants have nothing to
+			// show.
+			boolean descend = (!included || expander.isDrilled(m))
+					&& !hierarchy.isLeaf(m);
+
+			if (included) {
+				if (descend)
+					expandNext = m;
+				return m;
+			}
+			if (descend)
+				pending.push(m.getChildMembers().iterator());
+		}
+		return null;
+	}
+}
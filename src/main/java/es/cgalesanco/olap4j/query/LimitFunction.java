@@ -0,0 +1,53 @@
+package es.cgalesanco.olap4j.query;
+
+/**
+ * Defines how to limit the positions of an axis (or the children of a drilled
+ * member) by the value of a numeric expression.
+ *
+ * @author César García
+ *
+ */
+public enum LimitFunction {
+	/**
+	 * Keeps the given number of positions with the highest values.
+	 */
+	TOPCOUNT("TopCount"),
+	/**
+	 * Keeps the given number of positions with the lowest values.
+	 */
+	BOTTOMCOUNT("BottomCount"),
+	/**
+	 * Keeps the positions with the highest values whose cumulative total is at
+	 * least the given percentage of the total.
+	 */
+	TOPPERCENT("TopPercent"),
+	/**
+	 * Keeps the positions with the lowest values whose cumulative total is at
+	 * least the given percentage of the total.
+	 */
+	BOTTOMPERCENT("BottomPercent");
+
+	private final String mdxFunction;
+
+	private LimitFunction(String mdxFunction) {
+		this.mdxFunction = mdxFunction;
+	}
+
+	/**
+	 * Returns the name of the MDX function implementing this limit.
+	 *
+	 * @return the name of the MDX function implementing this limit.
+	 */
+	public String getMdxFunction() {
+		return mdxFunction;
+	}
+
+	/**
+	 * Tests if this limit function keeps a fixed number of positions.
+	 *
+	 * @return {@code true} for {@link #TOPCOUNT} and {@link #BOTTOMCOUNT}.
+	 */
+	public boolean isCount() {
+		return this == TOPCOUNT || this == BOTTOMCOUNT;
+	}
+}
@@ -0,0 +1,140 @@
+package es.cgalesanco.olap4j.query;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.olap4j.OlapException;
+import org.olap4j.metadata.Member;
+
+/**
+ * <p>
+ * A compact reference to a member: its interned unique name, plus its depth
+ * and ordinal, which are available without resolving the member.
+ * </p>
+ *
+ * <p>
+ * Handles are used to store member positions (drills, sort and limit
+ * coordinates) without holding live {@link Member} objects, which may pin
+ * large amounts of metadata. Handles are resolved to members on demand
+ * through a {@link MemberResolver}, whose bounded cache keeps the most
+ * recently used members alive.
+ * </p>
+ *
+ * <p>
+ * Handles are interned by their {@link MemberResolver}: there is a single
+ * live handle per unique name and resolver, so handles of the same cube can
+ * be compared by identity. Unused handles are garbage collected.
+ * </p>
+ *
+ * @author César García
+ *
+ */
+final class MemberHandle {
+	private final int id;
+	private final String uniqueName;
+	private final int depth;
+	private final int ordinal;
+
+	MemberHandle(int id, String uniqueName, int depth, int ordinal) {
+		this.id = id;
+		this.uniqueName = uniqueName;
+		this.depth = depth;
+		this.ordinal = ordinal;
+	}
+
+	/**
+	 * Returns the handle of a member, registering the member in a resolver
+	 * so resolving the handle won't need a lookup while the member is cached.
+	 *
+	 * @param m
+	 *            the member.
+	 * @param resolver
+	 *            the resolver to register the member into.
+	 * @return the handle of {@code m}, interned by {@code resolver}.
+	 */
+	public static MemberHandle of(Member m, MemberResolver resolver) {
+		return resolver.handle(m);
+	}
+
+	/**
+	 * Returns the handles of a list of members.
+	 *
+	 * @see #of(Member, MemberResolver)
+	 */
+	public static List<MemberHandle> of(Member[] members,
+			MemberResolver resolver) {
+		List<MemberHandle> result = new ArrayList<MemberHandle>(members.length);
+		for (Member m : members)
+			result.add(of(m, resolver));
+		return result;
+	}
+
+	/**
+	 * Resolves a list of handles.
+	 *
+	 * @param handles
+	 *            the handles to resolve.
+	 * @param resolver
+	 *            the resolver used to resolve them.
+	 * @return the resolved members, in {@code handles} order.
+	 * @throws OlapException
+	 *             if a member is no longer found, or an error occurs while
+	 *             looking it up.
+	 */
+	public static List<Member> resolveAll(List<MemberHandle> handles,
+			MemberResolver resolver) throws OlapException {
+		List<Member> result = new ArrayList<Member>(handles.size());
+		for (MemberHandle h : handles)
+			result.add(h.resolve(resolver));
+		return result;
+	}
+
+	/**
+	 * Resolves this handle.
+	 *
+	 * @param resolver
+	 *            the resolver used to resolve the handle.
+	 * @return the member referenced by this handle.
+	 * @throws OlapException
+	 *             if the member is no longer found, or an error occurs while
+	 *             looking it up.
+	 */
+	public Member resolve(MemberResolver resolver) throws OlapException {
+		Member m = resolver.lookupMember(uniqueName);
+		if (m == null)
+			throw new OlapException("Member not found: " + uniqueName);
+		return m;
+	}
+
+	/**
+	 * Tests if this handle references a member.
+	 *
+	 * @param m
+	 *            the member to test.
+	 * @return {@code true} if {@code m} has the unique name of this handle.
+	 */
+	public boolean references(Member m) {
+		return uniqueName.equals(m.getUniqueName());
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getUniqueName() {
+		return uniqueName;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getOrdinal() {
+		return ordinal;
+	}
+
+	@Override
+	public String toString() {
+		return uniqueName;
+	}
+}
@@ -0,0 +1,499 @@
+package es.cgalesanco.olap4j.query;
+
+import java.lang.ref.WeakReference;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.olap4j.Axis;
+import org.olap4j.CellSet;
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapException;
+import org.olap4j.OlapStatement;
+import org.olap4j.Position;
+import org.olap4j.mdx.AxisNode;
+import org.olap4j.mdx.CallNode;
+import org.olap4j.mdx.CubeNode;
+import org.olap4j.mdx.IdentifierNode;
+import org.olap4j.mdx.IdentifierSegment;
+import org.olap4j.mdx.ParseTreeNode;
+import org.olap4j.mdx.SelectNode;
+import org.olap4j.mdx.Syntax;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Hierarchy;
+import org.olap4j.metadata.Member;
+import org.olap4j.metadata.Schema;
+
+/**
+ * <p>
+ * Resolves members of a cube by unique name, in batches, caching the
+ * resolved members.
+ * </p>
+ *
+ * <p>
+ * Uncached names are grouped by hierarchy (the cube hierarchy whose unique
+ * name is the longest prefix of the member name) and every group is resolved
+ * with a single MDX query listing its members on rows, with no columns so no
+ * cell is evaluated, saving a server round trip per member. Names not
+ * resolved that way (e.g. when the cube has no connection available, the
+ * name matches no hierarchy, or the group query fails) are resolved one by
+ * one with {@link Cube#lookupMember(List)}. Failed group queries are logged.
+ * </p>
+ *
+ * <p>
+ * Resolved members are kept in a least recently used cache. Queries over the
+ * same cube share their resolver (see {@link #forCube(Cube)}), so restoring
+ * several reports resolves each member once. The resolver also interns the
+ * {@link MemberHandle}s of its cube members. Resolvers are thread safe.
+ * </p>
+ *
+ * @author César García
+ *
+ */
+public class MemberResolver {
+	/**
+	 * Default maximum number of cached members.
+	 */
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	private static final Logger LOGGER = Logger.getLogger(MemberResolver.class
+			.getName());
+
+	private static final Map<Cube, WeakReference<MemberResolver>> resolvers = new WeakHashMap<Cube, WeakReference<MemberResolver>>();
+
+	private final Cube cube;
+	private final LinkedHashMap<String, Member> cache;
+	private final Map<String, WeakReference<MemberHandle>> handles = new WeakHashMap<String, WeakReference<MemberHandle>>();
+	private int nextHandleId;
+	private int capacity;
+
+	/**
+	 * Creates a resolver for a cube, not shared with other queries.
+	 *
+	 * @param cube
+	 *            the cube whose members to resolve.
+	 * @param capacity
+	 *            maximum number of cached members.
+	 */
+	public MemberResolver(Cube cube, int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Negative capacity");
+		this.cube = cube;
+		this.capacity = capacity;
+		cache = new LinkedHashMap<String, Member>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Entry<String, Member> eldest) {
+				return size() > MemberResolver.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns the resolver shared by the queries of a cube, creating it if
+	 * needed. The resolver is discarded once no query references it.
+	 *
+	 * @param cube
+	 *            the cube.
+	 * @return the shared resolver of {@code cube}, with the
+	 *         {@link #DEFAULT_CAPACITY default capacity}.
+	 */
+	public static MemberResolver forCube(Cube cube) {
+		synchronized (resolvers) {
+			WeakReference<MemberResolver> ref = resolvers.get(cube);
+			MemberResolver result = ref == null ? null : ref.get();
+			if (result == null) {
+				result = new MemberResolver(cube, DEFAULT_CAPACITY);
+				resolvers.put(cube, new WeakReference<MemberResolver>(result));
+			}
+			return result;
+		}
+	}
+
+	public Cube getCube() {
+		return cube;
+	}
+
+	public synchronized int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Sets the maximum number of cached members, evicting the least recently
+	 * used ones if needed.
+	 *
+	 * @param capacity
+	 *            the new capacity.
+	 */
+	public synchronized void setCapacity(int capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Negative capacity");
+		this.capacity = capacity;
+		while (cache.size() > capacity)
+			cache.remove(cache.keySet().iterator().next());
+	}
+
+	/**
+	 * Returns the number of cached members.
+	 *
+	 * @return the number of cached members.
+	 */
+	public synchronized int size() {
+		return cache.size();
+	}
+
+	/**
+	 * Discards every cached member, e.g. after the cube metadata changes.
+	 */
+	public synchronized void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Resolves a member.
+	 *
+	 * @param nameParts
+	 *            the name segments of the member.
+	 * @return the member, {@code null} if not found.
+	 * @throws OlapException
+	 *             if an error occurs while looking up the member.
+	 */
+	public Member lookupMember(List<IdentifierSegment> nameParts)
+			throws OlapException {
+		String uniqueName = new IdentifierNode(nameParts).toString();
+		Member m = getCached(uniqueName);
+		if (m == null) {
+			m = cube.lookupMember(nameParts);
+			if (m != null)
+				putCached(uniqueName, m);
+		}
+		return m;
+	}
+
+	/**
+	 * Resolves a member.
+	 *
+	 * @param uniqueName
+	 *            the unique name of the member.
+	 * @return the member, {@code null} if not found.
+	 * @throws OlapException
+	 *             if an error occurs while looking up the member.
+	 */
+	public Member lookupMember(String uniqueName) throws OlapException {
+		Member m = getCached(uniqueName);
+		if (m == null) {
+			m = cube.lookupMember(IdentifierNode.parseIdentifier(uniqueName)
+					.getSegmentList());
+			if (m != null)
+				putCached(uniqueName, m);
+		}
+		return m;
+	}
+
+	/**
+	 * Resolves a batch of members, querying the connection of the cube
+	 * metadata.
+	 *
+	 * @param uniqueNames
+	 *            the unique names of the members.
+	 * @return a map from unique name to member, in {@code uniqueNames} order.
+	 *         Names not found are missing.
+	 * @throws OlapException
+	 *             if an error occurs while looking up the members.
+	 */
+	public Map<String, Member> lookupMembers(Collection<String> uniqueNames)
+			throws OlapException {
+		return lookupMembers(uniqueNames, null);
+	}
+
+	/**
+	 * Resolves a batch of members, executing the group queries as a query
+	 * would: through its {@link ConnectionProvider} and
+	 * {@link AdmissionController}.
+	 *
+	 * @param uniqueNames
+	 *            the unique names of the members.
+	 * @param query
+	 *            the query whose connections execute the group queries;
+	 *            {@code null} to use the connection of the cube metadata.
+	 * @return a map from unique name to member, in {@code uniqueNames} order.
+	 *         Names not found are missing.
+	 * @throws OlapException
+	 *             if an error occurs while looking up the members.
+	 */
+	public Map<String, Member> lookupMembers(Collection<String> uniqueNames,
+			Query query) throws OlapException {
+		Map<String, Member> result = new LinkedHashMap<String, Member>();
+		Map<Hierarchy, List<String>> uncached = new LinkedHashMap<Hierarchy, List<String>>();
+		List<String> ungrouped = new ArrayList<String>();
+		synchronized (this) {
+			for (String name : uniqueNames) {
+				Member m = cache.get(name);
+				if (m != null) {
+					result.put(name, m);
+					continue;
+				}
+
+				Hierarchy group = findHierarchy(name);
+				List<String> names = group == null ? ungrouped : uncached
+						.get(group);
+				if (names == null) {
+					names = new ArrayList<String>();
+					uncached.put(group, names);
+				}
+				if (!names.contains(name))
+					names.add(name);
+			}
+		}
+
+		Map<String, Member> resolved = new LinkedHashMap<String, Member>();
+		for (List<String> group : uncached.values())
+			resolveGroup(query, group, resolved);
+		resolveEach(ungrouped, resolved);
+		synchronized (this) {
+			for (Entry<String, Member> e : resolved.entrySet())
+				cache.put(e.getKey(), e.getValue());
+		}
+
+		Map<String, Member> ordered = new LinkedHashMap<String, Member>();
+		for (String name : uniqueNames) {
+			Member m = result.get(name);
+			if (m == null)
+				m = resolved.get(name);
+			if (m != null)
+				ordered.put(name, m);
+		}
+		return ordered;
+	}
+
+	/**
+	 * Caches an already resolved member, e.g. when a live member is stored
+	 * as a {@link MemberHandle}.
+	 *
+	 * @param m
+	 *            the member to cache.
+	 */
+	synchronized void remember(Member m) {
+		cache.put(m.getUniqueName(), m);
+	}
+
+	/**
+	 * Returns the interned handle of a member, caching the member. Handles
+	 * are interned per resolver, so their depth and ordinal are those of a
+	 * member of this resolver cube.
+	 *
+	 * @param m
+	 *            the member.
+	 * @return the handle of {@code m}.
+	 */
+	MemberHandle handle(Member m) {
+		remember(m);
+		String name = m.getUniqueName();
+		synchronized (handles) {
+			WeakReference<MemberHandle> ref = handles.get(name);
+			MemberHandle result = ref == null ? null : ref.get();
+			if (result == null) {
+				// The handle holds the map key, keeping its entry alive
+				result = new MemberHandle(nextHandleId++, name, m.getDepth(),
+						m.getOrdinal());
+				handles.put(name, new WeakReference<MemberHandle>(result));
+			}
+			return result;
+		}
+	}
+
+	private synchronized Member getCached(String uniqueName) {
+		return cache.get(uniqueName);
+	}
+
+	private synchronized void putCached(String uniqueName, Member m) {
+		cache.put(uniqueName, m);
+	}
+
+	/**
+	 * Finds the hierarchy of a member by unique name, without looking the
+	 * member up.
+	 *
+	 * @param uniqueName
+	 *            the unique name of the member.
+	 * @return the hierarchy whose unique name is the longest prefix of
+	 *         {@code uniqueName}; {@code null} if there is none.
+	 */
+	Hierarchy findHierarchy(String uniqueName) {
+		Hierarchy result = null;
+		for (Hierarchy h : cube.getHierarchies()) {
+			String prefix = h.getUniqueName();
+			if (uniqueName.length() > prefix.length()
+					&& uniqueName.startsWith(prefix)
+					&& uniqueName.charAt(prefix.length()) == '.'
+					&& (result == null || prefix.length() > result
+							.getUniqueName().length()))
+				result = h;
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function resolving a group of members of the same hierarchy.
+	 * Tries a single MDX query, then looks up the members not found.
+	 */
+	private void resolveGroup(Query query, List<String> names,
+			Map<String, Member> resolved) throws OlapException {
+		if (names.size() > 1 && canQuery(query)) {
+			if (!queryMembers(query, names, resolved))
+				bisect(query, names, resolved);
+		}
+		resolveEach(names, resolved);
+	}
+
+	/**
+	 * Helper function checking if group queries can be sent: the default
+	 * provider needs the connection of the cube metadata.
+	 */
+	private boolean canQuery(Query query) {
+		if (query != null
+				&& !(query.getConnectionProvider() instanceof CubeConnectionProvider))
+			return true;
+		return getConnection() != null;
+	}
+
+	/**
+	 * Helper function retrying a failed group query with each half of the
+	 * group, so a stale name doesn't prevent resolving the rest of the group
+	 * in a few queries. Gives up when both halves fail, as the failure is
+	 * then likely not caused by a name (e.g. the server is unavailable).
+	 */
+	private void bisect(Query query, List<String> names,
+			Map<String, Member> resolved) {
+		if (names.size() < 2)
+			return;
+		List<String> first = names.subList(0, names.size() / 2);
+		List<String> second = names.subList(names.size() / 2, names.size());
+		boolean firstResolved = queryMembers(query, first, resolved);
+		boolean secondResolved = queryMembers(query, second, resolved);
+		if (!firstResolved && !secondResolved) {
+			LOGGER.log(Level.WARNING, "Cannot resolve " + names.size()
+					+ " members of " + cube.getUniqueName()
+					+ " in a single query, looking them up one by one");
+			return;
+		}
+		if (!firstResolved)
+			bisect(query, first, resolved);
+		if (!secondResolved)
+			bisect(query, second, resolved);
+	}
+
+	/**
+	 * Helper function looking up, one by one, the members not resolved yet.
+	 */
+	private void resolveEach(List<String> names, Map<String, Member> resolved)
+			throws OlapException {
+		for (String name : names) {
+			if (resolved.containsKey(name))
+				continue;
+			Member m = cube.lookupMember(IdentifierNode.parseIdentifier(name)
+					.getSegmentList());
+			if (m != null)
+				resolved.put(name, m);
+		}
+	}
+
+	/**
+	 * Helper function resolving a group of members with a single MDX query
+	 * listing them on rows. The columns axis is empty, so the query returns
+	 * no cells. The statement is built from parsed identifiers, so names
+	 * can't inject MDX; names that can't be parsed are left unresolved.
+	 * Members are matched by unique name.
+	 *
+	 * @return {@code false} if the query fails, e.g. because a name is not
+	 *         found.
+	 */
+	private boolean queryMembers(Query query, List<String> names,
+			Map<String, Member> resolved) {
+		List<ParseTreeNode> members = new ArrayList<ParseTreeNode>();
+		for (String name : names) {
+			try {
+				members.add(IdentifierNode.parseIdentifier(name));
+			} catch (RuntimeException e) {
+				// Not an identifier, looked up (and rejected) one by one
+			}
+		}
+		if (members.isEmpty())
+			return true;
+
+		List<AxisNode> axes = new ArrayList<AxisNode>();
+		axes.add(new AxisNode(null, false, Axis.COLUMNS, null, new CallNode(
+				null, "{}", Syntax.Braces)));
+		axes.add(new AxisNode(null, false, Axis.ROWS, null, new CallNode(
+				null, "{}", Syntax.Braces, members)));
+		SelectNode select = new SelectNode(null,
+				new ArrayList<ParseTreeNode>(), axes, new CubeNode(null, cube),
+				null, new ArrayList<IdentifierNode>());
+
+		Set<String> wanted = new HashSet<String>(names);
+		try {
+			CellSet cs = query == null ? execute(select) : query
+					.executeSelect(select);
+			try {
+				for (Position p : cs.getAxes().get(1).getPositions()) {
+					Member m = p.getMembers().get(0);
+					if (wanted.contains(m.getUniqueName()))
+						resolved.put(m.getUniqueName(), m);
+				}
+			} finally {
+				cs.close();
+			}
+			return true;
+		} catch (SQLException e) {
+			LOGGER.log(Level.FINE, "Cannot resolve " + names.size()
+					+ " members of " + cube.getUniqueName() + ": "
+					+ e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Helper function executing a statement over the connection of the cube
+	 * metadata.
+	 */
+	private CellSet execute(SelectNode select) throws OlapException {
+		ConnectionProvider provider = CubeConnectionProvider.INSTANCE;
+		OlapConnection cn = provider.getConnection(cube);
+		OlapStatement stmt = null;
+		CellSet result = null;
+		try {
+			stmt = cn.createStatement();
+			result = stmt.executeOlapQuery(select);
+		} finally {
+			if (result == null)
+				CellSetLease.releaseQuietly(stmt, provider, cn);
+		}
+		return CellSetLease.lease(result, stmt, provider, cn);
+	}
+
+	/**
+	 * Helper function retrieving the connection of the cube.
+	 *
+	 * @return the connection, {@code null} if not available.
+	 */
+	private OlapConnection getConnection() {
+		Schema schema = cube.getSchema();
+		if (schema == null || schema.getCatalog() == null)
+			return null;
+		try {
+			return schema.getCatalog().getMetaData().getConnection();
+		} catch (SQLException e) {
+			return null;
+		}
+	}
+}
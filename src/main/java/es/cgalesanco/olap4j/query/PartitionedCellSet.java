@@ -0,0 +1,214 @@
+package es.cgalesanco.olap4j.query;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.olap4j.Cell;
+import org.olap4j.CellSet;
+import org.olap4j.CellSetAxis;
+import org.olap4j.OlapException;
+import org.olap4j.Position;
+
+/**
+ * <p>
+ * The result of
+ * {@link Query#executePartitioned(QueryHierarchy, int, java.util.concurrent.ExecutorService)}
+ * : the cell values of several queries, each slicing a partition of a filter
+ * hierarchy, summed cell by cell.
+ * </p>
+ *
+ * <p>
+ * Every partition returns the same positions. When the original query removes
+ * empty positions, partitions return every position and the positions empty
+ * in every partition are removed here. A cell is empty if it's empty in every
+ * partition.
+ * </p>
+ *
+ * @author César García
+ *
+ */
+public class PartitionedCellSet {
+	private final List<CellSet> partitions;
+	private final List<Integer> columns;
+	private final List<Integer> rows;
+	private final boolean hasRows;
+
+	/**
+	 * Creates the summed result.
+	 *
+	 * @param partitions
+	 *            the result of every partition.
+	 * @param nonEmptyColumns
+	 *            {@code true} to remove the columns empty in every partition.
+	 * @param nonEmptyRows
+	 *            {@code true} to remove the rows empty in every partition.
+	 */
+	PartitionedCellSet(List<CellSet> partitions, boolean nonEmptyColumns,
+			boolean nonEmptyRows) {
+		this.partitions = Collections.unmodifiableList(new ArrayList<CellSet>(
+				partitions));
+		List<CellSetAxis> axes = partitions.get(0).getAxes();
+		hasRows = axes.size() > 1;
+		int columnCount = axes.get(0).getPositionCount();
+		int rowCount = hasRows ? axes.get(1).getPositionCount() : 1;
+
+		boolean[][] empty = new boolean[columnCount][rowCount];
+		for (int c = 0; c < columnCount; ++c) {
+			for (int r = 0; r < rowCount; ++r)
+				empty[c][r] = isEmptyCell(c, r);
+		}
+
+		columns = new ArrayList<Integer>();
+		for (int c = 0; c < columnCount; ++c) {
+			if (!nonEmptyColumns || !allEmpty(empty, c, -1, rowCount))
+				columns.add(c);
+		}
+		rows = new ArrayList<Integer>();
+		for (int r = 0; r < rowCount; ++r) {
+			if (!nonEmptyRows || !allEmpty(empty, -1, r, columnCount))
+				rows.add(r);
+		}
+	}
+
+	/**
+	 * Returns the results of the partition queries.
+	 *
+	 * @return an unmodifiable list of results.
+	 */
+	public List<CellSet> getPartitions() {
+		return partitions;
+	}
+
+	/**
+	 * Closes the result of every partition query, releasing their statements and
+	 * connections.
+	 *
+	 * @throws OlapException
+	 *             if a result cannot be closed. Every result is closed anyway.
+	 */
+	public void close() throws OlapException {
+		SQLException error = null;
+		for (CellSet cs : partitions) {
+			try {
+				cs.close();
+			} catch (SQLException e) {
+				if (error == null)
+					error = e;
+			}
+		}
+		if (error != null)
+			throw new OlapException("Cannot close results", error);
+	}
+
+	public int getColumnCount() {
+		return columns.size();
+	}
+
+	public int getRowCount() {
+		return rows.size();
+	}
+
+	/**
+	 * Returns the column positions of the result.
+	 *
+	 * @return the positions of the columns axis.
+	 */
+	public List<Position> getColumnPositions() {
+		return listPositions(0, columns);
+	}
+
+	/**
+	 * Returns the row positions of the result.
+	 *
+	 * @return the positions of the rows axis; empty for results with just one
+	 *         axis.
+	 */
+	public List<Position> getRowPositions() {
+		if (!hasRows)
+			return new ArrayList<Position>();
+		return listPositions(1, rows);
+	}
+
+	/**
+	 * Tests if a cell is empty in every partition.
+	 *
+	 * @param column
+	 *            the column, from 0.
+	 * @param row
+	 *            the row, from 0.
+	 * @return {@code true} if the cell is empty.
+	 */
+	public boolean isEmpty(int column, int row) {
+		return isEmptyCell(columns.get(column), rows.get(row));
+	}
+
+	/**
+	 * Returns the value of a cell: the sum of its values in every partition.
+	 *
+	 * @param column
+	 *            the column, from 0.
+	 * @param row
+	 *            the row, from 0.
+	 * @return the summed value; {@code null} if the cell is empty.
+	 * @throws IllegalStateException
+	 *             if a partition value is not numeric.
+	 */
+	public Double getValue(int column, int row) {
+		int c = columns.get(column);
+		int r = rows.get(row);
+		double sum = 0;
+		boolean empty = true;
+		for (CellSet cs : partitions) {
+			Cell cell = getCell(cs, c, r);
+			if (cell.isEmpty() || cell.getValue() == null)
+				continue;
+			Object value = cell.getValue();
+			if (!(value instanceof Number))
+				throw new IllegalStateException("Non numeric cell value: "
+						+ value);
+			sum += ((Number) value).doubleValue();
+			empty = false;
+		}
+		return empty ? null : sum;
+	}
+
+	private boolean isEmptyCell(int c, int r) {
+		for (CellSet cs : partitions) {
+			Cell cell = getCell(cs, c, r);
+			if (!cell.isEmpty())
+				return false;
+		}
+		return true;
+	}
+
+	private Cell getCell(CellSet cs, int c, int r) {
+		if (!hasRows)
+			return cs.getCell(c);
+		return cs.getCell(Arrays.asList(c, r));
+	}
+
+	private List<Position> listPositions(int axis, List<Integer> indexes) {
+		List<Position> all = partitions.get(0).getAxes().get(axis)
+				.getPositions();
+		List<Position> result = new ArrayList<Position>(indexes.size());
+		for (int i : indexes)
+			result.add(all.get(i));
+		return result;
+	}
+
+	/**
+	 * Helper function testing if a column (when {@code column >= 0}) or a row
+	 * of empty flags is empty.
+	 */
+	private static boolean allEmpty(boolean[][] empty, int column, int row,
+			int length) {
+		for (int i = 0; i < length; ++i) {
+			if (!(column >= 0 ? empty[column][i] : empty[i][row]))
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,234 @@
+package es.cgalesanco.olap4j.query;
+
+import java.io.StringWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.olap4j.CellSet;
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapException;
+import org.olap4j.OlapParameterMetaData;
+import org.olap4j.PreparedOlapStatement;
+import org.olap4j.mdx.ParseTreeWriter;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Hierarchy;
+import org.olap4j.metadata.Member;
+
+import es.cgalesanco.olap4j.query.mdx.Mdx;
+
+/**
+ * <p>
+ * A query whose MDX is generated once, with some hierarchies replaced by
+ * member parameters bound at every execution. Created by
+ * {@link QueryTemplate#prepare(String...)}.
+ * </p>
+ *
+ * <p>
+ * The members of a parameter hierarchy are replaced by a single member, using
+ * the MDX <code>Parameter</code> function (named after the hierarchy unique
+ * name, with the hierarchy default member as default value). Parameters are typically
+ * hierarchies of the {@link org.olap4j.Axis#FILTER} axis: executions only bind
+ * the slicer members, without regenerating the MDX, and the server can reuse
+ * the parsed statement.
+ * </p>
+ *
+ * @author César García
+ *
+ */
+public class PreparedQuery {
+	private final Cube cube;
+	private final String mdx;
+	private final List<Hierarchy> parameters;
+	private final ConnectionProvider connectionProvider;
+	private final AdmissionController admissionController;
+	private final AdmissionController.Priority priority;
+
+	/**
+	 * Generates the MDX of a query, replacing some of its hierarchies with
+	 * parameters.
+	 *
+	 * @param query
+	 *            the query to prepare, owned by this instance.
+	 * @param parameterNames
+	 *            the names of the parameter hierarchies.
+	 * @throws IllegalArgumentException
+	 *             if a parameter hierarchy doesn't exist or is not used by the
+	 *             query.
+	 * @throws OlapException
+	 *             if an error occurs while generating the MDX.
+	 */
+	PreparedQuery(Query query, String... parameterNames) throws OlapException {
+		cube = query.getCube();
+		connectionProvider = query.getConnectionProvider();
+		admissionController = query.getAdmissionController();
+		priority = query.getPriority();
+		List<Hierarchy> params = new ArrayList<Hierarchy>();
+		for (String name : parameterNames) {
+			QueryHierarchy h = query.getHierarchy(name);
+			if (h == null)
+				throw new IllegalArgumentException("Unknown hierarchy: " + name);
+			if (h.getAxis().getLocation() == null)
+				throw new IllegalArgumentException("Unused hierarchy: " + name);
+
+			Hierarchy hierarchy = h.getHierarchy();
+			Member defaultValue = hierarchy.getDefaultMember();
+			if (defaultValue == null)
+				defaultValue = hierarchy.getRootMembers().get(0);
+			h.setParameter(Mdx.parameter(hierarchy.getUniqueName(),
+					hierarchy, defaultValue));
+			params.add(hierarchy);
+		}
+		parameters = Collections.unmodifiableList(params);
+
+		StringWriter swr = new StringWriter();
+		query.getSelect().unparse(new ParseTreeWriter(swr));
+		mdx = swr.toString();
+	}
+
+	public Cube getCube() {
+		return cube;
+	}
+
+	/**
+	 * Returns the generated MDX statement.
+	 *
+	 * @return the MDX statement, with a <code>Parameter</code> call per
+	 *         parameter hierarchy.
+	 */
+	public String getMdx() {
+		return mdx;
+	}
+
+	/**
+	 * Returns the parameter hierarchies, in binding order.
+	 *
+	 * @return an unmodifiable list of the parameter hierarchies.
+	 */
+	public List<Hierarchy> getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * Prepares the MDX statement in a connection.
+	 *
+	 * @param connection
+	 *            the connection.
+	 * @return the prepared statement, to be used with
+	 *         {@link #execute(PreparedOlapStatement, Member...)}.
+	 * @throws OlapException
+	 *             if the statement cannot be prepared.
+	 */
+	public PreparedOlapStatement prepare(OlapConnection connection)
+			throws OlapException {
+		return connection.prepareOlapStatement(mdx);
+	}
+
+	/**
+	 * Executes this query in a connection of the template
+	 * {@link ConnectionProvider}, binding its parameters. Every execution
+	 * prepares its own statement, so concurrent executions don't wait for each
+	 * other and never share results. Closing the result closes the statement
+	 * and releases its connection through the {@link ConnectionProvider}.
+	 *
+	 * @param values
+	 *            a member of every parameter hierarchy, in
+	 *            {@link #getParameters()} order.
+	 * @return the query result.
+	 * @throws IllegalArgumentException
+	 *             if {@code values} doesn't match the parameter hierarchies.
+	 * @throws OlapException
+	 *             if an error occurs while executing the query.
+	 */
+	public CellSet execute(Member... values) throws OlapException {
+		OlapConnection connection = connectionProvider.getConnection(cube);
+		PreparedOlapStatement statement = null;
+		CellSet result = null;
+		try {
+			statement = prepare(connection);
+			result = execute(statement, values);
+		} finally {
+			if (result == null)
+				CellSetLease.releaseQuietly(statement, connectionProvider,
+						connection);
+		}
+		return CellSetLease.lease(result, statement, connectionProvider,
+				connection);
+	}
+
+	/**
+	 * Executes this query, binding its parameters. The execution is admitted
+	 * by the {@link AdmissionController} of the template, if any.
+	 *
+	 * @param statement
+	 *            a statement returned by {@link #prepare(OlapConnection)}.
+	 * @param values
+	 *            a member of every parameter hierarchy, in
+	 *            {@link #getParameters()} order.
+	 * @return the query result.
+	 * @throws IllegalArgumentException
+	 *             if {@code values} doesn't match the parameter hierarchies.
+	 * @throws OlapException
+	 *             if an error occurs while executing the query.
+	 */
+	public CellSet execute(PreparedOlapStatement statement, Member... values)
+			throws OlapException {
+		if (values.length != parameters.size())
+			throw new IllegalArgumentException("Expected "
+					+ parameters.size() + " parameter values");
+		for (int i = 0; i < values.length; ++i) {
+			if (!parameters.get(i).equals(values[i].getHierarchy()))
+				throw new IllegalArgumentException("Member "
+						+ values[i].getUniqueName() + " is not a member of "
+						+ parameters.get(i).getUniqueName());
+		}
+
+		try {
+			OlapParameterMetaData metaData = statement.getParameterMetaData();
+			for (int i = 0; i < values.length; ++i) {
+				statement.setObject(parameterIndex(metaData, i), values[i]);
+			}
+		} catch (SQLException e) {
+			throw new OlapException("Cannot bind query parameters", e);
+		}
+		if (admissionController == null)
+			return statement.executeQuery();
+
+		AdmissionController.Permit permit;
+		try {
+			permit = admissionController.acquire(statement.getConnection(),
+					priority);
+		} catch (OlapException e) {
+			throw e;
+		} catch (SQLException e) {
+			throw new OlapException("Cannot execute query", e);
+		}
+		try {
+			return statement.executeQuery();
+		} finally {
+			permit.release();
+		}
+	}
+
+	/**
+	 * Helper function finding the statement index of a parameter: by name,
+	 * or by position if the driver doesn't report parameter metadata.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the statement has no parameter named after the hierarchy,
+	 *             e.g. it wasn't prepared from this query MDX.
+	 */
+	private int parameterIndex(OlapParameterMetaData metaData, int pos)
+			throws SQLException {
+		if (metaData == null)
+			return pos + 1;
+		String name = parameters.get(pos).getUniqueName();
+		for (int i = 1; i <= metaData.getParameterCount(); ++i) {
+			if (name.equals(metaData.getParameterName(i)))
+				return i;
+		}
+		throw new IllegalArgumentException("Statement has no parameter " + name);
+	}
+
+}
@@ -1,13 +1,19 @@
 package es.cgalesanco.olap4j.query;
 
-import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.olap4j.Axis;
 import org.olap4j.CellSet;
+import org.olap4j.CellSetAxis;
 import org.olap4j.OlapConnection;
 import org.olap4j.OlapException;
 import org.olap4j.OlapStatement;
@@ -17,9 +23,17 @@ import org.olap4j.mdx.IdentifierNode;
 import org.olap4j.mdx.ParseTreeNode;
 import org.olap4j.mdx.SelectNode;
 import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Dimension;
 import org.olap4j.metadata.Hierarchy;
+import org.olap4j.metadata.Measure;
+import org.olap4j.metadata.Member;
 import org.olap4j.metadata.NamedList;
 
+import es.cgalesanco.olap4j.query.ExpansionPlan.Deferred;
+import es.cgalesanco.olap4j.query.mdx.Mdx;
+import es.cgalesanco.olap4j.query.metrics.NoOpQueryMetrics;
+import es.cgalesanco.olap4j.query.metrics.QueryMetrics;
+
 /**
  * OLAP Query object. Mimics the original olap4j {@link org.olap4j.query.Query}
  * class.
@@ -32,6 +46,18 @@ public class Query {
 	private Map<String, QueryHierarchy> hierarchyMap;
 	private Map<Axis, QueryAxis> axes;
 	private String name;
+	private CardinalityLimits cardinalityLimits;
+	private FilterMode filterMode = FilterMode.CROSSJOIN;
+	private boolean legacyExpressions;
+	private QueryMetrics metrics = NoOpQueryMetrics.INSTANCE;
+	private final MemberResolver memberResolver;
+	private ExecutionCoordinator executionCoordinator;
+	private ConnectionProvider connectionProvider = CubeConnectionProvider.INSTANCE;
+	private AdmissionController admissionController;
+	private AdmissionController.Priority priority = AdmissionController.Priority.INTERACTIVE;
+	private final List<QueryListener> listeners = new CopyOnWriteArrayList<QueryListener>();
+
+	private static final List<QueryListener> globalListeners = new CopyOnWriteArrayList<QueryListener>();
 
 	/**
 	 * Constructs a query against a given cube.
@@ -44,8 +70,9 @@ public class Query {
 	public Query(String name, Cube cube) {
 		this.cube = cube;
 		this.name = name;
+		memberResolver = MemberResolver.forCube(cube);
 		axes = new HashMap<Axis, QueryAxis>(4);
-		QueryAxis unused = new QueryAxis(this, null);
+		QueryAxis unused = new QueryAxis(this, (Axis) null);
 		axes.put(null, unused);
 		axes.put(Axis.ROWS, new QueryAxis(this, Axis.ROWS));
 		axes.put(Axis.COLUMNS, new QueryAxis(this, Axis.COLUMNS));
@@ -60,6 +87,39 @@ public class Query {
 		}
 	}
 
+	/**
+	 * Constructs a copy of a query. Selection and drill trees are shared with
+	 * {@code source} copy-on-write, so the copy only allocates the trees it
+	 * modifies. Query listeners and metrics are not copied.
+	 * 
+	 * @param name
+	 *            the name of the copy.
+	 * @param source
+	 *            the query to copy.
+	 * @see QueryTemplate
+	 */
+	Query(String name, Query source) {
+		this.cube = source.cube;
+		this.name = name;
+		memberResolver = source.memberResolver;
+		cardinalityLimits = source.cardinalityLimits;
+		filterMode = source.filterMode;
+		legacyExpressions = source.legacyExpressions;
+		executionCoordinator = source.executionCoordinator;
+		connectionProvider = source.connectionProvider;
+		admissionController = source.admissionController;
+		priority = source.priority;
+		axes = new HashMap<Axis, QueryAxis>(4);
+		hierarchyMap = new HashMap<String, QueryHierarchy>(
+				source.hierarchyMap.size());
+		for (Map.Entry<Axis, QueryAxis> e : source.axes.entrySet()) {
+			QueryAxis axis = new QueryAxis(this, e.getValue());
+			axes.put(e.getKey(), axis);
+			for (QueryHierarchy h : axis.getHierarchies())
+				hierarchyMap.put(h.getHierarchy().getName(), h);
+		}
+	}
+
 	/**
 	 * Returns the underlying cube object that is used to query against.
 	 * 
@@ -136,29 +196,293 @@ public class Query {
 	 * @throws OlapException
 	 */
 	public SelectNode getSelect() throws OlapException {
-		List<AxisNode> axisList = new ArrayList<AxisNode>();
-    AxisNode tmpAxis = axes.get(Axis.COLUMNS).toOlap4j();
+		return getSelect(null);
+	}
+
+	/**
+	 * <p>
+	 * Returns the MDX parse tree behind this Query, expanding the hierarchies
+	 * of every axis concurrently on the supplied executor.
+	 * </p>
+	 * <p>
+	 * The calling thread takes part in the generation and the generated tree
+	 * is the same returned by {@link #getSelect()}. The query must not be
+	 * modified while the parse tree is being generated.
+	 * </p>
+	 * 
+	 * @param executor
+	 *            executor running the hierarchy expansions. {@code null} to
+	 *            generate the parse tree in the calling thread.
+	 * @return A SelectNode object representing the current query structure.
+	 * @throws OlapException
+	 *             If an error occurs while generating the parse tree, or the
+	 *             calling thread is interrupted.
+	 */
+	public SelectNode getSelect(ExecutorService executor) throws OlapException {
+		return getSelect(executor, newCorrelationId());
+	}
 
-    if ( tmpAxis != null ) {
-      axisList.add(tmpAxis);
+	/**
+	 * Generates the MDX parse tree of this query, notifying listeners and
+	 * metrics.
+	 */
+	private SelectNode getSelect(ExecutorService executor, String correlationId)
+			throws OlapException {
+		long start = System.nanoTime();
+		fireGenerationStarted(correlationId);
+		SelectNode select;
+		try {
+			select = createSelect(executor, null);
+		} catch (OlapException e) {
+			fireQueryFailed(correlationId, start, e);
+			throw e;
+		} catch (RuntimeException e) {
+			fireQueryFailed(correlationId, start, e);
+			throw e;
+		}
+		long elapsed = System.nanoTime() - start;
+		metrics.recordTime(QueryMetrics.GET_SELECT, elapsed);
+		if (metrics.isEnabled())
+			metrics.recordValue(QueryMetrics.MDX_NODES, Mdx.countNodes(select));
+		fireGenerationFinished(correlationId, select, elapsed);
+		return select;
+	}
 
-      tmpAxis = axes.get(Axis.ROWS).toOlap4j();
-      if (tmpAxis != null)
-        axisList.add(tmpAxis);
-    }
+	/**
+	 * Implementation of {@link #getSelect(ExecutorService)}.
+	 * 
+	 * @param partition
+	 *            the partition of a filter hierarchy to slice on; {@code null}
+	 *            to slice on every filter member.
+	 */
+	private SelectNode createSelect(ExecutorService executor,
+			FilterPartition partition) throws OlapException {
+		AxisPlan columnsPlan = new AxisPlan();
+		AxisPlan rowsPlan = new AxisPlan();
+		if (cardinalityLimits != null)
+			planLimits(columnsPlan, rowsPlan);
 
-		AxisNode filterAxis = null;
+		ExpansionPlan plan = new ExpansionPlan();
+		Deferred<AxisNode> columnsAxis = axes.get(Axis.COLUMNS).plan(plan,
+				columnsPlan.collapse, columnsPlan.maxPositions);
+		Deferred<AxisNode> rowsAxis = null;
+		if (columnsAxis != null) {
+			rowsAxis = axes.get(Axis.ROWS).plan(plan, rowsPlan.collapse,
+					rowsPlan.maxPositions);
+		}
 
+		Deferred<AxisNode> slicer = null;
+		Deferred<List<AxisNode>> subcube = null;
+		List<ParseTreeNode> withList = new ArrayList<ParseTreeNode>();
 		QueryAxis slicerAxis = axes.get(Axis.FILTER);
-		if (slicerAxis.getHierarchies().size() > 0)
-			filterAxis = slicerAxis.toOlap4j();
+		if (slicerAxis.getHierarchies().size() > 0) {
+			if (filterMode == FilterMode.SUBSELECT)
+				subcube = slicerAxis.planSubcube(plan, partition);
+			else
+				slicer = slicerAxis.planFilter(plan, withList, partition);
+		}
+
+		plan.execute(executor);
+		withList.addAll(0, plan.getCalculatedMembers());
+
+		return createSelect(columnsAxis == null ? null : columnsAxis.get(),
+				rowsAxis == null ? null : rowsAxis.get(), slicer == null ? null
+						: slicer.get(), withList, subcube == null ? null
+						: subcube.get());
+	}
 
-		SelectNode select = new SelectNode(null,
-				new ArrayList<ParseTreeNode>(), axisList, new CubeNode(null,
-						cube), filterAxis, new ArrayList<IdentifierNode>());
+	/**
+	 * Helper function assembling the select statement of this query from its
+	 * axes.
+	 * 
+	 * @param subcube
+	 *            the axes of the subcube select of
+	 *            {@link FilterMode#SUBSELECT}; {@code null} or empty to select
+	 *            from the cube.
+	 */
+	private SelectNode createSelect(AxisNode columnsAxis, AxisNode rowsAxis,
+			AxisNode filterAxis, List<ParseTreeNode> withList,
+			List<AxisNode> subcube) {
+		List<AxisNode> axisList = new ArrayList<AxisNode>();
+		if (columnsAxis != null) {
+			axisList.add(columnsAxis);
+			if (rowsAxis != null)
+				axisList.add(rowsAxis);
+		}
+
+		ParseTreeNode from = new CubeNode(null, cube);
+		if (subcube != null && !subcube.isEmpty()) {
+			from = new SelectNode(null, new ArrayList<ParseTreeNode>(),
+					subcube, from, null, new ArrayList<IdentifierNode>());
+		}
+		SelectNode select = new SelectNode(null, withList, axisList, from,
+				filterAxis, new ArrayList<IdentifierNode>());
 		return select;
 	}
 
+	/**
+	 * <p>
+	 * Explains how the MDX statement of this query is built, without querying
+	 * the server.
+	 * </p>
+	 * 
+	 * <p>
+	 * The returned plan links every fragment of the statement returned by
+	 * {@link #getSelect()} to the axis, drill tree branch, hierarchy and
+	 * selection producing it, with the size of every fragment (parse tree
+	 * nodes and member literals) and, for axes, branches and hierarchies, its
+	 * estimated cardinality. Oversized expressions can be traced back to the
+	 * user interaction causing them. See {@link ExplainNode} for the plan
+	 * structure.
+	 * </p>
+	 * 
+	 * @return the {@link ExplainNode.Kind#QUERY} plan node.
+	 * @throws OlapException
+	 *             if an error occurs while generating the query.
+	 * @throws CardinalityLimitException
+	 *             if the query exceeds its {@link CardinalityLimits} and
+	 *             cannot be degraded.
+	 */
+	public ExplainNode explain() throws OlapException {
+		AxisPlan columnsPlan = new AxisPlan();
+		AxisPlan rowsPlan = new AxisPlan();
+		if (cardinalityLimits != null)
+			planLimits(columnsPlan, rowsPlan);
+
+		List<ParseTreeNode> withList = new ArrayList<ParseTreeNode>();
+		ExplainNode columns = axes.get(Axis.COLUMNS).explain(
+				columnsPlan.collapse, columnsPlan.maxPositions, withList);
+		ExplainNode rows = null;
+		if (columns != null) {
+			rows = axes.get(Axis.ROWS).explain(rowsPlan.collapse,
+					rowsPlan.maxPositions, withList);
+		}
+		ExplainNode filter = null;
+		AxisNode filterAxis = null;
+		QueryAxis slicerAxis = axes.get(Axis.FILTER);
+		List<AxisNode> subcube = null;
+		if (slicerAxis.getHierarchies().size() > 0) {
+			filter = slicerAxis.explain(false, -1, withList);
+			if (filterMode == FilterMode.SUBSELECT)
+				subcube = slicerAxis.toOlap4jSubcube();
+			else
+				filterAxis = slicerAxis.toOlap4jFilter(withList);
+		}
+
+		SelectNode select = createSelect(
+				columns == null ? null : (AxisNode) columns.getFragment(),
+				rows == null ? null : (AxisNode) rows.getFragment(),
+				filterAxis, withList, subcube);
+		long cells = -1;
+		if (columns != null) {
+			cells = columns.getEstimatedCardinality();
+			if (rows != null)
+				cells = createEstimate(cells, rows.getEstimatedCardinality())
+						.getCellCount();
+		}
+		ExplainNode result = new ExplainNode(ExplainNode.Kind.QUERY, name,
+				select, null, null, cells);
+		for (ExplainNode axis : new ExplainNode[] { columns, rows, filter }) {
+			if (axis != null)
+				result.addChild(axis);
+		}
+		return result;
+	}
+
+	/**
+	 * Estimates the number of positions of every axis and the number of cells
+	 * of this query, without querying the server.
+	 * 
+	 * @return the estimated size of this query result.
+	 * @throws OlapException
+	 *             if an error occurs while retrieving member metadata.
+	 */
+	public CardinalityEstimate estimateCardinality() throws OlapException {
+		QueryAxis columns = axes.get(Axis.COLUMNS);
+		QueryAxis rows = axes.get(Axis.ROWS);
+		return createEstimate(columns.estimatePositions(),
+				rows.estimatePositions());
+	}
+
+	/**
+	 * Returns how the filter axis selections are rendered by
+	 * {@link #getSelect()}.
+	 * 
+	 * @return the filter mode of this query.
+	 */
+	public FilterMode getFilterMode() {
+		return filterMode;
+	}
+
+	/**
+	 * Sets how the filter axis selections are rendered by {@link #getSelect()}.
+	 * Queries use {@link FilterMode#CROSSJOIN} by default.
+	 * 
+	 * @param mode
+	 *            the filter mode.
+	 */
+	public void setFilterMode(FilterMode mode) {
+		if (mode == null)
+			throw new IllegalArgumentException();
+		filterMode = mode;
+	}
+
+	/**
+	 * Returns whether hierarchy expressions are generated in their legacy
+	 * shapes.
+	 * 
+	 * @return {@code true} if the cost based choice of set formulations is
+	 *         disabled.
+	 */
+	public boolean isLegacyExpressions() {
+		return legacyExpressions;
+	}
+
+	/**
+	 * Forces the legacy shapes of the hierarchy expressions. By default small
+	 * sets, like the descendants of a member with few children or the few
+	 * children remaining after excluding most of them, are enumerated
+	 * explicitly instead of being computed by <code>Descendants</code> or
+	 * <code>Except</code> calls.
+	 * 
+	 * @param legacy
+	 *            {@code true} to always generate the function forms.
+	 */
+	public void setLegacyExpressions(boolean legacy) {
+		legacyExpressions = legacy;
+	}
+
+	/**
+	 * Returns the cost model choosing the set formulations of the hierarchy
+	 * expressions.
+	 */
+	ExpressionCostModel getExpressionCostModel() {
+		return legacyExpressions ? ExpressionCostModel.LEGACY
+				: ExpressionCostModel.DEFAULT;
+	}
+
+	/**
+	 * Returns the size limits checked by {@link #getSelect()}.
+	 * 
+	 * @return the size limits of this query. {@code null} if unlimited.
+	 */
+	public CardinalityLimits getCardinalityLimits() {
+		return cardinalityLimits;
+	}
+
+	/**
+	 * Sets the size limits checked by {@link #getSelect()} (and thus by
+	 * {@link #execute()}). Queries whose {@link #estimateCardinality()
+	 * estimated size} exceeds the limits are rejected or degraded according to
+	 * the limits policy.
+	 * 
+	 * @param limits
+	 *            the size limits. {@code null} to remove any limit.
+	 */
+	public void setCardinalityLimits(CardinalityLimits limits) {
+		cardinalityLimits = limits;
+	}
+
 	/**
 	 * Executes the query against the current OlapConnection and returns a
 	 * CellSet object representation of the data.
@@ -171,17 +495,821 @@ public class Query {
 	 *             connection. Look at the root cause for more details.
 	 */
 	public CellSet execute() throws OlapException {
-		OlapConnection connection;
+		return execute(newCorrelationId());
+	}
+
+	/**
+	 * Executes the query against the current OlapConnection and returns a
+	 * CellSet object representation of the data. Every {@link QueryEvent}
+	 * notified during the execution carries the supplied correlation id.
+	 * Closing the result closes its statement and releases its connection
+	 * through the {@link ConnectionProvider}.
+	 * 
+	 * @param correlationId
+	 *            identifier of the user interaction causing this execution.
+	 * @return A proper CellSet object that represents the query execution
+	 *         results.
+	 * @throws OlapException
+	 *             If something goes sour, an OlapException will be thrown to
+	 *             the caller. It could be caused by many things, like a stale
+	 *             connection. Look at the root cause for more details.
+	 */
+	public CellSet execute(String correlationId) throws OlapException {
+		long start = System.nanoTime();
+		final SelectNode select = getSelect(null, correlationId);
+		CellSet result;
 		try {
-			connection = cube.getSchema().getCatalog().getMetaData()
-					.getConnection();
-		} catch (SQLException e) {
-			throw new OlapException("Cannot execute query", e);
-		}
-		OlapStatement stmt = connection.createStatement();
-		SelectNode select = getSelect();
-		System.out.println(select);
-		return stmt.executeOlapQuery(select);
+			fireExecutionStarted(correlationId, select);
+			result = executeSelect(select);
+		} catch (OlapException e) {
+			fireQueryFailed(correlationId, start, e);
+			throw e;
+		} catch (RuntimeException e) {
+			fireQueryFailed(correlationId, start, e);
+			throw e;
+		}
+		long elapsed = System.nanoTime() - start;
+		metrics.recordTime(QueryMetrics.EXECUTE, elapsed);
+
+		if (metrics.isEnabled() || hasListeners()) {
+			List<CellSetAxis> resultAxes = result.getAxes();
+			long rows = resultAxes.size() > 1 ? resultAxes.get(1)
+					.getPositionCount() : 1;
+			long cells = 1;
+			for (CellSetAxis axis : resultAxes)
+				cells *= axis.getPositionCount();
+			fireExecutionFinished(correlationId, select, result, rows, cells,
+					elapsed);
+		}
+		return result;
+	}
+
+	/**
+	 * Executes the query and copies its result into an immutable snapshot,
+	 * closing the statement and releasing the connection right away.
+	 * 
+	 * @return the result snapshot.
+	 * @throws OlapException
+	 *             if an error occurs while executing the query.
+	 * @see #executeSnapshot(String)
+	 */
+	public CellSetSnapshot executeSnapshot() throws OlapException {
+		return executeSnapshot(newCorrelationId());
+	}
+
+	/**
+	 * Executes the query and copies its result into an immutable snapshot,
+	 * closing the statement and releasing the connection right away. When an
+	 * {@link #setExecutionCoordinator(ExecutionCoordinator) execution
+	 * coordinator} is registered, the snapshot of an identical execution in
+	 * flight is shared instead of executing the query again. Listeners are
+	 * notified of an execution whose event has no
+	 * {@link QueryEvent#getCellSet() cell set}.
+	 * 
+	 * @param correlationId
+	 *            identifier of the user interaction causing this execution.
+	 * @return the result snapshot, possibly shared with other callers.
+	 * @throws OlapException
+	 *             if an error occurs while executing the query, or while
+	 *             waiting for an identical execution.
+	 */
+	public CellSetSnapshot executeSnapshot(String correlationId)
+			throws OlapException {
+		long start = System.nanoTime();
+		final SelectNode select = getSelect(null, correlationId);
+		CellSetSnapshot result;
+		try {
+			fireExecutionStarted(correlationId, select);
+			ExecutionCoordinator coordinator = executionCoordinator;
+			if (coordinator == null) {
+				result = CellSetSnapshot.materialize(executeSelect(select));
+			} else {
+				result = coordinator.execute(connectionProvider, cube, select,
+						new ExecutionCoordinator.Execution() {
+							@Override
+							public CellSet execute() throws OlapException {
+								return executeSelect(select);
+							}
+						});
+			}
+		} catch (OlapException e) {
+			fireQueryFailed(correlationId, start, e);
+			throw e;
+		} catch (RuntimeException e) {
+			fireQueryFailed(correlationId, start, e);
+			throw e;
+		}
+		long elapsed = System.nanoTime() - start;
+		metrics.recordTime(QueryMetrics.EXECUTE, elapsed);
+
+		if (metrics.isEnabled() || hasListeners()) {
+			long rows = result.getAxisCount() > 1 ? result.getPositions(1)
+					.size() : 1;
+			long cells = 1;
+			for (int i = 0; i < result.getAxisCount(); ++i)
+				cells *= result.getPositions(i).size();
+			fireExecutionFinished(correlationId, select, null, rows, cells,
+					elapsed);
+		}
+		return result;
+	}
+
+	/**
+	 * <p>
+	 * Executes the query splitting its rows into chunks, executed
+	 * concurrently as separate queries. Intended for exports of very large
+	 * results, which a single query returns from a single server thread.
+	 * </p>
+	 * 
+	 * <p>
+	 * The number of chunks is based on the {@link #estimateCardinality()
+	 * estimated} number of rows. Chunk <em>i</em> returns
+	 * <code>Subset(rows, i * chunkRows, chunkRows)</code>, the last chunk
+	 * returning every remaining row; so the stitched result has the rows of
+	 * the original query, in the same order, even if the estimate is wrong.
+	 * Listeners are notified of a single execution, whose event has no
+	 * {@link QueryEvent#getCellSet() cell set}.
+	 * </p>
+	 * 
+	 * @param chunkRows
+	 *            number of rows per chunk.
+	 * @param executor
+	 *            executor running the chunk queries. {@code null} to run them
+	 *            in the calling thread, one after another.
+	 * @return the stitched result.
+	 * @throws OlapException
+	 *             if a chunk query fails, or the calling thread is interrupted
+	 *             while waiting for the chunks.
+	 */
+	public ChunkedCellSet executeChunked(int chunkRows, ExecutorService executor)
+			throws OlapException {
+		if (chunkRows <= 0)
+			throw new IllegalArgumentException("Chunks must have rows");
+
+		String correlationId = newCorrelationId();
+		long start = System.nanoTime();
+		SelectNode select = getSelect(null, correlationId);
+		List<CellSet> results;
+		boolean nonEmptyColumns = false;
+		try {
+			fireExecutionStarted(correlationId, select);
+			List<SelectNode> chunks = new ArrayList<SelectNode>();
+			List<AxisNode> axisList = select.getAxisList();
+			if (axisList.size() < 2) {
+				chunks.add(select);
+			} else {
+				nonEmptyColumns = axisList.get(0).isNonEmpty();
+				long estimate = estimateCardinality().getPositionCount(
+						Axis.ROWS);
+				long count = Math.max(1, (estimate + chunkRows - 1) / chunkRows);
+				for (long i = 0; i < count; ++i)
+					chunks.add(createChunk(select, i * chunkRows,
+							i + 1 < count ? chunkRows : -1));
+			}
+			results = executeSelects(chunks, executor);
+		} catch (OlapException e) {
+			fireQueryFailed(correlationId, start, e);
+			throw e;
+		} catch (RuntimeException e) {
+			fireQueryFailed(correlationId, start, e);
+			throw e;
+		}
+		ChunkedCellSet result = new ChunkedCellSet(results, nonEmptyColumns);
+		long elapsed = System.nanoTime() - start;
+		metrics.recordTime(QueryMetrics.EXECUTE, elapsed);
+		if (metrics.isEnabled() || hasListeners()) {
+			long rows = result.getRowCount();
+			fireExecutionFinished(correlationId, select, null, rows, rows
+					* result.getColumnCount(), elapsed);
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function creating the query of a chunk of rows. Empty columns
+	 * are removed once every chunk is available.
+	 * 
+	 * @param count
+	 *            number of rows of the chunk. -1 for every remaining row.
+	 */
+	private static SelectNode createChunk(SelectNode select, long start,
+			long count) {
+		SelectNode chunk = select.deepCopy();
+		chunk.getAxisList().get(0).setNonEmpty(false);
+		AxisNode rows = chunk.getAxisList().get(1);
+		rows.setExpression(count < 0 ? Mdx.subset(rows.getExpression(), start)
+				: Mdx.subset(rows.getExpression(), start, count));
+		return chunk;
+	}
+
+	/**
+	 * <p>
+	 * Executes the query splitting the members of a filter hierarchy into
+	 * partitions, executed concurrently as separate queries whose cell values
+	 * are summed. Intended for queries slicing on large sets of members, which
+	 * a single query aggregates from a single server thread.
+	 * </p>
+	 * 
+	 * <p>
+	 * Summing partial results is only correct for additive measures, so every
+	 * measure of the query must be a {@link Measure} aggregated by
+	 * {@link Measure.Aggregator#SUM SUM} or {@link Measure.Aggregator#COUNT
+	 * COUNT}. Axes must not depend on cell values either: sorted or limited
+	 * axes, drill children limits and non empty cross joins are rejected.
+	 * Partitions return every position, and empty positions of
+	 * {@link QueryAxis#setNonEmpty(boolean) non empty} axes are removed once
+	 * every partition is available.
+	 * </p>
+	 * 
+	 * <p>
+	 * Partition <em>i</em> slices on
+	 * <code>Subset(filter, i * size, size)</code>, the last partition slicing
+	 * on every remaining member; the partition size is based on the
+	 * {@link CardinalityEstimator estimated} number of filter members. Listeners
+	 * are notified of a single execution, whose event has no
+	 * {@link QueryEvent#getCellSet() cell set}.
+	 * </p>
+	 * 
+	 * @param partitioned
+	 *            the filter hierarchy to partition.
+	 * @param partitions
+	 *            maximum number of partitions.
+	 * @param executor
+	 *            executor running the partition queries. {@code null} to run
+	 *            them in the calling thread, one after another.
+	 * @return the summed result.
+	 * @throws IllegalStateException
+	 *             if the query results cannot be computed by partitions, e.g.
+	 *             {@code partitioned} is the measures hierarchy.
+	 * @throws OlapException
+	 *             if a partition query fails, or the calling thread is
+	 *             interrupted while waiting for the partitions.
+	 */
+	public PartitionedCellSet executePartitioned(QueryHierarchy partitioned,
+			int partitions, ExecutorService executor) throws OlapException {
+		if (partitions <= 0)
+			throw new IllegalArgumentException("At least one partition needed");
+		if (partitioned.getQuery() != this
+				|| partitioned.getAxis().getLocation() != Axis.FILTER)
+			throw new IllegalArgumentException(
+					"Not a filter hierarchy of this query");
+		checkPartitionable(partitioned);
+
+		String correlationId = newCorrelationId();
+		long start = System.nanoTime();
+		SelectNode select = getSelect(null, correlationId);
+		List<CellSet> results;
+		List<AxisNode> axisList = select.getAxisList();
+		boolean nonEmptyColumns = axisList.size() > 0
+				&& axisList.get(0).isNonEmpty();
+		boolean nonEmptyRows = axisList.size() > 1
+				&& axisList.get(1).isNonEmpty();
+		try {
+			fireExecutionStarted(correlationId, select);
+			results = executeSelects(createPartitions(partitioned, partitions),
+					executor);
+		} catch (OlapException e) {
+			fireQueryFailed(correlationId, start, e);
+			throw e;
+		} catch (RuntimeException e) {
+			fireQueryFailed(correlationId, start, e);
+			throw e;
+		}
+		PartitionedCellSet result = new PartitionedCellSet(results,
+				nonEmptyColumns, nonEmptyRows);
+		long elapsed = System.nanoTime() - start;
+		metrics.recordTime(QueryMetrics.EXECUTE, elapsed);
+		if (metrics.isEnabled() || hasListeners()) {
+			long rows = result.getRowCount();
+			fireExecutionFinished(correlationId, select, null, rows, rows
+					* result.getColumnCount(), elapsed);
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function checking the results of this query can be computed by
+	 * summing the results of the partitions of a filter hierarchy.
+	 */
+	private void checkPartitionable(QueryHierarchy partitioned)
+			throws OlapException {
+		if (partitioned.getHierarchy().getDimension().getDimensionType() == Dimension.Type.MEASURE)
+			throw new IllegalStateException("Measures cannot be partitioned");
+
+		for (Axis a : new Axis[] { Axis.COLUMNS, Axis.ROWS }) {
+			QueryAxis axis = axes.get(a);
+			if (axis.getSortOrder() != null || axis.getLimitFunction() != null)
+				throw new IllegalStateException("Axis " + a
+						+ " depends on cell values");
+			if (axis.getCrossJoinMode() != CrossJoinMode.CROSSJOIN)
+				throw new IllegalStateException("Axis " + a
+						+ " uses a non empty cross join");
+			for (QueryHierarchy h : axis.getHierarchies()) {
+				if (axis.isChildrenLimited(h))
+					throw new IllegalStateException("Axis " + a
+							+ " limits drill children");
+			}
+		}
+
+		for (QueryHierarchy h : hierarchyMap.values()) {
+			if (h.getHierarchy().getDimension().getDimensionType() != Dimension.Type.MEASURE)
+				continue;
+			if (h.getAxis().getLocation() == null) {
+				if (!isAdditive(h.getHierarchy().getDefaultMember()))
+					throw new IllegalStateException(
+							"Default measure is not additive");
+				continue;
+			}
+			for (Member m : h.listIncludedMembers()) {
+				if (!isAdditive(m))
+					throw new IllegalStateException("Measure "
+							+ m.getUniqueName() + " is not additive");
+			}
+		}
+	}
+
+	/**
+	 * Tests if the values of a measure can be computed by summing partial
+	 * values.
+	 * 
+	 * @param m
+	 *            the measure.
+	 * @return {@code true} for {@link Measure measures} aggregated by
+	 *         {@link Measure.Aggregator#SUM SUM} or
+	 *         {@link Measure.Aggregator#COUNT COUNT}.
+	 */
+	static boolean isAdditive(Member m) {
+		if (!(m instanceof Measure))
+			return false;
+		Measure.Aggregator aggregator = ((Measure) m).getAggregator();
+		return aggregator == Measure.Aggregator.SUM
+				|| aggregator == Measure.Aggregator.COUNT;
+	}
+
+	/**
+	 * Creates the partition queries of this query. Every partition slices on
+	 * a consecutive range of the members of a filter hierarchy, the slicer
+	 * being generated as in {@link #getSelect()} (according to the
+	 * {@link FilterMode}, with its own calculated members); empty positions
+	 * are removed once every partition is available.
+	 * 
+	 * @param partitioned
+	 *            the filter hierarchy to partition.
+	 * @param partitions
+	 *            maximum number of partitions.
+	 * @return the partition statements.
+	 * @throws OlapException
+	 *             if an error occurs while estimating the filter members.
+	 */
+	List<SelectNode> createPartitions(QueryHierarchy partitioned,
+			int partitions) throws OlapException {
+		long estimate = CardinalityEstimator.estimateHierarchy(partitioned,
+				false);
+		long count = Math.min(partitions, Math.max(1, estimate));
+		long size = Math.max(1, (estimate + count - 1) / count);
+		count = Math.max(1, (estimate + size - 1) / size);
+
+		List<SelectNode> result = new ArrayList<SelectNode>();
+		for (long i = 0; i < count; ++i) {
+			SelectNode partition = createSelect(null, new FilterPartition(
+					partitioned, i * size, i + 1 < count ? size : -1));
+			for (AxisNode axis : partition.getAxisList())
+				axis.setNonEmpty(false);
+			result.add(partition);
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function executing the chunk or partition queries.
+	 */
+	private List<CellSet> executeSelects(List<SelectNode> selects,
+			ExecutorService executor) throws OlapException {
+		List<CellSet> results = new ArrayList<CellSet>(selects.size());
+		if (executor == null) {
+			boolean executed = false;
+			try {
+				for (SelectNode select : selects)
+					results.add(executeSelect(select));
+				executed = true;
+			} finally {
+				if (!executed)
+					CellSetLease.closeQuietly(results);
+			}
+			return results;
+		}
+
+		List<Future<CellSet>> futures = new ArrayList<Future<CellSet>>();
+		for (final SelectNode select : selects) {
+			futures.add(executor.submit(new Callable<CellSet>() {
+				@Override
+				public CellSet call() throws OlapException {
+					return executeSelect(select);
+				}
+			}));
+		}
+		boolean executed = false;
+		try {
+			for (Future<CellSet> f : futures)
+				results.add(f.get());
+			executed = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new OlapException("Interrupted executing queries", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof OlapException)
+				throw (OlapException) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new OlapException("Query execution failed", e.getCause());
+		} finally {
+			if (!executed)
+				abandon(futures);
+		}
+		return results;
+	}
+
+	/**
+	 * Helper function cancelling the chunk or partition queries after a
+	 * failure. Queries already running are waited for, even if the calling
+	 * thread is interrupted, so their results are closed.
+	 */
+	private static void abandon(List<Future<CellSet>> futures) {
+		boolean interrupted = Thread.interrupted();
+		List<CellSet> results = new ArrayList<CellSet>();
+		for (Future<CellSet> f : futures) {
+			if (f.cancel(false))
+				continue;
+			while (true) {
+				try {
+					results.add(f.get());
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					// The query failed, nothing to close
+					break;
+				}
+			}
+		}
+		CellSetLease.closeQuietly(results);
+		if (interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Helper function sending a statement to the server through the
+	 * connection provider, once admitted by the admission controller.
+	 */
+	CellSet executeSelect(SelectNode select) throws OlapException {
+		ConnectionProvider provider = connectionProvider;
+		AdmissionController controller = admissionController;
+		// Executions are admitted before checking out their connection, so
+		// queued executions don't exhaust a connection pool
+		AdmissionController.Permit permit = controller == null ? null
+				: controller.acquire(admissionKey(provider), priority);
+		OlapConnection connection = null;
+		OlapStatement stmt = null;
+		CellSet result = null;
+		try {
+			connection = provider.getConnection(cube);
+			stmt = connection.createStatement();
+			result = stmt.executeOlapQuery(select);
+		} finally {
+			if (permit != null)
+				permit.release();
+			if (result == null && connection != null)
+				CellSetLease.releaseQuietly(stmt, provider, connection);
+		}
+		return CellSetLease.lease(result, stmt, provider, connection);
+	}
+
+	/**
+	 * Helper function identifying the connection an execution is admitted
+	 * for, without checking it out: the metadata connection of the cube for
+	 * the default provider, the provider itself (e.g. a pool) otherwise.
+	 */
+	private Object admissionKey(ConnectionProvider provider)
+			throws OlapException {
+		if (provider instanceof CubeConnectionProvider)
+			return provider.getConnection(cube);
+		return provider;
+	}
+
+	/**
+	 * Returns the provider of the connections executing this query.
+	 * 
+	 * @return the connection provider. Never {@code null}.
+	 */
+	public ConnectionProvider getConnectionProvider() {
+		return connectionProvider;
+	}
+
+	/**
+	 * Sets the provider of the connections executing this query.
+	 * 
+	 * @param provider
+	 *            the connection provider. {@code null} to use the connection
+	 *            of the cube metadata.
+	 */
+	public void setConnectionProvider(ConnectionProvider provider) {
+		connectionProvider = provider == null ? CubeConnectionProvider.INSTANCE
+				: provider;
+	}
+
+	/**
+	 * Returns the controller limiting the concurrent executions of this
+	 * query.
+	 * 
+	 * @return the admission controller; {@code null} if executions are not
+	 *         limited.
+	 */
+	public AdmissionController getAdmissionController() {
+		return admissionController;
+	}
+
+	/**
+	 * Sets the controller limiting the concurrent executions of this query
+	 * (and of any other query sharing the controller). Executions are
+	 * admitted before a connection is checked out from the
+	 * {@link ConnectionProvider}, whose connections share the per connection
+	 * limit of the controller.
+	 * 
+	 * @param controller
+	 *            the admission controller. {@code null} to execute without
+	 *            limits.
+	 */
+	public void setAdmissionController(AdmissionController controller) {
+		admissionController = controller;
+	}
+
+	/**
+	 * Returns the priority class of this query executions.
+	 * 
+	 * @return the execution priority. Never {@code null}.
+	 */
+	public AdmissionController.Priority getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Sets the priority class of this query executions, used by its
+	 * {@link AdmissionController}. Queries are
+	 * {@link AdmissionController.Priority#INTERACTIVE} by default.
+	 * 
+	 * @param priority
+	 *            the execution priority.
+	 */
+	public void setPriority(AdmissionController.Priority priority) {
+		if (priority == null)
+			throw new IllegalArgumentException("Null priority");
+		this.priority = priority;
+	}
+
+	/**
+	 * Returns the coordinator deduplicating identical concurrent
+	 * {@link #executeSnapshot() snapshot executions} of this query.
+	 * 
+	 * @return the execution coordinator; {@code null} if executions are not
+	 *         deduplicated.
+	 */
+	public ExecutionCoordinator getExecutionCoordinator() {
+		return executionCoordinator;
+	}
+
+	/**
+	 * Sets the coordinator deduplicating identical concurrent
+	 * {@link #executeSnapshot() snapshot executions} of this query (and of any
+	 * other query sharing the coordinator). Plain {@link #execute()} calls
+	 * always send their own statement, as their cell sets can't be shared.
+	 * 
+	 * @param coordinator
+	 *            the execution coordinator. {@code null} to send every
+	 *            execution to the server.
+	 */
+	public void setExecutionCoordinator(ExecutionCoordinator coordinator) {
+		executionCoordinator = coordinator;
+	}
+
+	/**
+	 * Registers a listener notified of the generation and execution of this
+	 * query.
+	 * 
+	 * @param listener
+	 *            the listener to add.
+	 */
+	public void addListener(QueryListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener registered with {@link #addListener}.
+	 * 
+	 * @param listener
+	 *            the listener to remove.
+	 */
+	public void removeListener(QueryListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Registers a listener notified of the generation and execution of every
+	 * query.
+	 * 
+	 * @param listener
+	 *            the listener to add.
+	 */
+	public static void addGlobalListener(QueryListener listener) {
+		globalListeners.add(listener);
+	}
+
+	/**
+	 * Removes a listener registered with {@link #addGlobalListener}.
+	 * 
+	 * @param listener
+	 *            the listener to remove.
+	 */
+	public static void removeGlobalListener(QueryListener listener) {
+		globalListeners.remove(listener);
+	}
+
+	/**
+	 * Returns the resolver used to look up members by name, shared by every
+	 * query over the same cube.
+	 * 
+	 * @return the member resolver of this query cube.
+	 */
+	public MemberResolver getMemberResolver() {
+		return memberResolver;
+	}
+
+	/**
+	 * Returns the sink receiving the performance measurements of this query.
+	 * 
+	 * @return the metrics of this query. Never {@code null}.
+	 */
+	public QueryMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the sink receiving the performance measurements of this query and
+	 * its axes and hierarchies.
+	 * 
+	 * @param metrics
+	 *            the metrics sink. {@code null} to discard measurements.
+	 */
+	public void setMetrics(QueryMetrics metrics) {
+		this.metrics = metrics == null ? NoOpQueryMetrics.INSTANCE : metrics;
+	}
+
+	private static String newCorrelationId() {
+		return UUID.randomUUID().toString();
+	}
+
+	private boolean hasListeners() {
+		return !globalListeners.isEmpty() || !listeners.isEmpty();
+	}
+
+	/**
+	 * Helper function listing the global listeners followed by this query
+	 * listeners.
+	 */
+	private List<QueryListener> listListeners() {
+		List<QueryListener> result = new ArrayList<QueryListener>(
+				globalListeners);
+		result.addAll(listeners);
+		return result;
+	}
+
+	private void fireGenerationStarted(String correlationId) {
+		if (!hasListeners())
+			return;
+		QueryEvent event = new QueryEvent(this, correlationId, null, null, -1,
+				-1, -1, null);
+		for (QueryListener l : listListeners())
+			l.generationStarted(event);
+	}
+
+	private void fireGenerationFinished(String correlationId,
+			SelectNode select, long elapsed) {
+		if (!hasListeners())
+			return;
+		QueryEvent event = new QueryEvent(this, correlationId, select, null,
+				-1, -1, elapsed, null);
+		for (QueryListener l : listListeners())
+			l.generationFinished(event);
+	}
+
+	private void fireExecutionStarted(String correlationId, SelectNode select) {
+		if (!hasListeners())
+			return;
+		QueryEvent event = new QueryEvent(this, correlationId, select, null,
+				-1, -1, -1, null);
+		for (QueryListener l : listListeners())
+			l.executionStarted(event);
+	}
+
+	private void fireExecutionFinished(String correlationId,
+			SelectNode select, CellSet result, long rows, long cells,
+			long elapsed) {
+		metrics.recordValue(QueryMetrics.CELLS, cells);
+		if (!hasListeners())
+			return;
+		QueryEvent event = new QueryEvent(this, correlationId, select, result,
+				rows, cells, elapsed, null);
+		for (QueryListener l : listListeners())
+			l.executionFinished(event);
+	}
+
+	private void fireQueryFailed(String correlationId, long start,
+			Throwable error) {
+		if (!hasListeners())
+			return;
+		QueryEvent event = new QueryEvent(this, correlationId, null, null, -1,
+				-1, System.nanoTime() - start, error);
+		for (QueryListener l : listListeners())
+			l.queryFailed(event);
+	}
+
+	/**
+	 * Helper function deciding how to degrade the query axes to honor the
+	 * cardinality limits.
+	 * 
+	 * @param columnsPlan
+	 *            generation options for the COLUMNS axis.
+	 * @param rowsPlan
+	 *            generation options for the ROWS axis.
+	 * @throws CardinalityLimitException
+	 *             if the query exceeds the limits and cannot be degraded.
+	 * @throws OlapException
+	 *             if an error occurs while retrieving member metadata.
+	 */
+	private void planLimits(AxisPlan columnsPlan, AxisPlan rowsPlan)
+			throws OlapException {
+		CardinalityEstimate estimate = estimateCardinality();
+		CardinalityLimits limits = cardinalityLimits;
+		if (!limits.isExceeded(estimate))
+			return;
+
+		long maxPositions = limits.getMaxAxisPositions();
+		long columns = estimate.getPositionCount(Axis.COLUMNS);
+		long rows = estimate.getPositionCount(Axis.ROWS);
+		switch (limits.getPolicy()) {
+		case COLLAPSE:
+			if (columns > maxPositions) {
+				columnsPlan.collapse = true;
+				columns = axes.get(Axis.COLUMNS).estimateCollapsedPositions();
+			}
+			if (rows > maxPositions || estimate.getCellCount() > limits.getMaxCells()) {
+				rowsPlan.collapse = true;
+				rows = axes.get(Axis.ROWS).estimateCollapsedPositions();
+			}
+			CardinalityEstimate collapsed = createEstimate(columns, rows);
+			if (limits.isExceeded(collapsed))
+				throw new CardinalityLimitException(collapsed, limits);
+			break;
+
+		case TRUNCATE:
+			// A single row of the truncated columns must fit the cell limit
+			columns = Math.min(columns,
+					Math.min(maxPositions, limits.getMaxCells()));
+			columnsPlan.maxPositions = columns;
+			rows = Math.min(rows, maxPositions);
+			if (columns > 0 && rows > limits.getMaxCells() / columns)
+				rows = Math.max(1, limits.getMaxCells() / columns);
+			rowsPlan.maxPositions = rows;
+			break;
+
+		default:
+			throw new CardinalityLimitException(estimate, limits);
+		}
+	}
+
+	/**
+	 * Helper function creating an estimate given the axes sizes.
+	 */
+	private CardinalityEstimate createEstimate(long columns, long rows) {
+		Map<Axis, Long> positions = new HashMap<Axis, Long>();
+		long cells = 1;
+		if (!axes.get(Axis.COLUMNS).getHierarchies().isEmpty()) {
+			positions.put(Axis.COLUMNS, columns);
+			cells = columns;
+			if (!axes.get(Axis.ROWS).getHierarchies().isEmpty()) {
+				positions.put(Axis.ROWS, rows);
+				cells = rows != 0 && cells > Long.MAX_VALUE / rows ? Long.MAX_VALUE
+						: cells * rows;
+			}
+		}
+		return new CardinalityEstimate(positions, cells);
+	}
+
+	/**
+	 * Generation options for an axis.
+	 */
+	private static class AxisPlan {
+		boolean collapse = false;
+		long maxPositions = -1;
 	}
 
 	/**
@@ -1,22 +1,32 @@
 package es.cgalesanco.olap4j.query;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 import org.olap4j.Axis;
 import org.olap4j.OlapException;
 import org.olap4j.mdx.AxisNode;
+import org.olap4j.mdx.CallNode;
 import org.olap4j.mdx.IdentifierNode;
+import org.olap4j.mdx.MemberNode;
 import org.olap4j.mdx.ParseTreeNode;
+import org.olap4j.mdx.Syntax;
 import org.olap4j.metadata.Dimension;
 import org.olap4j.metadata.Hierarchy;
+import org.olap4j.metadata.Level;
 import org.olap4j.metadata.Member;
 import org.olap4j.metadata.Property;
 
 import es.cgalesanco.olap4j.query.DrillTree.Visitor;
+import es.cgalesanco.olap4j.query.ExpansionPlan.Deferred;
+import es.cgalesanco.olap4j.query.ExpansionPlan.DeferredSet;
 import es.cgalesanco.olap4j.query.mdx.CrossJoinBuilder;
 import es.cgalesanco.olap4j.query.mdx.Mdx;
+import es.cgalesanco.olap4j.query.metrics.QueryMetrics;
 
 /**
  * <p>
@@ -42,13 +52,24 @@ import es.cgalesanco.olap4j.query.mdx.Mdx;
  * 
  */
 public class QueryAxis {
+	/**
+	 * Name of the calculated members aggregating the filter sets of
+	 * {@link FilterMode#AGGREGATE}.
+	 */
+	static final String FILTERED_MEMBER = "Filtered";
+
 	private final List<QueryHierarchy> hierarchies;
-	private final DrillTree drillTree;
+	private DrillTree drillTree;
+	private boolean drillTreeShared;
 	private Axis axis;
 	private boolean nonEmpty;
+	private CrossJoinMode crossJoinMode;
 	private final Query query;
-	private List<Member> sortPosition;
+	private List<MemberHandle> sortPosition;
 	private SortOrder sortOrder;
+	private List<MemberHandle> limitCoordinates;
+	private LimitFunction limitFunction;
+	private BigDecimal limitValue;
 	private List<Property> properties;
 	private List<HierarchyExpander> expanders;
 
@@ -65,7 +86,41 @@ public class QueryAxis {
 		this.query = query;
 		hierarchies = new ArrayList<QueryHierarchy>();
 		expanders = new ArrayList<HierarchyExpander>();
-		drillTree = new DrillTree();
+		drillTree = new DrillTree(query.getMemberResolver());
+		crossJoinMode = CrossJoinMode.CROSSJOIN;
+	}
+
+	/**
+	 * Creates a copy of an axis for another query. The drill tree is shared
+	 * with {@code source} until either axis modifies it.
+	 * 
+	 * @param query
+	 *            Query that the copy belongs to.
+	 * @param source
+	 *            the axis to copy.
+	 */
+	QueryAxis(Query query, QueryAxis source) {
+		this.axis = source.axis;
+		this.query = query;
+		hierarchies = new ArrayList<QueryHierarchy>(source.hierarchies.size());
+		expanders = new ArrayList<HierarchyExpander>(source.expanders.size());
+		for (int i = 0; i < source.hierarchies.size(); ++i) {
+			hierarchies.add(new QueryHierarchy(this, source.hierarchies.get(i)));
+			expanders.add(source.expanders.get(i).copy(null));
+		}
+		drillTree = source.drillTree;
+		drillTreeShared = true;
+		source.drillTreeShared = true;
+		nonEmpty = source.nonEmpty;
+		crossJoinMode = source.crossJoinMode;
+		// Coordinate lists are replaced, never modified
+		sortPosition = source.sortPosition;
+		sortOrder = source.sortOrder;
+		limitCoordinates = source.limitCoordinates;
+		limitFunction = source.limitFunction;
+		limitValue = source.limitValue;
+		if (source.properties != null)
+			properties = new ArrayList<Property>(source.properties);
 	}
 
 	/**
@@ -110,6 +165,35 @@ public class QueryAxis {
 		nonEmpty = v;
 	}
 
+	/**
+	 * Returns how the hierarchies of this axis are cross joined.
+	 * 
+	 * @return the cross join mode of this axis.
+	 */
+	public CrossJoinMode getCrossJoinMode() {
+		return crossJoinMode;
+	}
+
+	/**
+	 * <p>
+	 * Sets how the hierarchies of this axis are cross joined.
+	 * </p>
+	 * 
+	 * <p>
+	 * Using {@link CrossJoinMode#NON_EMPTY_CROSSJOIN} or
+	 * {@link CrossJoinMode#NON_EMPTY} lets the server remove empty tuples
+	 * while joining, instead of computing the full cartesian product first.
+	 * </p>
+	 * 
+	 * @param mode
+	 *            the cross join mode.
+	 */
+	public void setCrossJoinMode(CrossJoinMode mode) {
+		if (mode == null)
+			throw new IllegalArgumentException();
+		crossJoinMode = mode;
+	}
+
 	/**
 	 * Returns an unmodifiable list of the hierarchies placed on this
 	 * {@link QueryAxis}.
@@ -224,7 +308,7 @@ public class QueryAxis {
 		if (index <= 0)
 			return;
 
-		drillTree.prune(index - 1);
+		getMutableDrillTree().prune(index - 1);
 		QueryHierarchy h = hierarchies.remove(index);
 		HierarchyExpander e = expanders.remove(index);
 		hierarchies.add(index - 1, h);
@@ -246,7 +330,7 @@ public class QueryAxis {
 		if (index >= hierarchies.size() - 1)
 			return;
 
-		drillTree.prune(index);
+		getMutableDrillTree().prune(index);
 		QueryHierarchy h = hierarchies.remove(index);
 		HierarchyExpander e = expanders.remove(index);
 		hierarchies.add(index + 1, h);
@@ -272,10 +356,12 @@ public class QueryAxis {
 	 */
 	public void drill(Member... drilledMember) throws IllegalArgumentException {
 		checkDrillStructure(drilledMember);
-		if (expanders.get(drilledMember.length - 1).isHierarchyExpanded())
-			drillTree.remove(drilledMember);
+		int pos = drilledMember.length - 1;
+		if (expanders.get(pos).isDrilledByDefault(drilledMember[pos]))
+			getMutableDrillTree().remove(drilledMember);
 		else
-			drillTree.add(drilledMember);
+			getMutableDrillTree().add(drilledMember);
+		recordDrill(QueryMetrics.DRILL);
 	}
 
 	/**
@@ -297,10 +383,24 @@ public class QueryAxis {
 	 */
 	public void undrill(Member... position) throws IllegalArgumentException {
 		checkDrillStructure(position);
-		if (expanders.get(position.length - 1).isHierarchyExpanded())
-			drillTree.add(position);
+		int pos = position.length - 1;
+		if (expanders.get(pos).isDrilledByDefault(position[pos]))
+			getMutableDrillTree().add(position);
 		else
-			drillTree.remove(position);
+			getMutableDrillTree().remove(position);
+		recordDrill(QueryMetrics.UNDRILL);
+	}
+
+	/**
+	 * Helper function reporting a drill (or undrill) operation to the query
+	 * metrics.
+	 */
+	private void recordDrill(String counter) {
+		QueryMetrics metrics = getQuery().getMetrics();
+		metrics.increment(counter, 1);
+		if (metrics.isEnabled())
+			metrics.recordValue(QueryMetrics.DRILLED_POSITIONS, listDrills()
+					.size());
 	}
 
 	/**
@@ -316,8 +416,9 @@ public class QueryAxis {
 	 */
 	public boolean isDrilled(Member... position) {
 		checkDrillStructure(position);
-		boolean hierachyExpanded = expanders.get(position.length - 1)
-				.isHierarchyExpanded();
+		int pos = position.length - 1;
+		boolean hierachyExpanded = expanders.get(pos).isDrilledByDefault(
+				position[pos]);
 		if (drillTree.isDrilled(position)) {
 			return !hierachyExpanded;
 		}
@@ -354,7 +455,35 @@ public class QueryAxis {
 
 		expanders.get(pos).expandHierarchy();
 		if (drillTree != null)
-			drillTree.clearLevel(pos);
+			getMutableDrillTree().clearLevel(pos);
+	}
+
+	/**
+	 * Expands a hierarchy down to a given level, showing the included members
+	 * of that level and above. Removes any previous drill/undrill operation;
+	 * afterwards, members above {@code depth} record undrills and members at
+	 * {@code depth} or below record drills, so they can be collapsed or
+	 * further drilled one by one.
+	 * 
+	 * @param h
+	 *            hierarchy to expand.
+	 * @param depth
+	 *            the deepest level shown.
+	 * @throws IllegalArgumentException
+	 *             if {@code depth} is not a level of {@code h}.
+	 */
+	public void expandHierarchy(QueryHierarchy h, Level depth)
+			throws IllegalArgumentException {
+		int pos = hierarchies.indexOf(h);
+		if (pos < 0)
+			return;
+		if (!h.getHierarchy().equals(depth.getHierarchy()))
+			throw new IllegalArgumentException("Level not in hierarchy "
+					+ h.getHierarchy().getUniqueName());
+
+		expanders.get(pos).expandHierarchy(depth);
+		if (drillTree != null)
+			getMutableDrillTree().clearLevel(pos);
 	}
 
 	/**
@@ -372,7 +501,7 @@ public class QueryAxis {
 
 		expanders.get(pos).collapseHierarchy();
 		if (drillTree != null)
-			drillTree.clearLevel(pos);
+			getMutableDrillTree().clearLevel(pos);
 	}
 
 	/**
@@ -392,6 +521,23 @@ public class QueryAxis {
 		return expanders.get(pos).isHierarchyExpanded();
 	}
 
+	/**
+	 * Returns the level a hierarchy is expanded down to by
+	 * {@link #expandHierarchy(QueryHierarchy, Level)}.
+	 * 
+	 * @param h
+	 *            hierarchy to check.
+	 * @return the expansion level; {@code null} if {@code h} is not in this
+	 *         axis, or it's collapsed or fully expanded.
+	 */
+	public Level getExpansionLevel(QueryHierarchy h) {
+		int pos = hierarchies.indexOf(h);
+		if (pos < 0)
+			return null;
+
+		return expanders.get(pos).getExpansionLevel();
+	}
+
 	/**
 	 * <P>
 	 * Sorts the positions of this axis by the value of given cell coordinates
@@ -410,13 +556,7 @@ public class QueryAxis {
 	 *            the sort order to use.
 	 */
 	public void sort(Member[] coordinates, SortOrder order) {
-		if (sortPosition == null) {
-			sortPosition = new ArrayList<Member>();
-			Collections.addAll(sortPosition, coordinates);
-		} else {
-			sortPosition.clear();
-			Collections.addAll(sortPosition, coordinates);
-		}
+		sortPosition = MemberHandle.of(coordinates, query.getMemberResolver());
 		sortOrder = order;
 	}
 
@@ -437,7 +577,7 @@ public class QueryAxis {
 	public Member[] getSortCoordinates() {
 		if (sortPosition == null)
 			return null;
-		return sortPosition.toArray(new Member[sortPosition.size()]);
+		return resolve(sortPosition);
 	}
 
 	/**
@@ -449,6 +589,162 @@ public class QueryAxis {
 		return sortOrder;
 	}
 
+	/**
+	 * <p>
+	 * Limits the positions of this axis to the top (or bottom) positions by
+	 * the value of given cell coordinates.
+	 * </p>
+	 * 
+	 * <p>
+	 * At MDX generation time wraps the axis set expression (after sorting, if
+	 * any) with the corresponding <code>TopCount</code>,
+	 * <code>BottomCount</code>, <code>TopPercent</code> or
+	 * <code>BottomPercent</code> call using a tuple with the cell coordinates
+	 * as numeric expression.
+	 * </p>
+	 * 
+	 * @param coordinates
+	 *            cell coordinates to retrieve the numeric value for limiting.
+	 * @param function
+	 *            the limit function to use.
+	 * @param value
+	 *            number of positions to keep for count functions; percentage
+	 *            of the total for percent functions.
+	 * @throws IllegalArgumentException
+	 *             if {@code value} is negative, or it is not an integer for
+	 *             count functions.
+	 */
+	public void limit(Member[] coordinates, LimitFunction function, double value) {
+		BigDecimal v = toLimitValue(function, value);
+		limitCoordinates = MemberHandle.of(coordinates,
+				query.getMemberResolver());
+		limitFunction = function;
+		limitValue = v;
+	}
+
+	/**
+	 * Clears the current limit settings.
+	 */
+	public void clearLimit() {
+		limitCoordinates = null;
+		limitFunction = null;
+		limitValue = null;
+	}
+
+	/**
+	 * Returns the current cell coordinates used for limiting this axis.
+	 * 
+	 * @see #limit(Member[], LimitFunction, double)
+	 * @return the current limit coordinates. {@code null} for unlimited axes.
+	 */
+	public Member[] getLimitCoordinates() {
+		if (limitCoordinates == null)
+			return null;
+		return resolve(limitCoordinates);
+	}
+
+	/**
+	 * Returns the current limit function for this axis.
+	 * 
+	 * @return the current limit function. {@code null} for unlimited axes.
+	 */
+	public LimitFunction getLimitFunction() {
+		return limitFunction;
+	}
+
+	/**
+	 * Returns the current limit value for this axis.
+	 * 
+	 * @return the current limit value. {@code null} for unlimited axes.
+	 */
+	public BigDecimal getLimitValue() {
+		return limitValue;
+	}
+
+	/**
+	 * <p>
+	 * Limits the children shown when drilling members of a hierarchy to the
+	 * top (or bottom) children by the value of given cell coordinates. Each
+	 * drilled member is limited independently.
+	 * </p>
+	 * 
+	 * <p>
+	 * The limit applies to drilled members only, children included through
+	 * selections or shown by expanding the hierarchy are not limited.
+	 * Children falling out of the limit are removed along with their
+	 * descendants, and aggregated by an <code>Others</code> child of the
+	 * drilled member.
+	 * </p>
+	 * 
+	 * @param h
+	 *            hierarchy whose drills to limit.
+	 * @param coordinates
+	 *            cell coordinates to retrieve the numeric value for limiting.
+	 * @param function
+	 *            the limit function to use.
+	 * @param value
+	 *            number of children to keep for count functions; percentage of
+	 *            the total for percent functions.
+	 * @throws IllegalArgumentException
+	 *             if {@code value} is negative, or it is not an integer for
+	 *             count functions.
+	 */
+	public void limitChildren(QueryHierarchy h, Member[] coordinates,
+			LimitFunction function, double value) {
+		int pos = hierarchies.indexOf(h);
+		if (pos < 0)
+			return;
+
+		expanders.get(pos).setChildrenLimit(
+				new ChildrenLimit(function, toLimitValue(function, value),
+						query.getMemberResolver(), coordinates));
+	}
+
+	/**
+	 * Removes the drill children limit of a hierarchy.
+	 * 
+	 * @param h
+	 *            hierarchy whose drills will no longer be limited.
+	 */
+	public void clearChildrenLimit(QueryHierarchy h) {
+		int pos = hierarchies.indexOf(h);
+		if (pos < 0)
+			return;
+
+		expanders.get(pos).setChildrenLimit(null);
+	}
+
+	/**
+	 * Checks if the children of drilled members of a hierarchy are limited.
+	 * 
+	 * @param h
+	 *            hierarchy to check.
+	 * @return {@code true} if the drills of this hierarchy are limited.
+	 */
+	public boolean isChildrenLimited(QueryHierarchy h) {
+		int pos = hierarchies.indexOf(h);
+		if (pos < 0)
+			return false;
+
+		return expanders.get(pos).getChildrenLimit() != null;
+	}
+
+	/**
+	 * Returns the drill children limit of a hierarchy.
+	 * 
+	 * @param h
+	 *            the hierarchy.
+	 * @return the children limit of {@code h}; {@code null} if its drills are
+	 *         not limited or it's not in this axis.
+	 */
+	ChildrenLimit getChildrenLimit(QueryHierarchy h) {
+		int pos = hierarchies.indexOf(h);
+		if (pos < 0)
+			return null;
+
+		return expanders.get(pos).getChildrenLimit();
+	}
+
 	public void addDimensionProperty(Property prop) {
 		properties.add(prop);
 	}
@@ -483,21 +779,282 @@ public class QueryAxis {
 	 *             this axis.
 	 */
 	AxisNode toOlap4j() throws OlapException {
-		if (axis != Axis.FILTER) {
-			if (hierarchies.isEmpty())
-				return null;
-			ParseTreeNode axisExpression = 
-					Mdx.hierarchize(drillTree.toOlap4j(hierarchies,
-					expanders));
-			if (sortPosition != null) {
-				axisExpression = Mdx.order(axisExpression, sortPosition,
-						sortOrder);
+		return toOlap4j(false, -1);
+	}
+
+	/**
+	 * Generates a {@link org.olap4j.mdx.AxisNode} representing the current
+	 * axis, degrading it if requested. Used by {@link Query#getSelect()} to
+	 * enforce the query {@link CardinalityLimits}.
+	 * 
+	 * @param collapse
+	 *            {@code true} to generate every hierarchy collapsed, ignoring
+	 *            expansions and drills.
+	 * @param maxPositions
+	 *            if non negative, the axis is truncated to its first
+	 *            {@code maxPositions} positions.
+	 * @return a {@link org.olap4j.mdx.AxisNode} representing the current axis
+	 *         state.
+	 * @throws OlapException
+	 *             If an error occurs while generating the MDX expression for
+	 *             this axis.
+	 */
+	AxisNode toOlap4j(boolean collapse, long maxPositions) throws OlapException {
+		ExpansionPlan plan = new ExpansionPlan();
+		Deferred<AxisNode> result = plan(plan, collapse, maxPositions);
+		plan.execute(null);
+		return result == null ? null : result.get();
+	}
+
+	/**
+	 * Registers in an {@link ExpansionPlan} the hierarchy expansions needed to
+	 * generate the {@link org.olap4j.mdx.AxisNode} of this axis. Used by
+	 * {@link Query#getSelect(java.util.concurrent.ExecutorService)} to generate every axis
+	 * concurrently.
+	 * 
+	 * @param plan
+	 *            the plan collecting the expansions.
+	 * @param collapse
+	 *            {@code true} to generate every hierarchy collapsed, ignoring
+	 *            expansions and drills.
+	 * @param maxPositions
+	 *            if non negative, the axis is truncated to its first
+	 *            {@code maxPositions} positions.
+	 * @return the axis node, available once {@code plan} is executed.
+	 *         {@code null} for non filter axes with no hierarchy.
+	 * @throws OlapException
+	 *             If an error occurs while generating the MDX expression for
+	 *             this axis.
+	 */
+	Deferred<AxisNode> plan(ExpansionPlan plan, boolean collapse,
+			final long maxPositions) throws OlapException {
+		if (axis == Axis.FILTER)
+			return planFilter(plan, new ArrayList<ParseTreeNode>());
+		if (hierarchies.isEmpty())
+			return null;
+
+		List<HierarchyExpander> axisExpanders = expanders;
+		DrillTree axisDrills = drillTree;
+		if (collapse) {
+			axisExpanders = collapsedExpanders();
+			axisDrills = new DrillTree(query.getMemberResolver());
+		}
+		final DeferredSet positions = axisDrills.plan(plan,
+				hierarchies, axisExpanders, crossJoinMode, getNonEmptyContext());
+		return new Deferred<AxisNode>() {
+			@Override
+			public AxisNode get() {
+				return createAxisNode(positions.get(),
+						positions.isHierarchized(), maxPositions);
 			}
-			List<IdentifierNode> props = listDimensionProperties();
-			return new AxisNode(null, nonEmpty, axis, props, axisExpression);
+		};
+	}
+
+	/**
+	 * Explains the {@link org.olap4j.mdx.AxisNode} generated for this axis.
+	 * 
+	 * @param collapse
+	 *            {@code true} to generate every hierarchy collapsed, ignoring
+	 *            expansions and drills.
+	 * @param maxPositions
+	 *            if non negative, the axis is truncated to its first
+	 *            {@code maxPositions} positions.
+	 * @param withList
+	 *            the list receiving the calculated members referenced by the
+	 *            positions of a non filter axis.
+	 * @return the {@link ExplainNode.Kind#AXIS} plan node. {@code null} for
+	 *         non filter axes with no hierarchy.
+	 * @throws OlapException
+	 *             If an error occurs while generating the MDX expression for
+	 *             this axis.
+	 */
+	ExplainNode explain(boolean collapse, long maxPositions,
+			List<ParseTreeNode> withList) throws OlapException {
+		if (axis == Axis.FILTER) {
+			ExplainNode result = new ExplainNode(ExplainNode.Kind.AXIS,
+					axis.name(), toOlap4jFilter(new ArrayList<ParseTreeNode>()),
+					null, null, -1);
+			HierarchyExpander expander = new HierarchyExpander();
+			for (QueryHierarchy h : hierarchies)
+				result.addChild(h.explain(expander));
+			return result;
+		}
+		if (hierarchies.isEmpty())
+			return null;
+
+		List<HierarchyExpander> axisExpanders = expanders;
+		DrillTree axisDrills = drillTree;
+		long estimate;
+		if (collapse) {
+			axisExpanders = collapsedExpanders();
+			axisDrills = new DrillTree(query.getMemberResolver());
+			estimate = estimateCollapsedPositions();
 		} else {
-			return toOlap4jFilter();
+			estimate = estimatePositions();
+		}
+		if (maxPositions >= 0)
+			estimate = Math.min(estimate, maxPositions);
+
+		ParseTreeNode nonEmptyContext = getNonEmptyContext();
+		List<ExplainNode> branches = axisDrills.explain(hierarchies,
+				axisExpanders, crossJoinMode, nonEmptyContext);
+		ExpansionPlan plan = new ExpansionPlan();
+		DeferredSet positions = axisDrills.plan(plan, hierarchies,
+				axisExpanders, crossJoinMode, nonEmptyContext);
+		plan.execute(null);
+		withList.addAll(plan.getCalculatedMembers());
+
+		ExplainNode result = new ExplainNode(ExplainNode.Kind.AXIS,
+				axis.name(), createAxisNode(positions.get(),
+						positions.isHierarchized(), maxPositions), null, null,
+				estimate);
+		for (ExplainNode b : branches)
+			result.addChild(b);
+		return result;
+	}
+
+	/**
+	 * Helper function wrapping the positions of this axis with the axis
+	 * sorting, limits and truncation. Positions are hierarchized unless the
+	 * expanders generated them in hierarchical order, and legacy expressions
+	 * are not forced.
+	 */
+	private AxisNode createAxisNode(ParseTreeNode positions,
+			boolean hierarchized, long maxPositions) {
+		ParseTreeNode axisExpression = positions;
+		if (!hierarchized || query.isLegacyExpressions())
+			axisExpression = Mdx.hierarchize(positions);
+		if (sortPosition != null) {
+			axisExpression = Mdx.order(axisExpression,
+					Arrays.asList(resolve(sortPosition)), sortOrder);
+		}
+		if (limitFunction != null) {
+			axisExpression = Mdx.limit(axisExpression, limitFunction,
+					limitValue, Arrays.asList(resolve(limitCoordinates)));
+		}
+		if (maxPositions >= 0) {
+			axisExpression = Mdx.subset(axisExpression, 0, maxPositions);
+		}
+		List<IdentifierNode> props = listDimensionProperties();
+		return new AxisNode(null, nonEmpty, axis, props, axisExpression);
+	}
+
+	/**
+	 * <p>
+	 * Lists the members of a hierarchy shown in this axis, in hierarchical
+	 * order, without querying the server.
+	 * </p>
+	 * <p>
+	 * The drill state of the hierarchy depends on the members of the
+	 * preceding hierarchies in the axis, supplied as {@code prefix}. Members
+	 * are lazily retrieved from metadata as the returned iterable is traversed.
+	 * Children limits are not applied.
+	 * </p>
+	 * 
+	 * @param h
+	 *            the hierarchy to list.
+	 * @param prefix
+	 *            members of the hierarchies preceding {@code h} in this axis.
+	 * @return the visible members of {@code h}.
+	 * @throws IllegalArgumentException
+	 *             if {@code h} is not in this axis or {@code prefix} doesn't
+	 *             contain a member for every preceding hierarchy.
+	 */
+	public Iterable<Member> listVisibleMembers(final QueryHierarchy h,
+			Member... prefix) throws IllegalArgumentException {
+		int pos = hierarchies.indexOf(h);
+		if (pos < 0)
+			throw new IllegalArgumentException("Hierarchy not in this axis");
+		if (prefix.length != pos)
+			throw new IllegalArgumentException("Invalid position prefix");
+
+		final HierarchyExpander expander = expanders.get(pos).copy(
+				drillTree.getDrills(prefix));
+		return new Iterable<Member>() {
+			@Override
+			public Iterator<Member> iterator() {
+				try {
+					return new HierarchyMemberIterator(h, expander);
+				} catch (OlapException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Estimates the number of positions of this axis without querying the
+	 * server.
+	 * 
+	 * @see Query#estimateCardinality()
+	 * @return the estimated number of positions. 0 for axes with no
+	 *         hierarchy.
+	 * @throws OlapException
+	 *             if an error occurs while retrieving member metadata.
+	 */
+	public long estimatePositions() throws OlapException {
+		return CardinalityEstimator.estimateAxis(hierarchies, expanders,
+				listDrills());
+	}
+
+	/**
+	 * Estimates the number of positions of this axis with every hierarchy
+	 * collapsed, ignoring expansions and drills.
+	 * 
+	 * @return the estimated number of positions of the collapsed axis.
+	 * @throws OlapException
+	 *             if an error occurs while retrieving member metadata.
+	 */
+	long estimateCollapsedPositions() throws OlapException {
+		return CardinalityEstimator.estimateAxis(hierarchies,
+				collapsedExpanders(), new ArrayList<Member[]>());
+	}
+
+	/**
+	 * Helper function creating collapsed expanders for the hierarchies of this
+	 * axis, keeping their children limits.
+	 * 
+	 * @return the list of collapsed expanders.
+	 */
+	private List<HierarchyExpander> collapsedExpanders() {
+		List<HierarchyExpander> result = new ArrayList<HierarchyExpander>(
+				expanders.size());
+		for (HierarchyExpander e : expanders) {
+			HierarchyExpander collapsed = new HierarchyExpander();
+			collapsed.setChildrenLimit(e.getChildrenLimit());
+			result.add(collapsed);
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function to compute the measures used to test empty tuples with
+	 * {@link CrossJoinMode#NON_EMPTY} joins: the measures placed on the
+	 * opposite axis, if any.
+	 * 
+	 * @return the set of measures on the opposite axis. {@code null} if there
+	 *         are no measures there, or they are not needed.
+	 */
+	private ParseTreeNode getNonEmptyContext() throws OlapException {
+		if (crossJoinMode != CrossJoinMode.NON_EMPTY || hierarchies.size() < 2)
+			return null;
+
+		Axis opposite;
+		if (axis == Axis.ROWS)
+			opposite = Axis.COLUMNS;
+		else if (axis == Axis.COLUMNS)
+			opposite = Axis.ROWS;
+		else
+			return null;
+
+		QueryAxis oppositeAxis = getQuery().getAxis(opposite);
+		if (oppositeAxis == null)
+			return null;
+		for (QueryHierarchy h : oppositeAxis.getHierarchies()) {
+			if (h.getHierarchy().getDimension().getDimensionType() == Dimension.Type.MEASURE)
+				return h.toOlap4j();
 		}
+		return null;
 	}
 
 	/**
@@ -517,19 +1074,215 @@ public class QueryAxis {
 		return props;
 	}
 
+	/**
+	 * Generates the {@link org.olap4j.mdx.AxisNode} of the FILTER axis,
+	 * rendered according to the query {@link FilterMode}.
+	 * 
+	 * @param withList
+	 *            list receiving the calculated members referenced by the
+	 *            slicer.
+	 * @return a {@link org.olap4j.mdx.AxisNode} representing the current filter
+	 *         axis state.
+	 * @throws OlapException
+	 *             If an error occurs while generating the MDX expression for
+	 *             this axis.
+	 */
+	AxisNode toOlap4jFilter(List<ParseTreeNode> withList) throws OlapException {
+		ExpansionPlan plan = new ExpansionPlan();
+		Deferred<AxisNode> result = planFilter(plan, withList);
+		plan.execute(null);
+		return result.get();
+	}
+
+	/**
+	 * Registers in an {@link ExpansionPlan} the hierarchy expansions needed to
+	 * generate the FILTER axis, slicing on every filter member.
+	 * 
+	 * @see #planFilter(ExpansionPlan, List, FilterPartition)
+	 */
+	Deferred<AxisNode> planFilter(ExpansionPlan plan,
+			List<ParseTreeNode> withList) {
+		return planFilter(plan, withList, null);
+	}
+
 	/**
 	 * Helper function to generate {@link org.olap4j.mdx.AxisNode} representing
 	 * the current FILTER axis state.
 	 * 
+	 * @param withList
+	 *            list receiving the calculated members referenced by the
+	 *            slicer, once the returned node is available.
+	 * @param partition
+	 *            the partition of a filter hierarchy to slice on; {@code null}
+	 *            to slice on every filter member.
 	 * @return a {@link org.olap4j.mdx.AxisNode} representing the current filter
 	 *         axis state.
 	 */
-	private AxisNode toOlap4jFilter() {
-		CrossJoinBuilder xJoin = new CrossJoinBuilder();
-		for (QueryHierarchy h : hierarchies) {
-			xJoin.join(h.toOlap4j());
+	Deferred<AxisNode> planFilter(ExpansionPlan plan,
+			final List<ParseTreeNode> withList, FilterPartition partition) {
+		final List<Deferred<ParseTreeNode>> filters = planFilterSets(plan,
+				partition);
+		final boolean aggregate = query.getFilterMode() == FilterMode.AGGREGATE;
+		return new Deferred<AxisNode>() {
+			@Override
+			public AxisNode get() {
+				if (aggregate)
+					return createAggregateFilter(filters, withList);
+
+				CrossJoinBuilder xJoin = new CrossJoinBuilder();
+				for (Deferred<ParseTreeNode> filter : filters) {
+					xJoin.join(filter.get());
+				}
+				return new AxisNode(null, false, axis, null, xJoin.getJoinNode());
+			}
+		};
+	}
+
+	/**
+	 * Helper function registering the expansions of the filter hierarchies,
+	 * restricted to a partition.
+	 */
+	private List<Deferred<ParseTreeNode>> planFilterSets(ExpansionPlan plan,
+			final FilterPartition partition) {
+		List<Deferred<ParseTreeNode>> filters = new ArrayList<Deferred<ParseTreeNode>>();
+		HierarchyExpander expander = new HierarchyExpander();
+		for (final QueryHierarchy h : hierarchies) {
+			final Deferred<ParseTreeNode> filter = plan.expand(h, expander,
+					null);
+			if (partition == null) {
+				filters.add(filter);
+				continue;
+			}
+			filters.add(new Deferred<ParseTreeNode>() {
+				@Override
+				public ParseTreeNode get() {
+					return partition.apply(h, filter.get());
+				}
+			});
+		}
+		return filters;
+	}
+
+	/**
+	 * Registers in an {@link ExpansionPlan} the hierarchy expansions needed to
+	 * generate the subcube of {@link FilterMode#SUBSELECT}.
+	 * 
+	 * @param plan
+	 *            the plan collecting the expansions.
+	 * @param partition
+	 *            the partition of a filter hierarchy to slice on; {@code null}
+	 *            to slice on every filter member.
+	 * @return the axes of the subcube select, one per filtering hierarchy,
+	 *         available once {@code plan} is executed.
+	 */
+	Deferred<List<AxisNode>> planSubcube(ExpansionPlan plan,
+			FilterPartition partition) {
+		final List<Deferred<ParseTreeNode>> filters = planFilterSets(plan,
+				partition);
+		return new Deferred<List<AxisNode>>() {
+			@Override
+			public List<AxisNode> get() {
+				List<AxisNode> result = new ArrayList<AxisNode>();
+				for (Deferred<ParseTreeNode> filter : filters) {
+					ParseTreeNode set = filter.get();
+					if (set == null)
+						continue;
+					result.add(new AxisNode(null, false, Axis.Factory
+							.forOrdinal(result.size()), null, Mdx.set(set)));
+				}
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * Generates the subcube axes of {@link FilterMode#SUBSELECT}.
+	 * 
+	 * @see #planSubcube(ExpansionPlan, FilterPartition)
+	 */
+	List<AxisNode> toOlap4jSubcube() throws OlapException {
+		ExpansionPlan plan = new ExpansionPlan();
+		Deferred<List<AxisNode>> result = planSubcube(plan, null);
+		plan.execute(null);
+		return result.get();
+	}
+
+	/**
+	 * Helper function generating the slicer of {@link FilterMode#AGGREGATE}:
+	 * the tuple of the single filtered members and the calculated members
+	 * aggregating the filter sets of several members.
+	 */
+	private AxisNode createAggregateFilter(
+			List<Deferred<ParseTreeNode>> filters, List<ParseTreeNode> withList) {
+		List<ParseTreeNode> members = new ArrayList<ParseTreeNode>();
+		for (int i = 0; i < filters.size(); ++i) {
+			ParseTreeNode filter = filters.get(i).get();
+			if (filter == null)
+				continue;
+
+			ParseTreeNode member = toSingleMember(filter);
+			if (member == null) {
+				IdentifierNode name = Mdx.calculatedMember(hierarchies.get(i)
+						.getHierarchy(), FILTERED_MEMBER);
+				withList.add(Mdx.withMember(name, Mdx.aggregate(Mdx
+						.set(filter))));
+				member = name;
+			}
+			members.add(member);
 		}
-		return new AxisNode(null, false, axis, null, xJoin.getJoinNode());
+
+		ParseTreeNode slicer = null;
+		if (members.size() == 1)
+			slicer = members.get(0);
+		else if (members.size() > 1)
+			slicer = Mdx.tuple(members.toArray(new ParseTreeNode[members
+					.size()]));
+		return new AxisNode(null, false, axis, null, slicer);
+	}
+
+	/**
+	 * Helper function extracting the member expression of a filter set of a
+	 * single member.
+	 * 
+	 * @return the member expression; {@code null} if {@code filter} is not a
+	 *         single member.
+	 */
+	private static ParseTreeNode toSingleMember(ParseTreeNode filter) {
+		if (filter instanceof MemberNode)
+			return filter;
+		if (filter instanceof CallNode) {
+			CallNode call = (CallNode) filter;
+			if (call.getSyntax() == Syntax.Braces
+					&& call.getArgList().size() == 1) {
+				ParseTreeNode arg = call.getArgList().get(0);
+				if (arg instanceof MemberNode
+						|| (arg instanceof CallNode && ((CallNode) arg)
+								.getOperatorName().equals("Parameter")))
+					return arg;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Helper function to validate and convert a limit value.
+	 * 
+	 * @param function
+	 *            the limit function.
+	 * @param value
+	 *            the limit value.
+	 * @return the limit value as a number literal.
+	 */
+	private static BigDecimal toLimitValue(LimitFunction function, double value) {
+		if (value < 0)
+			throw new IllegalArgumentException("Negative limit value");
+		if (function.isCount()) {
+			if (value != Math.floor(value))
+				throw new IllegalArgumentException(
+						"Count limits require an integer value");
+			return BigDecimal.valueOf((long) value);
+		}
+		return BigDecimal.valueOf(value);
 	}
 
 	/**
@@ -552,6 +1305,31 @@ public class QueryAxis {
 		}
 	}
 
+	/**
+	 * Helper function returning the drill tree of this axis for modification,
+	 * copying it first if it's shared with other axes.
+	 */
+	private DrillTree getMutableDrillTree() {
+		if (drillTreeShared) {
+			drillTree = drillTree.copy();
+			drillTreeShared = false;
+		}
+		return drillTree;
+	}
+
+	/**
+	 * Helper function resolving the member handles of cell coordinates.
+	 */
+	private Member[] resolve(List<MemberHandle> coordinates) {
+		try {
+			List<Member> members = MemberHandle.resolveAll(coordinates,
+					query.getMemberResolver());
+			return members.toArray(new Member[members.size()]);
+		} catch (OlapException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
 	/**
 	 * Helper function to remove a hierarchy from this axis. Produces a
 	 * <em>dangling</em> hierarchy.
@@ -562,7 +1340,7 @@ public class QueryAxis {
 	private void doRemove(QueryHierarchy hierarchy) {
 		int position = hierarchies.indexOf(hierarchy);
 		if (position >= 0) {
-			drillTree.prune(position);
+			getMutableDrillTree().prune(position);
 			hierarchies.remove(position);
 			expanders.remove(position);
 		}
@@ -0,0 +1,113 @@
+package es.cgalesanco.olap4j.query;
+
+import java.util.EventObject;
+
+import org.olap4j.CellSet;
+import org.olap4j.mdx.SelectNode;
+
+/**
+ * Event notified to {@link QueryListener}s. Properties not applicable to the
+ * notified callback are {@code null} (or -1 for numbers).
+ * 
+ * @author César García
+ * 
+ */
+public class QueryEvent extends EventObject {
+	private static final long serialVersionUID = -2305473624131186473L;
+
+	private final String correlationId;
+	private final transient SelectNode select;
+	private final transient CellSet cellSet;
+	private final long rowCount;
+	private final long cellCount;
+	private final long elapsedNanos;
+	private final Throwable error;
+
+	QueryEvent(Query query, String correlationId, SelectNode select,
+			CellSet cellSet, long rowCount, long cellCount, long elapsedNanos,
+			Throwable error) {
+		super(query);
+		this.correlationId = correlationId;
+		this.select = select;
+		this.cellSet = cellSet;
+		this.rowCount = rowCount;
+		this.cellCount = cellCount;
+		this.elapsedNanos = elapsedNanos;
+		this.error = error;
+	}
+
+	/**
+	 * Returns the query generating this event.
+	 * 
+	 * @return the query generating this event.
+	 */
+	public Query getQuery() {
+		return (Query) getSource();
+	}
+
+	/**
+	 * Returns the identifier shared by every event of the same generation or
+	 * execution.
+	 * 
+	 * @return the correlation id.
+	 */
+	public String getCorrelationId() {
+		return correlationId;
+	}
+
+	/**
+	 * Returns the MDX parse tree generated (or executed).
+	 * 
+	 * @return the select node. {@code null} before generation.
+	 */
+	public SelectNode getSelect() {
+		return select;
+	}
+
+	/**
+	 * Returns the result of the execution.
+	 * 
+	 * @return the cell set. {@code null} before the execution finishes.
+	 */
+	public CellSet getCellSet() {
+		return cellSet;
+	}
+
+	/**
+	 * Returns the number of rows returned by the execution: the number of
+	 * positions of the {@code ROWS} axis, or 1 for results with just one
+	 * axis.
+	 * 
+	 * @return the number of rows. -1 before the execution finishes.
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Returns the number of cells returned by the execution.
+	 * 
+	 * @return the number of cells. -1 before the execution finishes.
+	 */
+	public long getCellCount() {
+		return cellCount;
+	}
+
+	/**
+	 * Returns the time elapsed since the start of the generation or execution.
+	 * 
+	 * @return the elapsed time in nanoseconds. -1 for start events.
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * Returns the cause of a failure.
+	 * 
+	 * @return the error. {@code null} if the query didn't fail.
+	 */
+	public Throwable getError() {
+		return error;
+	}
+}
@@ -1,6 +1,10 @@
 package es.cgalesanco.olap4j.query;
 
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.olap4j.Axis;
 import org.olap4j.OlapException;
@@ -13,6 +17,8 @@ import org.olap4j.metadata.Member;
 import es.cgalesanco.olap4j.query.Selection.Operator;
 import es.cgalesanco.olap4j.query.Selection.Sign;
 import es.cgalesanco.olap4j.query.SelectionTree.SelectionNode;
+import es.cgalesanco.olap4j.query.mdx.Mdx;
+import es.cgalesanco.olap4j.query.metrics.QueryMetrics;
 
 /**
  * <p>
@@ -45,7 +51,9 @@ import es.cgalesanco.olap4j.query.SelectionTree.SelectionNode;
  * 
  */
 public class QueryHierarchy {
-	private final SelectionTree selectionTree;
+	private SelectionTree selectionTree;
+	private boolean selectionTreeShared;
+	private ParseTreeNode parameter;
 	private final Hierarchy hierarchy;
 	private final Query query;
 	private QueryAxis axis;
@@ -72,6 +80,24 @@ public class QueryHierarchy {
 		hierarchy = baseHierarchy;
 	}
 
+	/**
+	 * Creates a copy of a query hierarchy for another query. The selection
+	 * tree is shared with {@code source} until either hierarchy modifies it.
+	 * 
+	 * @param axis
+	 *            the axis of the copy, belonging to the other query.
+	 * @param source
+	 *            the query hierarchy to copy.
+	 */
+	QueryHierarchy(QueryAxis axis, QueryHierarchy source) {
+		this.axis = axis;
+		this.query = axis.getQuery();
+		hierarchy = source.hierarchy;
+		selectionTree = source.selectionTree;
+		selectionTreeShared = true;
+		source.selectionTreeShared = true;
+	}
+
 	/**
 	 * Returns the axis using this {@link QueryHierarchy}.
 	 * 
@@ -134,7 +160,7 @@ public class QueryHierarchy {
 	 */
 	public Selection include(Operator operator,
 			List<IdentifierSegment> nameParts) throws OlapException {
-		Member m = getQuery().getCube().lookupMember(nameParts);
+		Member m = query.getMemberResolver().lookupMember(nameParts);
 		return include(operator, m);
 	}
 
@@ -169,11 +195,15 @@ public class QueryHierarchy {
 	}
 
 	public void include(Level level) {
-		selectionTree.applyLevel(level, Sign.INCLUDE);
+		long start = System.nanoTime();
+		getMutableSelectionTree().applyLevel(level, Sign.INCLUDE);
+		recordSelection(start);
 	}
 
 	public void exclude(Level level) {
-		selectionTree.applyLevel(level, Sign.EXCLUDE);
+		long start = System.nanoTime();
+		getMutableSelectionTree().applyLevel(level, Sign.EXCLUDE);
+		recordSelection(start);
 	}
 
 	/**
@@ -225,7 +255,7 @@ public class QueryHierarchy {
 	 */
 	public Selection exclude(Operator operator,
 			List<IdentifierSegment> nameParts) throws OlapException {
-		Member m = query.getCube().lookupMember(nameParts);
+		Member m = query.getMemberResolver().lookupMember(nameParts);
 		return exclude(operator, m);
 	}
 
@@ -306,7 +336,59 @@ public class QueryHierarchy {
 	 *             members in the underlying cube.
 	 */
 	public boolean isLeaf(Member member) throws OlapException {
-		return selectionTree.isLeaf(member);
+		long start = System.nanoTime();
+		boolean result = selectionTree.isLeaf(member);
+		query.getMetrics().recordTime(QueryMetrics.IS_LEAF,
+				System.nanoTime() - start);
+		return result;
+	}
+
+	/**
+	 * <p>
+	 * Lists every member included in this hierarchy, in hierarchical order,
+	 * without querying the server.
+	 * </p>
+	 * <p>
+	 * Members are lazily retrieved from metadata as the returned iterable is
+	 * traversed, so stopping the iteration early avoids walking the rest of the
+	 * hierarchy.
+	 * </p>
+	 * 
+	 * @return the included members of this hierarchy.
+	 */
+	public Iterable<Member> listIncludedMembers() {
+		final HierarchyExpander expander = new HierarchyExpander();
+		expander.expandHierarchy();
+		return new Iterable<Member>() {
+			@Override
+			public Iterator<Member> iterator() {
+				try {
+					return new HierarchyMemberIterator(QueryHierarchy.this,
+							expander);
+				} catch (OlapException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Counts the members included in this hierarchy without querying the
+	 * server, stopping as soon as {@code limit} members are found.
+	 * 
+	 * @param limit
+	 *            maximum number of members to count.
+	 * @return the number of included members, or {@code limit} if there are
+	 *         at least {@code limit} included members.
+	 */
+	public int countIncludedMembers(int limit) {
+		int count = 0;
+		Iterator<Member> it = listIncludedMembers().iterator();
+		while (count < limit && it.hasNext()) {
+			it.next();
+			++count;
+		}
+		return count;
 	}
 
 	/**
@@ -314,7 +396,7 @@ public class QueryHierarchy {
 	 * its initial state.
 	 */
 	public void clear() {
-		selectionTree.clear();
+		getMutableSelectionTree().clear();
 	}
 
 	public Sign getEffectiveSignAt(Member m, Operator op) {
@@ -371,10 +453,88 @@ public class QueryHierarchy {
 	 *         given drill list.
 	 */
 	ParseTreeNode toOlap4j(HierarchyExpander expander) {
+		if (parameter != null)
+			return Mdx.set(parameter);
+
+		long start = System.nanoTime();
+		ParseTreeNode result;
 		if (getAxis().getLocation() == Axis.FILTER)
-			return selectionTree.toOlap4jFilter();
+			result = selectionTree.toOlap4jFilter(query
+					.getExpressionCostModel());
+		else
+			result = selectionTree.toOlap4jQuery(expander,
+					query.getExpressionCostModel());
+		query.getMetrics().recordTime(QueryMetrics.EXPAND,
+				System.nanoTime() - start);
+		return result;
+	}
+
+	/**
+	 * Explains the expression generated by {@link #toOlap4j(HierarchyExpander)},
+	 * linking every fragment to the selection producing it.
+	 * 
+	 * @param expander
+	 *            helper object to execute drills.
+	 * @return the {@link ExplainNode.Kind#HIERARCHY} plan node.
+	 */
+	ExplainNode explain(HierarchyExpander expander) {
+		ExpansionTrace trace = new ExpansionTrace();
+		ParseTreeNode expression;
+		long estimate;
+		if (getAxis().getLocation() == Axis.FILTER) {
+			expression = selectionTree.toOlap4jFilter(
+					query.getExpressionCostModel(), trace);
+			estimate = CardinalityEstimator.estimateHierarchy(this, false);
+		} else {
+			expression = selectionTree.toOlap4jQuery(expander,
+					query.getExpressionCostModel(), trace);
+			estimate = CardinalityEstimator.estimateHierarchy(this, expander);
+		}
 
-		return selectionTree.toOlap4jQuery(expander);
+		ExplainNode result = new ExplainNode(ExplainNode.Kind.HIERARCHY,
+				hierarchy.getUniqueName(), expression, null, null, estimate);
+		Map<Object, ExplainNode> sources = new LinkedHashMap<Object, ExplainNode>();
+		for (ExpansionTrace.Fragment f : trace.getFragments()) {
+			ExplainNode source = sources.get(f.source);
+			if (source == null) {
+				source = explainSource(f.source);
+				sources.put(f.source, source);
+				result.addChild(source);
+			}
+			source.addChild(new ExplainNode(ExplainNode.Kind.FRAGMENT,
+					f.operation, f.expression, null, null, -1));
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function creating the plan node of a selection node or level
+	 * selection.
+	 */
+	private ExplainNode explainSource(Object source) {
+		if (source instanceof Level) {
+			Level l = (Level) source;
+			return new ExplainNode(ExplainNode.Kind.LEVEL_SELECTION,
+					l.getUniqueName() + " included", null, null, l, -1);
+		}
+
+		SelectionNode node = (SelectionNode) source;
+		Member m = node.getMember();
+		String description;
+		List<Member> members;
+		if (m == null) {
+			description = "root children " + node.getChildrenSign()
+					+ ", descendants " + node.getDefaultSign();
+			members = null;
+		} else {
+			description = m.getUniqueName() + " member "
+					+ node.getMemberSign() + ", children "
+					+ node.getChildrenSign() + ", descendants "
+					+ node.getDefaultSign();
+			members = Collections.singletonList(m);
+		}
+		return new ExplainNode(ExplainNode.Kind.SELECTION, description, null,
+				members, null, -1);
 	}
 
 	/**
@@ -405,7 +565,27 @@ public class QueryHierarchy {
 	 *            selection action.
 	 */
 	void apply(SelectionAction action) {
+		long start = System.nanoTime();
+		applyAction(action);
+		recordSelection(start);
+	}
 
+	/**
+	 * Helper function reporting a selection change to the query metrics.
+	 * 
+	 * @param start
+	 *            {@link System#nanoTime()} at the start of the change.
+	 */
+	private void recordSelection(long start) {
+		QueryMetrics metrics = query.getMetrics();
+		metrics.recordTime(QueryMetrics.SELECT, System.nanoTime() - start);
+		if (metrics.isEnabled())
+			metrics.recordValue(QueryMetrics.SELECTION_TREE_NODES,
+					selectionTree.countNodes());
+	}
+
+	private void applyAction(SelectionAction action) {
+		SelectionTree selectionTree = getMutableSelectionTree();
 		if (getAxis().getLocation() == Axis.FILTER) {
 			selectionTree.applyBasic(new SelectionAction(action.getMember(),
 					action.getSign(), Operator.DESCENDANTS));
@@ -468,4 +648,37 @@ public class QueryHierarchy {
 		return selectionTree.getParentMember(member);
 	}
 
+	/**
+	 * Helper function returning the selection tree of this hierarchy for
+	 * modification, copying it first if it's shared with other hierarchies.
+	 */
+	private SelectionTree getMutableSelectionTree() {
+		if (selectionTreeShared) {
+			selectionTree = selectionTree.copy();
+			selectionTreeShared = false;
+		}
+		return selectionTree;
+	}
+
+	/**
+	 * Replaces the members of this hierarchy with a member parameter, bound at
+	 * execution time. Used by {@link PreparedQuery}.
+	 * 
+	 * @param parameter
+	 *            the parameter expression; {@code null} to generate the
+	 *            selected members.
+	 */
+	void setParameter(ParseTreeNode parameter) {
+		this.parameter = parameter;
+	}
+
+	/**
+	 * Returns the selection tree storing the state of this hierarchy.
+	 * 
+	 * @return the selection tree of this hierarchy.
+	 */
+	SelectionTree getSelectionTree() {
+		return selectionTree;
+	}
+
 }
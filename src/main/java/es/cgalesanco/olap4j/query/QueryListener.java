@@ -0,0 +1,71 @@
+package es.cgalesanco.olap4j.query;
+
+import java.util.EventListener;
+
+/**
+ * <p>
+ * Receives notifications of the generation and execution of a {@link Query}.
+ * </p>
+ * 
+ * <p>
+ * Listeners are registered on a query ({@link Query#addListener}) or globally
+ * for every query ({@link Query#addGlobalListener}). Every event carries the
+ * correlation id of the operation triggering it, so the events of an
+ * execution can be traced back to the user interaction that caused it (see
+ * {@link Query#execute(String)}).
+ * </p>
+ * 
+ * <p>
+ * Listeners are called synchronously, from the thread generating or executing
+ * the query, so they should return quickly. Exceptions thrown by a listener
+ * are propagated to the caller.
+ * </p>
+ * 
+ * @see QueryListenerAdapter
+ * @author César García
+ * 
+ */
+public interface QueryListener extends EventListener {
+
+	/**
+	 * Called before generating the MDX parse tree of a query.
+	 * 
+	 * @param event
+	 *            the event.
+	 */
+	void generationStarted(QueryEvent event);
+
+	/**
+	 * Called after generating the MDX parse tree of a query.
+	 * 
+	 * @param event
+	 *            the event, holding the generated select node and the
+	 *            generation time.
+	 */
+	void generationFinished(QueryEvent event);
+
+	/**
+	 * Called before sending a query to the server.
+	 * 
+	 * @param event
+	 *            the event, holding the select node to execute.
+	 */
+	void executionStarted(QueryEvent event);
+
+	/**
+	 * Called after a query is executed.
+	 * 
+	 * @param event
+	 *            the event, holding the result, the number of rows and cells
+	 *            and the execution time (including generation).
+	 */
+	void executionFinished(QueryEvent event);
+
+	/**
+	 * Called when the generation or execution of a query fails.
+	 * 
+	 * @param event
+	 *            the event, holding the error.
+	 */
+	void queryFailed(QueryEvent event);
+}
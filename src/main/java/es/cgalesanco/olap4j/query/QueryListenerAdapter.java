@@ -0,0 +1,31 @@
+package es.cgalesanco.olap4j.query;
+
+/**
+ * Empty implementation of {@link QueryListener}, to be extended by listeners
+ * interested in just some of the events.
+ * 
+ * @author César García
+ * 
+ */
+public abstract class QueryListenerAdapter implements QueryListener {
+
+	@Override
+	public void generationStarted(QueryEvent event) {
+	}
+
+	@Override
+	public void generationFinished(QueryEvent event) {
+	}
+
+	@Override
+	public void executionStarted(QueryEvent event) {
+	}
+
+	@Override
+	public void executionFinished(QueryEvent event) {
+	}
+
+	@Override
+	public void queryFailed(QueryEvent event) {
+	}
+}
@@ -0,0 +1,1065 @@
+package es.cgalesanco.olap4j.query;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.olap4j.Axis;
+import org.olap4j.OlapException;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Level;
+import org.olap4j.metadata.Member;
+
+import es.cgalesanco.olap4j.query.Selection.Operator;
+import es.cgalesanco.olap4j.query.Selection.Sign;
+
+/**
+ * <p>
+ * Encodes the state of a {@link Query} into a compact, versioned binary or
+ * JSON representation, and rebuilds live queries from it. Used to keep query
+ * state out of stateless application tiers.
+ * </p>
+ *
+ * <p>
+ * The encoded state includes the hierarchies of every axis (in order), the
+ * selections of every hierarchy (in sequence order, as listed by
+ * {@link QueryHierarchy#listSelections()}), the drill list, expansion state
+ * and children limit of every axis hierarchy, and the non empty flag, cross
+ * join mode, sorting and limit of every axis, plus the {@link FilterMode} and
+ * legacy expressions flag of the query. Metadata elements are identified by
+ * unique name. Listeners, metrics and cardinality limits are not part of the
+ * state.
+ * </p>
+ *
+ * <p>
+ * Decoding collects every member name in the state and resolves them in a
+ * single batch, using the query {@link MemberResolver}, before rebuilding the
+ * query.
+ * </p>
+ *
+ * @author César García
+ *
+ */
+public class QueryStateCodec {
+	/**
+	 * Current version of the encoded state.
+	 */
+	public static final int VERSION = 3;
+
+	private static final byte[] MAGIC = { 'O', 'Q', 'S' };
+	private static final String UNUSED_AXIS = "UNUSED";
+
+	private QueryStateCodec() {
+	}
+
+	/**
+	 * Encodes the state of a query in binary format.
+	 *
+	 * @param query
+	 *            the query to encode.
+	 * @return the encoded state.
+	 */
+	public static byte[] toBinary(Query query) {
+		try {
+			return new BinaryWriter().write(capture(query));
+		} catch (IOException e) {
+			// In memory streams don't throw I/O exceptions
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Rebuilds a query from its binary encoded state.
+	 *
+	 * @param cube
+	 *            the cube of the query.
+	 * @param data
+	 *            the state encoded by {@link #toBinary(Query)}.
+	 * @return the rebuilt query.
+	 * @throws IllegalArgumentException
+	 *             if {@code data} is not a valid encoded state, or its version
+	 *             is not supported.
+	 * @throws OlapException
+	 *             if a metadata element of the state is not found in
+	 *             {@code cube}.
+	 */
+	public static Query fromBinary(Cube cube, byte[] data)
+			throws OlapException {
+		State state;
+		try {
+			state = new BinaryReader(data).read();
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Invalid query state", e);
+		}
+		return restore(cube, state);
+	}
+
+	/**
+	 * Encodes the state of a query in JSON format.
+	 *
+	 * @param query
+	 *            the query to encode.
+	 * @return the encoded state.
+	 */
+	public static String toJson(Query query) {
+		return JsonWriter.write(capture(query));
+	}
+
+	/**
+	 * Rebuilds a query from its JSON encoded state.
+	 *
+	 * @param cube
+	 *            the cube of the query.
+	 * @param json
+	 *            the state encoded by {@link #toJson(Query)}.
+	 * @return the rebuilt query.
+	 * @throws IllegalArgumentException
+	 *             if {@code json} is not a valid encoded state, or its version
+	 *             is not supported.
+	 * @throws OlapException
+	 *             if a metadata element of the state is not found in
+	 *             {@code cube}.
+	 */
+	public static Query fromJson(Cube cube, String json) throws OlapException {
+		return restore(cube, JsonReader.read(json));
+	}
+
+	/**
+	 * Encoded state of a query.
+	 */
+	private static class State {
+		String name;
+		String filterMode = FilterMode.CROSSJOIN.name();
+		boolean legacyExpressions;
+		List<AxisState> axes = new ArrayList<AxisState>();
+	}
+
+	private static class AxisState {
+		String location;
+		boolean nonEmpty;
+		String crossJoinMode;
+		List<HierarchyState> hierarchies = new ArrayList<HierarchyState>();
+		List<List<String>> drills = new ArrayList<List<String>>();
+		String sortOrder;
+		List<String> sortCoordinates;
+		LimitState limit;
+	}
+
+	private static class HierarchyState {
+		String name;
+		boolean expanded;
+		String expansionLevel;
+		LimitState childrenLimit;
+		List<SelectionState> selections = new ArrayList<SelectionState>();
+	}
+
+	private static class SelectionState {
+		boolean isLevel;
+		String sign;
+		String operator;
+		String uniqueName;
+	}
+
+	private static class LimitState {
+		String function;
+		String value;
+		List<String> coordinates;
+	}
+
+	/**
+	 * Helper function capturing the state of a query.
+	 */
+	private static State capture(Query query) {
+		State state = new State();
+		state.name = query.getName();
+		state.filterMode = query.getFilterMode().name();
+		state.legacyExpressions = query.isLegacyExpressions();
+		for (Axis location : new Axis[] { Axis.COLUMNS, Axis.ROWS,
+				Axis.FILTER, null }) {
+			QueryAxis axis = query.getAxis(location);
+			AxisState a = new AxisState();
+			a.location = location == null ? UNUSED_AXIS : location.name();
+			a.nonEmpty = axis.isNonEmpty();
+			a.crossJoinMode = axis.getCrossJoinMode().name();
+			for (QueryHierarchy h : axis.getHierarchies()) {
+				List<Selection> selections = h.listSelections();
+				if (location == null && selections.isEmpty())
+					continue;
+
+				HierarchyState hs = new HierarchyState();
+				hs.name = h.getHierarchy().getName();
+				hs.expanded = axis.isExpanded(h);
+				Level expansionLevel = axis.getExpansionLevel(h);
+				if (expansionLevel != null)
+					hs.expansionLevel = expansionLevel.getUniqueName();
+				ChildrenLimit limit = axis.getChildrenLimit(h);
+				if (limit != null) {
+					hs.childrenLimit = captureLimit(limit.getFunction(),
+							limit.getValue(), limit.getCoordinates());
+				}
+				for (Selection s : selections)
+					hs.selections.add(captureSelection(s));
+				a.hierarchies.add(hs);
+			}
+			if (location != null) {
+				for (Member[] drill : axis.listDrills())
+					a.drills.add(uniqueNames(drill));
+				if (axis.getSortCoordinates() != null) {
+					a.sortOrder = axis.getSortOrder().name();
+					a.sortCoordinates = uniqueNames(axis.getSortCoordinates());
+				}
+				if (axis.getLimitFunction() != null) {
+					a.limit = captureLimit(axis.getLimitFunction(),
+							axis.getLimitValue(), axis.getLimitCoordinates());
+				}
+			}
+			if (location != null || !a.hierarchies.isEmpty())
+				state.axes.add(a);
+		}
+		return state;
+	}
+
+	private static SelectionState captureSelection(Selection s) {
+		SelectionState result = new SelectionState();
+		result.sign = s.getSign().name();
+		if (s instanceof LevelSelection) {
+			result.isLevel = true;
+			result.uniqueName = ((LevelSelection) s).getLevel().getUniqueName();
+		} else {
+			result.operator = s.getOperator().name();
+			result.uniqueName = ((SelectionAction) s).getMember()
+					.getUniqueName();
+		}
+		return result;
+	}
+
+	private static LimitState captureLimit(LimitFunction function,
+			BigDecimal value, Member[] coordinates) {
+		LimitState result = new LimitState();
+		result.function = function.name();
+		result.value = value.toPlainString();
+		result.coordinates = uniqueNames(coordinates);
+		return result;
+	}
+
+	private static List<String> uniqueNames(Member[] members) {
+		List<String> result = new ArrayList<String>(members.length);
+		for (Member m : members)
+			result.add(m.getUniqueName());
+		return result;
+	}
+
+	/**
+	 * Helper function rebuilding a query from its state.
+	 */
+	private static Query restore(Cube cube, State state) throws OlapException {
+		Query query = new Query(state.name, cube);
+		query.setFilterMode(FilterMode.valueOf(state.filterMode));
+		query.setLegacyExpressions(state.legacyExpressions);
+		Map<String, Member> members = resolveMembers(query,
+				collectMemberNames(state));
+
+		// Selections are replayed while hierarchies are unused, as filter
+		// axes would override their operators.
+		for (AxisState a : state.axes) {
+			for (HierarchyState hs : a.hierarchies) {
+				QueryHierarchy h = getHierarchy(query, hs.name);
+				for (SelectionState s : hs.selections) {
+					Sign sign = Sign.valueOf(s.sign);
+					if (s.isLevel) {
+						h.applySelection(new LevelSelection(getLevel(h,
+								s.uniqueName), sign));
+					} else {
+						h.applySelection(new SelectionAction(members
+								.get(s.uniqueName), sign, Operator
+								.valueOf(s.operator)));
+					}
+				}
+			}
+		}
+
+		for (AxisState a : state.axes) {
+			if (a.location.equals(UNUSED_AXIS))
+				continue;
+
+			QueryAxis axis = query.getAxis(Axis.Standard.valueOf(a.location));
+			for (HierarchyState hs : a.hierarchies)
+				axis.addHierarchy(query.getHierarchy(hs.name));
+			axis.setNonEmpty(a.nonEmpty);
+			axis.setCrossJoinMode(CrossJoinMode.valueOf(a.crossJoinMode));
+			for (HierarchyState hs : a.hierarchies) {
+				QueryHierarchy h = query.getHierarchy(hs.name);
+				if (hs.expanded)
+					axis.expandHierarchy(h);
+				else if (hs.expansionLevel != null)
+					axis.expandHierarchy(h, getLevel(h, hs.expansionLevel));
+				if (hs.childrenLimit != null) {
+					LimitState l = hs.childrenLimit;
+					axis.limitChildren(h, toMembers(members, l.coordinates),
+							LimitFunction.valueOf(l.function), new BigDecimal(
+									l.value).doubleValue());
+				}
+			}
+			for (List<String> drill : a.drills) {
+				Member[] position = toMembers(members, drill);
+				// Recorded positions toggle the default drill state
+				if (axis.isDrilled(position))
+					axis.undrill(position);
+				else
+					axis.drill(position);
+			}
+			if (a.sortOrder != null) {
+				axis.sort(toMembers(members, a.sortCoordinates),
+						SortOrder.valueOf(a.sortOrder));
+			}
+			if (a.limit != null) {
+				axis.limit(toMembers(members, a.limit.coordinates),
+						LimitFunction.valueOf(a.limit.function),
+						new BigDecimal(a.limit.value).doubleValue());
+			}
+		}
+		return query;
+	}
+
+	private static Set<String> collectMemberNames(State state) {
+		Set<String> result = new LinkedHashSet<String>();
+		for (AxisState a : state.axes) {
+			for (HierarchyState hs : a.hierarchies) {
+				for (SelectionState s : hs.selections) {
+					if (!s.isLevel)
+						result.add(s.uniqueName);
+				}
+				if (hs.childrenLimit != null)
+					result.addAll(hs.childrenLimit.coordinates);
+			}
+			for (List<String> drill : a.drills)
+				result.addAll(drill);
+			if (a.sortCoordinates != null)
+				result.addAll(a.sortCoordinates);
+			if (a.limit != null)
+				result.addAll(a.limit.coordinates);
+		}
+		return result;
+	}
+
+	/**
+	 * Helper function resolving a batch of members by unique name.
+	 */
+	private static Map<String, Member> resolveMembers(Query query,
+			Set<String> uniqueNames) throws OlapException {
+		Map<String, Member> result = query.getMemberResolver().lookupMembers(
+				uniqueNames, query);
+		for (String name : uniqueNames) {
+			if (!result.containsKey(name))
+				throw new OlapException("Member not found: " + name);
+		}
+		return result;
+	}
+
+	private static Member[] toMembers(Map<String, Member> members,
+			List<String> uniqueNames) {
+		Member[] result = new Member[uniqueNames.size()];
+		for (int i = 0; i < result.length; ++i)
+			result[i] = members.get(uniqueNames.get(i));
+		return result;
+	}
+
+	private static QueryHierarchy getHierarchy(Query query, String name)
+			throws OlapException {
+		QueryHierarchy h = query.getHierarchy(name);
+		if (h == null)
+			throw new OlapException("Hierarchy not found: " + name);
+		return h;
+	}
+
+	private static Level getLevel(QueryHierarchy h, String uniqueName)
+			throws OlapException {
+		for (Level l : h.getHierarchy().getLevels()) {
+			if (l.getUniqueName().equals(uniqueName))
+				return l;
+		}
+		throw new OlapException("Level not found: " + uniqueName);
+	}
+
+	/**
+	 * <p>
+	 * Writes a state in binary format: a magic number and version, followed
+	 * by a table of the distinct strings of the state and the state
+	 * structure, referencing strings by index.
+	 * </p>
+	 *
+	 * <p>
+	 * Counts and indexes are written as variable length integers, so most of
+	 * them take a single byte.
+	 * </p>
+	 */
+	private static class BinaryWriter {
+		private final Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private final DataOutputStream out = new DataOutputStream(body);
+
+		public byte[] write(State state) throws IOException {
+			writeString(state.name);
+			writeString(state.filterMode);
+			out.writeBoolean(state.legacyExpressions);
+			writeCount(state.axes.size());
+			for (AxisState a : state.axes) {
+				writeString(a.location);
+				out.writeBoolean(a.nonEmpty);
+				writeString(a.crossJoinMode);
+				writeCount(a.hierarchies.size());
+				for (HierarchyState h : a.hierarchies) {
+					writeString(h.name);
+					out.writeBoolean(h.expanded);
+					writeString(h.expansionLevel);
+					writeLimit(h.childrenLimit);
+					writeCount(h.selections.size());
+					for (SelectionState s : h.selections) {
+						out.writeBoolean(s.isLevel);
+						writeString(s.sign);
+						writeString(s.operator);
+						writeString(s.uniqueName);
+					}
+				}
+				writeCount(a.drills.size());
+				for (List<String> drill : a.drills)
+					writeStrings(drill);
+				writeString(a.sortOrder);
+				writeStrings(a.sortCoordinates);
+				writeLimit(a.limit);
+			}
+			out.flush();
+
+			ByteArrayOutputStream result = new ByteArrayOutputStream();
+			DataOutputStream header = new DataOutputStream(result);
+			header.write(MAGIC);
+			header.writeByte(VERSION);
+			writeCount(header, strings.size());
+			for (String s : strings.keySet())
+				header.writeUTF(s);
+			header.flush();
+			body.writeTo(result);
+			return result.toByteArray();
+		}
+
+		private void writeLimit(LimitState limit) throws IOException {
+			out.writeBoolean(limit != null);
+			if (limit != null) {
+				writeString(limit.function);
+				writeString(limit.value);
+				writeStrings(limit.coordinates);
+			}
+		}
+
+		private void writeStrings(List<String> list) throws IOException {
+			if (list == null) {
+				writeCount(0);
+				return;
+			}
+			writeCount(list.size() + 1);
+			for (String s : list)
+				writeString(s);
+		}
+
+		/**
+		 * Writes a string reference: 0 for {@code null}, the string table
+		 * index plus 1 otherwise.
+		 */
+		private void writeString(String s) throws IOException {
+			if (s == null) {
+				writeCount(0);
+				return;
+			}
+			Integer index = strings.get(s);
+			if (index == null) {
+				index = strings.size();
+				strings.put(s, index);
+			}
+			writeCount(index + 1);
+		}
+
+		private void writeCount(int n) throws IOException {
+			writeCount(out, n);
+		}
+
+		private static void writeCount(DataOutputStream out, int n)
+				throws IOException {
+			while ((n & ~0x7F) != 0) {
+				out.writeByte((n & 0x7F) | 0x80);
+				n >>>= 7;
+			}
+			out.writeByte(n);
+		}
+	}
+
+	/**
+	 * Reads a state written by {@link BinaryWriter}.
+	 */
+	private static class BinaryReader {
+		private final DataInputStream in;
+		private String[] strings;
+		private int version;
+
+		public BinaryReader(byte[] data) {
+			in = new DataInputStream(new ByteArrayInputStream(data));
+		}
+
+		public State read() throws IOException {
+			for (byte b : MAGIC) {
+				if (in.readByte() != b)
+					throw new IllegalArgumentException("Invalid query state");
+			}
+			version = in.readUnsignedByte();
+			checkVersion(version);
+			strings = new String[readCount()];
+			for (int i = 0; i < strings.length; ++i)
+				strings[i] = in.readUTF();
+
+			State state = new State();
+			state.name = readString();
+			if (version >= 3) {
+				state.filterMode = readRequiredString();
+				state.legacyExpressions = in.readBoolean();
+			}
+			for (int nAxes = readCount(); nAxes > 0; --nAxes) {
+				AxisState a = new AxisState();
+				a.location = readRequiredString();
+				a.nonEmpty = in.readBoolean();
+				a.crossJoinMode = readRequiredString();
+				for (int nHierarchies = readCount(); nHierarchies > 0; --nHierarchies) {
+					HierarchyState h = new HierarchyState();
+					h.name = readRequiredString();
+					h.expanded = in.readBoolean();
+					if (version >= 2)
+						h.expansionLevel = readString();
+					h.childrenLimit = readLimit();
+					for (int nSelections = readCount(); nSelections > 0; --nSelections) {
+						SelectionState s = new SelectionState();
+						s.isLevel = in.readBoolean();
+						s.sign = readRequiredString();
+						s.operator = readString();
+						s.uniqueName = readRequiredString();
+						h.selections.add(s);
+					}
+					a.hierarchies.add(h);
+				}
+				for (int nDrills = readCount(); nDrills > 0; --nDrills)
+					a.drills.add(readRequiredStrings());
+				a.sortOrder = readString();
+				a.sortCoordinates = readStrings();
+				a.limit = readLimit();
+				state.axes.add(a);
+			}
+			return state;
+		}
+
+		private LimitState readLimit() throws IOException {
+			if (!in.readBoolean())
+				return null;
+			LimitState limit = new LimitState();
+			limit.function = readRequiredString();
+			limit.value = readRequiredString();
+			limit.coordinates = readRequiredStrings();
+			return limit;
+		}
+
+		private List<String> readStrings() throws IOException {
+			int n = readVarint();
+			if (n == 0)
+				return null;
+			checkCount(n - 1);
+			List<String> result = new ArrayList<String>(n - 1);
+			for (int i = 1; i < n; ++i)
+				result.add(readRequiredString());
+			return result;
+		}
+
+		private List<String> readRequiredStrings() throws IOException {
+			List<String> result = readStrings();
+			if (result == null)
+				throw new IllegalArgumentException("Invalid query state");
+			return result;
+		}
+
+		private String readString() throws IOException {
+			int index = readVarint();
+			if (index == 0)
+				return null;
+			if (index > strings.length)
+				throw new IllegalArgumentException("Invalid query state");
+			return strings[index - 1];
+		}
+
+		private String readRequiredString() throws IOException {
+			String result = readString();
+			if (result == null)
+				throw new IllegalArgumentException("Invalid query state");
+			return result;
+		}
+
+		/**
+		 * Reads the number of elements of a list. Every element takes at
+		 * least a byte, so counts above the remaining input are rejected
+		 * before allocating anything.
+		 */
+		private int readCount() throws IOException {
+			int result = readVarint();
+			checkCount(result);
+			return result;
+		}
+
+		private void checkCount(int count) throws IOException {
+			if (count > in.available())
+				throw new IllegalArgumentException("Invalid query state");
+		}
+
+		/**
+		 * Reads a non negative variable length integer.
+		 */
+		private int readVarint() throws IOException {
+			int result = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				int b = in.readUnsignedByte();
+				result |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					if (result < 0)
+						break;
+					return result;
+				}
+			}
+			throw new IllegalArgumentException("Invalid query state");
+		}
+	}
+
+	private static void checkVersion(int version) {
+		if (version < 1 || version > VERSION)
+			throw new IllegalArgumentException(
+					"Unsupported query state version " + version);
+	}
+
+	/**
+	 * Writes a state in JSON format.
+	 */
+	private static class JsonWriter {
+		private final StringBuilder sb = new StringBuilder();
+
+		public static String write(State state) {
+			JsonWriter w = new JsonWriter();
+			w.sb.append("{\"version\":").append(VERSION);
+			w.field("name").string(state.name);
+			w.field("filterMode").string(state.filterMode);
+			w.field("legacyExpressions").sb.append(state.legacyExpressions);
+			w.field("axes").sb.append('[');
+			for (int i = 0; i < state.axes.size(); ++i) {
+				if (i > 0)
+					w.sb.append(',');
+				w.axis(state.axes.get(i));
+			}
+			w.sb.append("]}");
+			return w.sb.toString();
+		}
+
+		private void axis(AxisState a) {
+			sb.append("{\"axis\":");
+			string(a.location);
+			field("nonEmpty").sb.append(a.nonEmpty);
+			field("crossJoinMode").string(a.crossJoinMode);
+			field("hierarchies").sb.append('[');
+			for (int i = 0; i < a.hierarchies.size(); ++i) {
+				if (i > 0)
+					sb.append(',');
+				hierarchy(a.hierarchies.get(i));
+			}
+			sb.append(']');
+			field("drills").sb.append('[');
+			for (int i = 0; i < a.drills.size(); ++i) {
+				if (i > 0)
+					sb.append(',');
+				strings(a.drills.get(i));
+			}
+			sb.append(']');
+			if (a.sortOrder != null) {
+				field("sort").sb.append("{\"order\":");
+				string(a.sortOrder);
+				field("coordinates").strings(a.sortCoordinates);
+				sb.append('}');
+			}
+			if (a.limit != null)
+				field("limit").limit(a.limit);
+			sb.append('}');
+		}
+
+		private void hierarchy(HierarchyState h) {
+			sb.append("{\"name\":");
+			string(h.name);
+			field("expanded").sb.append(h.expanded);
+			if (h.expansionLevel != null)
+				field("expansionLevel").string(h.expansionLevel);
+			if (h.childrenLimit != null)
+				field("childrenLimit").limit(h.childrenLimit);
+			field("selections").sb.append('[');
+			for (int i = 0; i < h.selections.size(); ++i) {
+				SelectionState s = h.selections.get(i);
+				if (i > 0)
+					sb.append(',');
+				sb.append(s.isLevel ? "{\"level\":" : "{\"member\":");
+				string(s.uniqueName);
+				field("sign").string(s.sign);
+				if (s.operator != null)
+					field("operator").string(s.operator);
+				sb.append('}');
+			}
+			sb.append(']');
+			sb.append('}');
+		}
+
+		private void limit(LimitState l) {
+			sb.append("{\"function\":");
+			string(l.function);
+			field("value").sb.append(l.value);
+			field("coordinates").strings(l.coordinates);
+			sb.append('}');
+		}
+
+		private JsonWriter field(String name) {
+			sb.append(',');
+			string(name);
+			sb.append(':');
+			return this;
+		}
+
+		private void strings(List<String> list) {
+			sb.append('[');
+			for (int i = 0; i < list.size(); ++i) {
+				if (i > 0)
+					sb.append(',');
+				string(list.get(i));
+			}
+			sb.append(']');
+		}
+
+		private void string(String s) {
+			if (s == null) {
+				sb.append("null");
+				return;
+			}
+			sb.append('"');
+			for (int i = 0; i < s.length(); ++i) {
+				char c = s.charAt(i);
+				switch (c) {
+				case '"':
+					sb.append("\\\"");
+					break;
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				default:
+					if (c < 0x20)
+						sb.append(String.format("\\u%04x", (int) c));
+					else
+						sb.append(c);
+				}
+			}
+			sb.append('"');
+		}
+	}
+
+	/**
+	 * Minimal JSON parser reading a state written by {@link JsonWriter}.
+	 * Objects are parsed as maps, arrays as lists, numbers as
+	 * {@link BigDecimal}s.
+	 */
+	private static class JsonReader {
+		private final String json;
+		private int pos;
+
+		private JsonReader(String json) {
+			this.json = json;
+		}
+
+		public static State read(String json) {
+			JsonReader r = new JsonReader(json);
+			Object value = r.value();
+			r.skipWhitespace();
+			if (r.pos != json.length())
+				throw r.error();
+
+			Map<?, ?> root = asMap(value);
+			checkVersion(((BigDecimal) get(root, "version", BigDecimal.class))
+					.intValue());
+			State state = new State();
+			state.name = (String) root.get("name");
+			if (root.get("filterMode") != null) {
+				state.filterMode = (String) get(root, "filterMode",
+						String.class);
+			}
+			if (root.get("legacyExpressions") != null) {
+				state.legacyExpressions = (Boolean) get(root,
+						"legacyExpressions", Boolean.class);
+			}
+			for (Object o : asList(get(root, "axes", List.class))) {
+				Map<?, ?> a = asMap(o);
+				AxisState axis = new AxisState();
+				axis.location = (String) get(a, "axis", String.class);
+				axis.nonEmpty = (Boolean) get(a, "nonEmpty", Boolean.class);
+				axis.crossJoinMode = (String) get(a, "crossJoinMode",
+						String.class);
+				for (Object ho : asList(get(a, "hierarchies", List.class)))
+					axis.hierarchies.add(hierarchy(asMap(ho)));
+				for (Object d : asList(get(a, "drills", List.class)))
+					axis.drills.add(strings(d));
+				if (a.get("sort") != null) {
+					Map<?, ?> sort = asMap(a.get("sort"));
+					axis.sortOrder = (String) get(sort, "order", String.class);
+					axis.sortCoordinates = strings(get(sort, "coordinates",
+							List.class));
+				}
+				if (a.get("limit") != null)
+					axis.limit = limit(asMap(a.get("limit")));
+				state.axes.add(axis);
+			}
+			return state;
+		}
+
+		private static HierarchyState hierarchy(Map<?, ?> h) {
+			HierarchyState result = new HierarchyState();
+			result.name = (String) get(h, "name", String.class);
+			result.expanded = (Boolean) get(h, "expanded", Boolean.class);
+			if (h.get("expansionLevel") != null)
+				result.expansionLevel = (String) get(h, "expansionLevel",
+						String.class);
+			if (h.get("childrenLimit") != null)
+				result.childrenLimit = limit(asMap(h.get("childrenLimit")));
+			for (Object so : asList(get(h, "selections", List.class))) {
+				Map<?, ?> s = asMap(so);
+				SelectionState selection = new SelectionState();
+				selection.isLevel = s.containsKey("level");
+				selection.uniqueName = (String) get(s,
+						selection.isLevel ? "level" : "member", String.class);
+				selection.sign = (String) get(s, "sign", String.class);
+				if (!selection.isLevel)
+					selection.operator = (String) get(s, "operator",
+							String.class);
+				result.selections.add(selection);
+			}
+			return result;
+		}
+
+		private static LimitState limit(Map<?, ?> l) {
+			LimitState result = new LimitState();
+			result.function = (String) get(l, "function", String.class);
+			result.value = ((BigDecimal) get(l, "value", BigDecimal.class))
+					.toPlainString();
+			result.coordinates = strings(get(l, "coordinates", List.class));
+			return result;
+		}
+
+		private static Object get(Map<?, ?> map, String key, Class<?> type) {
+			Object value = map.get(key);
+			if (!type.isInstance(value))
+				throw new IllegalArgumentException("Invalid query state: "
+						+ key);
+			return value;
+		}
+
+		private static Map<?, ?> asMap(Object o) {
+			if (!(o instanceof Map<?, ?>))
+				throw new IllegalArgumentException("Invalid query state");
+			return (Map<?, ?>) o;
+		}
+
+		private static List<?> asList(Object o) {
+			if (!(o instanceof List<?>))
+				throw new IllegalArgumentException("Invalid query state");
+			return (List<?>) o;
+		}
+
+		private static List<String> strings(Object o) {
+			List<String> result = new ArrayList<String>();
+			for (Object s : asList(o)) {
+				if (!(s instanceof String))
+					throw new IllegalArgumentException("Invalid query state");
+				result.add((String) s);
+			}
+			return result;
+		}
+
+		private Object value() {
+			skipWhitespace();
+			if (pos >= json.length())
+				throw error();
+			char c = json.charAt(pos);
+			switch (c) {
+			case '{':
+				return object();
+			case '[':
+				return array();
+			case '"':
+				return string();
+			default:
+				if (json.startsWith("true", pos)) {
+					pos += 4;
+					return Boolean.TRUE;
+				}
+				if (json.startsWith("false", pos)) {
+					pos += 5;
+					return Boolean.FALSE;
+				}
+				if (json.startsWith("null", pos)) {
+					pos += 4;
+					return null;
+				}
+				return number();
+			}
+		}
+
+		private Map<String, Object> object() {
+			Map<String, Object> result = new LinkedHashMap<String, Object>();
+			++pos;
+			skipWhitespace();
+			if (peek() == '}') {
+				++pos;
+				return result;
+			}
+			while (true) {
+				skipWhitespace();
+				if (peek() != '"')
+					throw error();
+				String key = string();
+				skipWhitespace();
+				expect(':');
+				result.put(key, value());
+				skipWhitespace();
+				if (peek() == ',') {
+					++pos;
+					continue;
+				}
+				expect('}');
+				return result;
+			}
+		}
+
+		private List<Object> array() {
+			List<Object> result = new ArrayList<Object>();
+			++pos;
+			skipWhitespace();
+			if (peek() == ']') {
+				++pos;
+				return result;
+			}
+			while (true) {
+				result.add(value());
+				skipWhitespace();
+				if (peek() == ',') {
+					++pos;
+					continue;
+				}
+				expect(']');
+				return result;
+			}
+		}
+
+		private String string() {
+			StringBuilder sb = new StringBuilder();
+			++pos;
+			while (true) {
+				char c = next();
+				if (c == '"')
+					return sb.toString();
+				if (c != '\\') {
+					sb.append(c);
+					continue;
+				}
+				c = next();
+				switch (c) {
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'u':
+					if (pos + 4 > json.length())
+						throw error();
+					try {
+						sb.append((char) Integer.parseInt(
+								json.substring(pos, pos + 4), 16));
+					} catch (NumberFormatException e) {
+						throw error();
+					}
+					pos += 4;
+					break;
+				default:
+					sb.append(c);
+				}
+			}
+		}
+
+		private BigDecimal number() {
+			int start = pos;
+			while (pos < json.length()
+					&& "+-0123456789.eE".indexOf(json.charAt(pos)) >= 0)
+				++pos;
+			try {
+				return new BigDecimal(json.substring(start, pos));
+			} catch (NumberFormatException e) {
+				throw error();
+			}
+		}
+
+		private void skipWhitespace() {
+			while (pos < json.length()
+					&& Character.isWhitespace(json.charAt(pos)))
+				++pos;
+		}
+
+		private char peek() {
+			if (pos >= json.length())
+				throw error();
+			return json.charAt(pos);
+		}
+
+		private char next() {
+			char c = peek();
+			++pos;
+			return c;
+		}
+
+		private void expect(char c) {
+			if (next() != c)
+				throw error();
+		}
+
+		private IllegalArgumentException error() {
+			return new IllegalArgumentException(
+					"Invalid query state: JSON syntax error at " + pos);
+		}
+	}
+}
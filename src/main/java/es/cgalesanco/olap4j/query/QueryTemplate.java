@@ -0,0 +1,87 @@
+package es.cgalesanco.olap4j.query;
+
+import org.olap4j.OlapException;
+import org.olap4j.metadata.Cube;
+
+/**
+ * <p>
+ * A frozen snapshot of a {@link Query}, used to create many queries starting
+ * from the same state (e.g. a dashboard opened by many users).
+ * </p>
+ *
+ * <p>
+ * Queries created by a template share the template hierarchy selections and
+ * axis drills copy-on-write: a query copies the selection tree of a hierarchy
+ * (or the drill tree of an axis) the first time it modifies it. The memory
+ * used by every query is proportional to what it changes.
+ * </p>
+ *
+ * <p>
+ * Changes to the base query after creating the template don't affect the
+ * template. Templates are thread safe.
+ * </p>
+ *
+ * @author César García
+ *
+ */
+public class QueryTemplate {
+	private final Query frozen;
+
+	/**
+	 * Creates a template from the current state of a query.
+	 *
+	 * @param base
+	 *            the query to freeze.
+	 */
+	public QueryTemplate(Query base) {
+		frozen = new Query(base.getName(), base);
+	}
+
+	public String getName() {
+		return frozen.getName();
+	}
+
+	public Cube getCube() {
+		return frozen.getCube();
+	}
+
+	/**
+	 * Creates a query with the state of this template, named as the template.
+	 *
+	 * @return a new query.
+	 */
+	public Query newQuery() {
+		return newQuery(frozen.getName());
+	}
+
+	/**
+	 * Creates a query with the state of this template.
+	 *
+	 * @param name
+	 *            the name of the new query.
+	 * @return a new query.
+	 */
+	public Query newQuery(String name) {
+		synchronized (frozen) {
+			return new Query(name, frozen);
+		}
+	}
+
+	/**
+	 * Generates the MDX of this template once, replacing some hierarchies
+	 * with member parameters bound at execution time.
+	 *
+	 * @param parameters
+	 *            the names of the parameter hierarchies, typically
+	 *            hierarchies of the filter axis.
+	 * @return the prepared query.
+	 * @throws IllegalArgumentException
+	 *             if a parameter hierarchy doesn't exist or is not used by the
+	 *             template.
+	 * @throws OlapException
+	 *             if an error occurs while generating the MDX.
+	 */
+	public PreparedQuery prepare(String... parameters) throws OlapException {
+		return new PreparedQuery(newQuery(), parameters);
+	}
+}
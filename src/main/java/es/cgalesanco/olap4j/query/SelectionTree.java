@@ -445,6 +445,60 @@ class SelectionTree {
 		}
 	}
 
+	/**
+	 * Copies this tree. Members and level selections are shared, nodes are
+	 * not.
+	 * 
+	 * @return a copy of this tree.
+	 */
+	SelectionTree copy() {
+		SelectionTree result = new SelectionTree(levels);
+		result.levelSelections.putAll(levelSelections);
+		result.currentSequence = currentSequence;
+		result.root = result.copyNode(root, null);
+		return result;
+	}
+
+	/**
+	 * Helper function copying a node (of another tree) and its overriding
+	 * children into this tree.
+	 */
+	private SelectionNode copyNode(SelectionNode source, SelectionNode parent) {
+		SelectionNode result = parent == null ? new SelectionNode()
+				: new SelectionNode(parent, source.member);
+		result.selections = new EnumMap<Operator, Sign>(source.selections);
+		result.sequence = source.sequence;
+		for (SelectionNode child : source.overridingChildren)
+			result.overridingChildren.add(copyNode(child, result));
+		return result;
+	}
+
+	SelectionNode getRoot() {
+		return root;
+	}
+
+	List<Level> getLevels() {
+		return levels;
+	}
+
+	/**
+	 * Counts the nodes of this tree.
+	 * 
+	 * @return the number of nodes of this tree, including the root.
+	 */
+	int countNodes() {
+		int result = 0;
+		Stack<SelectionNode> pending = new Stack<SelectionNode>();
+		pending.push(root);
+		while (!pending.isEmpty()) {
+			SelectionNode node = pending.pop();
+			++result;
+			for (SelectionNode child : node.getOverridingChildren())
+				pending.push(child);
+		}
+		return result;
+	}
+
 	public SelectionNode find(Member member) {
 		Stack<Member> path = createPathTo(member);
 		return find(path);
@@ -496,8 +550,17 @@ class SelectionTree {
 	/**
 	 * Implementation toOlap4j for filter axes.
 	 */
-	ParseTreeNode toOlap4jFilter() {
-		return toOlap4jFilter(root);
+	ParseTreeNode toOlap4jFilter(ExpressionCostModel costModel) {
+		return toOlap4jFilter(root, costModel, null);
+	}
+
+	/**
+	 * Implementation of toOlap4j() for filter axes, recording the fragments
+	 * produced by every selection node.
+	 */
+	ParseTreeNode toOlap4jFilter(ExpressionCostModel costModel,
+			ExpansionTrace trace) {
+		return toOlap4jFilter(root, costModel, trace);
 	}
 
 	/**
@@ -506,9 +569,15 @@ class SelectionTree {
 	 * 
 	 * @param selectionNode
 	 *            current node
+	 * @param costModel
+	 *            chooses the formulation of the non overriding children set.
+	 * @param trace
+	 *            trace recording the generated fragments; {@code null} if not
+	 *            tracing.
 	 * @return the parse tree.
 	 */
-	private ParseTreeNode toOlap4jFilter(SelectionNode selectionNode) {
+	private ParseTreeNode toOlap4jFilter(SelectionNode selectionNode,
+			ExpressionCostModel costModel, ExpansionTrace trace) {
 		Sign selectionSign = selectionNode.getDefaultSign();
 
 		if (!selectionNode.hasOverridingChildren()) {
@@ -516,7 +585,8 @@ class SelectionTree {
 			// the corresponding MemberNode if the member is included, void in
 			// other case.
 			if (selectionNode.getMemberSign() == Sign.INCLUDE)
-				return Mdx.member(selectionNode.getMember());
+				return traceFilter(trace, selectionNode,
+						Mdx.member(selectionNode.getMember()));
 			else
 				return null;
 		} else {
@@ -527,35 +597,56 @@ class SelectionTree {
 				// Current node is included, so overriding children are excluded
 				// or have excluded descendants.
 
-				UnionBuilder overridingChildren = new UnionBuilder();
+				List<Member> overridingChildren = new ArrayList<Member>();
 				for (SelectionNode overriding : selectionNode
 						.getOverridingChildren()) {
-					overridingChildren.add(Mdx.member(overriding.getMember()));
-					finalExpression.add(toOlap4jFilter(overriding));
+					overridingChildren.add(overriding.getMember());
+					finalExpression.add(toOlap4jFilter(overriding, costModel,
+							trace));
 				}
 
 				// Return the set of non overriding children plus recursive
 				// expression evaluations
-				finalExpression.add(Mdx.except(
-						Mdx.children(selectionNode.getMember()),
-						overridingChildren.getUnionNode()));
+				finalExpression.add(traceFilter(trace, selectionNode,
+						costModel.children(selectionNode.getMember(),
+								overridingChildren)));
 			} else {
 				// Current node is excluded, returns the union of recursive
 				// evaluation for overriding children.
 				for (SelectionNode overriding : selectionNode
 						.getOverridingChildren()) {
-					finalExpression.add(toOlap4jFilter(overriding));
+					finalExpression.add(toOlap4jFilter(overriding, costModel,
+							trace));
 				}
 			}
 			return finalExpression.getUnionNode();
 		}
 	}
 
+	private static ParseTreeNode traceFilter(ExpansionTrace trace,
+			SelectionNode source, ParseTreeNode fragment) {
+		if (trace != null) {
+			trace.setSource(source);
+			trace.record("include", fragment);
+		}
+		return fragment;
+	}
+
 	/**
 	 * Implementation of toOlap4j() for query axes.
 	 */
-	ParseTreeNode toOlap4jQuery(HierarchyExpander expander) {
-		return expander.expand(root, levels);
+	ParseTreeNode toOlap4jQuery(HierarchyExpander expander,
+			ExpressionCostModel costModel) {
+		return expander.expand(root, levels, costModel);
+	}
+
+	/**
+	 * Implementation of toOlap4j() for query axes, recording the fragments
+	 * produced by every selection.
+	 */
+	ParseTreeNode toOlap4jQuery(HierarchyExpander expander,
+			ExpressionCostModel costModel, ExpansionTrace trace) {
+		return expander.expand(root, levels, costModel, trace);
 	}
 
 	public boolean isIncluded(Member member) {
@@ -798,4 +889,4 @@ class SelectionTree {
 		return memberNode == null ? null : memberNode.getMember();
 	}
 	
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -8,11 +8,37 @@ import org.olap4j.mdx.MemberNode;
 import org.olap4j.mdx.ParseTreeNode;
 import org.olap4j.mdx.Syntax;
 
+import es.cgalesanco.olap4j.query.CrossJoinMode;
+
 /**
  * Helper class to create MDX Crossjoin expressions.
  */
 public class CrossJoinBuilder {
 	public ParseTreeNode expression;
+	private final CrossJoinMode mode;
+	private final ParseTreeNode nonEmptyContext;
+
+	/**
+	 * Creates a builder generating plain <code>CrossJoin</code> calls.
+	 */
+	public CrossJoinBuilder() {
+		this(CrossJoinMode.CROSSJOIN, null);
+	}
+
+	/**
+	 * Creates a builder joining sets with the given mode.
+	 * 
+	 * @param mode
+	 *            the join mode.
+	 * @param nonEmptyContext
+	 *            set of measures to test for empty tuples when using
+	 *            {@link CrossJoinMode#NON_EMPTY}. If {@code null} tuples are
+	 *            tested in the slicer context.
+	 */
+	public CrossJoinBuilder(CrossJoinMode mode, ParseTreeNode nonEmptyContext) {
+		this.mode = mode;
+		this.nonEmptyContext = nonEmptyContext;
+	}
 
 	public void join(ParseTreeNode n) {
 		if (n == null)
@@ -38,8 +64,7 @@ public class CrossJoinBuilder {
 				args.addAll(cN.getArgList());
 				expression = new CallNode(null, "()", Syntax.Parentheses, args);
 			} else {
-				expression = new CallNode(null, "CrossJoin", Syntax.Function,
-						expression, n);
+				expression = crossJoin(expression, n);
 			}
 		} else if (isTuple(expression)) {
 			CallNode cExpression = (CallNode) expression;
@@ -57,12 +82,30 @@ public class CrossJoinBuilder {
 					args[originalSize+i] = addNode.getArgList().get(i);
 				expression = new CallNode(null,"()",Syntax.Parentheses, args);
 			} else {
-				expression = new CallNode(null, "CrossJoin", Syntax.Function,
-						expression, n);
+				expression = crossJoin(expression, n);
 			}
 		} else {
-			expression = new CallNode(null, "CrossJoin", Syntax.Function,
-					expression, n);
+			expression = crossJoin(expression, n);
+		}
+	}
+
+	private ParseTreeNode crossJoin(ParseTreeNode left, ParseTreeNode right) {
+		switch (mode) {
+		case NON_EMPTY_CROSSJOIN:
+			return new CallNode(null, "NonEmptyCrossJoin", Syntax.Function,
+					left, right);
+
+		case NON_EMPTY:
+			CallNode join = new CallNode(null, "CrossJoin", Syntax.Function,
+					left, right);
+			if (nonEmptyContext == null)
+				return new CallNode(null, "NonEmpty", Syntax.Function, join);
+			return new CallNode(null, "NonEmpty", Syntax.Function, join,
+					Mdx.set(nonEmptyContext));
+
+		default:
+			return new CallNode(null, "CrossJoin", Syntax.Function, left,
+					right);
 		}
 	}
 
@@ -1,17 +1,28 @@
 package es.cgalesanco.olap4j.query.mdx;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.List;
 
+import org.olap4j.mdx.AxisNode;
 import org.olap4j.mdx.CallNode;
+import org.olap4j.mdx.HierarchyNode;
+import org.olap4j.mdx.IdentifierNode;
 import org.olap4j.mdx.LevelNode;
 import org.olap4j.mdx.LiteralNode;
 import org.olap4j.mdx.MemberNode;
+import org.olap4j.mdx.NameSegment;
 import org.olap4j.mdx.ParseTreeNode;
+import org.olap4j.mdx.PropertyValueNode;
+import org.olap4j.mdx.SelectNode;
 import org.olap4j.mdx.Syntax;
+import org.olap4j.mdx.WithMemberNode;
+import org.olap4j.mdx.WithSetNode;
+import org.olap4j.metadata.Hierarchy;
 import org.olap4j.metadata.Level;
 import org.olap4j.metadata.Member;
 
+import es.cgalesanco.olap4j.query.LimitFunction;
 import es.cgalesanco.olap4j.query.SortOrder;
 
 /**
@@ -29,6 +40,40 @@ public class Mdx {
 		return new CallNode(null, "Children", Syntax.Property, member(member));
 	}
 
+	public static CallNode children(ParseTreeNode member) {
+		return new CallNode(null, "Children", Syntax.Property, member);
+	}
+
+	public static CallNode currentMember(Hierarchy hierarchy) {
+		return new CallNode(null, "CurrentMember", Syntax.Property,
+				new HierarchyNode(null, hierarchy));
+	}
+
+	/**
+	 * Generates a member parameter, bound when executing the query through a
+	 * {@link org.olap4j.PreparedOlapStatement}.
+	 * 
+	 * @param name
+	 *            the parameter name.
+	 * @param hierarchy
+	 *            the hierarchy of the bound members.
+	 * @param defaultValue
+	 *            the value of the parameter while it's unbound.
+	 * @return the <code>Parameter</code> call.
+	 */
+	public static CallNode parameter(String name, Hierarchy hierarchy,
+			Member defaultValue) {
+		return new CallNode(null, "Parameter", Syntax.Function,
+				LiteralNode.createString(null, name), new HierarchyNode(null,
+						hierarchy), member(defaultValue));
+	}
+
+	public static ParseTreeNode generate(ParseTreeNode set, ParseTreeNode expression) {
+		if ( set == null )
+			return null;
+		return new CallNode(null, "Generate", Syntax.Function, set(set), expression);
+	}
+
 	public static ParseTreeNode except(ParseTreeNode from, ParseTreeNode except) {
 		if ( except == null )
 			return from;
@@ -87,23 +132,161 @@ public class Mdx {
 		return new CallNode(null, "Descendants",Syntax.Function, from, new LevelNode(null, l));
 	}
 
+	public static ParseTreeNode descendants(ParseTreeNode from, Level l,
+			String flag) {
+		if ( from == null )
+			return null;
+
+		return new CallNode(null, "Descendants", Syntax.Function, from,
+				new LevelNode(null, l), LiteralNode.createSymbol(null, flag));
+	}
+
+	/**
+	 * Generates the members of a set also in another, in the order of the
+	 * first set.
+	 */
+	public static ParseTreeNode intersect(ParseTreeNode set1, ParseTreeNode set2) {
+		return new CallNode(null, "Intersect", Syntax.Function, set(set1),
+				set(set2));
+	}
+
 	public static ParseTreeNode order(ParseTreeNode axisExpression,
 			List<Member> sortPosition, SortOrder sortOrder) {
-		MemberNode[] members = new MemberNode[sortPosition.size()];
-		int i = 0;
-		for(Member m : sortPosition) {
-			members[i++] = new MemberNode(null,m);
-		}
 		return new CallNode(
 				null, 
 				"Order", 
 				Syntax.Function,
 				axisExpression,
-				new CallNode(null, "()", Syntax.Parentheses, members),
+				tuple(sortPosition),
 				LiteralNode.createSymbol(null, sortOrder.toString())
 			);
 	}
 
+	public static ParseTreeNode limit(ParseTreeNode axisExpression,
+			LimitFunction function, BigDecimal value, List<Member> coordinates) {
+		LiteralNode limitValue = LiteralNode.createNumeric(null, value, false);
+		if ( coordinates == null || coordinates.isEmpty() )
+			return new CallNode(null, function.getMdxFunction(), Syntax.Function,
+					axisExpression, limitValue);
+		return new CallNode(
+				null,
+				function.getMdxFunction(),
+				Syntax.Function,
+				axisExpression,
+				limitValue,
+				tuple(coordinates)
+			);
+	}
+
+	public static CallNode tuple(List<Member> members) {
+		MemberNode[] nodes = new MemberNode[members.size()];
+		int i = 0;
+		for(Member m : members) {
+			nodes[i++] = new MemberNode(null,m);
+		}
+		return new CallNode(null, "()", Syntax.Parentheses, nodes);
+	}
+
+	/**
+	 * Generates a tuple of member expressions.
+	 */
+	public static CallNode tuple(ParseTreeNode... members) {
+		return new CallNode(null, "()", Syntax.Parentheses, members);
+	}
+
+	/**
+	 * Generates the aggregation of a set, <code>Aggregate(set)</code>.
+	 */
+	public static CallNode aggregate(ParseTreeNode set) {
+		return new CallNode(null, "Aggregate", Syntax.Function, set);
+	}
+
+	/**
+	 * Generates the definition of a calculated member,
+	 * <code>MEMBER name AS expression</code>.
+	 */
+	public static WithMemberNode withMember(IdentifierNode name,
+			ParseTreeNode expression) {
+		return new WithMemberNode(null, name, expression,
+				new ArrayList<PropertyValueNode>());
+	}
+
+	/**
+	 * Generates the definition of a named set, <code>SET name AS set</code>.
+	 * Named sets are evaluated once per query, not in the context of every
+	 * cell.
+	 */
+	public static WithSetNode withSet(IdentifierNode name, ParseTreeNode set) {
+		return new WithSetNode(null, name, set(set));
+	}
+
+	/**
+	 * Generates the name of a named set related to a member,
+	 * <code>[name member]</code>.
+	 */
+	public static IdentifierNode namedSet(Member member, String name) {
+		return new IdentifierNode(new NameSegment(name + " "
+				+ member.getUniqueName()));
+	}
+
+	/**
+	 * Generates the members of a set satisfying a condition,
+	 * <code>Filter(set, condition)</code>.
+	 */
+	public static ParseTreeNode filter(ParseTreeNode set,
+			ParseTreeNode condition) {
+		return new CallNode(null, "Filter", Syntax.Function, set(set),
+				condition);
+	}
+
+	/**
+	 * Generates a condition checking if a set is not empty,
+	 * <code>Count(set) > 0</code>.
+	 */
+	public static ParseTreeNode isNotEmpty(ParseTreeNode set) {
+		return new CallNode(null, ">", Syntax.Infix, new CallNode(null,
+				"Count", Syntax.Function, set(set)), LiteralNode.createNumeric(
+				null, BigDecimal.ZERO, false));
+	}
+
+	/**
+	 * Generates the conjunction of two conditions, <code>c1 AND c2</code>.
+	 */
+	public static ParseTreeNode and(ParseTreeNode c1, ParseTreeNode c2) {
+		return new CallNode(null, "AND", Syntax.Infix, c1, c2);
+	}
+
+	/**
+	 * Generates the name of a calculated member of a hierarchy.
+	 */
+	public static IdentifierNode calculatedMember(Hierarchy hierarchy,
+			String name) {
+		return IdentifierNode.parseIdentifier(hierarchy.getUniqueName())
+				.append(new NameSegment(name));
+	}
+
+	/**
+	 * Generates the name of a calculated member child of a member.
+	 */
+	public static IdentifierNode calculatedMember(Member parent, String name) {
+		return IdentifierNode.parseIdentifier(parent.getUniqueName()).append(
+				new NameSegment(name));
+	}
+
+	public static ParseTreeNode subset(ParseTreeNode set, long start, long count) {
+		return new CallNode(null, "Subset", Syntax.Function, set,
+				LiteralNode.createNumeric(null, BigDecimal.valueOf(start), false),
+				LiteralNode.createNumeric(null, BigDecimal.valueOf(count), false));
+	}
+
+	/**
+	 * Generates the subset of a set from a position to its end.
+	 */
+	public static ParseTreeNode subset(ParseTreeNode set, long start) {
+		return new CallNode(null, "Subset", Syntax.Function, set,
+				LiteralNode.createNumeric(null, BigDecimal.valueOf(start), false));
+	}
+
 	public static ParseTreeNode hierarchize(ParseTreeNode n) {
 		if ( n == null )
 			return null;
@@ -117,4 +300,49 @@ public class Mdx {
 	public static ParseTreeNode members(Level level) {
 		return new CallNode(null, "Members", Syntax.Property, new LevelNode(null, level));
 	}
+
+	/**
+	 * Counts the nodes of a parse tree.
+	 * 
+	 * @param node
+	 *            the root of the parse tree.
+	 * @return the number of nodes of the tree; 0 for a {@code null} tree.
+	 */
+	public static int countNodes(ParseTreeNode node) {
+		return count(node, false);
+	}
+
+	/**
+	 * Counts the member literals of a parse tree.
+	 * 
+	 * @param node
+	 *            the root of the parse tree.
+	 * @return the number of {@link MemberNode}s of the tree; 0 for a
+	 *         {@code null} tree.
+	 */
+	public static int countMembers(ParseTreeNode node) {
+		return count(node, true);
+	}
+
+	private static int count(ParseTreeNode node, boolean membersOnly) {
+		if (node == null)
+			return 0;
+
+		int result = !membersOnly || node instanceof MemberNode ? 1 : 0;
+		if (node instanceof CallNode) {
+			for (ParseTreeNode arg : ((CallNode) node).getArgList())
+				result += count(arg, membersOnly);
+		} else if (node instanceof AxisNode) {
+			result += count(((AxisNode) node).getExpression(), membersOnly);
+		} else if (node instanceof SelectNode) {
+			SelectNode select = (SelectNode) node;
+			for (ParseTreeNode with : select.getWithList())
+				result += count(with, membersOnly);
+			for (AxisNode axis : select.getAxisList())
+				result += count(axis, membersOnly);
+			result += count(select.getFilterAxis(), membersOnly);
+			result += count(select.getFrom(), membersOnly);
+		}
+		return result;
+	}
 }
@@ -0,0 +1,48 @@
+package es.cgalesanco.olap4j.query.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link QueryMetrics} forwarding every measurement to a list of delegates,
+ * e.g. to report both to a per tenant and to a global sink.
+ * 
+ * @author César García
+ * 
+ */
+public class CompositeQueryMetrics implements QueryMetrics {
+	private final List<QueryMetrics> delegates;
+
+	public CompositeQueryMetrics(QueryMetrics... delegates) {
+		this.delegates = new ArrayList<QueryMetrics>();
+		Collections.addAll(this.delegates, delegates);
+	}
+
+	@Override
+	public boolean isEnabled() {
+		for (QueryMetrics m : delegates) {
+			if (m.isEnabled())
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void recordTime(String name, long nanos) {
+		for (QueryMetrics m : delegates)
+			m.recordTime(name, nanos);
+	}
+
+	@Override
+	public void increment(String name, long delta) {
+		for (QueryMetrics m : delegates)
+			m.increment(name, delta);
+	}
+
+	@Override
+	public void recordValue(String name, long value) {
+		for (QueryMetrics m : delegates)
+			m.recordValue(name, value);
+	}
+}
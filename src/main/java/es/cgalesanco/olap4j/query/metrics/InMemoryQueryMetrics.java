@@ -0,0 +1,161 @@
+package es.cgalesanco.olap4j.query.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ * {@link QueryMetrics} aggregating measurements in memory.
+ * </p>
+ * 
+ * <p>
+ * For every name keeps the number of measurements and their total, minimum
+ * and maximum values. Snapshots can be polled to feed metrics libraries (as
+ * gauges) or monitoring endpoints.
+ * </p>
+ * 
+ * @author César García
+ * 
+ */
+public class InMemoryQueryMetrics implements QueryMetrics {
+
+	/**
+	 * Aggregated measurements of a name.
+	 */
+	public static class Statistic {
+		private long count;
+		private long total;
+		private long min = Long.MAX_VALUE;
+		private long max = Long.MIN_VALUE;
+
+		private Statistic() {
+		}
+
+		private Statistic(Statistic s) {
+			count = s.count;
+			total = s.total;
+			min = s.min;
+			max = s.max;
+		}
+
+		private void add(long value) {
+			++count;
+			total += value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+
+		/**
+		 * Returns the number of measurements.
+		 * 
+		 * @return the number of measurements.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Returns the sum of the measurements values.
+		 * 
+		 * @return the sum of the measurements values.
+		 */
+		public long getTotal() {
+			return total;
+		}
+
+		public long getMin() {
+			return min;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : (double) total / count;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + ", total=" + total + ", min=" + min
+					+ ", max=" + max;
+		}
+	}
+
+	private final ConcurrentMap<String, Statistic> statistics;
+
+	public InMemoryQueryMetrics() {
+		statistics = new ConcurrentHashMap<String, Statistic>();
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return true;
+	}
+
+	@Override
+	public void recordTime(String name, long nanos) {
+		add(name, nanos);
+	}
+
+	@Override
+	public void increment(String name, long delta) {
+		add(name, delta);
+	}
+
+	@Override
+	public void recordValue(String name, long value) {
+		add(name, value);
+	}
+
+	private void add(String name, long value) {
+		Statistic s = statistics.get(name);
+		if (s == null) {
+			Statistic created = new Statistic();
+			s = statistics.putIfAbsent(name, created);
+			if (s == null)
+				s = created;
+		}
+		synchronized (s) {
+			s.add(value);
+		}
+	}
+
+	/**
+	 * Returns a copy of the measurements aggregated for a name.
+	 * 
+	 * @param name
+	 *            the measurement name.
+	 * @return the aggregated measurements. {@code null} if nothing was
+	 *         recorded for {@code name}.
+	 */
+	public Statistic getStatistic(String name) {
+		Statistic s = statistics.get(name);
+		if (s == null)
+			return null;
+		synchronized (s) {
+			return new Statistic(s);
+		}
+	}
+
+	/**
+	 * Returns a copy of every aggregated measurement, sorted by name.
+	 * 
+	 * @return the aggregated measurements.
+	 */
+	public Map<String, Statistic> getStatistics() {
+		Map<String, Statistic> result = new TreeMap<String, Statistic>();
+		for (String name : statistics.keySet())
+			result.put(name, getStatistic(name));
+		return result;
+	}
+
+	/**
+	 * Discards every measurement.
+	 */
+	public void reset() {
+		statistics.clear();
+	}
+}
@@ -0,0 +1,339 @@
+package es.cgalesanco.olap4j.query.metrics;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.MetadataElement;
+import org.olap4j.metadata.NamedList;
+
+/**
+ * <p>
+ * Diagnostic tool counting the olap4j metadata calls made by the query model.
+ * </p>
+ *
+ * <p>
+ * {@link #wrap(Cube)} returns a proxy of a cube; every metadata object
+ * reachable from it (dimensions, hierarchies, levels, members and lists of
+ * them) is proxied too. Each call to a proxied object is counted per
+ * operation (interface and method name) and, optionally, per call site: the
+ * first stack frame outside this class and the proxies, usually the library
+ * method triggering the call. Queries built over the wrapped cube report
+ * every metadata access, showing which paths cause driver round trips:
+ * </p>
+ *
+ * <pre>
+ * MetadataProfiler profiler = new MetadataProfiler(true);
+ * Query q = new Query(&quot;Profiled&quot;, profiler.wrap(cube));
+ * // ... build the query
+ * profiler.reset();
+ * q.getSelect();
+ * System.out.println(profiler.report());
+ * </pre>
+ *
+ * <p>
+ * Proxies compare equal to the objects they wrap (when compared from the
+ * proxy side) and unwrap their arguments before delegating. Drivers
+ * resolving the parse tree members by class may fail to execute queries
+ * built over a wrapped cube, so this tool is intended for profiling MDX
+ * generation and selection handling, not for production use.
+ * </p>
+ *
+ * @author César García
+ *
+ */
+public class MetadataProfiler {
+	private final boolean captureCallSites;
+	private final ConcurrentMap<String, AtomicLong> operationCounts;
+	private final ConcurrentMap<String, AtomicLong> callSiteCounts;
+
+	/**
+	 * Creates a profiler counting calls per operation only.
+	 */
+	public MetadataProfiler() {
+		this(false);
+	}
+
+	/**
+	 * Creates a profiler.
+	 *
+	 * @param captureCallSites
+	 *            {@code true} to count calls per call site too. Capturing call
+	 *            sites requires a stack trace per call.
+	 */
+	public MetadataProfiler(boolean captureCallSites) {
+		this.captureCallSites = captureCallSites;
+		operationCounts = new ConcurrentHashMap<String, AtomicLong>();
+		callSiteCounts = new ConcurrentHashMap<String, AtomicLong>();
+	}
+
+	/**
+	 * Wraps a cube into a profiling proxy.
+	 *
+	 * @param cube
+	 *            the cube to wrap.
+	 * @return the profiling proxy.
+	 */
+	public Cube wrap(Cube cube) {
+		return (Cube) wrapObject(cube);
+	}
+
+	/**
+	 * Returns the number of calls per operation.
+	 *
+	 * @return the number of calls per operation (e.g.
+	 *         {@code Member.getChildMembers}), sorted by decreasing count.
+	 */
+	public Map<String, Long> getOperationCounts() {
+		return snapshot(operationCounts);
+	}
+
+	/**
+	 * Returns the number of calls per operation and call site.
+	 *
+	 * @return the number of calls per call site (e.g.
+	 *         {@code Member.getChildMembers <- SelectionTree.hasChildren(SelectionTree.java:712)}
+	 *         ), sorted by decreasing count. Empty if call sites aren't
+	 *         captured.
+	 */
+	public Map<String, Long> getCallSiteCounts() {
+		return snapshot(callSiteCounts);
+	}
+
+	/**
+	 * Returns the total number of metadata calls.
+	 *
+	 * @return the total number of metadata calls.
+	 */
+	public long getTotalCount() {
+		long result = 0;
+		for (AtomicLong count : operationCounts.values())
+			result += count.get();
+		return result;
+	}
+
+	/**
+	 * Discards every count, e.g. before profiling an operation.
+	 */
+	public void reset() {
+		operationCounts.clear();
+		callSiteCounts.clear();
+	}
+
+	/**
+	 * Generates a human readable report of the counts.
+	 *
+	 * @return the report.
+	 */
+	public String report() {
+		StringWriter swr = new StringWriter();
+		PrintWriter wr = new PrintWriter(swr);
+		wr.println("Metadata calls: " + getTotalCount());
+		for (Entry<String, Long> e : getOperationCounts().entrySet())
+			wr.printf("%10d  %s%n", e.getValue(), e.getKey());
+		if (captureCallSites) {
+			wr.println("Call sites:");
+			for (Entry<String, Long> e : getCallSiteCounts().entrySet())
+				wr.printf("%10d  %s%n", e.getValue(), e.getKey());
+		}
+		wr.flush();
+		return swr.toString();
+	}
+
+	private static Map<String, Long> snapshot(Map<String, AtomicLong> counts) {
+		List<Entry<String, Long>> entries = new ArrayList<Entry<String, Long>>();
+		for (Entry<String, AtomicLong> e : counts.entrySet()) {
+			entries.add(new SimpleImmutableEntry<String, Long>(e.getKey(), e
+					.getValue().get()));
+		}
+		Collections.sort(entries, new Comparator<Entry<String, Long>>() {
+			@Override
+			public int compare(Entry<String, Long> o1, Entry<String, Long> o2) {
+				long c1 = o1.getValue();
+				long c2 = o2.getValue();
+				if (c1 != c2)
+					return c1 > c2 ? -1 : 1;
+				return o1.getKey().compareTo(o2.getKey());
+			}
+		});
+
+		Map<String, Long> result = new LinkedHashMap<String, Long>();
+		for (Entry<String, Long> e : entries)
+			result.put(e.getKey(), e.getValue());
+		return result;
+	}
+
+	private static void increment(ConcurrentMap<String, AtomicLong> counts,
+			String key) {
+		AtomicLong count = counts.get(key);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = counts.putIfAbsent(key, created);
+			if (count == null)
+				count = created;
+		}
+		count.incrementAndGet();
+	}
+
+	private void count(Method method) {
+		String operation = method.getDeclaringClass().getSimpleName() + "."
+				+ method.getName();
+		increment(operationCounts, operation);
+		if (captureCallSites)
+			increment(callSiteCounts, operation + " <- " + findCallSite());
+	}
+
+	private static String findCallSite() {
+		for (StackTraceElement frame : new Throwable().getStackTrace()) {
+			String className = frame.getClassName();
+			if (className.startsWith(MetadataProfiler.class.getName())
+					|| className.startsWith("java.lang.reflect.")
+					|| className.startsWith("sun.reflect.")
+					|| className.startsWith("jdk.internal.reflect.")
+					|| className.startsWith("com.sun.proxy.")
+					|| className.contains("$Proxy"))
+				continue;
+			return frame.toString();
+		}
+		return "unknown";
+	}
+
+	/**
+	 * Wraps an object returned by a metadata call, if it's a metadata object
+	 * or a list of them.
+	 */
+	private Object wrapResult(Object result, Class<?> declaredType) {
+		if (result == null || Proxy.isProxyClass(result.getClass()))
+			return result;
+		if (result instanceof NamedList<?>
+				&& declaredType.isAssignableFrom(NamedList.class))
+			return wrapNamedList((NamedList<?>) result);
+		if (result instanceof List<?>
+				&& declaredType.isAssignableFrom(List.class))
+			return wrapList((List<?>) result);
+		if (declaredType.isInterface()
+				&& declaredType.getName().startsWith("org.olap4j.metadata."))
+			return wrapObject(result);
+		return result;
+	}
+
+	private List<Object> wrapList(List<?> list) {
+		List<Object> result = new ArrayList<Object>(list.size());
+		for (Object o : list)
+			result.add(o instanceof MetadataElement ? wrapObject(o) : o);
+		return result;
+	}
+
+	private NamedList<?> wrapNamedList(final NamedList<?> list) {
+		final List<Object> elements = wrapList(list);
+		return (NamedList<?>) Proxy.newProxyInstance(
+				NamedList.class.getClassLoader(),
+				new Class<?>[] { NamedList.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						String name = method.getName();
+						if (args != null && args.length == 1
+								&& args[0] instanceof String
+								&& (name.equals("get") || name
+										.equals("indexOfName"))) {
+							// Named lookups resolved on the original list
+							int index = list.indexOfName((String) args[0]);
+							if (name.equals("indexOfName"))
+								return index;
+							return index < 0 ? null : elements.get(index);
+						}
+						if (method.getDeclaringClass() == Object.class
+								&& name.equals("equals"))
+							return elements.equals(unwrap(args[0]));
+						try {
+							return method.invoke(
+									Collections.unmodifiableList(elements),
+									args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+	}
+
+	private Object wrapObject(Object target) {
+		Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+		collectInterfaces(target.getClass(), interfaces);
+		return Proxy.newProxyInstance(target.getClass().getClassLoader(),
+				interfaces.toArray(new Class<?>[interfaces.size()]),
+				new MetadataHandler(target));
+	}
+
+	private static void collectInterfaces(Class<?> c, Collection<Class<?>> result) {
+		for (; c != null; c = c.getSuperclass()) {
+			for (Class<?> i : c.getInterfaces()) {
+				if (Modifier.isPublic(i.getModifiers()))
+					result.add(i);
+				collectInterfaces(i, result);
+			}
+		}
+	}
+
+	private static Object unwrap(Object o) {
+		if (o != null && Proxy.isProxyClass(o.getClass())) {
+			InvocationHandler h = Proxy.getInvocationHandler(o);
+			if (h instanceof MetadataHandler)
+				return ((MetadataHandler) h).target;
+		}
+		return o;
+	}
+
+	/**
+	 * Counts and delegates the calls to a metadata object.
+	 */
+	private class MetadataHandler implements InvocationHandler {
+		private final Object target;
+
+		public MetadataHandler(Object target) {
+			this.target = target;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			if (method.getDeclaringClass() != Object.class)
+				count(method);
+
+			Object[] targetArgs = args;
+			if (args != null) {
+				targetArgs = new Object[args.length];
+				for (int i = 0; i < args.length; ++i)
+					targetArgs[i] = unwrap(args[i]);
+			}
+
+			Object result;
+			try {
+				result = method.invoke(target, targetArgs);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+			return wrapResult(result, method.getReturnType());
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package es.cgalesanco.olap4j.query.metrics;
+
+/**
+ * {@link QueryMetrics} discarding every measurement. Used by default.
+ * 
+ * @author César García
+ * 
+ */
+public final class NoOpQueryMetrics implements QueryMetrics {
+	public static final NoOpQueryMetrics INSTANCE = new NoOpQueryMetrics();
+
+	private NoOpQueryMetrics() {
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return false;
+	}
+
+	@Override
+	public void recordTime(String name, long nanos) {
+	}
+
+	@Override
+	public void increment(String name, long delta) {
+	}
+
+	@Override
+	public void recordValue(String name, long value) {
+	}
+}
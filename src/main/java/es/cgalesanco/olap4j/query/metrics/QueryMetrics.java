@@ -0,0 +1,84 @@
+package es.cgalesanco.olap4j.query.metrics;
+
+/**
+ * <p>
+ * Service provider interface receiving performance measurements from the
+ * query model.
+ * </p>
+ * 
+ * <p>
+ * Every measurement is identified by a name (see the constants in this
+ * interface) and reports a value: a duration in nanoseconds for timers, a
+ * delta for counters, or a sample for size distributions (MDX node counts,
+ * selection tree sizes...). Implementations must be thread safe and fast, as
+ * they are called from the query hot paths; adapting this interface to a
+ * metrics library usually means forwarding each method to the library timer,
+ * counter or histogram registered under the given name.
+ * </p>
+ * 
+ * @see es.cgalesanco.olap4j.query.Query#setMetrics(QueryMetrics)
+ * @author César García
+ * 
+ */
+public interface QueryMetrics {
+	/** Timer: generation of the MDX parse tree of a query. */
+	String GET_SELECT = "query.getSelect";
+	/** Timer: execution of a query, including MDX generation. */
+	String EXECUTE = "query.execute";
+	/** Distribution: number of nodes of the generated MDX parse tree. */
+	String MDX_NODES = "query.mdxNodes";
+	/** Distribution: number of cells returned by a query execution. */
+	String CELLS = "query.cells";
+	/** Timer: include/exclude operation on a hierarchy. */
+	String SELECT = "hierarchy.select";
+	/** Distribution: number of nodes of a selection tree after a change. */
+	String SELECTION_TREE_NODES = "hierarchy.selectionTreeNodes";
+	/** Timer: leaf test of a member. */
+	String IS_LEAF = "hierarchy.isLeaf";
+	/** Timer: expansion of a hierarchy into its MDX set expression. */
+	String EXPAND = "hierarchy.expand";
+	/** Counter: drill operations. */
+	String DRILL = "axis.drill";
+	/** Counter: undrill operations. */
+	String UNDRILL = "axis.undrill";
+	/** Distribution: number of drilled positions of an axis after a change. */
+	String DRILLED_POSITIONS = "axis.drilledPositions";
+
+	/**
+	 * Tests if this instance records measurements. Measurements requiring
+	 * extra work (like counting nodes) are skipped when disabled.
+	 * 
+	 * @return {@code true} if measurements are recorded.
+	 */
+	boolean isEnabled();
+
+	/**
+	 * Records the duration of an operation.
+	 * 
+	 * @param name
+	 *            name of the timer.
+	 * @param nanos
+	 *            duration in nanoseconds.
+	 */
+	void recordTime(String name, long nanos);
+
+	/**
+	 * Increments a counter.
+	 * 
+	 * @param name
+	 *            name of the counter.
+	 * @param delta
+	 *            the increment.
+	 */
+	void increment(String name, long delta);
+
+	/**
+	 * Records a sample of a size distribution.
+	 * 
+	 * @param name
+	 *            name of the distribution.
+	 * @param value
+	 *            the sample.
+	 */
+	void recordValue(String name, long value);
+}
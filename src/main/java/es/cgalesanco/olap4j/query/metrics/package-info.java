@@ -0,0 +1,5 @@
+/**
+ * Metrics service provider interface of the query model, with a no-op default
+ * and in memory and composite implementations. 
+ */
+package es.cgalesanco.olap4j.query.metrics;
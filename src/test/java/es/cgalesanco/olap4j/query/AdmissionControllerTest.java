@@ -0,0 +1,121 @@
+package es.cgalesanco.olap4j.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapException;
+
+import es.cgalesanco.olap4j.query.AdmissionController.Permit;
+import es.cgalesanco.olap4j.query.AdmissionController.Priority;
+
+public class AdmissionControllerTest {
+	private final OlapConnection cn1 = createConnection();
+	private final OlapConnection cn2 = createConnection();
+
+	@Test
+	public void testPriority() throws Exception {
+		final AdmissionController controller = new AdmissionController(1, 1,
+				5000);
+		Permit running = controller.acquire(cn1, Priority.EXPORT);
+
+		final List<Priority> admitted = Collections
+				.synchronizedList(new ArrayList<Priority>());
+		Thread export = startWaiter(controller, Priority.EXPORT, admitted);
+		waitQueued(controller, 1);
+		Thread interactive = startWaiter(controller, Priority.INTERACTIVE,
+				admitted);
+		waitQueued(controller, 2);
+
+		// Interactive queries don't wait behind queued exports
+		running.release();
+		running.release();
+		export.join(5000);
+		interactive.join(5000);
+		assertEquals(Arrays.asList(Priority.INTERACTIVE, Priority.EXPORT),
+				admitted);
+		assertEquals(0, controller.getActive());
+		assertEquals(0, controller.getQueued());
+	}
+
+	@Test
+	public void testPriorityLimit() throws Exception {
+		AdmissionController controller = new AdmissionController(2, 2, 20);
+		controller.setMaxConcurrent(Priority.EXPORT, 1);
+		controller.acquire(cn1, Priority.EXPORT);
+		try {
+			controller.acquire(cn2, Priority.EXPORT);
+			fail();
+		} catch (OlapException e) {
+		}
+		controller.acquire(cn2, Priority.INTERACTIVE);
+		assertEquals(2, controller.getActive());
+		assertEquals(0, controller.getQueued());
+	}
+
+	@Test
+	public void testConnectionLimit() throws Exception {
+		AdmissionController controller = new AdmissionController(2, 1, 20);
+		Permit permit = controller.acquire(cn1, Priority.INTERACTIVE);
+		try {
+			controller.acquire(cn1, Priority.INTERACTIVE);
+			fail();
+		} catch (OlapException e) {
+		}
+		controller.acquire(cn2, Priority.INTERACTIVE);
+
+		permit.release();
+		controller.acquire(cn1, Priority.INTERACTIVE);
+		assertEquals(2, controller.getActive());
+	}
+
+	private static Thread startWaiter(final AdmissionController controller,
+			final Priority priority, final List<Priority> admitted) {
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Permit p = controller.acquire(createConnection(), priority);
+					admitted.add(priority);
+					p.release();
+				} catch (OlapException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		t.start();
+		return t;
+	}
+
+	private static void waitQueued(AdmissionController controller, int n)
+			throws InterruptedException {
+		while (controller.getQueued() < n)
+			Thread.sleep(1);
+	}
+
+	private static OlapConnection createConnection() {
+		return (OlapConnection) Proxy.newProxyInstance(
+				AdmissionControllerTest.class.getClassLoader(),
+				new Class<?>[] { OlapConnection.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("hashCode"))
+							return System.identityHashCode(proxy);
+						if (method.getName().equals("equals"))
+							return proxy == args[0];
+						return null;
+					}
+				});
+	}
+}
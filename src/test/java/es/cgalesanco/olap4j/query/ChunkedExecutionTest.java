@@ -0,0 +1,260 @@
+package es.cgalesanco.olap4j.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.olap4j.Axis;
+import org.olap4j.Cell;
+import org.olap4j.CellSet;
+import org.olap4j.CellSetAxis;
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapException;
+import org.olap4j.OlapStatement;
+import org.olap4j.Position;
+import org.olap4j.mdx.ParseTreeWriter;
+import org.olap4j.mdx.SelectNode;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Member;
+
+import es.cgalesanco.olap4j.query.AdmissionController.Permit;
+import es.cgalesanco.olap4j.query.AdmissionController.Priority;
+import es.cgalesanco.olap4j.query.Selection.Operator;
+
+public class ChunkedExecutionTest {
+	private static final int COLUMNS = 3;
+	private static final int ROWS_PER_CHUNK = 2;
+
+	private Query query;
+	private final List<String> executed = Collections
+			.synchronizedList(new ArrayList<String>());
+	private final AtomicInteger closedStatements = new AtomicInteger();
+	private final AtomicInteger releasedConnections = new AtomicInteger();
+	private final AtomicInteger connections = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception {
+		Cube cube = MetadataFixture.createCube();
+		query = new Query("Export", cube);
+		QueryHierarchy measures = query.getHierarchy("Measures");
+		for (Member m : measures.getHierarchy().getRootMembers())
+			measures.include(Operator.MEMBER, m);
+		QueryAxis columns = query.getAxis(Axis.COLUMNS);
+		columns.addHierarchy(measures);
+		columns.setNonEmpty(true);
+
+		QueryHierarchy time = query.getHierarchy("Time");
+		for (Member year : time.getHierarchy().getRootMembers())
+			time.include(Operator.DESCENDANTS, year);
+		QueryAxis rows = query.getAxis(Axis.ROWS);
+		rows.addHierarchy(time);
+		rows.expandHierarchy(time);
+
+		query.setConnectionProvider(new ConnectionProvider() {
+			@Override
+			public OlapConnection getConnection(Cube c) {
+				connections.incrementAndGet();
+				return proxy(OlapConnection.class, new InvocationHandler() {
+					@Override
+					public Object invoke(Object p, Method m, Object[] args) {
+						if (m.getName().equals("createStatement"))
+							return createStatement();
+						return null;
+					}
+				});
+			}
+
+			@Override
+			public void releaseConnection(OlapConnection connection) {
+				releasedConnections.incrementAndGet();
+			}
+		});
+	}
+
+	@Test
+	public void testChunks() throws Exception {
+		long estimate = query.estimateCardinality().getPositionCount(
+				Axis.ROWS);
+		assertTrue(estimate > ROWS_PER_CHUNK);
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		ChunkedCellSet result;
+		try {
+			result = query.executeChunked(ROWS_PER_CHUNK, executor);
+		} finally {
+			executor.shutdown();
+		}
+
+		long chunks = (estimate + ROWS_PER_CHUNK - 1) / ROWS_PER_CHUNK;
+		assertEquals(chunks, executed.size());
+		assertEquals(chunks, result.getChunks().size());
+		int openEnded = 0;
+		for (String mdx : executed) {
+			assertFalse(mdx, mdx.contains("NON EMPTY"));
+			if (!Pattern.compile(", \\d+, \\d+\\)\\s+ON ROWS").matcher(mdx)
+					.find())
+				++openEnded;
+		}
+		// The last chunk returns every remaining row
+		assertEquals(1, openEnded);
+
+		// Every chunk returns ROWS_PER_CHUNK rows; column 1 is empty
+		assertEquals(chunks * ROWS_PER_CHUNK, result.getRowCount());
+		assertEquals(COLUMNS - 1, result.getColumnCount());
+		assertEquals("0:" + (ROWS_PER_CHUNK + 1),
+				result.getCell(0, ROWS_PER_CHUNK + 1).getFormattedValue());
+		assertEquals("2:0", result.getCell(1, 0).getFormattedValue());
+		assertSame(result.getChunks().get(1).getAxes().get(1).getPositions()
+				.get(0), result.getRowPosition(ROWS_PER_CHUNK));
+
+		// Statements and connections are held until the result is closed
+		assertEquals(0, closedStatements.get());
+		assertEquals(0, releasedConnections.get());
+		result.close();
+		result.close();
+		assertEquals(chunks, closedStatements.get());
+		assertEquals(chunks, releasedConnections.get());
+	}
+
+	@Test
+	public void testQueuedExecutionsHoldNoConnection() throws Exception {
+		AdmissionController controller = new AdmissionController(1, 1, 5000);
+		query.setAdmissionController(controller);
+		Permit running = controller.acquire(new Object(),
+				Priority.INTERACTIVE);
+
+		final List<ChunkedCellSet> results = Collections
+				.synchronizedList(new ArrayList<ChunkedCellSet>());
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					results.add(query.executeChunked(ROWS_PER_CHUNK, null));
+				} catch (OlapException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		waiter.start();
+		while (controller.getQueued() == 0)
+			Thread.sleep(1);
+		assertEquals(0, connections.get());
+
+		running.release();
+		waiter.join(5000);
+		assertEquals(1, results.size());
+		assertEquals(executed.size(), connections.get());
+		results.get(0).close();
+		assertEquals(connections.get(), releasedConnections.get());
+	}
+
+	private OlapStatement createStatement() {
+		return proxy(OlapStatement.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object p, Method m, Object[] args) {
+				if (m.getName().equals("executeOlapQuery")) {
+					StringWriter swr = new StringWriter();
+					((SelectNode) args[0]).unparse(new ParseTreeWriter(swr));
+					executed.add(swr.toString());
+					return createCellSet(firstRow(swr.toString()));
+				}
+				if (m.getName().equals("close"))
+					closedStatements.incrementAndGet();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Creates a chunk result whose cells are formatted as "column:row", row
+	 * being the row of the stitched grid.
+	 */
+	private CellSet createCellSet(final int first) {
+		final List<CellSetAxis> axes = new ArrayList<CellSetAxis>();
+		axes.add(createAxis(COLUMNS));
+		axes.add(createAxis(ROWS_PER_CHUNK));
+		return proxy(CellSet.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object p, Method m, Object[] args) {
+				if (m.getName().equals("getAxes"))
+					return axes;
+				if (m.getName().equals("getCell")) {
+					@SuppressWarnings("unchecked")
+					List<Integer> coordinates = (List<Integer>) args[0];
+					return createCell(coordinates.get(0), first
+							+ coordinates.get(1));
+				}
+				return null;
+			}
+		});
+	}
+
+	private static int firstRow(String mdx) {
+		// Subset(rows, start, count) or, for the last chunk, Subset(rows, start)
+		Matcher m = Pattern.compile(", (\\d+), \\d+\\)\\s+ON ROWS").matcher(mdx);
+		if (!m.find()) {
+			m = Pattern.compile(", (\\d+)\\)\\s+ON ROWS").matcher(mdx);
+			assertTrue(mdx, m.find());
+		}
+		return Integer.parseInt(m.group(1));
+	}
+
+	private static CellSetAxis createAxis(final int count) {
+		final List<Position> positions = new ArrayList<Position>();
+		for (int i = 0; i < count; ++i)
+			positions.add(proxy(Position.class, null));
+		return proxy(CellSetAxis.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object p, Method m, Object[] args) {
+				if (m.getName().equals("getPositionCount"))
+					return count;
+				if (m.getName().equals("getPositions"))
+					return positions;
+				return null;
+			}
+		});
+	}
+
+	private static Cell createCell(final int column, final int row) {
+		return proxy(Cell.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object p, Method m, Object[] args) {
+				if (m.getName().equals("isEmpty"))
+					return column == 1;
+				if (m.getName().equals("getFormattedValue"))
+					return column + ":" + row;
+				return null;
+			}
+		});
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		if (handler == null) {
+			handler = new InvocationHandler() {
+				@Override
+				public Object invoke(Object p, Method m, Object[] args) {
+					return null;
+				}
+			};
+		}
+		return type.cast(Proxy.newProxyInstance(
+				ChunkedExecutionTest.class.getClassLoader(),
+				new Class<?>[] { type }, handler));
+	}
+}
@@ -34,6 +34,10 @@ public class DimensionMock extends MetadataMock implements Dimension {
 		return type;
 	}
 
+	public void setDimensionType(Type type) {
+		this.type = type;
+	}
+
 	@Override
 	public Hierarchy getDefaultHierarchy() {
 		return hierarchies.get(0);
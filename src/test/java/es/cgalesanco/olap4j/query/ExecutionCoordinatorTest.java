@@ -0,0 +1,291 @@
+package es.cgalesanco.olap4j.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.olap4j.Axis;
+import org.olap4j.Cell;
+import org.olap4j.CellSet;
+import org.olap4j.CellSetAxis;
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapException;
+import org.olap4j.mdx.SelectNode;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Member;
+
+import es.cgalesanco.olap4j.query.Selection.Operator;
+
+public class ExecutionCoordinatorTest {
+	private Cube cube;
+	private SelectNode select;
+	private ConnectionProvider provider = CubeConnectionProvider.INSTANCE;
+	private ExecutorService executor;
+	private final AtomicInteger closed = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception {
+		cube = MetadataFixture.createCube();
+		Query query = new Query("Coordinated", cube);
+		QueryHierarchy measures = query.getHierarchy("Measures");
+		for (Member m : measures.getHierarchy().getRootMembers())
+			measures.include(Operator.MEMBER, m);
+		query.getAxis(Axis.COLUMNS).addHierarchy(measures);
+		select = query.getSelect();
+		executor = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void testSharedExecution() throws Exception {
+		ExecutionCoordinator coordinator = new ExecutionCoordinator(10000);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger executions = new AtomicInteger();
+		CellSet cellSet = createCellSet();
+
+		Future<CellSetSnapshot> leader = submit(coordinator, new BlockingExecution(
+				release, executions, cellSet, null));
+		waitInFlight(coordinator);
+		Future<CellSetSnapshot> follower = submit(coordinator, new BlockingExecution(
+				release, executions, cellSet, null));
+		Thread.sleep(50);
+		release.countDown();
+
+		// Callers share an immutable copy, the cell set is closed
+		CellSetSnapshot result = leader.get(5, TimeUnit.SECONDS);
+		assertSame(result, follower.get(5, TimeUnit.SECONDS));
+		assertEquals("42", result.getFormattedValue());
+		assertEquals(1, closed.get());
+		assertEquals(1, executions.get());
+		assertEquals(1, coordinator.getSharedExecutions());
+		assertEquals(0, coordinator.getInFlight());
+
+		// Finished executions are not reused
+		coordinator.execute(provider, cube, select, new BlockingExecution(release,
+				executions, cellSet, null));
+		assertEquals(2, executions.get());
+	}
+
+	@Test
+	public void testDistinctProviders() throws Exception {
+		ExecutionCoordinator coordinator = new ExecutionCoordinator(10000);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger executions = new AtomicInteger();
+
+		Future<CellSetSnapshot> leader = submit(coordinator,
+				new BlockingExecution(release, executions, createCellSet(),
+						null));
+		waitInFlight(coordinator);
+		provider = new ConnectionProvider() {
+			@Override
+			public OlapConnection getConnection(Cube c) {
+				return null;
+			}
+
+			@Override
+			public void releaseConnection(OlapConnection connection) {
+			}
+		};
+		// Executions through another provider are not shared
+		Future<CellSetSnapshot> other = submit(coordinator,
+				new BlockingExecution(release, executions, createCellSet(),
+						null));
+		while (coordinator.getInFlight() < 2)
+			Thread.sleep(1);
+		release.countDown();
+
+		assertTrue(leader.get(5, TimeUnit.SECONDS) != other.get(5,
+				TimeUnit.SECONDS));
+		assertEquals(2, executions.get());
+		assertEquals(0, coordinator.getSharedExecutions());
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		ExecutionCoordinator coordinator = new ExecutionCoordinator(10000);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger executions = new AtomicInteger();
+		OlapException error = new OlapException("Server down");
+
+		Future<CellSetSnapshot> leader = submit(coordinator, new BlockingExecution(
+				release, executions, null, error));
+		waitInFlight(coordinator);
+		Future<CellSetSnapshot> follower = submit(coordinator, new BlockingExecution(
+				release, executions, null, null));
+		Thread.sleep(50);
+		release.countDown();
+
+		try {
+			leader.get(5, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertSame(error, e.getCause());
+		}
+		try {
+			follower.get(5, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof OlapException);
+			assertSame(error, e.getCause().getCause());
+		}
+		assertEquals(1, executions.get());
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		ExecutionCoordinator coordinator = new ExecutionCoordinator(20);
+		CountDownLatch release = new CountDownLatch(1);
+		AtomicInteger executions = new AtomicInteger();
+
+		Future<CellSetSnapshot> leader = submit(coordinator, new BlockingExecution(
+				release, executions, createCellSet(), null));
+		waitInFlight(coordinator);
+		try {
+			coordinator.execute(provider, cube, select, new BlockingExecution(release,
+					executions, null, null));
+			fail();
+		} catch (OlapException e) {
+		}
+		release.countDown();
+		leader.get(5, TimeUnit.SECONDS);
+		assertEquals(1, executions.get());
+	}
+
+	@Test
+	public void testSnapshotTooLarge() throws Exception {
+		final CellSetAxis axis = (CellSetAxis) Proxy.newProxyInstance(
+				ExecutionCoordinatorTest.class.getClassLoader(),
+				new Class<?>[] { CellSetAxis.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("getPositionCount"))
+							return 1 << 16;
+						return null;
+					}
+				});
+		CellSet cellSet = (CellSet) Proxy.newProxyInstance(
+				ExecutionCoordinatorTest.class.getClassLoader(),
+				new Class<?>[] { CellSet.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("getAxes"))
+							return Arrays.asList(axis, axis);
+						if (method.getName().equals("close"))
+							closed.incrementAndGet();
+						return null;
+					}
+				});
+
+		// 2^32 cells don't fit an array
+		try {
+			CellSetSnapshot.materialize(cellSet);
+			fail();
+		} catch (OlapException e) {
+		}
+		assertEquals(1, closed.get());
+	}
+
+	private Future<CellSetSnapshot> submit(final ExecutionCoordinator coordinator,
+			final ExecutionCoordinator.Execution execution) {
+		final ConnectionProvider provider = this.provider;
+		return executor.submit(new Callable<CellSetSnapshot>() {
+			@Override
+			public CellSetSnapshot call() throws Exception {
+				return coordinator.execute(provider, cube, select, execution);
+			}
+		});
+	}
+
+	private static void waitInFlight(ExecutionCoordinator coordinator)
+			throws InterruptedException {
+		while (coordinator.getInFlight() == 0)
+			Thread.sleep(1);
+	}
+
+	/**
+	 * Creates a result without axes, whose single cell is formatted as "42".
+	 */
+	private CellSet createCellSet() {
+		final Cell cell = (Cell) Proxy.newProxyInstance(
+				ExecutionCoordinatorTest.class.getClassLoader(),
+				new Class<?>[] { Cell.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("getValue"))
+							return 42;
+						if (method.getName().equals("getFormattedValue"))
+							return "42";
+						return false;
+					}
+				});
+		return (CellSet) Proxy.newProxyInstance(
+				ExecutionCoordinatorTest.class.getClassLoader(),
+				new Class<?>[] { CellSet.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("getAxes"))
+							return Collections.<CellSetAxis> emptyList();
+						if (method.getName().equals("getCell"))
+							return cell;
+						if (method.getName().equals("close"))
+							closed.incrementAndGet();
+						return null;
+					}
+				});
+	}
+
+	private static class BlockingExecution implements
+			ExecutionCoordinator.Execution {
+		private final CountDownLatch release;
+		private final AtomicInteger executions;
+		private final CellSet result;
+		private final OlapException error;
+
+		public BlockingExecution(CountDownLatch release,
+				AtomicInteger executions, CellSet result, OlapException error) {
+			this.release = release;
+			this.executions = executions;
+			this.result = result;
+			this.error = error;
+		}
+
+		@Override
+		public CellSet execute() throws OlapException {
+			executions.incrementAndGet();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new OlapException(e);
+			}
+			if (error != null)
+				throw error;
+			return result;
+		}
+	}
+}
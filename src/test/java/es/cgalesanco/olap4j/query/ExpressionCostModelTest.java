@@ -0,0 +1,102 @@
+package es.cgalesanco.olap4j.query;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.olap4j.Axis;
+import org.olap4j.mdx.ParseTreeNode;
+import org.olap4j.mdx.ParseTreeWriter;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Member;
+
+import es.cgalesanco.olap4j.query.Selection.Operator;
+
+public class ExpressionCostModelTest {
+	static private Cube cube;
+
+	@BeforeClass
+	static public void setUpFixture() throws Exception {
+		cube = MetadataFixture.createCube();
+	}
+
+	@Test
+	public void testDescendants_smallSubtree() throws Exception {
+		Member all = getRoot("Gender");
+		Member male = all.getChildMembers().get(0);
+		Member female = all.getChildMembers().get(1);
+
+		assertMdx(String.format("{%1$s, %2$s, %3$s}", all, male, female),
+				ExpressionCostModel.DEFAULT.descendants(all, 0));
+		assertMdx(String.format("{%1$s, %2$s}", male, female),
+				ExpressionCostModel.DEFAULT.descendants(all, 1));
+		assertMdx(String.format("Descendants(%1$s, 1, SELF_AND_AFTER)", all),
+				ExpressionCostModel.LEGACY.descendants(all, 1));
+	}
+
+	@Test
+	public void testDescendants_largeSubtree() throws Exception {
+		Member year = getRoot("Time");
+		assertMdx(String.format("Descendants(%1$s, 2, SELF_AND_AFTER)", year),
+				ExpressionCostModel.DEFAULT.descendants(year, 2));
+	}
+
+	@Test
+	public void testChildren_fewRemaining() throws Exception {
+		Member year = getRoot("Time");
+		List<Member> quarters = new ArrayList<Member>(year.getChildMembers());
+		List<Member> excluded = quarters.subList(0, 3);
+
+		assertMdx(String.format("{%1$s}", quarters.get(3)),
+				ExpressionCostModel.DEFAULT.children(year, excluded));
+		assertMdx(String.format("Except(%1$s.Children, {%2$s, %3$s, %4$s})",
+				year, quarters.get(0), quarters.get(1), quarters.get(2)),
+				ExpressionCostModel.LEGACY.children(year, excluded));
+	}
+
+	@Test
+	public void testChildren_manyRemaining() throws Exception {
+		Member year = getRoot("Time");
+		Member quarter = year.getChildMembers().get(0);
+
+		assertMdx(String.format("Except(%1$s.Children, {%2$s})", year, quarter),
+				ExpressionCostModel.DEFAULT.children(year,
+						Collections.singletonList(quarter)));
+	}
+
+	@Test
+	public void testQueryLegacyExpressions() throws Exception {
+		Query q = new Query("Cost Model Test", cube);
+		QueryHierarchy qh = q.getHierarchy("Time");
+		q.getAxis(Axis.FILTER).addHierarchy(qh);
+		Member year = qh.getHierarchy().getRootMembers().get(0);
+		List<Member> quarters = new ArrayList<Member>(year.getChildMembers());
+		qh.include(Operator.DESCENDANTS, year);
+		for (Member quarter : Arrays.asList(quarters.get(0), quarters.get(1),
+				quarters.get(2)))
+			qh.exclude(Operator.DESCENDANTS, quarter);
+
+		assertMdx(String.format("{%1$s}", quarters.get(3)), qh.toOlap4j());
+
+		q.setLegacyExpressions(true);
+		assertMdx(String.format("Except(%1$s.Children, {%2$s, %3$s, %4$s})",
+				year, quarters.get(0), quarters.get(1), quarters.get(2)),
+				qh.toOlap4j());
+	}
+
+	private static Member getRoot(String hierarchy) throws Exception {
+		return cube.getHierarchies().get(hierarchy).getRootMembers().get(0);
+	}
+
+	private static void assertMdx(String expected, ParseTreeNode actual) {
+		StringWriter swr = new StringWriter();
+		actual.unparse(new ParseTreeWriter(swr));
+		assertEquals(expected, swr.toString());
+	}
+}
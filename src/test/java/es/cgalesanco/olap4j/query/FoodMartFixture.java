@@ -0,0 +1,33 @@
+package es.cgalesanco.olap4j.query;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+
+import org.olap4j.OlapConnection;
+
+/**
+ * Opens connections to an embedded Mondrian serving the FoodMart schema. The
+ * FoodMart database is located by the {@code testJdbc} system property, set by
+ * the active DB profile.
+ * 
+ * @author César García
+ * 
+ */
+public class FoodMartFixture {
+
+	public static OlapConnection connect() throws Exception {
+		// Establish the connection with the provider
+		Class.forName("mondrian.olap4j.MondrianOlap4jDriver");
+
+		// Copy FoodMart catalog resource into a temporary file
+		File catalogFile = File.createTempFile("foodmart", ".xml");
+		FixtureUtils.copyResource("FoodMart.xml", catalogFile.getParentFile(),
+				catalogFile.getName());
+
+		String jdbcUrl = System.getProperty("testJdbc");
+		Connection jdbcCn = DriverManager.getConnection("jdbc:mondrian:"
+				+ jdbcUrl + ";Catalog=file:" + catalogFile.getAbsolutePath());
+		return jdbcCn.unwrap(OlapConnection.class);
+	}
+}
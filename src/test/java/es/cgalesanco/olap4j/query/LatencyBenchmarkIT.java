@@ -0,0 +1,379 @@
+package es.cgalesanco.olap4j.query;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.olap4j.Axis;
+import org.olap4j.CellSet;
+import org.olap4j.CellSetAxis;
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapStatement;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Member;
+
+import es.cgalesanco.olap4j.query.Selection.Operator;
+
+/**
+ * <p>
+ * End to end latency benchmark over the FoodMart schema, sharing the
+ * {@link RegressionIT} setup.
+ * </p>
+ *
+ * <p>
+ * Replays scripted user sessions (drill chains, expand/collapse, sort and
+ * filter changes) once per {@link CrossJoinMode}, recording for every step the
+ * MDX generation time, the MDX size, the server execution time and the number
+ * of cells. Results are written as JSON to
+ * {@code target/latency-benchmark.json}.
+ * </p>
+ *
+ * <p>
+ * Skipped unless the {@code olap4jQuery.benchmark} system property is
+ * {@code true}, e.g.
+ * {@code mvn verify -PDerby -Dolap4jQuery.benchmark=true}. The
+ * {@code olap4jQuery.benchmark.repetitions} property sets how many times every
+ * session is replayed (3 by default); as Mondrian caches results, the first
+ * repetition measures cold executions.
+ * </p>
+ *
+ * @author César García
+ *
+ */
+public class LatencyBenchmarkIT {
+	private static final String ENABLE_PROPERTY = "olap4jQuery.benchmark";
+	private static final String REPETITIONS_PROPERTY = "olap4jQuery.benchmark.repetitions";
+	private static final File REPORT_FILE = new File("target",
+			"latency-benchmark.json");
+
+	/**
+	 * A scripted user session. Mutates the query and calls
+	 * {@link Recorder#step(String)} after every user action.
+	 */
+	private interface Session {
+		String getName();
+
+		void play(Query query, Recorder recorder) throws Exception;
+	}
+
+	/**
+	 * Measurements of a session step.
+	 */
+	private static class StepResult {
+		String session;
+		CrossJoinMode formulation;
+		int repetition;
+		String step;
+		long generationNanos;
+		long mdxBytes;
+		long executionNanos;
+		long cellCount;
+	}
+
+	private static OlapConnection cn;
+	private static Cube cube;
+
+	@BeforeClass
+	public static void setUpFixture() throws Exception {
+		assumeTrue(Boolean.getBoolean(ENABLE_PROPERTY));
+		cn = FoodMartFixture.connect();
+		cube = cn.getOlapSchema().getCubes().get("Sales");
+	}
+
+	@AfterClass
+	public static void tearDownFixture() throws Exception {
+		if (cn != null)
+			cn.close();
+	}
+
+	@Test
+	public void testSessions() throws Exception {
+		int repetitions = Integer.getInteger(REPETITIONS_PROPERTY, 3);
+		List<StepResult> results = new ArrayList<StepResult>();
+		for (int i = 0; i < repetitions; ++i) {
+			for (CrossJoinMode mode : CrossJoinMode.values()) {
+				for (Session session : createSessions()) {
+					Query query = createQuery(mode);
+					Recorder recorder = new Recorder(query, session.getName(),
+							mode, i, results);
+					session.play(query, recorder);
+				}
+			}
+		}
+
+		writeReport(results, repetitions);
+		assertTrue(REPORT_FILE.exists());
+	}
+
+	/**
+	 * Creates the base query: Unit Sales and Store Sales on columns, nothing
+	 * on rows.
+	 */
+	private Query createQuery(CrossJoinMode mode) throws Exception {
+		Query query = new Query("Benchmark", cube);
+		QueryHierarchy measures = query.getHierarchy("Measures");
+		for (String name : new String[] { "Unit Sales", "Store Sales" }) {
+			measures.include(Operator.MEMBER, measures.getHierarchy()
+					.getRootMembers().get(name));
+		}
+		query.getAxis(Axis.COLUMNS).addHierarchy(measures);
+		query.getAxis(Axis.ROWS).setCrossJoinMode(mode);
+		return query;
+	}
+
+	private List<Session> createSessions() {
+		List<Session> sessions = new ArrayList<Session>();
+		sessions.add(new Session() {
+			@Override
+			public String getName() {
+				return "drill-chain";
+			}
+
+			@Override
+			public void play(Query query, Recorder recorder) throws Exception {
+				QueryAxis rows = query.getAxis(Axis.ROWS);
+				QueryHierarchy time = includeRoots(query, "Time");
+				QueryHierarchy product = includeRoots(query, "Product");
+				rows.addHierarchy(time);
+				rows.addHierarchy(product);
+				recorder.step("initial");
+
+				Member year = root(time, "1997");
+				Member quarter = year.getChildMembers().get("Q1");
+				Member allProducts = product.getHierarchy().getRootMembers()
+						.get(0);
+				rows.drill(year);
+				recorder.step("drill year");
+				rows.drill(quarter);
+				recorder.step("drill quarter");
+				rows.drill(quarter.getChildMembers().get(0));
+				recorder.step("drill month");
+				rows.drill(year, allProducts);
+				recorder.step("drill product under year");
+				rows.drill(quarter, allProducts);
+				recorder.step("drill product under quarter");
+				rows.undrill(year);
+				recorder.step("undrill year");
+			}
+		});
+		sessions.add(new Session() {
+			@Override
+			public String getName() {
+				return "expand-collapse";
+			}
+
+			@Override
+			public void play(Query query, Recorder recorder) throws Exception {
+				QueryAxis rows = query.getAxis(Axis.ROWS);
+				QueryHierarchy product = includeRoots(query, "Product");
+				rows.addHierarchy(product);
+				recorder.step("initial");
+
+				Member allProducts = product.getHierarchy().getRootMembers()
+						.get(0);
+				rows.expandHierarchy(product);
+				recorder.step("expand");
+				rows.undrill(allProducts.getChildMembers().get("Food"));
+				recorder.step("undrill food");
+				product.exclude(Operator.DESCENDANTS, allProducts
+						.getChildMembers().get("Non-Consumable"));
+				recorder.step("exclude non-consumable");
+				rows.collapseHierarchy(product);
+				recorder.step("collapse");
+			}
+		});
+		sessions.add(new Session() {
+			@Override
+			public String getName() {
+				return "sort";
+			}
+
+			@Override
+			public void play(Query query, Recorder recorder) throws Exception {
+				QueryAxis rows = query.getAxis(Axis.ROWS);
+				QueryHierarchy store = includeRoots(query, "Store");
+				rows.addHierarchy(store);
+				Member allStores = store.getHierarchy().getRootMembers()
+						.get(0);
+				rows.drill(allStores);
+				rows.drill(allStores.getChildMembers().get("USA"));
+				recorder.step("initial");
+
+				Member[] unitSales = new Member[] { query
+						.getHierarchy("Measures").getHierarchy()
+						.getRootMembers().get("Unit Sales") };
+				rows.sort(unitSales, SortOrder.DESC);
+				recorder.step("sort desc");
+				rows.sort(unitSales, SortOrder.BASC);
+				recorder.step("sort basc");
+				rows.clearSort();
+				recorder.step("clear sort");
+			}
+		});
+		sessions.add(new Session() {
+			@Override
+			public String getName() {
+				return "filter";
+			}
+
+			@Override
+			public void play(Query query, Recorder recorder) throws Exception {
+				QueryAxis rows = query.getAxis(Axis.ROWS);
+				QueryHierarchy time = includeRoots(query, "Time");
+				rows.addHierarchy(time);
+				rows.drill(root(time, "1997"));
+				recorder.step("initial");
+
+				QueryHierarchy gender = query.getHierarchy("Gender");
+				query.getAxis(Axis.FILTER).addHierarchy(gender);
+				Member allGender = gender.getHierarchy().getRootMembers()
+						.get(0);
+				gender.include(Operator.MEMBER, allGender.getChildMembers()
+						.get("F"));
+				recorder.step("filter gender");
+				gender.clear();
+				gender.include(Operator.MEMBER, allGender.getChildMembers()
+						.get("M"));
+				recorder.step("change gender");
+
+				QueryHierarchy marital = query.getHierarchy("Marital Status");
+				query.getAxis(Axis.FILTER).addHierarchy(marital);
+				Member allMarital = marital.getHierarchy().getRootMembers()
+						.get(0);
+				marital.include(Operator.MEMBER, allMarital.getChildMembers()
+						.get(0));
+				recorder.step("filter marital status");
+			}
+		});
+		return sessions;
+	}
+
+	private static QueryHierarchy includeRoots(Query query, String name)
+			throws Exception {
+		QueryHierarchy h = query.getHierarchy(name);
+		for (Member m : h.getHierarchy().getRootMembers())
+			h.include(Operator.DESCENDANTS, m);
+		return h;
+	}
+
+	private static Member root(QueryHierarchy h, String name)
+			throws Exception {
+		return h.getHierarchy().getRootMembers().get(name);
+	}
+
+	/**
+	 * Measures the current query state at every session step.
+	 */
+	private static class Recorder {
+		private final Query query;
+		private final String session;
+		private final CrossJoinMode formulation;
+		private final int repetition;
+		private final List<StepResult> results;
+
+		public Recorder(Query query, String session,
+				CrossJoinMode formulation, int repetition,
+				List<StepResult> results) {
+			this.query = query;
+			this.session = session;
+			this.formulation = formulation;
+			this.repetition = repetition;
+			this.results = results;
+		}
+
+		public void step(String name) throws Exception {
+			StepResult result = new StepResult();
+			result.session = session;
+			result.formulation = formulation;
+			result.repetition = repetition;
+			result.step = name;
+
+			long start = System.nanoTime();
+			String mdx = query.getSelect().toString();
+			result.generationNanos = System.nanoTime() - start;
+			result.mdxBytes = mdx.getBytes("UTF-8").length;
+
+			OlapStatement stmt = cn.createStatement();
+			try {
+				start = System.nanoTime();
+				CellSet cs = stmt.executeOlapQuery(mdx);
+				result.executionNanos = System.nanoTime() - start;
+				result.cellCount = 1;
+				for (CellSetAxis axis : cs.getAxes())
+					result.cellCount *= axis.getPositionCount();
+			} finally {
+				stmt.close();
+			}
+			results.add(result);
+		}
+	}
+
+	private static void writeReport(List<StepResult> results, int repetitions)
+			throws Exception {
+		SimpleDateFormat iso = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		iso.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		REPORT_FILE.getParentFile().mkdirs();
+		Writer wr = new OutputStreamWriter(new FileOutputStream(REPORT_FILE),
+				"UTF-8");
+		try {
+			wr.write("{\n");
+			wr.write("  \"timestamp\": " + jsonString(iso.format(new Date()))
+					+ ",\n");
+			wr.write("  \"repetitions\": " + repetitions + ",\n");
+			wr.write("  \"steps\": [");
+			String separator = "\n";
+			for (StepResult r : results) {
+				wr.write(separator);
+				wr.write("    {\"session\": " + jsonString(r.session)
+						+ ", \"formulation\": "
+						+ jsonString(r.formulation.name())
+						+ ", \"repetition\": " + r.repetition
+						+ ", \"step\": " + jsonString(r.step)
+						+ ", \"generationNanos\": " + r.generationNanos
+						+ ", \"mdxBytes\": " + r.mdxBytes
+						+ ", \"executionNanos\": " + r.executionNanos
+						+ ", \"cellCount\": " + r.cellCount + "}");
+				separator = ",\n";
+			}
+			wr.write("\n  ]\n}\n");
+		} finally {
+			wr.close();
+		}
+	}
+
+	private static String jsonString(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			default:
+				if (c < 0x20)
+					sb.append(String.format("\\u%04x", (int) c));
+				else
+					sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
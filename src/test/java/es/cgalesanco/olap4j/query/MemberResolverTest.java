@@ -0,0 +1,283 @@
+package es.cgalesanco.olap4j.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.olap4j.Axis;
+import org.olap4j.CellSet;
+import org.olap4j.CellSetAxis;
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapException;
+import org.olap4j.OlapStatement;
+import org.olap4j.Position;
+import org.olap4j.mdx.CallNode;
+import org.olap4j.mdx.IdentifierNode;
+import org.olap4j.mdx.ParseTreeNode;
+import org.olap4j.mdx.SelectNode;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Member;
+
+import es.cgalesanco.olap4j.query.Selection.Operator;
+import es.cgalesanco.olap4j.query.metrics.MetadataProfiler;
+
+public class MemberResolverTest {
+	private static final String LOOKUP = "Cube.lookupMember";
+
+	private MetadataProfiler profiler;
+	private Cube cube;
+
+	@Before
+	public void setUp() throws Exception {
+		profiler = new MetadataProfiler();
+		cube = profiler.wrap(MetadataFixture.createCube());
+	}
+
+	@Test
+	public void testLookupMembers() throws Exception {
+		MemberResolver resolver = new MemberResolver(cube, 100);
+		List<String> names = Arrays.asList("[Time].[1997].[Q2]",
+				"[Gender].[All Gender].[Male]", "[Time].[1999]",
+				"[Time].[1997]");
+
+		profiler.reset();
+		Map<String, Member> members = resolver.lookupMembers(names);
+		assertEquals(Arrays.asList("[Time].[1997].[Q2]",
+				"[Gender].[All Gender].[Male]", "[Time].[1997]"),
+				new ArrayList<String>(members.keySet()));
+		for (Map.Entry<String, Member> e : members.entrySet())
+			assertEquals(e.getKey(), e.getValue().getUniqueName());
+		assertEquals(3, resolver.size());
+		assertEquals(4L, count(LOOKUP));
+
+		// Cached members are not looked up again, missing ones are
+		profiler.reset();
+		Map<String, Member> cached = resolver.lookupMembers(names);
+		assertEquals(members, cached);
+		assertEquals(1L, count(LOOKUP));
+
+		profiler.reset();
+		assertSame(members.get("[Time].[1997]"),
+				resolver.lookupMember("[Time].[1997]"));
+		assertSame(members.get("[Time].[1997]"),
+				resolver.lookupMember(IdentifierNode.ofNames("Time", "1997")
+						.getSegmentList()));
+		assertNull(resolver.lookupMember("[Time].[1999]"));
+		assertEquals(1L, count(LOOKUP));
+	}
+
+	@Test
+	public void testLookupMembers_groupQuery() throws Exception {
+		final List<String> executed = new ArrayList<String>();
+		final Cube members = MetadataFixture.createCube();
+		Query query = new Query("Group", cube);
+		query.setConnectionProvider(new ConnectionProvider() {
+			@Override
+			public OlapConnection getConnection(Cube c) {
+				return proxy(OlapConnection.class, new InvocationHandler() {
+					@Override
+					public Object invoke(Object p, Method m, Object[] args) {
+						if (m.getName().equals("createStatement"))
+							return createStatement(executed, members);
+						return null;
+					}
+				});
+			}
+
+			@Override
+			public void releaseConnection(OlapConnection connection) {
+			}
+		});
+
+		String stale = "[Time].[1997].[Q5]]} ON ROWS FROM [Sales]";
+		List<String> names = Arrays.asList("[Time].[1997].[Q1]",
+				"[Time].[1997].[Q2]", "[Time].[1997].[Q3]",
+				"[Time].[1997].[Q4]", stale);
+		MemberResolver resolver = query.getMemberResolver();
+		profiler.reset();
+		Map<String, Member> resolved = resolver.lookupMembers(names, query);
+		assertEquals(names.subList(0, 4),
+				new ArrayList<String>(resolved.keySet()));
+
+		// Names are sent as quoted identifiers, the stale one is a single
+		// member name and not the end of the statement
+		assertTrue(executed.get(0), executed.get(0).contains(
+				", " + stale + "} ON ROWS\nFROM [Mock Cube]"));
+		// The stale name is isolated by bisecting the failed group query,
+		// then looked up alone
+		assertEquals(7, executed.size());
+		assertEquals(1L, count(LOOKUP));
+	}
+
+	@Test
+	public void testFindHierarchy() throws Exception {
+		MemberResolver resolver = new MemberResolver(cube, 100);
+		// Hierarchies of the same dimension are told apart
+		assertEquals("[Time]", resolver.findHierarchy("[Time].[1997].[Q2]")
+				.getUniqueName());
+		assertEquals("[Time.Weekly]",
+				resolver.findHierarchy("[Time.Weekly].[1997].[1]")
+						.getUniqueName());
+		assertNull(resolver.findHierarchy("[Time]"));
+		assertNull(resolver.findHierarchy("[Unknown].[Member]"));
+	}
+
+	@Test
+	public void testCapacity() throws Exception {
+		MemberResolver resolver = new MemberResolver(cube, 2);
+		resolver.lookupMember("[Time].[1997]");
+		resolver.lookupMember("[Time].[1998]");
+		resolver.lookupMember("[Time].[1997]");
+		resolver.lookupMember("[Time].[1997].[Q1]");
+		assertEquals(2, resolver.size());
+
+		// [Time].[1998] was the least recently used
+		profiler.reset();
+		resolver.lookupMember("[Time].[1997]");
+		assertEquals(0L, count(LOOKUP));
+		resolver.lookupMember("[Time].[1998]");
+		assertEquals(1L, count(LOOKUP));
+
+		resolver.setCapacity(1);
+		assertEquals(1, resolver.size());
+		resolver.clear();
+		assertEquals(0, resolver.size());
+	}
+
+	@Test
+	public void testSharedByQueries() throws Exception {
+		Query q1 = new Query("First", cube);
+		Query q2 = new Query("Second", cube);
+		assertSame(q1.getMemberResolver(), q2.getMemberResolver());
+		assertNotSame(q1.getMemberResolver(), new Query("Other",
+				MetadataFixture.createCube()).getMemberResolver());
+
+		QueryHierarchy time = q1.getHierarchy("Time");
+		time.include(Operator.MEMBER, IdentifierNode.ofNames("Time", "1997")
+				.getSegmentList());
+		profiler.reset();
+		q2.getHierarchy("Time").include(Operator.MEMBER,
+				IdentifierNode.ofNames("Time", "1997").getSegmentList());
+		assertEquals(0L, count(LOOKUP));
+		assertEquals(time.listSelections(), q2.getHierarchy("Time")
+				.listSelections());
+	}
+
+	@Test
+	public void testHandles() throws Exception {
+		Query query = new Query("Handles", cube);
+		QueryHierarchy time = query.getHierarchy("Time");
+		Member year = time.getHierarchy().getRootMembers().get(0);
+		time.include(Operator.DESCENDANTS, year);
+		QueryAxis rows = query.getAxis(Axis.ROWS);
+		rows.addHierarchy(time);
+		rows.drill(year);
+		rows.sort(new Member[] { year }, SortOrder.ASC);
+		String mdx = query.getSelect().toString();
+
+		// Drills and sort coordinates don't keep members alive, they are
+		// looked up again once evicted from the resolver cache
+		query.getMemberResolver().clear();
+		profiler.reset();
+		assertTrue(rows.isDrilled(year));
+		assertEquals(0L, count(LOOKUP));
+		assertEquals(year.getUniqueName(), rows.listDrills().get(0)[0]
+				.getUniqueName());
+		assertEquals(year.getUniqueName(),
+				rows.getSortCoordinates()[0].getUniqueName());
+		assertEquals(1L, count(LOOKUP));
+		assertEquals(mdx, query.getSelect().toString());
+
+		assertSame(MemberHandle.of(year, query.getMemberResolver()),
+				MemberHandle.of(year, query.getMemberResolver()));
+		assertEquals(year.getDepth(),
+				MemberHandle.of(year, query.getMemberResolver()).getDepth());
+
+		// Selection nodes keep their members, visiting them looks nothing up
+		query.getMemberResolver().clear();
+		profiler.reset();
+		assertSame(year, time.getSelectionTree().find(year).getMember());
+		assertEquals(0L, count(LOOKUP));
+
+		// Handles are interned per resolver
+		assertNotSame(MemberHandle.of(year, query.getMemberResolver()),
+				MemberHandle.of(year, new MemberResolver(cube, 10)));
+	}
+
+	/**
+	 * Creates a statement recording the executed MDX. Queries listing an
+	 * unknown member fail; the others return the members on rows.
+	 */
+	private static OlapStatement createStatement(final List<String> executed,
+			final Cube members) {
+		return proxy(OlapStatement.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object p, Method m, Object[] args)
+					throws OlapException {
+				if (!m.getName().equals("executeOlapQuery"))
+					return null;
+				SelectNode select = (SelectNode) args[0];
+				executed.add(select.toString());
+				CallNode rows = (CallNode) select.getAxisList().get(1)
+						.getExpression();
+				final List<Position> positions = new ArrayList<Position>();
+				for (ParseTreeNode arg : rows.getArgList()) {
+					final Member member = members
+							.lookupMember(((IdentifierNode) arg)
+									.getSegmentList());
+					if (member == null)
+						throw new OlapException("Member not found: " + arg);
+					positions.add(proxy(Position.class,
+							new InvocationHandler() {
+								@Override
+								public Object invoke(Object p, Method m,
+										Object[] args) {
+									return Collections.singletonList(member);
+								}
+							}));
+				}
+				return proxy(CellSet.class, new InvocationHandler() {
+					@Override
+					public Object invoke(Object p, Method m, Object[] args) {
+						if (m.getName().equals("getAxes")) {
+							CellSetAxis axis = proxy(CellSetAxis.class,
+									new InvocationHandler() {
+										@Override
+										public Object invoke(Object p,
+												Method m, Object[] args) {
+											return positions;
+										}
+									});
+							return Arrays.asList(axis, axis);
+						}
+						return null;
+					}
+				});
+			}
+		});
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(
+				MemberResolverTest.class.getClassLoader(),
+				new Class<?>[] { type }, handler));
+	}
+
+	private long count(String operation) {
+		Long result = profiler.getOperationCounts().get(operation);
+		return result == null ? 0 : result;
+	}
+}
@@ -2,6 +2,7 @@ package es.cgalesanco.olap4j.query;
 
 import java.util.Calendar;
 
+import org.olap4j.metadata.Dimension.Type;
 import org.olap4j.metadata.Member;
 
 public class MetadataFixture {
@@ -28,6 +29,7 @@ public class MetadataFixture {
 
 	private static DimensionMock createMeasuresDimension() {
 		DimensionMock measuresDimension = new DimensionMock("Measures");
+		measuresDimension.setDimensionType(Type.MEASURE);
 		
 		HierarchyMock measuresHierarchy = measuresDimension.createHierarchy(null);
 		measuresHierarchy.createLevel("Measures");
@@ -0,0 +1,256 @@
+package es.cgalesanco.olap4j.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.olap4j.Axis;
+import org.olap4j.Cell;
+import org.olap4j.CellSet;
+import org.olap4j.CellSetAxis;
+import org.olap4j.Position;
+import org.olap4j.mdx.ParseTreeWriter;
+import org.olap4j.mdx.SelectNode;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Measure;
+import org.olap4j.metadata.Member;
+
+import es.cgalesanco.olap4j.query.Selection.Operator;
+
+public class PartitionedExecutionTest {
+	private Query query;
+	private QueryHierarchy gender;
+
+	@Before
+	public void setUp() throws Exception {
+		Cube cube = MetadataFixture.createCube();
+		query = new Query("Partitioned", cube);
+		QueryHierarchy measures = query.getHierarchy("Measures");
+		for (Member m : measures.getHierarchy().getRootMembers())
+			measures.include(Operator.MEMBER, m);
+		QueryAxis columns = query.getAxis(Axis.COLUMNS);
+		columns.addHierarchy(measures);
+		columns.setNonEmpty(true);
+
+		QueryHierarchy time = query.getHierarchy("Time");
+		for (Member year : time.getHierarchy().getRootMembers())
+			time.include(Operator.MEMBER, year);
+		QueryAxis rows = query.getAxis(Axis.ROWS);
+		rows.addHierarchy(time);
+		rows.setNonEmpty(true);
+
+		gender = query.getHierarchy("Gender");
+		query.getAxis(Axis.FILTER).addHierarchy(gender);
+		Member all = gender.getHierarchy().getRootMembers().get(0);
+		for (Member m : all.getChildMembers())
+			gender.include(Operator.MEMBER, m);
+	}
+
+	@Test
+	public void testCreatePartitions() throws Exception {
+		List<SelectNode> partitions = query.createPartitions(gender, 4);
+
+		// Two filter members: no more than two partitions
+		assertEquals(2, partitions.size());
+		String first = unparse(partitions.get(0));
+		String last = unparse(partitions.get(1));
+		for (String mdx : new String[] { first, last }) {
+			assertFalse(mdx, mdx.contains("NON EMPTY"));
+			assertTrue(mdx, mdx.contains("Subset("));
+		}
+		assertTrue(first, first.matches("(?s).*, 0, 1\\)\\s*$"));
+		// The last partition slices on every remaining member
+		assertTrue(last, last.matches("(?s).*, 1\\)\\s*$"));
+	}
+
+	@Test
+	public void testCreatePartitions_aggregate() throws Exception {
+		query.setFilterMode(FilterMode.AGGREGATE);
+		List<SelectNode> partitions = query.createPartitions(gender, 4);
+
+		assertEquals(2, partitions.size());
+		for (SelectNode partition : partitions) {
+			// Every partition aggregates its own range of members
+			String mdx = unparse(partition);
+			assertEquals(1, partition.getWithList().size());
+			assertTrue(mdx, mdx.matches("(?s)WITH\\s+MEMBER .*Aggregate\\(Subset\\(.*"));
+		}
+	}
+
+	@Test
+	public void testCreatePartitions_subselect() throws Exception {
+		query.setFilterMode(FilterMode.SUBSELECT);
+		List<SelectNode> partitions = query.createPartitions(gender, 4);
+
+		assertEquals(2, partitions.size());
+		for (SelectNode partition : partitions) {
+			String mdx = unparse(partition);
+			assertNull(mdx, partition.getFilterAxis().getExpression());
+			assertTrue(mdx, partition.getFrom() instanceof SelectNode);
+			assertTrue(mdx, unparse((SelectNode) partition.getFrom())
+					.contains("Subset("));
+		}
+	}
+
+	@Test
+	public void testRejectsMeasures() throws Exception {
+		QueryHierarchy measures = query.getHierarchy("Measures");
+		query.getAxis(Axis.FILTER).addHierarchy(measures);
+		try {
+			query.executePartitioned(measures, 2, null);
+			fail("Measures cannot be summed across partitions");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("Measures"));
+		}
+	}
+
+	@Test
+	public void testRejectsNonAdditiveMeasures() throws Exception {
+		try {
+			query.executePartitioned(gender, 2, null);
+			fail("Fixture measures are not olap4j measures");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testRejectsSortedAxes() throws Exception {
+		Member year = query.getHierarchy("Time").getHierarchy()
+				.getRootMembers().get(0);
+		query.getAxis(Axis.COLUMNS).sort(new Member[] { year },
+				SortOrder.ASC);
+		try {
+			query.executePartitioned(gender, 2, null);
+			fail("Sorted axes depend on cell values");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("COLUMNS"));
+		}
+	}
+
+	@Test
+	public void testIsAdditive() {
+		assertTrue(Query.isAdditive(createMeasure(Measure.Aggregator.SUM)));
+		assertTrue(Query.isAdditive(createMeasure(Measure.Aggregator.COUNT)));
+		assertFalse(Query.isAdditive(createMeasure(Measure.Aggregator.AVG)));
+		assertFalse(Query.isAdditive(createMeasure(Measure.Aggregator.MAX)));
+		assertFalse(Query.isAdditive(null));
+	}
+
+	@Test
+	public void testSum() {
+		// Row 1 and column 2 are empty in every partition
+		Double[][] first = { { 1.0, null, null }, { null, null, null } };
+		Double[][] second = { { 2.0, 5.0, null }, { null, null, null } };
+		List<CellSet> partitions = Arrays.asList(createCellSet(first),
+				createCellSet(second));
+
+		PartitionedCellSet result = new PartitionedCellSet(partitions, true,
+				true);
+		assertEquals(1, result.getRowCount());
+		assertEquals(2, result.getColumnCount());
+		assertEquals(3.0, result.getValue(0, 0), 0);
+		assertEquals(5.0, result.getValue(1, 0), 0);
+
+		result = new PartitionedCellSet(partitions, false, false);
+		assertEquals(2, result.getRowCount());
+		assertEquals(3, result.getColumnCount());
+		assertTrue(result.isEmpty(2, 1));
+		assertNull(result.getValue(2, 1));
+	}
+
+	private static String unparse(SelectNode select) {
+		StringWriter swr = new StringWriter();
+		select.unparse(new ParseTreeWriter(swr));
+		return swr.toString();
+	}
+
+	/**
+	 * Creates a result whose cell values are indexed by row and column.
+	 */
+	private static CellSet createCellSet(final Double[][] values) {
+		final List<CellSetAxis> axes = new ArrayList<CellSetAxis>();
+		axes.add(createAxis(values[0].length));
+		axes.add(createAxis(values.length));
+		return proxy(CellSet.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object p, Method m, Object[] args) {
+				if (m.getName().equals("getAxes"))
+					return axes;
+				if (m.getName().equals("getCell")) {
+					@SuppressWarnings("unchecked")
+					List<Integer> coordinates = (List<Integer>) args[0];
+					return createCell(values[coordinates.get(1)][coordinates
+							.get(0)]);
+				}
+				return null;
+			}
+		});
+	}
+
+	private static CellSetAxis createAxis(final int count) {
+		final List<Position> positions = new ArrayList<Position>();
+		for (int i = 0; i < count; ++i)
+			positions.add(proxy(Position.class, null));
+		return proxy(CellSetAxis.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object p, Method m, Object[] args) {
+				if (m.getName().equals("getPositionCount"))
+					return count;
+				if (m.getName().equals("getPositions"))
+					return positions;
+				return null;
+			}
+		});
+	}
+
+	private static Cell createCell(final Double value) {
+		return proxy(Cell.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object p, Method m, Object[] args) {
+				if (m.getName().equals("isEmpty"))
+					return value == null;
+				if (m.getName().equals("getValue"))
+					return value;
+				return null;
+			}
+		});
+	}
+
+	private static Measure createMeasure(final Measure.Aggregator aggregator) {
+		return proxy(Measure.class, new InvocationHandler() {
+			@Override
+			public Object invoke(Object p, Method m, Object[] args) {
+				if (m.getName().equals("getAggregator"))
+					return aggregator;
+				return null;
+			}
+		});
+	}
+
+	private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+		if (handler == null) {
+			handler = new InvocationHandler() {
+				@Override
+				public Object invoke(Object p, Method m, Object[] args) {
+					return null;
+				}
+			};
+		}
+		return type.cast(Proxy.newProxyInstance(
+				PartitionedExecutionTest.class.getClassLoader(),
+				new Class<?>[] { type }, handler));
+	}
+}
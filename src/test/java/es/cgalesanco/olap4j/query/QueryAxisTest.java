@@ -7,6 +7,8 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Before;
@@ -17,6 +19,9 @@ import org.olap4j.OlapException;
 import org.olap4j.mdx.AxisNode;
 import org.olap4j.mdx.ParseTreeNode;
 import org.olap4j.mdx.ParseTreeWriter;
+import org.olap4j.mdx.SelectNode;
+import org.olap4j.mdx.WithMemberNode;
+import org.olap4j.mdx.WithSetNode;
 import org.olap4j.metadata.Cube;
 import org.olap4j.metadata.Member;
 
@@ -140,6 +145,27 @@ public class QueryAxisTest {
 		assertEquals(Axis.FILTER, node.getAxis());
 	}
 
+	@Test
+	public void testListVisibleMembers() throws OlapException {
+		QueryAxis axis = query.getAxis(Axis.ROWS);
+		QueryHierarchy time = query.getHierarchy("Time");
+		axis.addHierarchy(time);
+		Member year = time.getHierarchy().getRootMembers().get(0);
+		Member q1 = year.getChildMembers().get(0);
+		time.include(Operator.DESCENDANTS, year);
+		axis.drill(year);
+		axis.drill(q1);
+
+		List<String> actual = new ArrayList<String>();
+		for (Member m : axis.listVisibleMembers(time))
+			actual.add(m.toString());
+
+		assertEquals(Arrays.asList("[Time].[1997]", "[Time].[1997].[Q1]",
+				"[Time].[1997].[Q1].[1]", "[Time].[1997].[Q1].[2]",
+				"[Time].[1997].[Q1].[3]", "[Time].[1997].[Q2]",
+				"[Time].[1997].[Q3]", "[Time].[1997].[Q4]"), actual);
+	}
+
 	@Test
 	public void testRemove() {
 		QueryAxis currentAxis = query.getAxis(Axis.COLUMNS);
@@ -290,10 +316,266 @@ public class QueryAxisTest {
 
 		AxisNode node = currentAxis.toOlap4j();
 
-		assertMdx(String.format("Hierarchize((%1$s, %2$s))", h1Root, h2Root),
+		assertMdx(String.format("(%1$s, %2$s)", h1Root, h2Root),
 				node.getExpression());
 	}
 
+	@Test
+	public void testAxisExpression_hierarchize() throws Exception {
+		QueryAxis currentAxis = query.getAxis(Axis.ROWS);
+		QueryHierarchy h1 = query.getHierarchy("Time");
+		currentAxis.addHierarchy(h1);
+
+		// A Descendants call on a single member is already hierarchized
+		Member h1Root = h1.getHierarchy().getRootMembers().get(0);
+		h1.include(Operator.DESCENDANTS, h1Root);
+		currentAxis.expandHierarchy(h1);
+		assertMdx(String.format("Descendants(%1$s, 0, SELF_AND_AFTER)",
+				h1Root), currentAxis.toOlap4j().getExpression());
+
+		query.setLegacyExpressions(true);
+		assertMdx(String.format(
+				"Hierarchize(Descendants(%1$s, 0, SELF_AND_AFTER))", h1Root),
+				currentAxis.toOlap4j().getExpression());
+		query.setLegacyExpressions(false);
+
+		// Drilled members are appended to the included ones
+		currentAxis.collapseHierarchy(h1);
+		currentAxis.drill(h1Root);
+		assertMdx(String.format(
+				"Hierarchize(DrilldownMember({%1$s}, {%1$s}, RECURSIVE))",
+				h1Root), currentAxis.toOlap4j().getExpression());
+
+		// The union of several selections is not ordered
+		currentAxis.undrill(h1Root);
+		Member h1Sibling = h1.getHierarchy().getRootMembers().get(1);
+		h1.include(Operator.MEMBER, h1Sibling);
+		assertMdx(String.format("Hierarchize({%1$s, %2$s})", h1Root,
+				h1Sibling), currentAxis.toOlap4j().getExpression());
+	}
+
+	@Test
+	public void testExpandHierarchy_toLevel() throws Exception {
+		QueryAxis currentAxis = query.getAxis(Axis.ROWS);
+		QueryHierarchy h1 = query.getHierarchy("Time");
+		currentAxis.addHierarchy(h1);
+		Member h1Root = h1.getHierarchy().getRootMembers().get(0);
+		Member h1Child = h1Root.getChildMembers().get(0);
+		Member h1Grandchild = h1Child.getChildMembers().get(0);
+		h1.include(Operator.DESCENDANTS, h1Root);
+
+		currentAxis.expandHierarchy(h1,
+				h1.getHierarchy().getLevels().get("Quarter"));
+		assertEquals(h1.getHierarchy().getLevels().get("Quarter"),
+				currentAxis.getExpansionLevel(h1));
+		assertFalse(currentAxis.isExpanded(h1));
+		assertTrue(currentAxis.isDrilled(h1Root));
+		assertFalse(currentAxis.isDrilled(h1Child));
+		assertEquals(5, currentAxis.estimatePositions());
+		// The MDX is bounded by the levels, not by the members above the level
+		assertMdx(String.format("Intersect(Descendants(%1$s, 0, SELF_AND_AFTER), "
+				+ "Descendants(Year.AllMembers, Quarter, SELF_AND_BEFORE))",
+				h1Root), currentAxis.toOlap4j().getExpression());
+
+		// Drills toggle the default state relative to the level
+		currentAxis.drill(h1Child);
+		assertTrue(currentAxis.isDrilled(h1Child));
+		assertMdx(String.format("Intersect(Descendants(%1$s, 0, SELF_AND_AFTER), "
+				+ "Union(Descendants(Year.AllMembers, Quarter, SELF_AND_BEFORE), "
+				+ "%2$s.Children))", h1Root, h1Child), currentAxis.toOlap4j().getExpression());
+
+		// The Others member of a limited drill is hierarchized under it
+		currentAxis.limitChildren(h1, new Member[0], LimitFunction.TOPCOUNT,
+				1);
+		String expression = toMdx(currentAxis.toOlap4j().getExpression());
+		assertTrue(expression, expression.startsWith("Hierarchize("));
+		assertTrue(expression, expression.contains("{" + h1Child.getUniqueName()
+				+ ".[Others]}"));
+		currentAxis.clearChildrenLimit(h1);
+
+		currentAxis.undrill(h1Root);
+		assertFalse(currentAxis.isDrilled(h1Root));
+		assertEquals(2, currentAxis.listDrills().size());
+		// Drills below an undrilled member are kept, but show nothing
+		assertMdx(String.format("Intersect({%1$s}, "
+				+ "Descendants(Year.AllMembers, Quarter, SELF_AND_BEFORE))",
+				h1Root), currentAxis.toOlap4j().getExpression());
+		assertFalse(currentAxis.isDrilled(h1Grandchild));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testExpandHierarchy_foreignLevel() throws Exception {
+		QueryAxis currentAxis = query.getAxis(Axis.ROWS);
+		QueryHierarchy h1 = query.getHierarchy("Time");
+		currentAxis.addHierarchy(h1);
+		currentAxis.expandHierarchy(h1, query.getHierarchy("Gender")
+				.getHierarchy().getLevels().get(0));
+	}
+
+	@Test
+	public void testAxisExpression_limit() throws Exception {
+		QueryAxis currentAxis = query.getAxis(Axis.ROWS);
+		QueryHierarchy h1 = query.getHierarchy("Time");
+		currentAxis.addHierarchy(h1);
+
+		Member h1Root = h1.getHierarchy().getRootMembers().get(0);
+		h1.include(Operator.CHILDREN, h1Root);
+		Member measure = query.getHierarchy("Measures").getHierarchy()
+				.getRootMembers().get(0);
+
+		currentAxis.limit(new Member[] { measure }, LimitFunction.TOPCOUNT, 2);
+
+		AxisNode node = currentAxis.toOlap4j();
+		assertMdx(String.format(
+				"TopCount(%1$s.Children, 2, (%2$s))", h1Root,
+				measure), node.getExpression());
+
+		currentAxis.clearLimit();
+		assertMdx(String.format("%1$s.Children", h1Root),
+				currentAxis.toOlap4j().getExpression());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testLimit_fractionalCount() throws Exception {
+		QueryAxis currentAxis = query.getAxis(Axis.ROWS);
+		currentAxis.limit(new Member[0], LimitFunction.BOTTOMCOUNT, 2.5);
+	}
+
+	@Test
+	public void testAxisExpression_childrenLimit() throws Exception {
+		QueryAxis currentAxis = query.getAxis(Axis.ROWS);
+		QueryHierarchy h1 = query.getHierarchy("Time");
+		currentAxis.addHierarchy(h1);
+
+		Member h1Root = h1.getHierarchy().getRootMembers().get(0);
+		h1.include(Operator.DESCENDANTS, h1Root);
+		Member measure = query.getHierarchy("Measures").getHierarchy()
+				.getRootMembers().get(0);
+		currentAxis.drill(h1Root);
+		currentAxis.limitChildren(h1, new Member[] { measure },
+				LimitFunction.TOPCOUNT, 3);
+		assertTrue(currentAxis.isChildrenLimited(h1));
+
+		QueryHierarchy measures = query.getHierarchy("Measures");
+		measures.include(Operator.MEMBER, measure);
+		query.getAxis(Axis.COLUMNS).addHierarchy(measures);
+		SelectNode select = query.getSelect();
+		String kept = "[Kept [Time]].[1997]]]";
+		assertMdx(
+				String.format(
+						"Hierarchize(Except(Union(DrilldownMember({%1$s}, {%1$s}, RECURSIVE), "
+								+ "Filter({%1$s.[Others]}, (Count(Except(%1$s.Children, %2$s)) > 0))), "
+								+ "Descendants(Except(%1$s.Children, %2$s), 0, SELF_AND_AFTER)))",
+						h1Root, kept),
+				select.getAxisList().get(1).getExpression());
+
+		// The kept children are evaluated once, the children out of the limit
+		// are aggregated by an Others member
+		assertEquals(2, select.getWithList().size());
+		WithSetNode keptSet = (WithSetNode) select.getWithList().get(0);
+		assertEquals(kept, keptSet.getIdentifier().toString());
+		assertMdx(String.format("TopCount(%1$s.Children, 3, (%2$s))",
+				h1Root, measure), keptSet.getExpression());
+		WithMemberNode others = (WithMemberNode) select.getWithList().get(1);
+		assertEquals(h1Root.getUniqueName() + ".[Others]", others
+				.getIdentifier().toString());
+		assertMdx(String.format("Aggregate(Except(%1$s.Children, %2$s))",
+				h1Root, kept), others.getExpression());
+		assertEquals(2, ((SelectNode) query.explain().getFragment())
+				.getWithList().size());
+	}
+
+	@Test
+	public void testAxisExpression_childrenLimitNested() throws Exception {
+		QueryAxis currentAxis = query.getAxis(Axis.ROWS);
+		QueryHierarchy h1 = query.getHierarchy("Time");
+		currentAxis.addHierarchy(h1);
+
+		Member year = h1.getHierarchy().getRootMembers().get(0);
+		Member q1 = year.getChildMembers().get(0);
+		h1.include(Operator.DESCENDANTS, year);
+		currentAxis.drill(year);
+		currentAxis.drill(q1);
+		currentAxis.limitChildren(h1, new Member[0], LimitFunction.TOPCOUNT,
+				1);
+		QueryHierarchy measures = query.getHierarchy("Measures");
+		measures.include(Operator.MEMBER, measures.getHierarchy()
+				.getRootMembers().get(0));
+		query.getAxis(Axis.COLUMNS).addHierarchy(measures);
+
+		// The Others member of Q1 is removed along with Q1 if the limit of
+		// 1997 prunes it
+		String keptYear = "[Kept [Time]].[1997]]]";
+		String keptQ1 = "[Kept [Time]].[1997]].[Q1]]]";
+		assertMdx(
+				String.format(
+						"Hierarchize(Except(Union(DrilldownMember({%1$s}, {%1$s, %2$s}, RECURSIVE), "
+								+ "Union(Filter({%1$s.[Others]}, (Count(Except(%1$s.Children, %3$s)) > 0)), "
+								+ "Filter({%2$s.[Others]}, ((Count(Except(%2$s.Children, %4$s)) > 0) "
+								+ "AND (Count(Intersect({%2$s}, %3$s)) > 0))))), "
+								+ "Descendants(Union(Except(%1$s.Children, %3$s), Except(%2$s.Children, %4$s)), "
+								+ "0, SELF_AND_AFTER)))", year, q1, keptYear,
+						keptQ1), query.getSelect().getAxisList().get(1)
+						.getExpression());
+	}
+
+	@Test
+	public void testAxisExpression_childrenLimitSelections() throws Exception {
+		QueryAxis currentAxis = query.getAxis(Axis.ROWS);
+		QueryHierarchy h1 = query.getHierarchy("Time");
+		currentAxis.addHierarchy(h1);
+
+		Member year = h1.getHierarchy().getRootMembers().get(0);
+		h1.include(Operator.INCLUDE_CHILDREN, year);
+		currentAxis.expandHierarchy(h1);
+		currentAxis.limitChildren(h1, new Member[0], LimitFunction.TOPCOUNT,
+				1);
+		QueryHierarchy measures = query.getHierarchy("Measures");
+		measures.include(Operator.MEMBER, measures.getHierarchy()
+				.getRootMembers().get(0));
+		query.getAxis(Axis.COLUMNS).addHierarchy(measures);
+
+		// Children included through selections are not limited
+		SelectNode select = query.getSelect();
+		assertMdx(String.format(
+				"Hierarchize(DrilldownMember({%1$s}, {%1$s}, RECURSIVE))",
+				year), select.getAxisList().get(1).getExpression());
+		assertTrue(select.getWithList().isEmpty());
+	}
+
+	@Test
+	public void testAxisExpression_nonEmptyCrossJoin() throws Exception {
+		QueryAxis currentAxis = query.getAxis(Axis.ROWS);
+		QueryHierarchy h1 = query.getHierarchy("Time");
+		currentAxis.addHierarchy(h1);
+		QueryHierarchy h2 = query.getHierarchy("Gender");
+		currentAxis.addHierarchy(h2);
+
+		Member h1Root = h1.getHierarchy().getRootMembers().get(0);
+		h1.include(Operator.CHILDREN, h1Root);
+		Member h2Root = h2.getHierarchy().getRootMembers().get(0);
+		h2.include(Operator.CHILDREN, h2Root);
+
+		currentAxis.setCrossJoinMode(CrossJoinMode.NON_EMPTY_CROSSJOIN);
+		assertMdx(String.format(
+				"NonEmptyCrossJoin(%1$s.Children, %2$s.Children)",
+				h1Root, h2Root), currentAxis.toOlap4j().getExpression());
+
+		// No measures on COLUMNS, tuples are tested in the slicer context
+		currentAxis.setCrossJoinMode(CrossJoinMode.NON_EMPTY);
+		assertMdx(String.format(
+				"NonEmpty(CrossJoin(%1$s.Children, %2$s.Children))",
+				h1Root, h2Root), currentAxis.toOlap4j().getExpression());
+
+		QueryHierarchy measures = query.getHierarchy("Measures");
+		Member measure = measures.getHierarchy().getRootMembers().get(0);
+		measures.include(Operator.MEMBER, measure);
+		query.getAxis(Axis.COLUMNS).addHierarchy(measures);
+		assertMdx(String.format(
+				"NonEmpty(CrossJoin(%1$s.Children, %2$s.Children), {%3$s})",
+				h1Root, h2Root, measure), currentAxis.toOlap4j().getExpression());
+	}
+
 	@Test
 	public void testListDrills_noDrill() {
 		QueryAxis currentAxis = query.getAxis(Axis.COLUMNS);
@@ -508,9 +790,13 @@ public class QueryAxisTest {
 	}
 
 	private void assertMdx(String expected, ParseTreeNode actual) {
+		assertEquals(expected, toMdx(actual));
+	}
+
+	private static String toMdx(ParseTreeNode node) {
 		StringWriter swr = new StringWriter();
 		ParseTreeWriter wr = new ParseTreeWriter(swr);
-		actual.unparse(wr);
-		assertEquals(expected, swr.toString());
+		node.unparse(wr);
+		return swr.toString();
 	}
 }
@@ -5,7 +5,9 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -296,6 +298,30 @@ public class QueryHierarchyTest {
 		assertFalse(qh.isExcluded(grandsonMember));
 	}
 
+	@Test
+	public void testListIncludedMembers() throws OlapException {
+		Member year = qh.getHierarchy().getRootMembers().get(0);
+		qh.include(Operator.MEMBER, year);
+		qh.include(Operator.CHILDREN, year);
+		qh.exclude(Operator.MEMBER, year.getChildMembers().get(1));
+
+		List<String> actual = new ArrayList<String>();
+		for (Member m : qh.listIncludedMembers())
+			actual.add(m.toString());
+
+		assertEquals(Arrays.asList("[Time].[1997]", "[Time].[1997].[Q1]",
+				"[Time].[1997].[Q3]", "[Time].[1997].[Q4]"), actual);
+	}
+
+	@Test
+	public void testCountIncludedMembers() throws OlapException {
+		Member year = qh.getHierarchy().getRootMembers().get(0);
+		qh.include(Operator.DESCENDANTS, year);
+
+		assertEquals(10, qh.countIncludedMembers(10));
+		assertEquals(382, qh.countIncludedMembers(1000));
+	}
+
 	private void selectAll() throws OlapException {
 		for (Member m : qh.getHierarchy().getRootMembers()) {
 			qh.apply(new SelectionAction(m, Sign.INCLUDE, Operator.DESCENDANTS));
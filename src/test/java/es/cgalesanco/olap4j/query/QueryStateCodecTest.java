@@ -0,0 +1,212 @@
+package es.cgalesanco.olap4j.query;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringWriter;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.olap4j.Axis;
+import org.olap4j.mdx.ParseTreeWriter;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Member;
+
+import es.cgalesanco.olap4j.query.Selection.Operator;
+
+public class QueryStateCodecTest {
+	private static Cube cube;
+	private Query query;
+
+	@BeforeClass
+	public static void setUpFixture() throws Exception {
+		cube = MetadataFixture.createCube();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		query = new Query("Codec test query", cube);
+
+		QueryHierarchy measures = query.getHierarchy("Measures");
+		for (Member m : measures.getHierarchy().getRootMembers())
+			measures.include(Operator.MEMBER, m);
+		QueryHierarchy gender = query.getHierarchy("Gender");
+		Member allGender = gender.getHierarchy().getRootMembers().get(0);
+		gender.include(Operator.DESCENDANTS, allGender);
+		QueryAxis columns = query.getAxis(Axis.COLUMNS);
+		columns.addHierarchy(measures);
+		columns.addHierarchy(gender);
+		columns.setNonEmpty(true);
+		columns.expandHierarchy(gender);
+		Member unitSales = measures.getHierarchy().getRootMembers().get(0);
+		columns.undrill(unitSales, allGender);
+
+		QueryHierarchy time = query.getHierarchy("Time");
+		Member year = time.getHierarchy().getRootMembers().get(0);
+		time.include(Operator.DESCENDANTS, year);
+		time.exclude(Operator.CHILDREN, year.getChildMembers().get(1));
+		time.include(time.getHierarchy().getLevels().get("Day"));
+		QueryAxis rows = query.getAxis(Axis.ROWS);
+		rows.addHierarchy(time);
+		rows.setCrossJoinMode(CrossJoinMode.NON_EMPTY_CROSSJOIN);
+		rows.drill(year);
+		rows.drill(year.getChildMembers().get(0));
+		rows.sort(new Member[] { unitSales }, SortOrder.DESC);
+		rows.limit(new Member[] { unitSales }, LimitFunction.TOPPERCENT, 12.5);
+		rows.limitChildren(time, new Member[] { unitSales },
+				LimitFunction.TOPCOUNT, 3);
+
+		// Selections of unused hierarchies are kept
+		QueryHierarchy weekly = query.getHierarchy("Time.Weekly");
+		weekly.include(Operator.MEMBER, weekly.getHierarchy()
+				.getRootMembers().get(1));
+
+		query.setFilterMode(FilterMode.AGGREGATE);
+		query.setLegacyExpressions(true);
+	}
+
+	@Test
+	public void testBinaryRoundTrip() throws Exception {
+		byte[] data = QueryStateCodec.toBinary(query);
+		assertRestored(QueryStateCodec.fromBinary(cube, data));
+	}
+
+	@Test
+	public void testJsonRoundTrip() throws Exception {
+		String json = QueryStateCodec.toJson(query);
+		assertTrue(json.startsWith("{\"version\":" + QueryStateCodec.VERSION
+				+ ","));
+		assertRestored(QueryStateCodec.fromJson(cube, json));
+	}
+
+	@Test
+	public void testLevelExpansionRoundTrip() throws Exception {
+		QueryAxis rows = query.getAxis(Axis.ROWS);
+		QueryHierarchy time = query.getHierarchy("Time");
+		Member year = time.getHierarchy().getRootMembers().get(0);
+		Member quarter = year.getChildMembers().get(0);
+		rows.expandHierarchy(time, time.getHierarchy().getLevels().get("Month"));
+		rows.undrill(year.getChildMembers().get(2));
+		rows.drill(quarter.getChildMembers().get(0));
+
+		assertRestored(QueryStateCodec.fromBinary(cube,
+				QueryStateCodec.toBinary(query)));
+		assertRestored(QueryStateCodec.fromJson(cube,
+				QueryStateCodec.toJson(query)));
+	}
+
+	@Test
+	public void testVersion2Defaults() throws Exception {
+		Query restored = QueryStateCodec.fromJson(cube,
+				"{\"version\":2,\"name\":\"Old\",\"axes\":[]}");
+		assertEquals(FilterMode.CROSSJOIN, restored.getFilterMode());
+		assertFalse(restored.isLegacyExpressions());
+	}
+
+	@Test
+	public void testBinaryIsCompact() throws Exception {
+		byte[] data = QueryStateCodec.toBinary(query);
+		assertTrue(data.length < QueryStateCodec.toJson(query).length() / 2);
+	}
+
+	@Test
+	public void testInvalidState() throws Exception {
+		byte[] data = QueryStateCodec.toBinary(query);
+		data[3] = (byte) (QueryStateCodec.VERSION + 1);
+		try {
+			QueryStateCodec.fromBinary(cube, data);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+
+		data = QueryStateCodec.toBinary(query);
+		byte[] truncated = new byte[data.length / 2];
+		System.arraycopy(data, 0, truncated, 0, truncated.length);
+		try {
+			QueryStateCodec.fromBinary(cube, truncated);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+
+		// Negative and oversized string table counts
+		for (byte last : new byte[] { 0x0F, 0x07 }) {
+			byte[] header = { 'O', 'Q', 'S', (byte) QueryStateCodec.VERSION,
+					(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, last };
+			try {
+				QueryStateCodec.fromBinary(cube, header);
+				fail();
+			} catch (IllegalArgumentException e) {
+			}
+		}
+
+		try {
+			QueryStateCodec.fromJson(cube, "{\"version\":"
+					+ (QueryStateCodec.VERSION + 1) + ",\"axes\":[]}");
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+
+		try {
+			QueryStateCodec.fromJson(cube, "{\"version\":1,\"axes\":[");
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	private void assertRestored(Query restored) throws Exception {
+		assertEquals(query.getName(), restored.getName());
+		assertEquals(query.getFilterMode(), restored.getFilterMode());
+		assertEquals(query.isLegacyExpressions(),
+				restored.isLegacyExpressions());
+		assertEquals(toMdx(query), toMdx(restored));
+
+		for (Axis location : new Axis[] { Axis.COLUMNS, Axis.ROWS,
+				Axis.FILTER, null }) {
+			QueryAxis expected = query.getAxis(location);
+			QueryAxis actual = restored.getAxis(location);
+			List<QueryHierarchy> hierarchies = actual.getHierarchies();
+			assertEquals(expected.getHierarchies().size(), hierarchies.size());
+			for (int i = 0; i < hierarchies.size(); ++i) {
+				QueryHierarchy h = expected.getHierarchies().get(i);
+				QueryHierarchy restoredH = hierarchies.get(i);
+				assertEquals(h.getHierarchy(), restoredH.getHierarchy());
+				assertEquals(h.listSelections(), restoredH.listSelections());
+				if (location != null) {
+					assertEquals(expected.isExpanded(h),
+							actual.isExpanded(restoredH));
+					assertEquals(expected.getExpansionLevel(h),
+							actual.getExpansionLevel(restoredH));
+					assertEquals(expected.isChildrenLimited(h),
+							actual.isChildrenLimited(restoredH));
+				}
+			}
+			if (location == null)
+				continue;
+
+			assertEquals(expected.isNonEmpty(), actual.isNonEmpty());
+			assertEquals(expected.getCrossJoinMode(), actual.getCrossJoinMode());
+			List<Member[]> drills = actual.listDrills();
+			assertEquals(expected.listDrills().size(), drills.size());
+			for (int i = 0; i < drills.size(); ++i)
+				assertArrayEquals(expected.listDrills().get(i), drills.get(i));
+			assertArrayEquals(expected.getSortCoordinates(),
+					actual.getSortCoordinates());
+			assertEquals(expected.getSortOrder(), actual.getSortOrder());
+			assertEquals(expected.getLimitFunction(), actual.getLimitFunction());
+			assertEquals(expected.getLimitValue(), actual.getLimitValue());
+		}
+		assertFalse(restored.getHierarchy("Time.Weekly").listSelections()
+				.isEmpty());
+	}
+
+	private static String toMdx(Query q) throws Exception {
+		StringWriter swr = new StringWriter();
+		q.getSelect().unparse(new ParseTreeWriter(swr));
+		return swr.toString();
+	}
+}
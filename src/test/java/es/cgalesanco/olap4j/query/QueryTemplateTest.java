@@ -0,0 +1,292 @@
+package es.cgalesanco.olap4j.query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.olap4j.Axis;
+import org.olap4j.CellSet;
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapParameterMetaData;
+import org.olap4j.PreparedOlapStatement;
+import org.olap4j.mdx.ParseTreeWriter;
+import org.olap4j.metadata.Cube;
+import org.olap4j.metadata.Member;
+
+import es.cgalesanco.olap4j.query.Selection.Operator;
+
+public class QueryTemplateTest {
+	private static Cube cube;
+	private Query base;
+	private Member year;
+
+	@BeforeClass
+	public static void setUpFixture() throws Exception {
+		cube = MetadataFixture.createCube();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		base = new Query("Dashboard", cube);
+		QueryHierarchy measures = base.getHierarchy("Measures");
+		for (Member m : measures.getHierarchy().getRootMembers())
+			measures.include(Operator.MEMBER, m);
+		base.getAxis(Axis.COLUMNS).addHierarchy(measures);
+
+		QueryHierarchy time = base.getHierarchy("Time");
+		year = time.getHierarchy().getRootMembers().get(0);
+		time.include(Operator.DESCENDANTS, year);
+		QueryAxis rows = base.getAxis(Axis.ROWS);
+		rows.addHierarchy(time);
+		rows.drill(year);
+		rows.sort(new Member[] { measures.getHierarchy().getRootMembers()
+				.get(0) }, SortOrder.DESC);
+	}
+
+	@Test
+	public void testNewQuery() throws Exception {
+		QueryTemplate template = new QueryTemplate(base);
+		Query q = template.newQuery("Session");
+		assertEquals("Session", q.getName());
+		assertEquals(toMdx(base), toMdx(q));
+		assertSame(q, q.getHierarchy("Time").getQuery());
+		assertSame(q.getAxis(Axis.ROWS), q.getHierarchy("Time").getAxis());
+		assertSame(q.getUnusedAxis(), q.getHierarchy("Gender").getAxis());
+
+		// Changes to the base query don't affect the template
+		String mdx = toMdx(base);
+		base.getAxis(Axis.ROWS).undrill(year);
+		base.getHierarchy("Time").exclude(Operator.MEMBER, year);
+		assertEquals(mdx, toMdx(template.newQuery()));
+	}
+
+	@Test
+	public void testCopyOnWrite() throws Exception {
+		QueryTemplate template = new QueryTemplate(base);
+		Query q1 = template.newQuery();
+		Query q2 = template.newQuery();
+		String mdx = toMdx(q1);
+
+		// Unmodified trees are shared
+		assertSame(q1.getHierarchy("Time").getSelectionTree(), q2
+				.getHierarchy("Time").getSelectionTree());
+
+		q1.getHierarchy("Time").exclude(Operator.CHILDREN, year);
+		q1.getAxis(Axis.ROWS).undrill(year);
+		assertNotSame(q1.getHierarchy("Time").getSelectionTree(), q2
+				.getHierarchy("Time").getSelectionTree());
+		assertSame(q1.getHierarchy("Measures").getSelectionTree(), q2
+				.getHierarchy("Measures").getSelectionTree());
+		assertFalse(q1.getAxis(Axis.ROWS).isDrilled(year));
+		assertTrue(q2.getAxis(Axis.ROWS).isDrilled(year));
+		assertFalse(mdx.equals(toMdx(q1)));
+		assertEquals(mdx, toMdx(q2));
+		assertEquals(mdx, toMdx(template.newQuery()));
+
+		// Moving hierarchies doesn't affect other queries
+		q2.getAxis(Axis.COLUMNS).addHierarchy(q2.getHierarchy("Gender"));
+		assertEquals(1, q1.getAxis(Axis.COLUMNS).getHierarchies().size());
+		assertEquals(mdx, toMdx(template.newQuery()));
+	}
+
+	@Test
+	public void testPrepare() throws Exception {
+		QueryHierarchy gender = base.getHierarchy("Gender");
+		Member allGender = gender.getHierarchy().getRootMembers().get(0);
+		gender.include(Operator.MEMBER, allGender);
+		base.getAxis(Axis.FILTER).addHierarchy(gender);
+		QueryTemplate template = new QueryTemplate(base);
+
+		PreparedQuery prepared = template.prepare("Gender");
+		assertEquals(Arrays.asList(gender.getHierarchy()),
+				prepared.getParameters());
+		String mdx = prepared.getMdx();
+		assertTrue(mdx, mdx.contains("WHERE Parameter(\"[Gender]\", [Gender], "
+				+ allGender.getUniqueName() + ")"));
+		assertEquals(toMdx(base), toMdx(template.newQuery()));
+
+		final Map<Integer, Object> bound = new HashMap<Integer, Object>();
+		PreparedOlapStatement stmt = (PreparedOlapStatement) Proxy
+				.newProxyInstance(getClass().getClassLoader(),
+						new Class<?>[] { PreparedOlapStatement.class },
+						new InvocationHandler() {
+							@Override
+							public Object invoke(Object proxy, Method method,
+									Object[] args) {
+								if (method.getName().equals("setObject"))
+									bound.put((Integer) args[0], args[1]);
+								return null;
+							}
+						});
+		Member male = allGender.getChildMembers().get(0);
+		prepared.execute(stmt, male);
+		assertEquals(Collections.<Integer, Object> singletonMap(1, male), bound);
+
+		try {
+			prepared.execute(stmt, year);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			template.prepare("Time.Weekly");
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testPrepare_parameterNames() throws Exception {
+		QueryHierarchy gender = base.getHierarchy("Gender");
+		Member allGender = gender.getHierarchy().getRootMembers().get(0);
+		gender.include(Operator.MEMBER, allGender);
+		base.getAxis(Axis.FILTER).addHierarchy(gender);
+		PreparedQuery prepared = new QueryTemplate(base).prepare("Gender");
+		Member male = allGender.getChildMembers().get(0);
+
+		final Map<Integer, Object> bound = new HashMap<Integer, Object>();
+		prepared.execute(
+				createStatement(bound, "[Time]", "[Gender]"), male);
+		assertEquals(Collections.<Integer, Object> singletonMap(2, male), bound);
+
+		// Statements not prepared from the query MDX are rejected
+		try {
+			prepared.execute(createStatement(bound, "Gender"), male);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	@Test
+	public void testExecute_statementPerExecution() throws Exception {
+		QueryHierarchy gender = base.getHierarchy("Gender");
+		Member allGender = gender.getHierarchy().getRootMembers().get(0);
+		gender.include(Operator.MEMBER, allGender);
+		base.getAxis(Axis.FILTER).addHierarchy(gender);
+
+		final List<PreparedOlapStatement> prepared = new ArrayList<PreparedOlapStatement>();
+		final List<OlapConnection> released = new ArrayList<OlapConnection>();
+		base.setConnectionProvider(new ConnectionProvider() {
+			@Override
+			public OlapConnection getConnection(Cube c) {
+				return (OlapConnection) Proxy.newProxyInstance(getClass()
+						.getClassLoader(),
+						new Class<?>[] { OlapConnection.class },
+						new InvocationHandler() {
+							@Override
+							public Object invoke(Object proxy, Method method,
+									Object[] args) {
+								if (!method.getName().equals(
+										"prepareOlapStatement"))
+									return null;
+								PreparedOlapStatement stmt = createStatement(
+										new HashMap<Integer, Object>(),
+										"[Gender]");
+								prepared.add(stmt);
+								return stmt;
+							}
+						});
+			}
+
+			@Override
+			public void releaseConnection(OlapConnection connection) {
+				released.add(connection);
+			}
+		});
+		PreparedQuery query = new QueryTemplate(base).prepare("Gender");
+		Member male = allGender.getChildMembers().get(0);
+
+		CellSet first = query.execute(male);
+		CellSet second = query.execute(allGender);
+		assertEquals(2, prepared.size());
+		assertSame(prepared.get(0), first.getStatement());
+		assertSame(prepared.get(1), second.getStatement());
+
+		// Closing a result releases its connection
+		assertTrue(released.isEmpty());
+		first.close();
+		assertEquals(1, released.size());
+
+		// Failed executions release their connection
+		try {
+			query.execute(year);
+			fail();
+		} catch (IllegalArgumentException e) {
+		}
+		assertEquals(2, released.size());
+	}
+
+	/**
+	 * Creates a statement recording its bound parameters, whose results
+	 * return the statement.
+	 */
+	private static PreparedOlapStatement createStatement(
+			final Map<Integer, Object> bound, final String... parameterNames) {
+		final OlapParameterMetaData metaData = (OlapParameterMetaData) Proxy
+				.newProxyInstance(QueryTemplateTest.class.getClassLoader(),
+						new Class<?>[] { OlapParameterMetaData.class },
+						new InvocationHandler() {
+							@Override
+							public Object invoke(Object proxy, Method method,
+									Object[] args) {
+								if (method.getName().equals("getParameterCount"))
+									return parameterNames.length;
+								if (method.getName().equals("getParameterName"))
+									return parameterNames[(Integer) args[0] - 1];
+								return null;
+							}
+						});
+		return (PreparedOlapStatement) Proxy.newProxyInstance(
+				QueryTemplateTest.class.getClassLoader(),
+				new Class<?>[] { PreparedOlapStatement.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(final Object stmt, Method method,
+							Object[] args) {
+						if (method.getName().equals("setObject"))
+							bound.put((Integer) args[0], args[1]);
+						if (method.getName().equals("getParameterMetaData"))
+							return metaData;
+						if (method.getName().equals("executeQuery"))
+							return createCellSet(stmt);
+						return null;
+					}
+				});
+	}
+
+	private static CellSet createCellSet(final Object statement) {
+		return (CellSet) Proxy.newProxyInstance(
+				QueryTemplateTest.class.getClassLoader(),
+				new Class<?>[] { CellSet.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("getStatement"))
+							return statement;
+						return null;
+					}
+				});
+	}
+
+	private static String toMdx(Query q) throws Exception {
+		StringWriter swr = new StringWriter();
+		q.getSelect().unparse(new ParseTreeWriter(swr));
+		return swr.toString();
+	}
+}
@@ -1,14 +1,20 @@
 package es.cgalesanco.olap4j.query;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -16,6 +22,8 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.olap4j.Axis;
 import org.olap4j.mdx.CubeNode;
+import org.olap4j.mdx.ParseTreeNode;
+import org.olap4j.mdx.ParseTreeWriter;
 import org.olap4j.mdx.SelectNode;
 import org.olap4j.metadata.Cube;
 import org.olap4j.metadata.Hierarchy;
@@ -23,6 +31,11 @@ import org.olap4j.metadata.Member;
 import org.olap4j.metadata.NamedList;
 
 import es.cgalesanco.olap4j.query.Selection.Operator;
+import es.cgalesanco.olap4j.query.mdx.Mdx;
+import es.cgalesanco.olap4j.query.metrics.InMemoryQueryMetrics;
+import es.cgalesanco.olap4j.query.metrics.MetadataProfiler;
+import es.cgalesanco.olap4j.query.metrics.NoOpQueryMetrics;
+import es.cgalesanco.olap4j.query.metrics.QueryMetrics;
 
 public class QueryTest {
 	private static CubeMock cube;
@@ -137,6 +150,346 @@ public class QueryTest {
 		assertNotNull(select.getFilterAxis().getExpression());
 	}
 	
+	@Test
+	public void testGetSelect_aggregateFilter() throws Exception {
+		Member year = setUpFilterQuery();
+		QueryHierarchy hGender = query.getHierarchy("Gender");
+
+		String crossJoin = toMdx(query.getSelect());
+		assertTrue(crossJoin, crossJoin.contains("CrossJoin("));
+
+		query.setFilterMode(FilterMode.AGGREGATE);
+		SelectNode select = query.getSelect();
+		String filtered = hGender.getHierarchy().getUniqueName()
+				+ ".[Filtered]";
+		assertEquals(1, select.getWithList().size());
+		String with = toMdx(select.getWithList().get(0));
+		assertTrue(with, with.startsWith("MEMBER " + filtered + " AS"));
+		assertTrue(with, with.contains("Aggregate({"));
+		// The slicer is a tuple; single member filters are not aggregated
+		assertEquals("(" + filtered + ", " + year.getUniqueName() + ")",
+				toMdx(select.getFilterAxis().getExpression()));
+		String explained = toMdx(query.explain().getFragment());
+		assertTrue(explained, explained.contains("WITH"));
+	}
+
+	@Test
+	public void testGetSelect_subselectFilter() throws Exception {
+		setUpFilterQuery();
+
+		query.setFilterMode(FilterMode.SUBSELECT);
+		SelectNode select = query.getSelect();
+		assertNull(select.getFilterAxis().getExpression());
+		assertTrue(select.getFrom() instanceof SelectNode);
+		SelectNode subcube = (SelectNode) select.getFrom();
+		// Every filter hierarchy on its own axis, no cross join
+		assertEquals(2, subcube.getAxisList().size());
+		assertEquals(Axis.COLUMNS, subcube.getAxisList().get(0).getAxis());
+		assertEquals(Axis.ROWS, subcube.getAxisList().get(1).getAxis());
+		assertTrue(subcube.getFrom() instanceof CubeNode);
+		String mdx = toMdx(select);
+		assertFalse(mdx, mdx.contains("CrossJoin("));
+		assertEquals(mdx, toMdx(query.explain().getFragment()));
+	}
+
+	/**
+	 * Sets up a query filtering on both genders and the first year.
+	 * 
+	 * @return the filtered year.
+	 */
+	private Member setUpFilterQuery() throws Exception {
+		QueryHierarchy hMeasures = query.getHierarchy("Measures");
+		for(Member m : hMeasures.getHierarchy().getRootMembers()) {
+			hMeasures.include(Operator.MEMBER, m);
+		}
+		query.getAxis(Axis.COLUMNS).addHierarchy(hMeasures);
+
+		QueryHierarchy hGender = query.getHierarchy("Gender");
+		Member all = hGender.getHierarchy().getRootMembers().get(0);
+		for (Member m : all.getChildMembers())
+			hGender.include(Operator.MEMBER, m);
+		query.getAxis(Axis.FILTER).addHierarchy(hGender);
+		QueryHierarchy hTime = query.getHierarchy("Time");
+		Member year = hTime.getHierarchy().getRootMembers().get(0);
+		hTime.include(Operator.MEMBER, year);
+		query.getAxis(Axis.FILTER).addHierarchy(hTime);
+		return year;
+	}
+
+	@Test
+	public void testEstimateCardinality() throws Exception {
+		Member year = setUpEstimateQuery();
+
+		CardinalityEstimate estimate = query.estimateCardinality();
+		assertEquals(3, estimate.getPositionCount(Axis.COLUMNS));
+		assertEquals(1, estimate.getPositionCount(Axis.ROWS));
+		assertEquals(3, estimate.getCellCount());
+
+		// Drilling the year shows its four quarters
+		query.getAxis(Axis.ROWS).drill(year);
+		estimate = query.estimateCardinality();
+		assertEquals(5, estimate.getPositionCount(Axis.ROWS));
+		assertEquals(15, estimate.getCellCount());
+
+		// Expanding shows the year, quarters, months and days
+		query.getAxis(Axis.ROWS).expandHierarchy(query.getHierarchy("Time"));
+		estimate = query.estimateCardinality();
+		assertEquals(1 + 4 + 12 + 365, estimate.getPositionCount(Axis.ROWS));
+	}
+
+	@Test(expected = CardinalityLimitException.class)
+	public void testCardinalityLimits_reject() throws Exception {
+		Member year = setUpEstimateQuery();
+		query.getAxis(Axis.ROWS).drill(year);
+
+		query.setCardinalityLimits(new CardinalityLimits(4, Long.MAX_VALUE,
+				CardinalityLimits.Policy.REJECT));
+		query.getSelect();
+	}
+
+	@Test
+	public void testCardinalityLimits_collapse() throws Exception {
+		Member year = setUpEstimateQuery();
+		query.getAxis(Axis.ROWS).drill(year);
+
+		query.setCardinalityLimits(new CardinalityLimits(4, Long.MAX_VALUE,
+				CardinalityLimits.Policy.COLLAPSE));
+		SelectNode select = query.getSelect();
+		assertEquals(String.format("{%1$s}", year), toMdx(select
+				.getAxisList().get(1).getExpression()));
+		assertTrue(query.getAxis(Axis.ROWS).isDrilled(year));
+	}
+
+	@Test
+	public void testCardinalityLimits_truncate() throws Exception {
+		Member year = setUpEstimateQuery();
+		query.getAxis(Axis.ROWS).drill(year);
+
+		query.setCardinalityLimits(new CardinalityLimits(10, 6,
+				CardinalityLimits.Policy.TRUNCATE));
+		SelectNode select = query.getSelect();
+		assertEquals(
+				String.format("Subset(Hierarchize(DrilldownMember({%1$s}, {%1$s}, RECURSIVE)), 0, 2)", year),
+				toMdx(select.getAxisList().get(1).getExpression()));
+	}
+
+	@Test
+	public void testCardinalityLimits_truncateColumns() throws Exception {
+		Member year = setUpEstimateQuery();
+		query.getAxis(Axis.ROWS).drill(year);
+
+		// Fewer cells than columns: a single row of two columns
+		query.setCardinalityLimits(new CardinalityLimits(10, 2,
+				CardinalityLimits.Policy.TRUNCATE));
+		SelectNode select = query.getSelect();
+		String columns = toMdx(select.getAxisList().get(0).getExpression());
+		assertTrue(columns, columns.endsWith(", 0, 2)"));
+		String rows = toMdx(select.getAxisList().get(1).getExpression());
+		assertTrue(rows, rows.endsWith(", 0, 1)"));
+	}
+
+	@Test
+	public void testGetSelect_executor() throws Exception {
+		Member year = setUpEstimateQuery();
+		QueryHierarchy hGender = query.getHierarchy("Gender");
+		for (Member m : hGender.getHierarchy().getRootMembers()) {
+			hGender.include(Operator.DESCENDANTS, m);
+		}
+		QueryAxis rows = query.getAxis(Axis.ROWS);
+		rows.addHierarchy(hGender);
+		Member quarter = year.getChildMembers().get(0);
+		Member gender = hGender.getHierarchy().getRootMembers().get(0);
+		rows.drill(year);
+		rows.drill(quarter);
+		rows.drill(quarter, gender);
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			String expected = toMdx(query.getSelect());
+			for (int i = 0; i < 10; ++i)
+				assertEquals(expected, toMdx(query.getSelect(executor)));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		InMemoryQueryMetrics metrics = new InMemoryQueryMetrics();
+		query.setMetrics(metrics);
+		Member year = setUpEstimateQuery();
+		query.getAxis(Axis.ROWS).drill(year);
+		SelectNode select = query.getSelect();
+
+		// Three measures and the year included
+		assertEquals(4, metrics.getStatistic(QueryMetrics.SELECT).getCount());
+		assertEquals(1, metrics.getStatistic(QueryMetrics.DRILL).getTotal());
+		assertEquals(1, metrics.getStatistic(QueryMetrics.DRILLED_POSITIONS)
+				.getMax());
+		assertEquals(1, metrics.getStatistic(QueryMetrics.GET_SELECT)
+				.getCount());
+		assertEquals(2, metrics.getStatistic(QueryMetrics.EXPAND).getCount());
+		assertEquals(Mdx.countNodes(select),
+				metrics.getStatistic(QueryMetrics.MDX_NODES).getMax());
+
+		query.setMetrics(null);
+		assertSame(NoOpQueryMetrics.INSTANCE, query.getMetrics());
+	}
+
+	@Test
+	public void testListeners() throws Exception {
+		final List<String> events = new ArrayList<String>();
+		QueryListener listener = new QueryListenerAdapter() {
+			@Override
+			public void generationStarted(QueryEvent event) {
+				events.add("started " + event.getCorrelationId());
+			}
+
+			@Override
+			public void generationFinished(QueryEvent event) {
+				events.add("finished " + event.getCorrelationId() + " "
+						+ (event.getSelect() != null));
+			}
+
+			@Override
+			public void queryFailed(QueryEvent event) {
+				events.add("failed " + event.getCorrelationId() + " "
+						+ event.getError().getClass().getSimpleName());
+			}
+		};
+		Member year = setUpEstimateQuery();
+		query.addListener(listener);
+
+		query.getSelect();
+		assertEquals(2, events.size());
+		String id = events.get(0).substring("started ".length());
+		assertEquals("finished " + id + " true", events.get(1));
+
+		events.clear();
+		query.getAxis(Axis.ROWS).drill(year);
+		query.setCardinalityLimits(new CardinalityLimits(4, Long.MAX_VALUE,
+				CardinalityLimits.Policy.REJECT));
+		try {
+			query.getSelect();
+		} catch (CardinalityLimitException e) {
+			// expected
+		}
+		assertEquals(2, events.size());
+		id = events.get(0).substring("started ".length());
+		assertEquals("failed " + id + " CardinalityLimitException",
+				events.get(1));
+
+		events.clear();
+		query.removeListener(listener);
+		Query.addGlobalListener(listener);
+		try {
+			query.setCardinalityLimits(null);
+			query.getSelect();
+			assertEquals(2, events.size());
+		} finally {
+			Query.removeGlobalListener(listener);
+		}
+		query.getSelect();
+		assertEquals(2, events.size());
+	}
+
+	@Test
+	public void testMetadataProfiler() throws Exception {
+		Member year = setUpEstimateQuery();
+		query.getAxis(Axis.ROWS).drill(year);
+		String expected = toMdx(query.getSelect());
+
+		MetadataProfiler profiler = new MetadataProfiler(true);
+		query = new Query("Profiled query", profiler.wrap(cube));
+		year = setUpEstimateQuery();
+		query.getAxis(Axis.ROWS).drill(year);
+		assertTrue(profiler.getOperationCounts().containsKey(
+				"Cube.getHierarchies"));
+
+		profiler.reset();
+		assertEquals(expected, toMdx(query.getSelect()));
+		assertTrue(query.getHierarchy("Time").isLeaf(year) == false);
+		assertTrue(profiler.getTotalCount() > 0);
+		assertTrue(profiler.getOperationCounts().containsKey(
+				"Member.getChildMemberCount"));
+		boolean found = false;
+		for (String site : profiler.getCallSiteCounts().keySet())
+			found |= site.contains("SelectionTree.isLeaf");
+		assertTrue(found);
+		assertTrue(profiler.report().startsWith("Metadata calls: "));
+	}
+
+	@Test
+	public void testExplain() throws Exception {
+		Member year = setUpEstimateQuery();
+		QueryHierarchy hGender = query.getHierarchy("Gender");
+		Member allGender = hGender.getHierarchy().getRootMembers().get(0);
+		hGender.include(Operator.DESCENDANTS, allGender);
+		QueryAxis rows = query.getAxis(Axis.ROWS);
+		rows.addHierarchy(hGender);
+		rows.drill(year);
+		rows.drill(year, allGender);
+
+		ExplainNode plan = query.explain();
+		assertEquals(ExplainNode.Kind.QUERY, plan.getKind());
+		assertEquals(toMdx(query.getSelect()), plan.getMdx());
+		assertEquals(query.estimateCardinality().getCellCount(),
+				plan.getEstimatedCardinality());
+
+		assertEquals(2, plan.getChildren().size());
+		ExplainNode rowsPlan = plan.getChildren().get(1);
+		assertEquals(ExplainNode.Kind.AXIS, rowsPlan.getKind());
+		assertEquals(rows.estimatePositions(),
+				rowsPlan.getEstimatedCardinality());
+
+		// A branch for the root and another for the [year] prefix
+		List<ExplainNode> branches = rowsPlan.getChildren();
+		assertEquals(2, branches.size());
+		assertTrue(branches.get(0).getMembers().isEmpty());
+		assertEquals(Arrays.asList(year), branches.get(1).getMembers());
+		assertEquals(rowsPlan.getEstimatedCardinality(), branches.get(0)
+				.getEstimatedCardinality()
+				+ branches.get(1).getEstimatedCardinality());
+		assertEquals(1, branches.get(1).getChildren().size());
+
+		ExplainNode timePlan = branches.get(0).getChildren().get(0);
+		assertEquals(ExplainNode.Kind.HIERARCHY, timePlan.getKind());
+		ExplainNode yearPlan = null;
+		for (ExplainNode selection : timePlan.getChildren()) {
+			if (selection.getMembers().equals(Arrays.asList(year)))
+				yearPlan = selection;
+		}
+		assertNotNull(yearPlan);
+		assertEquals(ExplainNode.Kind.SELECTION, yearPlan.getKind());
+		assertFalse(yearPlan.getChildren().isEmpty());
+		for (ExplainNode fragment : yearPlan.getChildren()) {
+			assertEquals(ExplainNode.Kind.FRAGMENT, fragment.getKind());
+			assertTrue(fragment.getNodeCount() > 0);
+		}
+		assertTrue(plan.getMemberCount() >= timePlan.getMemberCount());
+		assertTrue(plan.toString().contains("DRILL_BRANCH " + year.getUniqueName()));
+	}
+
+	private static String toMdx(ParseTreeNode node) {
+		StringWriter swr = new StringWriter();
+		node.unparse(new ParseTreeWriter(swr));
+		return swr.toString();
+	}
+
+	private Member setUpEstimateQuery() throws Exception {
+		QueryHierarchy hMeasures = query.getHierarchy("Measures");
+		for(Member m : hMeasures.getHierarchy().getRootMembers()) {
+			hMeasures.include(Operator.MEMBER, m);
+		}
+		query.getAxis(Axis.COLUMNS).addHierarchy(hMeasures);
+
+		QueryHierarchy hTime = query.getHierarchy("Time");
+		Member year = hTime.getHierarchy().getRootMembers().get(0);
+		hTime.include(Operator.DESCENDANTS, year);
+		query.getAxis(Axis.ROWS).addHierarchy(hTime);
+		return year;
+	}
+
 	/**
 	 * Tests that {@link Query#getAxis(Axis)} is congruent with @{link
 	 * {@link Query#getAxes()} and {@link Query#getUnusedAxis()}.
@@ -1,11 +1,12 @@
 package es.cgalesanco.olap4j.query;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
-import java.io.File;
-import java.sql.Connection;
-import java.sql.DriverManager;
+import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -16,6 +17,7 @@ import org.olap4j.CellSet;
 import org.olap4j.CellSetAxis;
 import org.olap4j.OlapConnection;
 import org.olap4j.Position;
+import org.olap4j.mdx.ParseTreeWriter;
 import org.olap4j.metadata.Cube;
 import org.olap4j.metadata.Level;
 import org.olap4j.metadata.Member;
@@ -86,15 +88,7 @@ public class RegressionIT {
 	@BeforeClass
 	public static void setUpFixture() throws Exception {
 			// Establish the connection with the provider and retrieves the "Sales" cube 
-			Class.forName("mondrian.olap4j.MondrianOlap4jDriver");
-
-			// Copy FoodMart catalog resource into a temporary file 
-			File catalogFile = File.createTempFile("foodmart", ".xml");
-			FixtureUtils.copyResource("FoodMart.xml", catalogFile.getParentFile(), catalogFile.getName());
-
-      String jdbcUrl = System.getProperty("testJdbc");
-			Connection jdbcCn = DriverManager.getConnection("jdbc:mondrian:"+jdbcUrl+";Catalog=file:"+catalogFile.getAbsolutePath());
-			cn = jdbcCn.unwrap(OlapConnection.class);
+			cn = FoodMartFixture.connect();
 			cube = cn.getOlapSchema().getCubes().get("Sales");
 
 	}
@@ -877,6 +871,39 @@ public class RegressionIT {
 			);
 	}
 	
+	@Test
+	public void testHierarchizeSkipped_sameOrder() throws Exception {
+		// Expanded Time hierarchy cross joined with the Gender children: both
+		// sets are generated in hierarchical order.
+		Member root1997 = testHierarchies[0].getHierarchy().getRootMembers().get("1997");
+		testHierarchies[0].include(Operator.DESCENDANTS, root1997);
+		testAxis.expandHierarchy(testHierarchies[0]);
+		testHierarchies[1] = query.getHierarchy("Gender");
+		testHierarchies[1].include(Operator.CHILDREN, testHierarchies[1].getHierarchy().getRootMembers().get(0));
+		testAxis.addHierarchy(testHierarchies[1]);
+		
+		StringWriter mdx = new StringWriter();
+		query.getSelect().unparse(new ParseTreeWriter(mdx));
+		assertFalse(mdx.toString(), mdx.toString().contains("Hierarchize"));
+		List<String> positions = listRowsPositions();
+		
+		query.setLegacyExpressions(true);
+		assertEquals(listRowsPositions(), positions);
+	}
+	
+	private List<String> listRowsPositions() throws Exception {
+		CellSet cs = query.execute();
+		List<String> result = new ArrayList<String>();
+		for(Position pos : cs.getAxes().get(Axis.ROWS.axisOrdinal()).getPositions()) {
+			StringBuilder position = new StringBuilder();
+			for(Member m : pos.getMembers()) {
+				position.append(m.getUniqueName());
+				position.append(", ");
+			}
+			result.add(position.toString());
+		}
+		return result;
+	}
 	
 	private void assertRowsMembers(String... expectedPositions) throws Exception{
 		CellSet cs = query.execute();